@@ -121,6 +121,22 @@ public class As2Message {
             return new As2Message(this);
         }
 
+        /**
+         * Builds the message from the AS2 headers only, for inbound messages of which the payload is streamed
+         * rather than held in a MimeMessage. See {@link InboundSignedMessageParser}
+         */
+        As2Message buildFromHeaders() {
+
+            required(as2Version, "as2Version");
+            required(as2From, "as2From");
+            required(as2To, "as2To");
+            required(subject, "subject");
+            required(transmissionId, "transmissionId");
+            required(date, "date");
+
+            return new As2Message(this);
+        }
+
         public Builder mimeMessage(MimeMessage mimeMessage) {
             this.mimeMessage = mimeMessage;
             return this;
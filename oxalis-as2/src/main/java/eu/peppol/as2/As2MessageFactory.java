@@ -1,6 +1,6 @@
 package eu.peppol.as2;
 
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import eu.peppol.security.CryptoBootstrap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,7 +10,6 @@ import javax.mail.internet.MimeMessage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.Security;
 
 import static eu.peppol.as2.HeaderUtil.getFirstValue;
 
@@ -38,7 +37,7 @@ public class As2MessageFactory {
      */
     public static As2Message createAs2MessageFrom(InternetHeaders headerMap, InputStream inputStream) throws InvalidAs2MessageException, MdnRequestException {
         // Gives us access to BouncyCastle
-        Security.addProvider(new BouncyCastleProvider());
+        CryptoBootstrap.registerProvider();
 
         MimeMessage mimeMessage = createMimeMessage(inputStream);
 
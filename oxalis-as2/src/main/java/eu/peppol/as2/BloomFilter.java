@@ -0,0 +1,83 @@
+package eu.peppol.as2;
+
+import java.util.BitSet;
+
+/**
+ * Bloom filter holding SHA-1 digests, which tells whether a digest has definitely not been added, or has probably
+ * been added.
+ * <p/>
+ * The digests are uniformly distributed, hence the bit positions are derived directly from the digest using
+ * double hashing, rather than hashing once more. Elements can not be removed, a new filter must be built
+ * in order to forget elements.
+ * <p/>
+ * Thread safe.
+ */
+class BloomFilter {
+
+    private final BitSet bits;
+    private final int numberOfBits;
+    private final int numberOfHashes;
+
+    /**
+     * @param expectedElements number of elements expected to be added
+     * @param falsePositiveRate the acceptable rate of false positives when the expected number of elements have been added
+     */
+    BloomFilter(int expectedElements, double falsePositiveRate) {
+        if (expectedElements <= 0) {
+            throw new IllegalArgumentException("Expected number of elements must be positive: " + expectedElements);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        long optimalBits = (long) Math.ceil(-expectedElements * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        numberOfBits = (int) Math.min(Integer.MAX_VALUE - 1, Math.max(64, optimalBits));
+        numberOfHashes = Math.max(1, (int) Math.round((double) numberOfBits / expectedElements * Math.log(2)));
+        bits = new BitSet(numberOfBits);
+    }
+
+    synchronized void add(byte[] digest) {
+        int hash1 = hash1(digest);
+        int hash2 = hash2(digest);
+        for (int i = 0; i < numberOfHashes; i++) {
+            bits.set(position(hash1, hash2, i));
+        }
+    }
+
+    /** @return false if the digest has definitely not been added */
+    synchronized boolean mightContain(byte[] digest) {
+        int hash1 = hash1(digest);
+        int hash2 = hash2(digest);
+        for (int i = 0; i < numberOfHashes; i++) {
+            if (!bits.get(position(hash1, hash2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getNumberOfBits() {
+        return numberOfBits;
+    }
+
+    int getNumberOfHashes() {
+        return numberOfHashes;
+    }
+
+    private int position(int hash1, int hash2, int i) {
+        int combined = hash1 + i * hash2;
+        return (combined & Integer.MAX_VALUE) % numberOfBits;
+    }
+
+    private static int hash1(byte[] digest) {
+        return toInt(digest, 0);
+    }
+
+    private static int hash2(byte[] digest) {
+        // Odd, thus never 0, which would give the same position for all hashes
+        return toInt(digest, 4) | 1;
+    }
+
+    private static int toInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+}
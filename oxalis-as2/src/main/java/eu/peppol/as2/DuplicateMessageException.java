@@ -0,0 +1,18 @@
+package eu.peppol.as2;
+
+/**
+ * Thrown when an authenticated AS2 message has already been received, in which case the MDN returned the first
+ * time should be returned once more.
+ */
+public class DuplicateMessageException extends Exception {
+    private final StoredMdn storedMdn;
+
+    public DuplicateMessageException(String messageId, StoredMdn storedMdn) {
+        super("Message " + messageId + " has already been received");
+        this.storedMdn = storedMdn;
+    }
+
+    public StoredMdn getStoredMdn() {
+        return storedMdn;
+    }
+}
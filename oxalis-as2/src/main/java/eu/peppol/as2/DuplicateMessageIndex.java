@@ -0,0 +1,309 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CryptoBootstrap;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Header;
+import javax.mail.internet.InternetHeaders;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index of the AS2 messages received, keyed on the AS2-From, AS2-To and Message-ID headers, holding the MDN
+ * returned for each of them.
+ * <p/>
+ * Sending access points retransmit messages when they do not receive the MDN. A retransmission is recognised
+ * by its AS2-From, AS2-To and Message-ID, upon which the MDN we returned the first time is replayed, rather than
+ * persisting and signing once more. The Message-ID is chosen by the sender, hence the index must only be consulted
+ * once the message has been authenticated as coming from the AS2-From, see {@link InboundMessageReceiver}.
+ * <p/>
+ * The MDNs are held on disk, one file per message, named by the SHA-1 digest of the key. An in memory
+ * {@link BloomFilter} of the digests is consulted first, hence the disk is only accessed for messages which are
+ * probably duplicates. The file holds the AS2-From, AS2-To and Message-ID as well, which confirm the duplicate.
+ * <p/>
+ * Entries expire after the retention period, after which a retransmission is received like any other message.
+ * Expired entries are removed by {@link #removeExpired()}, which rebuilds the Bloom filter.
+ */
+public class DuplicateMessageIndex {
+
+    public static final Logger log = LoggerFactory.getLogger(DuplicateMessageIndex.class);
+
+    /** The headers of the original AS2 message, which are stored along with the http headers of the MDN */
+    static final String ORIGINAL_AS2_FROM = "X-Oxalis-Original-AS2-From";
+    static final String ORIGINAL_AS2_TO = "X-Oxalis-Original-AS2-To";
+    static final String ORIGINAL_MESSAGE_ID = "X-Oxalis-Original-Message-ID";
+
+    private static final String SUFFIX = ".mdn";
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+
+    private static volatile DuplicateMessageIndex instance;
+
+    private final File directory;
+    private final long retentionMillis;
+    private final int expectedMessages;
+
+    /** Replaced when rebuilt, rather than cleared, hence lookups are never missing an entry */
+    private volatile BloomFilter bloomFilter;
+
+    /** The filter being rebuilt, to which stored messages are added as well */
+    private volatile BloomFilter rebuildingBloomFilter;
+
+    /** Provides the index configured in the Oxalis global configuration, from which expired entries are removed every hour */
+    public static DuplicateMessageIndex getInstance() {
+        if (instance == null) {
+            synchronized (DuplicateMessageIndex.class) {
+                if (instance == null) {
+                    GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+                    final DuplicateMessageIndex duplicateMessageIndex = new DuplicateMessageIndex(
+                            new File(globalConfiguration.getInboundDuplicateIndexDirectory()),
+                            globalConfiguration.getInboundDuplicateRetention(),
+                            globalConfiguration.getInboundDuplicateExpectedMessages());
+
+                    ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "oxalis-duplicate-index-purger");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                duplicateMessageIndex.removeExpired();
+                            } catch (RuntimeException e) {
+                                log.error("Unable to remove expired entries from " + duplicateMessageIndex.directory + ": " + e.getMessage(), e);
+                            }
+                        }
+                    }, 1, 1, TimeUnit.HOURS);
+
+                    instance = duplicateMessageIndex;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param directory holds the MDNs, created if it does not exist
+     * @param retentionMillis number of milliseconds a message is remembered
+     * @param expectedMessages number of messages expected to be received within the retention period
+     */
+    public DuplicateMessageIndex(File directory, long retentionMillis, int expectedMessages) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create directory " + directory + " for the duplicate message index");
+        }
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.expectedMessages = expectedMessages;
+        this.bloomFilter = new BloomFilter(expectedMessages, FALSE_POSITIVE_RATE);
+
+        int count = removeExpired();
+        log.info("Duplicate message index in " + directory + " holds " + count + " messages");
+    }
+
+    /**
+     * Looks up the MDN returned in response to a message previously received from the supplied sender, by the
+     * supplied receiver, with the supplied Message-ID. The message must have been authenticated as coming from
+     * the AS2-From.
+     *
+     * @return the MDN, or null if no such message has been received within the retention period
+     */
+    public StoredMdn findMdn(String as2From, String as2To, String messageId) {
+        byte[] digest = digest(as2From, as2To, messageId);
+        if (!bloomFilter.mightContain(digest)) {
+            return null;
+        }
+
+        File file = fileFor(digest);
+        if (!file.isFile() || isExpired(file)) {
+            return null;
+        }
+
+        try {
+            InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+            try {
+                InternetHeaders headers = MultipartReader.readHeaders(inputStream);
+                if (!as2From.equals(headers.getHeader(ORIGINAL_AS2_FROM, null))
+                        || !as2To.equals(headers.getHeader(ORIGINAL_AS2_TO, null))
+                        || !messageId.equals(headers.getHeader(ORIGINAL_MESSAGE_ID, null))) {
+                    // Colliding digest, which is extremely unlikely
+                    return null;
+                }
+                headers.removeHeader(ORIGINAL_AS2_FROM);
+                headers.removeHeader(ORIGINAL_AS2_TO);
+                headers.removeHeader(ORIGINAL_MESSAGE_ID);
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    body.write(buffer, 0, bytesRead);
+                }
+                return new StoredMdn(headers, body.toByteArray());
+            } finally {
+                inputStream.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Removed after we checked
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read MDN from " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stores the MDN returned in response to the message with the supplied AS2-From, AS2-To and Message-ID. The file
+     * is written under a temporary name and renamed, hence a partially written MDN is never found.
+     */
+    public void storeMdn(String as2From, String as2To, String messageId, StoredMdn storedMdn) {
+        byte[] digest = digest(as2From, as2To, messageId);
+        File file = fileFor(digest);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IllegalStateException("Unable to create directory " + parent);
+        }
+
+        File temporaryFile = new File(parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream outputStream = new FileOutputStream(temporaryFile);
+            try {
+                writeHeader(outputStream, ORIGINAL_AS2_FROM, as2From);
+                writeHeader(outputStream, ORIGINAL_AS2_TO, as2To);
+                writeHeader(outputStream, ORIGINAL_MESSAGE_ID, messageId);
+                Enumeration headers = storedMdn.getHttpHeaders().getAllHeaders();
+                while (headers.hasMoreElements()) {
+                    Header header = (Header) headers.nextElement();
+                    writeHeader(outputStream, header.getName(), header.getValue());
+                }
+                outputStream.write("\r\n".getBytes("US-ASCII"));
+                outputStream.write(storedMdn.getBody());
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            temporaryFile.delete();
+            throw new IllegalStateException("Unable to write MDN to " + temporaryFile + ": " + e.getMessage(), e);
+        }
+
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!temporaryFile.renameTo(file)) {
+            temporaryFile.delete();
+            throw new IllegalStateException("Unable to rename " + temporaryFile + " to " + file);
+        }
+        bloomFilter.add(digest);
+        BloomFilter rebuilding = rebuildingBloomFilter;
+        if (rebuilding != null) {
+            rebuilding.add(digest);
+        }
+    }
+
+    /**
+     * Removes the entries older than the retention period and rebuilds the Bloom filter from the remaining ones.
+     *
+     * @return number of entries remaining
+     */
+    public synchronized int removeExpired() {
+        int remaining = 0;
+        int removed = 0;
+
+        // Messages stored while we rebuild are added to the filter being rebuilt, hence none are lost
+        BloomFilter rebuilt = new BloomFilter(expectedMessages, FALSE_POSITIVE_RATE);
+        rebuildingBloomFilter = rebuilt;
+        File[] subDirectories = directory.listFiles();
+        if (subDirectories == null) {
+            subDirectories = new File[0];
+        }
+        for (File subDirectory : subDirectories) {
+            File[] files = subDirectory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (!file.getName().endsWith(SUFFIX)) {
+                    continue;
+                }
+                if (isExpired(file)) {
+                    if (file.delete()) {
+                        removed++;
+                    }
+                } else {
+                    rebuilt.add(fromHex(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+                    remaining++;
+                }
+            }
+        }
+        bloomFilter = rebuilt;
+        rebuildingBloomFilter = null;
+
+        if (removed > 0) {
+            log.info("Removed " + removed + " expired messages from the duplicate message index, " + remaining + " remaining");
+        }
+        return remaining;
+    }
+
+    private boolean isExpired(File file) {
+        return file.lastModified() + retentionMillis < System.currentTimeMillis();
+    }
+
+    /** The directory is split on the first byte of the digest, in order to keep the directories reasonably small */
+    File fileFor(byte[] digest) {
+        String hex = toHex(digest);
+        return new File(new File(directory, hex.substring(0, 2)), hex + SUFFIX);
+    }
+
+    /** Header values never hold line breaks, which hence separate the parts of the key */
+    static byte[] digest(String as2From, String as2To, String messageId) {
+        return digest(as2From + "\n" + as2To + "\n" + messageId);
+    }
+
+    static byte[] digest(String key) {
+        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest("SHA-1");
+        try {
+            return messageDigest.digest(key.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        } finally {
+            CryptoBootstrap.release(messageDigest);
+        }
+    }
+
+    private static void writeHeader(OutputStream outputStream, String name, String value) throws IOException {
+        outputStream.write((name + ": " + value + "\r\n").getBytes("US-ASCII"));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -2,20 +2,16 @@ package eu.peppol.as2;
 
 import eu.peppol.PeppolMessageMetaData;
 import eu.peppol.PeppolStandardBusinessHeader;
-import eu.peppol.document.DocumentSniffer;
 import eu.peppol.document.SbdhParser;
-import eu.peppol.identifier.TransmissionId;
 import eu.peppol.persistence.MessageRepository;
-import eu.peppol.security.CommonName;
 import eu.peppol.identifier.AccessPointIdentifier;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import eu.peppol.security.CryptoBootstrap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.mail.internet.InternetHeaders;
 import javax.security.auth.x500.X500Principal;
 import java.io.InputStream;
-import java.security.Security;
 
 /**
  * Main entry point for receiving AS2 messages.
@@ -27,17 +23,30 @@ import java.security.Security;
 public class InboundMessageReceiver {
 
     public static final Logger log = LoggerFactory.getLogger(InboundMessageReceiver.class);
-    private final SbdhParser sbdhParser;
+    private final InboundSignedMessageParser inboundSignedMessageParser;
+    private final DuplicateMessageIndex duplicateMessageIndex;
 
     public InboundMessageReceiver() {
+        this(null);
+    }
+
+    /**
+     * @param duplicateMessageIndex consulted once a message has been authenticated, in order to recognise messages
+     *                              retransmitted by the sender. May be null, in which case every message is persisted.
+     */
+    public InboundMessageReceiver(DuplicateMessageIndex duplicateMessageIndex) {
         // Gives us access to BouncyCastle
-        Security.addProvider(new BouncyCastleProvider());
-        sbdhParser = new SbdhParser();
+        CryptoBootstrap.registerProvider();
+        inboundSignedMessageParser = new InboundSignedMessageParser(new SbdhParser());
+        this.duplicateMessageIndex = duplicateMessageIndex;
     }
 
     /**
      * Receives an AS2 Message in the form of a map of headers together with the payload, which is made available
-     * in an input stream
+     * in an input stream.
+     * <p/>
+     * The input stream is read once; the payload is spooled to a temporary file, which is handed to the
+     * message repository and removed once the message has been persisted.
      *
      *
      *
@@ -48,8 +57,9 @@ public class InboundMessageReceiver {
      * @param messageRepository
      * @return MDN object if everything is ok.
      * @throws ErrorWithMdnException if validation fails due to syntactic, semantic or other reasons.
+     * @throws DuplicateMessageException if the message, having been authenticated, has already been received.
      */
-    public MdnData receive(InternetHeaders internetHeaders, InputStream inputStream, MessageRepository messageRepository) throws ErrorWithMdnException {
+    public MdnData receive(InternetHeaders internetHeaders, InputStream inputStream, MessageRepository messageRepository) throws ErrorWithMdnException, DuplicateMessageException {
 
         if (messageRepository == null) {
             throw new IllegalArgumentException("messageRepository is a required argument in constructor");
@@ -60,44 +70,54 @@ public class InboundMessageReceiver {
         if (inputStream == null) {
             throw new IllegalArgumentException("inputStream required constructor argument");
         }
+        InboundSignedMessage inboundSignedMessage = null;
         try {
             log.info("Receiving message ..");
             // Inspects the eu.peppol.as2.As2Header.DISPOSITION_NOTIFICATION_OPTIONS
             inspectDispositionNotificationOptions(internetHeaders);
 
             log.info("Message contains valid Disposition-notification-options, now creating internal AS2 message...");
-            // Transforms the input data into a proper As2Message
-            As2Message as2Message = As2MessageFactory.createAs2MessageFrom(internetHeaders, inputStream);
+            // Creates the As2Message from the headers, the payload is streamed to a spool file rather than held in memory
+            As2Message as2Message = As2MessageFactory.createAs2MessageBuilder(internetHeaders).buildFromHeaders();
+
+            // Spools the payload, parses the SBDH, computes the MIC and verifies the signature, in a single pass
+            inboundSignedMessage = inboundSignedMessageParser.parse(inputStream, internetHeaders);
 
             log.info("Validating AS2 Message: " + as2Message);
 
             // Validates the message headers according to the PEPPOL rules
             // Performs semantic validation
-            SignedMimeMessageInspector SignedMimeMessageInspector = As2MessageInspector.validate(as2Message);
+            As2MessageInspector.validate(as2Message, inboundSignedMessage.getSignersX509Certificate());
 
-            // Persists the payload
-            InputStream payloadInputStream = SignedMimeMessageInspector.getPayload();
+            // The signature has been verified and the signer is the AS2-From, hence a retransmission may be recognised
+            StoredMdn storedMdn = findStoredMdn(internetHeaders);
+            if (storedMdn != null) {
+                throw new DuplicateMessageException(as2Message.getTransmissionId().toString(), storedMdn);
+            }
 
-            PeppolMessageMetaData peppolMessageMetaData = collectTransmissionData(as2Message, SignedMimeMessageInspector);
+            PeppolMessageMetaData peppolMessageMetaData = collectTransmissionData(as2Message, inboundSignedMessage);
 
             log.info("Persisting AS2 Message ....");
-            messageRepository.saveInboundMessage(peppolMessageMetaData, payloadInputStream);
-
-//                smimeMessageInspector.getMimeMessage().writeTo(System.out);
-
+            InputStream payloadInputStream = inboundSignedMessage.getPayloadInputStream();
+            try {
+                messageRepository.saveInboundMessage(peppolMessageMetaData, payloadInputStream);
+            } finally {
+                payloadInputStream.close();
+            }
 
             log.info("Persisting statistics");
 
-            // Calculates the MIC for the payload
-            As2DispositionNotificationOptions.Parameter signedReceiptMicalg = as2Message.getDispositionNotificationOptions().getSignedReceiptMicalg();
-            String micAlgorithmName = signedReceiptMicalg.getTextValue();
-            Mic mic = SignedMimeMessageInspector.calculateMic(micAlgorithmName);
+            // The MIC of the signed body part, computed while it was received. Only SHA-1 is accepted as the MIC algorithm.
+            Mic mic = inboundSignedMessage.getMic();
 
             // Creates the MDN to be returned
             MdnData mdnData = MdnData.Builder.buildProcessedOK(internetHeaders, mic);
             log.info("Message received OK, MDN returned: " + mdnData);
             return mdnData;
 
+        } catch (DuplicateMessageException e) {
+            throw e;
+
         } catch (InvalidAs2MessageException e) {
             log.error("Invalid AS2 message " + e.getMessage(), e);
             MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
@@ -112,19 +132,34 @@ public class InboundMessageReceiver {
             log.error("Unexpected error: " + e.getMessage(), e);
             MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(internetHeaders, e.getMessage());
             throw new ErrorWithMdnException(mdnData, e);
+        } finally {
+            if (inboundSignedMessage != null) {
+                inboundSignedMessage.delete();
+            }
         }
 
     }
 
-    PeppolMessageMetaData collectTransmissionData(As2Message as2Message, SignedMimeMessageInspector SignedMimeMessageInspector) {
-
-        DocumentSniffer documentSniffer = new DocumentSniffer(SignedMimeMessageInspector.getPayload());
-        if (!documentSniffer.isSbdhDetected()) {
-            throw new IllegalStateException("Payload does not contain Standard Business Document Header");
+    /** Failing to look up a message is not fatal, the message is simply received once more */
+    private StoredMdn findStoredMdn(InternetHeaders internetHeaders) {
+        String as2From = HeaderUtil.getFirstValue(internetHeaders, As2Header.AS2_FROM.getHttpHeaderName());
+        String as2To = HeaderUtil.getFirstValue(internetHeaders, As2Header.AS2_TO.getHttpHeaderName());
+        String messageId = HeaderUtil.getFirstValue(internetHeaders, As2Header.MESSAGE_ID.getHttpHeaderName());
+        if (duplicateMessageIndex == null || as2From == null || as2To == null || messageId == null) {
+            return null;
+        }
+        try {
+            return duplicateMessageIndex.findMdn(as2From, as2To, messageId);
+        } catch (RuntimeException e) {
+            log.error("Unable to look up message " + messageId + " in the duplicate message index: " + e.getMessage(), e);
+            return null;
         }
+    }
+
+    PeppolMessageMetaData collectTransmissionData(As2Message as2Message, InboundSignedMessage inboundSignedMessage) {
 
-        // Parses the SBDH and obtains metadata
-        PeppolStandardBusinessHeader peppolStandardBusinessHeader = sbdhParser.parse(SignedMimeMessageInspector.getPayload());
+        // The SBDH was parsed while the payload was being received
+        PeppolStandardBusinessHeader peppolStandardBusinessHeader = inboundSignedMessage.getPeppolStandardBusinessHeader();
 
         PeppolMessageMetaData peppolMessageMetaData = new PeppolMessageMetaData();
 
@@ -141,7 +176,7 @@ public class InboundMessageReceiver {
         peppolMessageMetaData.setReceivingAccessPoint(new AccessPointIdentifier(as2Message.getAs2To().toString()));
 
         // Retrieves the Common Name of the X500Principal, which is used to construct the AccessPointIdentifier for the senders access point
-        X500Principal subjectX500Principal = SignedMimeMessageInspector.getSignersX509Certificate().getSubjectX500Principal();
+        X500Principal subjectX500Principal = inboundSignedMessage.getSignersX509Certificate().getSubjectX500Principal();
         peppolMessageMetaData.setSendingAccessPointPrincipal(subjectX500Principal);
 
 
@@ -0,0 +1,82 @@
+package eu.peppol.as2;
+
+import eu.peppol.PeppolStandardBusinessHeader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+
+/**
+ * An inbound S/MIME signed message, as parsed and verified by {@link InboundSignedMessageParser}.
+ * <p/>
+ * The payload, i.e. the decoded contents of the signed body part, has been spooled to a file, which must be
+ * removed by invoking {@link #delete()} once the payload has been persisted.
+ */
+public class InboundSignedMessage {
+
+    private final File payloadFile;
+    private final long payloadSize;
+    private final Mic mic;
+    private final X509Certificate signersX509Certificate;
+    private final PeppolStandardBusinessHeader peppolStandardBusinessHeader;
+
+    InboundSignedMessage(File payloadFile, long payloadSize, Mic mic, X509Certificate signersX509Certificate, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
+        this.payloadFile = payloadFile;
+        this.payloadSize = payloadSize;
+        this.mic = mic;
+        this.signersX509Certificate = signersX509Certificate;
+        this.peppolStandardBusinessHeader = peppolStandardBusinessHeader;
+    }
+
+    /** The file holding the payload, until {@link #delete()} is invoked */
+    public File getPayloadFile() {
+        return payloadFile;
+    }
+
+    /** Number of bytes in the payload */
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    /** Opens a new input stream, which must be closed by the caller, providing the payload from the spool file */
+    public InputStream getPayloadInputStream() {
+        try {
+            return new FileInputStream(payloadFile);
+        } catch (FileNotFoundException e) {
+            throw new IllegalStateException("Unable to open the payload spooled to " + payloadFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** The MIC of the signed body part, to be returned in the MDN */
+    public Mic getMic() {
+        return mic;
+    }
+
+    public X509Certificate getSignersX509Certificate() {
+        return signersX509Certificate;
+    }
+
+    /** The SBDH at the start of the payload */
+    public PeppolStandardBusinessHeader getPeppolStandardBusinessHeader() {
+        return peppolStandardBusinessHeader;
+    }
+
+    /** Removes the spool file */
+    public void delete() {
+        if (payloadFile.exists() && !payloadFile.delete()) {
+            payloadFile.deleteOnExit();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InboundSignedMessage{" +
+                "payloadFile=" + payloadFile +
+                ", payloadSize=" + payloadSize +
+                ", mic=" + mic +
+                ", signer=" + (signersX509Certificate == null ? null : signersX509Certificate.getSubjectX500Principal()) +
+                '}';
+    }
+}
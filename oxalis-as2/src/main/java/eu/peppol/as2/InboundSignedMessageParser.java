@@ -0,0 +1,300 @@
+package eu.peppol.as2;
+
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.document.SbdhParser;
+import eu.peppol.security.CryptoBootstrap;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.mail.internet.InternetHeaders;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses and verifies an inbound S/MIME signed AS2 message in a single pass over the http request body.
+ * <p/>
+ * While the signed body part is read from the stream, its raw bytes are digested for the purpose of computing the
+ * MIC and verifying the signature, and its decoded contents are written to a spool file while the SBDH is parsed
+ * from them. The detached signature held in the second body part is verified against the digest, hence the
+ * payload is never held in memory, nor read more than once.
+ * <p/>
+ * The http request body either holds the MIME headers followed by the multipart/signed entity, as sent by Oxalis,
+ * or the multipart/signed entity only, in which case the Content-Type is taken from the http headers.
+ */
+public class InboundSignedMessageParser {
+
+    /** The MIC returned in the MDN is always computed using SHA-1, see As2DispositionNotificationOptions */
+    static final String MIC_ALGORITHM = "sha1";
+
+    private static final String SHA1_OID = "1.3.14.3.2.26";
+
+    /** Digest algorithms which may be given by the micalg parameter, mapped to JCA name and object identifier */
+    private static final Map<String, String[]> DIGEST_ALGORITHMS = new HashMap<String, String[]>();
+
+    static {
+        CryptoBootstrap.registerProvider();
+
+        DIGEST_ALGORITHMS.put("sha1", new String[]{"SHA-1", SHA1_OID});
+        DIGEST_ALGORITHMS.put("sha-1", new String[]{"SHA-1", SHA1_OID});
+        DIGEST_ALGORITHMS.put("md5", new String[]{"MD5", "1.2.840.113549.2.5"});
+        DIGEST_ALGORITHMS.put("sha256", new String[]{"SHA-256", "2.16.840.1.101.3.4.2.1"});
+        DIGEST_ALGORITHMS.put("sha-256", new String[]{"SHA-256", "2.16.840.1.101.3.4.2.1"});
+        DIGEST_ALGORITHMS.put("sha384", new String[]{"SHA-384", "2.16.840.1.101.3.4.2.2"});
+        DIGEST_ALGORITHMS.put("sha-384", new String[]{"SHA-384", "2.16.840.1.101.3.4.2.2"});
+        DIGEST_ALGORITHMS.put("sha512", new String[]{"SHA-512", "2.16.840.1.101.3.4.2.3"});
+        DIGEST_ALGORITHMS.put("sha-512", new String[]{"SHA-512", "2.16.840.1.101.3.4.2.3"});
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final SbdhParser sbdhParser;
+
+    public InboundSignedMessageParser() {
+        this(new SbdhParser());
+    }
+
+    public InboundSignedMessageParser(SbdhParser sbdhParser) {
+        this.sbdhParser = sbdhParser;
+    }
+
+    /**
+     * Parses the signed message, spools the payload to a temporary file and verifies the signature.
+     *
+     * @param inputStream the body of the http request
+     * @param httpHeaders the http headers, which must hold the Content-Type if the body holds no MIME headers
+     * @return the verified message, which must be deleted once the payload has been persisted
+     * @throws IllegalStateException if the message could not be parsed, or the signature could not be verified
+     */
+    public InboundSignedMessage parse(InputStream inputStream, InternetHeaders httpHeaders) {
+        File payloadFile = null;
+        Map<String, MessageDigest> digests = null;
+        boolean completed = false;
+        try {
+            InputStream bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
+            MimeType contentType = parseContentType(bufferedInputStream, httpHeaders);
+
+            digests = createDigests(contentType.getParameter("micalg"));
+            MultipartReader multipartReader = new MultipartReader(bufferedInputStream, contentType.getParameter("boundary"));
+
+            // The signed body part, of which the raw bytes, headers and contents, are digested while read
+            if (!multipartReader.nextPart()) {
+                throw new IllegalStateException("No body parts found in signed message");
+            }
+            InputStream digestingInputStream = multipartReader.getPartInputStream();
+            for (MessageDigest messageDigest : digests.values()) {
+                digestingInputStream = new DigestInputStream(digestingInputStream, messageDigest);
+            }
+            InternetHeaders bodyPartHeaders = MultipartReader.readHeaders(digestingInputStream);
+
+            payloadFile = File.createTempFile("oxalis-inbound-", ".payload");
+            SpoolingInputStream spoolingInputStream = new SpoolingInputStream(ReceivedMdnParser.decode(digestingInputStream, bodyPartHeaders), payloadFile);
+            PeppolStandardBusinessHeader peppolStandardBusinessHeader;
+            try {
+                peppolStandardBusinessHeader = sbdhParser.parse(spoolingInputStream);
+                spoolingInputStream.drain();
+            } finally {
+                spoolingInputStream.close();
+            }
+
+            // The detached signature
+            if (!multipartReader.nextPart()) {
+                throw new IllegalStateException("No signature found in signed message");
+            }
+            InternetHeaders signatureHeaders = multipartReader.readHeaders();
+            byte[] signature = ReceivedMdnParser.readLimited(ReceivedMdnParser.decode(multipartReader.getPartInputStream(), signatureHeaders));
+
+            // Consumes the remainder of the request
+            while (multipartReader.nextPart()) {
+                // skipped
+            }
+
+            Map<String, byte[]> hashes = new HashMap<String, byte[]>();
+            for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+                hashes.put(entry.getKey(), entry.getValue().digest());
+            }
+            X509Certificate signersX509Certificate = verifySignature(hashes, signature);
+
+            Mic mic = new Mic(new String(Base64.encode(hashes.get(SHA1_OID)), "US-ASCII"), MIC_ALGORITHM);
+
+            InboundSignedMessage inboundSignedMessage = new InboundSignedMessage(payloadFile, spoolingInputStream.getCount(), mic, signersX509Certificate, peppolStandardBusinessHeader);
+            completed = true;
+            return inboundSignedMessage;
+
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the signed message: " + e.getMessage(), e);
+        } catch (MimeTypeParseException e) {
+            throw new IllegalStateException("Invalid content type of signed message: " + e.getMessage(), e);
+        } finally {
+            if (digests != null) {
+                for (MessageDigest messageDigest : digests.values()) {
+                    CryptoBootstrap.release(messageDigest);
+                }
+            }
+            if (!completed && payloadFile != null && !payloadFile.delete()) {
+                payloadFile.deleteOnExit();
+            }
+        }
+    }
+
+    /** Obtains the content type from the MIME headers at the start of the stream, or the http headers if there are none */
+    MimeType parseContentType(InputStream bufferedInputStream, InternetHeaders httpHeaders) throws IOException, MimeTypeParseException {
+        bufferedInputStream.mark(2);
+        boolean startsWithBoundary = bufferedInputStream.read() == '-' && bufferedInputStream.read() == '-';
+        bufferedInputStream.reset();
+
+        String contentType = null;
+        if (!startsWithBoundary) {
+            contentType = MultipartReader.readHeaders(bufferedInputStream).getHeader("Content-Type", null);
+        }
+        if (contentType == null) {
+            contentType = httpHeaders.getHeader("Content-Type", null);
+        }
+        if (contentType == null) {
+            throw new IllegalStateException("No Content-Type found in MIME headers nor http headers");
+        }
+
+        MimeType mimeType = new MimeType(contentType);
+        if (!"multipart/signed".equalsIgnoreCase(mimeType.getBaseType())) {
+            throw new IllegalStateException("Message is not multipart/signed, it is: " + contentType);
+        }
+        return mimeType;
+    }
+
+    /** Creates the SHA-1 digest required for the MIC, and the digest given by micalg if that is something else */
+    Map<String, MessageDigest> createDigests(String micalg) {
+        Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+        digests.put(SHA1_OID, createDigest("SHA-1"));
+
+        if (micalg != null) {
+            String[] algorithm = DIGEST_ALGORITHMS.get(micalg.trim().toLowerCase());
+            if (algorithm == null) {
+                throw new IllegalStateException("Unsupported micalg: " + micalg);
+            }
+            if (!digests.containsKey(algorithm[1])) {
+                digests.put(algorithm[1], createDigest(algorithm[0]));
+            }
+        }
+        return digests;
+    }
+
+    /** Verifies the detached signature using the digests of the signed body part, returns the certificate of the signer */
+    X509Certificate verifySignature(Map<String, byte[]> hashes, byte[] signature) {
+        try {
+            CMSSignedData signedData = new CMSSignedData(hashes, signature);
+            Collection signers = signedData.getSignerInfos().getSigners();
+            if (signers.isEmpty()) {
+                throw new IllegalStateException("There is no signer information available");
+            }
+            SignerInformation signer = (SignerInformation) signers.iterator().next();
+            if (!hashes.containsKey(signer.getDigestAlgOID())) {
+                throw new IllegalStateException("Signature digest algorithm " + signer.getDigestAlgOID() + " does not match the micalg of the message");
+            }
+
+            Collection certificates = signedData.getCertificates().getMatches(signer.getSID());
+            if (certificates.isEmpty()) {
+                throw new IllegalStateException("The certificate of the signer is not included in the signature");
+            }
+            X509Certificate signersX509Certificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate((X509CertificateHolder) certificates.iterator().next());
+
+            if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signersX509Certificate))) {
+                throw new IllegalStateException("Verification of signer failed");
+            }
+            return signersX509Certificate;
+
+        } catch (CMSException e) {
+            throw new IllegalStateException("Unable to verify the signer. " + e.getMessage(), e);
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Unable to verify the signer. " + e.getMessage(), e);
+        } catch (CertificateException e) {
+            throw new IllegalStateException("Unable to fetch certificate for signer. " + e.getMessage(), e);
+        }
+    }
+
+    private static MessageDigest createDigest(String algorithmName) {
+        return CryptoBootstrap.acquireMessageDigest(algorithmName);
+    }
+
+    /** Writes every byte read to the spool file */
+    static class SpoolingInputStream extends FilterInputStream {
+
+        private final OutputStream spool;
+        private long count = 0;
+
+        SpoolingInputStream(InputStream inputStream, File spoolFile) throws IOException {
+            super(inputStream);
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                spool.write(b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead > 0) {
+                spool.write(b, off, bytesRead);
+                count += bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing from the spool file
+            byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            int bytesRead = read(buffer, 0, buffer.length);
+            return bytesRead == -1 ? 0 : bytesRead;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** Reads whatever remains, thus completing the spool file */
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // spooled
+            }
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /** Closes the spool file, but not the underlying stream, which holds the remaining body parts */
+        @Override
+        public void close() throws IOException {
+            spool.close();
+        }
+    }
+}
@@ -80,16 +80,19 @@ import java.util.Map;
  *         Date: 07.09.13
  *         Time: 22:00
  * @see SMimeMessageFactory
+ * @see StreamingMdnWriter
  */
 public class MdnMimeMessageFactory {
 
-    private final X509Certificate ourCertificate;
-    private final PrivateKey ourPrivateKey;
+    private final SMimeMessageFactory sMimeMessageFactory;
 
     public MdnMimeMessageFactory(X509Certificate ourCertificate, PrivateKey ourPrivateKey) {
+        this(new SMimeSigningService(ourPrivateKey, ourCertificate));
+    }
 
-        this.ourCertificate = ourCertificate;
-        this.ourPrivateKey = ourPrivateKey;
+    /** Signs the MDNs using the shared signer state of the supplied service */
+    public MdnMimeMessageFactory(SMimeSigningService signingService) {
+        this.sMimeMessageFactory = signingService.getSMimeMessageFactory();
     }
 
 
@@ -100,9 +103,7 @@ public class MdnMimeMessageFactory {
 
         MimeBodyPart mimeBodyPart = wrapHumandAndMachineReadableParts(humanReadablePart, machineReadablePart);
 
-        SMimeMessageFactory SMimeMessageFactory = new SMimeMessageFactory(ourPrivateKey, ourCertificate);
-
-        MimeMessage signedMimeMessage = SMimeMessageFactory.createSignedMimeMessage(mimeBodyPart);
+        MimeMessage signedMimeMessage = sMimeMessageFactory.createSignedMimeMessage(mimeBodyPart);
 
         return signedMimeMessage;
     }
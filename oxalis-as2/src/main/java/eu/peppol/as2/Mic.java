@@ -14,6 +14,14 @@ public class Mic {
         this.algorithmName = algorithmName;
     }
 
+    public String getDigestAsString() {
+        return digestAsString;
+    }
+
+    public String getAlgorithmName() {
+        return algorithmName;
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -0,0 +1,243 @@
+package eu.peppol.as2;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the body parts of a MIME multipart entity directly from an input stream, one part at a time, without
+ * holding the entire entity in memory.
+ * <p/>
+ * Usage:
+ * <pre>
+ *     MultipartReader reader = new MultipartReader(inputStream, boundary);
+ *     while (reader.nextPart()) {
+ *         InternetHeaders headers = reader.readHeaders();
+ *         InputStream body = reader.getPartInputStream();
+ *         ...
+ *     }
+ * </pre>
+ * The raw bytes of a body part, i.e. headers and contents, may be obtained by reading the part input stream without
+ * invoking {@link #readHeaders()}. The part input stream must not be used after advancing to the next part.
+ * <p/>
+ * Line endings are required to be CRLF, as mandated by RFC 2046.
+ */
+class MultipartReader {
+
+    private static final int MIN_BUFFER_SIZE = 8192;
+
+    private final InputStream inputStream;
+
+    /** CRLF followed by two hyphens and the boundary */
+    private final byte[] delimiter;
+
+    private final byte[] buffer;
+    private int head;
+    private int tail;
+    private boolean endOfStream = false;
+
+    private boolean closeDelimiterFound = false;
+    private PartInputStream currentPart;
+
+    MultipartReader(InputStream inputStream, String boundary) {
+        if (boundary == null || boundary.length() == 0) {
+            throw new IllegalArgumentException("No MIME boundary supplied");
+        }
+        this.inputStream = inputStream;
+        this.delimiter = ("\r\n--" + boundary).getBytes(Charset.forName("US-ASCII"));
+        this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, delimiter.length * 2)];
+
+        // A virtual CRLF ensures the first delimiter is found, even if there is no preamble
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        head = 0;
+        tail = 2;
+
+        // The preamble is treated as a part, which is skipped
+        currentPart = new PartInputStream();
+    }
+
+    /**
+     * Advances to the next body part, skipping whatever remains of the current one.
+     *
+     * @return false if there are no more body parts
+     */
+    boolean nextPart() throws IOException {
+        if (closeDelimiterFound) {
+            return false;
+        }
+
+        skipRemainderOf(currentPart);
+
+        // The delimiter is followed by "--" if this is the last one
+        if (!fill(2)) {
+            throw new IOException("Unexpected end of multipart stream after boundary");
+        }
+        if (buffer[head] == '-' && buffer[head + 1] == '-') {
+            closeDelimiterFound = true;
+            currentPart = null;
+            return false;
+        }
+
+        // Skips any transport padding up to and including the CRLF
+        int b;
+        while ((b = readByte()) != '\n') {
+            if (b == -1) {
+                throw new IOException("Unexpected end of multipart stream after boundary");
+            }
+        }
+
+        currentPart = new PartInputStream();
+        return true;
+    }
+
+    /** Reads the MIME headers of the current body part, after which the part input stream provides the contents */
+    InternetHeaders readHeaders() throws IOException {
+        return readHeaders(getPartInputStream());
+    }
+
+    /** The current body part, i.e. the bytes up to the next boundary */
+    InputStream getPartInputStream() {
+        if (currentPart == null) {
+            throw new IllegalStateException("No current body part, invoke nextPart() first");
+        }
+        return currentPart;
+    }
+
+    /**
+     * Reads RFC 822 header lines until an empty line is found. Continuation lines are handled by
+     * {@link InternetHeaders#addHeaderLine(String)}
+     */
+    static InternetHeaders readHeaders(InputStream inputStream) throws IOException {
+        InternetHeaders internetHeaders = new InternetHeaders();
+        String line;
+        while ((line = readLine(inputStream)) != null && line.length() > 0) {
+            internetHeaders.addHeaderLine(line);
+        }
+        return internetHeaders;
+    }
+
+    /** Reads a line of US-ASCII text, without the line terminator. Returns null at the end of the stream */
+    static String readLine(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int b;
+        while ((b = inputStream.read()) != -1) {
+            if (b == '\n') {
+                return stripCarriageReturn(line);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : stripCarriageReturn(line);
+    }
+
+    private static String stripCarriageReturn(ByteArrayOutputStream line) throws IOException {
+        String s = line.toString("US-ASCII");
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private void skipRemainderOf(InputStream part) throws IOException {
+        byte[] skipBuffer = new byte[4096];
+        while (part.read(skipBuffer) != -1) {
+            // skipped
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (!fill(1)) {
+            return -1;
+        }
+        return buffer[head++] & 0xff;
+    }
+
+    /**
+     * Ensures at least the supplied number of bytes are available in the buffer, unless the end of the stream has
+     * been reached.
+     *
+     * @return true if the requested number of bytes are available
+     */
+    private boolean fill(int required) throws IOException {
+        if (tail - head >= required) {
+            return true;
+        }
+        if (head > 0) {
+            System.arraycopy(buffer, head, buffer, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        while (tail < required && !endOfStream) {
+            int bytesRead = inputStream.read(buffer, tail, buffer.length - tail);
+            if (bytesRead == -1) {
+                endOfStream = true;
+            } else {
+                tail += bytesRead;
+            }
+        }
+        return tail - head >= required;
+    }
+
+    private int indexOfDelimiter() {
+        int last = tail - delimiter.length;
+        outer:
+        for (int i = head; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /** Provides the bytes of the current part, up to the next delimiter, which is consumed. */
+    private class PartInputStream extends InputStream {
+
+        private boolean done = false;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int bytesRead = read(b, 0, 1);
+            return bytesRead == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            fill(delimiter.length);
+            int index = indexOfDelimiter();
+
+            int available;
+            if (index >= 0) {
+                available = index - head;
+            } else if (endOfStream) {
+                available = tail - head;
+            } else {
+                // The end of the buffer might hold the start of a delimiter
+                available = tail - head - (delimiter.length - 1);
+            }
+
+            if (available == 0) {
+                if (index == head) {
+                    head += delimiter.length;
+                    done = true;
+                    return -1;
+                }
+                throw new IOException("Unexpected end of multipart stream, no closing boundary found");
+            }
+
+            int count = Math.min(len, available);
+            System.arraycopy(buffer, head, b, off, count);
+            head += count;
+            return count;
+        }
+    }
+}
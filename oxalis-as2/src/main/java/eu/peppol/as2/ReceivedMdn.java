@@ -0,0 +1,150 @@
+package eu.peppol.as2;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The MDN received in response to a message sent by us, as parsed and verified by {@link ReceivedMdnParser}.
+ * <p/>
+ * The outcome summarises the MDN:
+ * <ul>
+ *     <li>{@link Outcome#PROCESSED} the message was processed, the signature of the MDN is valid and the MIC returned
+ *     matches the MIC of the message we sent.</li>
+ *     <li>{@link Outcome#WARNING} the message was processed, but with a warning, or the MDN could not be fully
+ *     verified. See {@link #getProblems()}</li>
+ *     <li>{@link Outcome#FAILED} the message was not processed by the receiver.</li>
+ * </ul>
+ */
+public class ReceivedMdn {
+
+    public enum Outcome {PROCESSED, WARNING, FAILED}
+
+    private As2Disposition disposition;
+    private Mic receivedMic;
+    private Mic expectedMic;
+    private String originalMessageId;
+    private String plainText;
+    private boolean signatureVerified;
+    private X509Certificate signersCertificate;
+    private final List<String> problems = new ArrayList<String>();
+
+    ReceivedMdn() {
+    }
+
+    public Outcome getOutcome() {
+        if (disposition == null || disposition.getDispositionType() == As2Disposition.DispositionType.FAILED) {
+            return Outcome.FAILED;
+        }
+        As2Disposition.DispositionModifier dispositionModifier = disposition.getDispositionModifier();
+        if (dispositionModifier != null && dispositionModifier.getPrefix() != As2Disposition.DispositionModifier.Prefix.WARNING) {
+            return Outcome.FAILED;
+        }
+        if (dispositionModifier != null || !problems.isEmpty()) {
+            return Outcome.WARNING;
+        }
+        return Outcome.PROCESSED;
+    }
+
+    /** The disposition reported by the receiver, null if none could be found */
+    public As2Disposition getDisposition() {
+        return disposition;
+    }
+
+    /** The value of the Received-Content-MIC field, null if not supplied */
+    public Mic getReceivedMic() {
+        return receivedMic;
+    }
+
+    /** The MIC computed while sending the message, null if unknown */
+    public Mic getExpectedMic() {
+        return expectedMic;
+    }
+
+    /** Whether the received MIC equals the MIC of the message we sent */
+    public boolean isMicVerified() {
+        return isSameMic(expectedMic, receivedMic);
+    }
+
+    public String getOriginalMessageId() {
+        return originalMessageId;
+    }
+
+    /** The human readable part of the MDN */
+    public String getPlainText() {
+        return plainText;
+    }
+
+    /** Whether the signature of the MDN is valid and made by the receiver, if the receiver was known */
+    public boolean isSignatureVerified() {
+        return signatureVerified;
+    }
+
+    /** Certificate of the signer of the MDN, null if the MDN was not signed */
+    public X509Certificate getSignersCertificate() {
+        return signersCertificate;
+    }
+
+    /** Reasons why the MDN could not be fully verified */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    void setDisposition(As2Disposition disposition) {
+        this.disposition = disposition;
+    }
+
+    void setReceivedMic(Mic receivedMic) {
+        this.receivedMic = receivedMic;
+    }
+
+    void setExpectedMic(Mic expectedMic) {
+        this.expectedMic = expectedMic;
+    }
+
+    void setOriginalMessageId(String originalMessageId) {
+        this.originalMessageId = originalMessageId;
+    }
+
+    void setPlainText(String plainText) {
+        this.plainText = plainText;
+    }
+
+    void setSignatureVerified(boolean signatureVerified) {
+        this.signatureVerified = signatureVerified;
+    }
+
+    void setSignersCertificate(X509Certificate signersCertificate) {
+        this.signersCertificate = signersCertificate;
+    }
+
+    void addProblem(String problem) {
+        problems.add(problem);
+    }
+
+    /** Compares two MICs, ignoring the case and any hyphen of the algorithm name, i.e. "sha1" equals "SHA-1" */
+    static boolean isSameMic(Mic mic1, Mic mic2) {
+        if (mic1 == null || mic2 == null) {
+            return false;
+        }
+        return mic1.getDigestAsString().equals(mic2.getDigestAsString())
+                && normalise(mic1.getAlgorithmName()).equals(normalise(mic2.getAlgorithmName()));
+    }
+
+    private static String normalise(String algorithmName) {
+        return algorithmName == null ? "" : algorithmName.replace("-", "").toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return "ReceivedMdn{" +
+                "outcome=" + getOutcome() +
+                ", disposition=" + disposition +
+                ", originalMessageId='" + originalMessageId + '\'' +
+                ", receivedMic=" + receivedMic +
+                ", signatureVerified=" + signatureVerified +
+                ", problems=" + problems +
+                '}';
+    }
+}
@@ -0,0 +1,261 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CommonName;
+import eu.peppol.security.CryptoBootstrap;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.Store;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+
+/**
+ * Parses and verifies the MDN returned in response to an AS2 message, directly from the http response stream.
+ * <p/>
+ * The multipart/signed MDN is read one body part at a time. The signed body part, holding the multipart/report, is
+ * kept in memory for the purpose of verifying the signature, which is why its size is limited. The MIC returned
+ * by the receiver is compared with the MIC computed while the message was being sent, hence there is no need to
+ * process the payload once more.
+ * <p/>
+ * The certificate included in the signature is only trusted if its common name is the one of the receiver, as
+ * published in the SMP; anyone answering the http request could otherwise sign the MDN with a certificate of their
+ * own making.
+ * <p/>
+ * Problems with the MDN itself, like an invalid signature or a MIC which does not match, are reported as
+ * problems of the {@link ReceivedMdn} rather than as exceptions; the receiver did after all respond.
+ */
+public class ReceivedMdnParser {
+
+    /** An MDN is a couple of kilobytes, anything larger is rejected */
+    static final int MAX_PART_SIZE = 1024 * 1024;
+
+    public ReceivedMdnParser() {
+        CryptoBootstrap.registerProvider();
+    }
+
+    /**
+     * Parses the MDN.
+     *
+     * @param inputStream the contents of the MDN, i.e. the body of the http response
+     * @param contentType the value of the Content-Type header of the http response
+     * @param expectedMic MIC of the message we sent, null if unknown
+     * @param expectedSigner common name of the certificate of the receiver, by which the MDN must be signed, null if unknown
+     */
+    public ReceivedMdn parse(InputStream inputStream, MimeType contentType, Mic expectedMic, CommonName expectedSigner) {
+        ReceivedMdn receivedMdn = new ReceivedMdn();
+        receivedMdn.setExpectedMic(expectedMic);
+
+        try {
+            if ("multipart/signed".equalsIgnoreCase(contentType.getBaseType())) {
+                parseSignedMdn(inputStream, contentType, expectedSigner, receivedMdn);
+            } else if ("multipart/report".equalsIgnoreCase(contentType.getBaseType())) {
+                receivedMdn.addProblem("The MDN is not signed");
+                parseReport(inputStream, contentType, receivedMdn);
+            } else {
+                throw new IllegalStateException("Unexpected content type of MDN: " + contentType);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the MDN: " + e.getMessage(), e);
+        } catch (MimeTypeParseException e) {
+            throw new IllegalStateException("Invalid content type in MDN: " + e.getMessage(), e);
+        }
+
+        verifyMic(receivedMdn);
+        return receivedMdn;
+    }
+
+    void parseSignedMdn(InputStream inputStream, MimeType contentType, CommonName expectedSigner, ReceivedMdn receivedMdn) throws IOException, MimeTypeParseException {
+        MultipartReader multipartReader = new MultipartReader(inputStream, contentType.getParameter("boundary"));
+
+        // The signed body part, including its MIME headers, exactly as received
+        if (!multipartReader.nextPart()) {
+            throw new IllegalStateException("No body parts found in signed MDN");
+        }
+        byte[] signedBodyPart = readLimited(multipartReader.getPartInputStream());
+
+        if (!multipartReader.nextPart()) {
+            throw new IllegalStateException("No signature found in signed MDN");
+        }
+        InternetHeaders signatureHeaders = multipartReader.readHeaders();
+        byte[] signature = readLimited(decode(multipartReader.getPartInputStream(), signatureHeaders));
+
+        // Consumes the remainder of the response
+        while (multipartReader.nextPart()) {
+            // skipped
+        }
+
+        verifySignature(signedBodyPart, signature, expectedSigner, receivedMdn);
+
+        InputStream bodyPartInputStream = new ByteArrayInputStream(signedBodyPart);
+        InternetHeaders bodyPartHeaders = MultipartReader.readHeaders(bodyPartInputStream);
+        MimeType reportContentType = new MimeType(required(bodyPartHeaders, "Content-Type"));
+        if (!"multipart/report".equalsIgnoreCase(reportContentType.getBaseType())) {
+            throw new IllegalStateException("The signed body part of the MDN is not a multipart/report, but " + reportContentType);
+        }
+        parseReport(decode(bodyPartInputStream, bodyPartHeaders), reportContentType, receivedMdn);
+    }
+
+    void parseReport(InputStream inputStream, MimeType contentType, ReceivedMdn receivedMdn) throws IOException, MimeTypeParseException {
+        MultipartReader multipartReader = new MultipartReader(inputStream, contentType.getParameter("boundary"));
+
+        boolean dispositionNotificationFound = false;
+        while (multipartReader.nextPart()) {
+            InternetHeaders headers = multipartReader.readHeaders();
+            String partContentType = headers.getHeader("Content-Type", null);
+            MimeType mimeType = new MimeType(partContentType == null ? "text/plain" : partContentType);
+            InputStream body = decode(multipartReader.getPartInputStream(), headers);
+
+            if ("text/plain".equalsIgnoreCase(mimeType.getBaseType())) {
+                String charset = mimeType.getParameter("charset");
+                receivedMdn.setPlainText(new String(readLimited(body), charset == null ? "US-ASCII" : charset));
+            } else if ("message/disposition-notification".equalsIgnoreCase(mimeType.getBaseType())) {
+                dispositionNotificationFound = true;
+                parseDispositionNotification(MultipartReader.readHeaders(body), receivedMdn);
+            }
+        }
+
+        if (!dispositionNotificationFound) {
+            receivedMdn.addProblem("No message/disposition-notification found in the MDN");
+        }
+    }
+
+    void parseDispositionNotification(InternetHeaders fields, ReceivedMdn receivedMdn) {
+        receivedMdn.setOriginalMessageId(fields.getHeader("Original-Message-ID", null));
+
+        String disposition = fields.getHeader("Disposition", null);
+        if (disposition == null) {
+            receivedMdn.addProblem("No Disposition in the MDN");
+        } else {
+            try {
+                receivedMdn.setDisposition(As2Disposition.valueOf(disposition.trim()));
+            } catch (IllegalArgumentException e) {
+                receivedMdn.addProblem("Invalid Disposition in the MDN: " + disposition);
+            }
+        }
+
+        String receivedContentMic = fields.getHeader("Received-Content-MIC", null);
+        if (receivedContentMic != null) {
+            try {
+                receivedMdn.setReceivedMic(Mic.valueOf(receivedContentMic.trim()));
+            } catch (IllegalArgumentException e) {
+                receivedMdn.addProblem(e.getMessage());
+            }
+        }
+    }
+
+    void verifySignature(byte[] signedBodyPart, byte[] signature, CommonName expectedSigner, ReceivedMdn receivedMdn) {
+        try {
+            CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signedBodyPart), signature);
+            Collection signers = signedData.getSignerInfos().getSigners();
+            if (signers.isEmpty()) {
+                receivedMdn.addProblem("No signer information in the signature of the MDN");
+                return;
+            }
+            SignerInformation signer = (SignerInformation) signers.iterator().next();
+
+            Store certificates = signedData.getCertificates();
+            Collection matches = certificates.getMatches(signer.getSID());
+            if (matches.isEmpty()) {
+                receivedMdn.addProblem("The certificate of the signer is not included in the signature of the MDN");
+                return;
+            }
+            X509Certificate signersCertificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate((X509CertificateHolder) matches.iterator().next());
+            receivedMdn.setSignersCertificate(signersCertificate);
+
+            if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(signersCertificate))) {
+                receivedMdn.addProblem("The signature of the MDN is invalid");
+            } else if (isSignedBy(signersCertificate, expectedSigner, receivedMdn)) {
+                receivedMdn.setSignatureVerified(true);
+            }
+        } catch (CMSException e) {
+            receivedMdn.addProblem("Unable to verify the signature of the MDN: " + e.getMessage());
+        } catch (OperatorCreationException e) {
+            receivedMdn.addProblem("Unable to verify the signature of the MDN: " + e.getMessage());
+        } catch (CertificateException e) {
+            receivedMdn.addProblem("Unable to obtain the certificate of the signer of the MDN: " + e.getMessage());
+        }
+    }
+
+    /** Whether the certificate is the one of the expected signer, if known, reporting a problem if it is not */
+    boolean isSignedBy(X509Certificate signersCertificate, CommonName expectedSigner, ReceivedMdn receivedMdn) {
+        if (expectedSigner == null) {
+            return true;
+        }
+        CommonName signer;
+        try {
+            signer = CommonName.valueOf(signersCertificate.getSubjectX500Principal());
+        } catch (IllegalArgumentException e) {
+            receivedMdn.addProblem("The MDN is signed by " + signersCertificate.getSubjectX500Principal() + ", rather than by the receiver " + expectedSigner);
+            return false;
+        }
+        if (!signer.equals(expectedSigner)) {
+            receivedMdn.addProblem("The MDN is signed by " + signer + ", rather than by the receiver " + expectedSigner);
+            return false;
+        }
+        return true;
+    }
+
+    void verifyMic(ReceivedMdn receivedMdn) {
+        if (receivedMdn.getExpectedMic() == null || receivedMdn.getOutcome() == ReceivedMdn.Outcome.FAILED) {
+            return;
+        }
+        if (receivedMdn.getReceivedMic() == null) {
+            receivedMdn.addProblem("No Received-Content-MIC in the MDN");
+        } else if (!receivedMdn.isMicVerified()) {
+            receivedMdn.addProblem("Received-Content-MIC " + receivedMdn.getReceivedMic() + " does not match the MIC of the message sent: " + receivedMdn.getExpectedMic());
+        }
+    }
+
+    static InputStream decode(InputStream inputStream, InternetHeaders headers) throws IOException {
+        String encoding = headers.getHeader("Content-Transfer-Encoding", null);
+        if (encoding == null) {
+            return inputStream;
+        }
+        encoding = encoding.trim().toLowerCase();
+        if (encoding.equals("7bit") || encoding.equals("8bit") || encoding.equals("binary")) {
+            return inputStream;
+        }
+        try {
+            return MimeUtility.decode(inputStream, encoding);
+        } catch (MessagingException e) {
+            throw new IOException("Unsupported Content-Transfer-Encoding " + encoding + ": " + e.getMessage(), e);
+        }
+    }
+
+    static byte[] readLimited(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+            if (byteArrayOutputStream.size() > MAX_PART_SIZE) {
+                throw new IllegalStateException("Body part exceeds " + MAX_PART_SIZE + " bytes");
+            }
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static String required(InternetHeaders headers, String name) {
+        String value = headers.getHeader(name, null);
+        if (value == null) {
+            throw new IllegalStateException("No " + name + " header in the signed body part of the MDN");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,137 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CommonName;
+import eu.peppol.security.CryptoBootstrap;
+import eu.peppol.security.KeystoreManager;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.Store;
+
+import javax.mail.Session;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+
+/**
+ * Holds everything required to create S/MIME signatures with our private key, built once and shared by every
+ * thread creating signed messages or MDNs.
+ * <p/>
+ * The certificate store, the signed attributes and the mail session are immutable and shared. The
+ * {@link SignerInfoGenerator}, which wraps a {@link java.security.Signature} and a {@link java.security.MessageDigest},
+ * is not thread safe, hence every thread gets an instance of its own, which is reused for every signature created
+ * by that thread. A signature must be completed by the thread which started it.
+ * <p/>
+ * Use {@link #getInstance()} to obtain the service signing with the private key of our keystore.
+ */
+public class SMimeSigningService {
+
+    private static volatile SMimeSigningService instance;
+
+    private final PrivateKey privateKey;
+    private final X509Certificate ourCertificate;
+
+    /** Our certificate, which is enclosed with every signature */
+    private final Store certificates;
+
+    /** S/MIME capabilities are required, but we simply supply an empty vector */
+    private final AttributeTable signedAttributes = new AttributeTable(new ASN1EncodableVector());
+
+    private final Session session = Session.getDefaultInstance(System.getProperties(), null);
+
+    private final ThreadLocal<SignerInfoGenerator> signerInfoGenerators = new ThreadLocal<SignerInfoGenerator>() {
+        @Override
+        protected SignerInfoGenerator initialValue() {
+            return createSignerInfoGenerator();
+        }
+    };
+
+    private final StreamingSMimeSigner streamingSMimeSigner;
+    private final SMimeMessageFactory sMimeMessageFactory;
+
+    private volatile PeppolAs2SystemIdentifier ourAs2SystemIdentifier;
+
+    static {
+        CryptoBootstrap.registerProvider();
+    }
+
+    /** Provides the service signing with the private key held in our keystore */
+    public static SMimeSigningService getInstance() {
+        if (instance == null) {
+            synchronized (SMimeSigningService.class) {
+                if (instance == null) {
+                    KeystoreManager keystoreManager = KeystoreManager.getInstance();
+                    instance = new SMimeSigningService(keystoreManager.getOurPrivateKey(), keystoreManager.getOurCertificate());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public SMimeSigningService(PrivateKey privateKey, X509Certificate ourCertificate) {
+        this.privateKey = privateKey;
+        this.ourCertificate = ourCertificate;
+
+        try {
+            certificates = new JcaCertStore(Collections.singletonList(ourCertificate));
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException("Unable to create JcaCertStore with our certificate. " + e.getMessage(), e);
+        }
+
+        streamingSMimeSigner = new StreamingSMimeSigner(this);
+        sMimeMessageFactory = new SMimeMessageFactory(this);
+    }
+
+    /** Signs messages while they are written to an output stream */
+    public StreamingSMimeSigner getStreamingSMimeSigner() {
+        return streamingSMimeSigner;
+    }
+
+    /** Creates signed MimeMessages, like the MDNs */
+    public SMimeMessageFactory getSMimeMessageFactory() {
+        return sMimeMessageFactory;
+    }
+
+    public X509Certificate getOurCertificate() {
+        return ourCertificate;
+    }
+
+    /** The AS2 System Identifier of this access point, which is given by the common name of our certificate */
+    public PeppolAs2SystemIdentifier getOurAs2SystemIdentifier() {
+        if (ourAs2SystemIdentifier == null) {
+            try {
+                ourAs2SystemIdentifier = PeppolAs2SystemIdentifier.valueOf(CommonName.valueOf(ourCertificate.getSubjectX500Principal()));
+            } catch (InvalidAs2SystemIdentifierException e) {
+                throw new IllegalStateException("AS2 System Identifier could not be obtained from " + ourCertificate.getSubjectX500Principal(), e);
+            }
+        }
+        return ourAs2SystemIdentifier;
+    }
+
+    /** The signer information generator of the current thread, which must not be handed over to other threads */
+    SignerInfoGenerator getSignerInfoGenerator() {
+        return signerInfoGenerators.get();
+    }
+
+    Store getCertificates() {
+        return certificates;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    SignerInfoGenerator createSignerInfoGenerator() {
+        try {
+            return new JcaSimpleSignerInfoGeneratorBuilder().setProvider("BC").setSignedAttributeGenerator(signedAttributes).build("SHA1withRSA", privateKey, ourCertificate);
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Unable to add Signer information. " + e.getMessage(), e);
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException("Certificate encoding problems while adding signer information." + e.getMessage(), e);
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package eu.peppol.as2;
 
+import eu.peppol.security.CryptoBootstrap;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cms.CMSException;
 import org.bouncycastle.cms.SignerInformation;
 import org.bouncycastle.cms.SignerInformationStore;
 import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.mail.smime.SMIMESignedParser;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.util.Store;
@@ -39,7 +39,7 @@ public class SignedMimeMessageInspector {
     private X509Certificate signersX509Certificate;
 
     public SignedMimeMessageInspector(MimeMessage mimeMessage) {
-        Security.addProvider(new BouncyCastleProvider());
+        CryptoBootstrap.registerProvider();
 
         this.mimeMessage = mimeMessage;
         parseSignedMessage();
@@ -151,11 +151,8 @@ public class SignedMimeMessageInspector {
     }
 
     public Mic calculateMic(String algorithmName) {
-        MessageDigest messageDigest = null;
-
-        String providerName = "BC";
+        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest(algorithmName, CryptoBootstrap.PROVIDER_NAME);
         try {
-            messageDigest = MessageDigest.getInstance(algorithmName, providerName);
             InputStream resourceAsStream = getInputStreamForMimeMessage();
 
             DigestInputStream digestInputStream = new DigestInputStream(resourceAsStream, messageDigest);
@@ -172,12 +169,10 @@ public class SignedMimeMessageInspector {
 
             return new Mic(digestAsString, algorithmName);
 
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(algorithmName + " not found", e);
-        } catch (NoSuchProviderException e) {
-            throw new IllegalStateException("Security provider " + providerName + " not found. Do you have BouncyCastle on your path?");
         } catch (IOException e) {
             throw new IllegalStateException("Unable to read data from digest input. " + e.getMessage(), e);
+        } finally {
+            CryptoBootstrap.release(messageDigest);
         }
     }
 
@@ -0,0 +1,48 @@
+package eu.peppol.as2;
+
+import javax.mail.Header;
+import javax.mail.internet.InternetHeaders;
+import java.util.Enumeration;
+
+/**
+ * The signed MDN returned in response to an AS2 message, as stored in the {@link DuplicateMessageIndex} in order
+ * to be returned once more, should the message be retransmitted.
+ */
+public class StoredMdn {
+
+    private final InternetHeaders httpHeaders;
+    private final byte[] body;
+
+    /**
+     * @param httpHeaders the http headers of the response, like Content-Type and Message-ID of the MDN
+     * @param body the signed MDN, i.e. the body of the http response
+     */
+    public StoredMdn(InternetHeaders httpHeaders, byte[] body) {
+        this.httpHeaders = httpHeaders;
+        this.body = body;
+    }
+
+    public InternetHeaders getHttpHeaders() {
+        return httpHeaders;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public String getMessageId() {
+        return HeaderUtil.getFirstValue(httpHeaders, "Message-ID");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("StoredMdn{");
+        Enumeration headers = httpHeaders.getAllHeaders();
+        while (headers.hasMoreElements()) {
+            Header header = (Header) headers.nextElement();
+            sb.append(header.getName()).append("=").append(header.getValue()).append(", ");
+        }
+        sb.append("bytes=").append(body.length).append('}');
+        return sb.toString();
+    }
+}
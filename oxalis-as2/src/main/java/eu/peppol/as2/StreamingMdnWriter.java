@@ -0,0 +1,255 @@
+package eu.peppol.as2;
+
+import javax.mail.Header;
+import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Enumeration;
+import java.util.UUID;
+
+/**
+ * Writes signed MDNs directly to an output stream, without creating any MimeMessage, MimeMultipart or
+ * MimeBodyPart.
+ * <p/>
+ * The multipart/report, holding the human readable text and the message/disposition-notification, is assembled from
+ * precompiled byte templates for the fixed parts into a buffer, which is reused by every MDN written by the same
+ * thread. The report is written as the signed body part by the {@link StreamingSMimeSigner} of the
+ * {@link SMimeSigningService}, which computes the detached signature while writing.
+ * <p/>
+ * The body written is the multipart/signed entity only. The MIME headers, Content-Type in particular, are sent as
+ * http headers, which are provided by {@link #createHttpHeaders(MdnData, String)}. The MDN written is equivalent to
+ * the one created by {@link MdnMimeMessageFactory}.
+ */
+public class StreamingMdnWriter {
+
+    static final String CRLF = "\r\n";
+
+    private static final byte[] TEXT_PART_HEADERS = ascii("Content-Type: text/plain; charset=us-ascii" + CRLF + "Content-Transfer-Encoding: 7bit" + CRLF + CRLF);
+    private static final byte[] HEADERS_RECEIVED = ascii("The following headers were received:" + CRLF);
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] CRLF_BYTES = ascii(CRLF);
+    private static final byte[] MESSAGE_SENT_TO = ascii("The message sent to AS2 System id ");
+    private static final byte[] UNKNOWN_AS2_SYSTEM_ID = ascii("<unknown AS2 system id>");
+    private static final byte[] ON = ascii(" on ");
+    private static final byte[] WITH_SUBJECT = ascii(" with subject ");
+    private static final byte[] HAS_BEEN_RECEIVED = ascii(" has been received.");
+    private static final byte[] PROCESSED_SUCCESSFULLY = ascii("It has been processed successfully.");
+    private static final byte[] PROCESSED_WITH_WARNING = ascii("It has been processed with a warning.");
+    private static final byte[] PROCESSED_WITH_ERROR = ascii("It has been processed with an error. Henceforth the message will NOT be delivered.");
+    private static final byte[] WARNING_OR_ERROR_MESSAGE = ascii("The warning/error message is:" + CRLF);
+
+    private static final byte[] NOTIFICATION_PART_HEADERS = ascii("Content-Type: message/disposition-notification" + CRLF + "Content-Transfer-Encoding: 7bit" + CRLF + CRLF);
+    private static final byte[] REPORTING_UA = ascii("Reporting-UA: Oxalis" + CRLF);
+    private static final byte[] DISPOSITION = ascii("Disposition: ");
+    private static final byte[] ORIGINAL_RECIPIENT = ascii("Original-Recipient: rfc822; ");
+    private static final byte[] FINAL_RECIPIENT = ascii("Final-Recipient: rfc822; ");
+    private static final byte[] ORIGINAL_MESSAGE_ID = ascii("Original-Message-ID: ");
+    private static final byte[] RECEIVED_CONTENT_MIC = ascii("Received-Content-MIC: ");
+
+    /** Buffers grown beyond this size, by an excessive number of request headers, are not kept for reuse */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final StreamingSMimeSigner streamingSMimeSigner;
+
+    private final ThreadLocal<ReportBuffer> reportBuffers = new ThreadLocal<ReportBuffer>() {
+        @Override
+        protected ReportBuffer initialValue() {
+            return new ReportBuffer();
+        }
+    };
+
+    public StreamingMdnWriter(SMimeSigningService signingService) {
+        this.streamingSMimeSigner = signingService.getStreamingSMimeSigner();
+    }
+
+    /** Creates a new unique MIME boundary for the multipart/signed MDN */
+    public static String createBoundary() {
+        return StreamingSMimeSigner.createBoundary();
+    }
+
+    /**
+     * Provides the http headers of the MDN having the supplied boundary, which must be sent before the MDN itself.
+     * The Date header is not included.
+     */
+    public InternetHeaders createHttpHeaders(MdnData mdnData, String boundary) {
+        InternetHeaders httpHeaders = new InternetHeaders();
+        httpHeaders.setHeader("Message-ID", "<" + UUID.randomUUID().toString() + "@oxalis>");
+        httpHeaders.setHeader("MIME-Version", "1.0");
+        httpHeaders.setHeader("Content-Type", StreamingSMimeSigner.getContentType(boundary));
+        httpHeaders.setHeader("AS2-To", mdnData.getAs2To());
+        httpHeaders.setHeader("AS2-From", mdnData.getAs2From());
+        httpHeaders.setHeader(As2Header.AS2_VERSION.getHttpHeaderName(), As2Header.VERSION);
+        httpHeaders.setHeader(As2Header.SERVER.getHttpHeaderName(), "Oxalis");
+        httpHeaders.setHeader("Subject", mdnData.getSubject());
+        return httpHeaders;
+    }
+
+    /**
+     * Writes the signed MDN, i.e. the multipart/signed entity having the supplied boundary.
+     *
+     * @param mdnData the contents of the MDN
+     * @param requestHeaders the headers of the request being responded to, which are listed in the human readable text
+     * @param boundary the boundary given in the Content-Type provided by {@link #createHttpHeaders(MdnData, String)}
+     */
+    public void writeMdn(MdnData mdnData, InternetHeaders requestHeaders, String boundary, OutputStream outputStream) throws IOException {
+        ReportBuffer report = reportBuffers.get();
+        report.reset();
+        try {
+            String reportBoundary = createBoundary();
+            writeReport(mdnData, requestHeaders, reportBoundary, report);
+
+            streamingSMimeSigner.writeSignedMultipart(report.toInputStream(),
+                    "multipart/report; report-type=disposition-notification; boundary=\"" + reportBoundary + "\"",
+                    boundary, outputStream);
+        } finally {
+            if (report.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                reportBuffers.remove();
+            }
+        }
+    }
+
+    /** Writes the contents of the multipart/report */
+    void writeReport(MdnData mdnData, InternetHeaders requestHeaders, String reportBoundary, OutputStream report) throws IOException {
+        writeAscii(report, "--" + reportBoundary + CRLF);
+        report.write(TEXT_PART_HEADERS);
+        writeHumanReadableText(mdnData, requestHeaders, report);
+
+        report.write(CRLF_BYTES);
+        writeAscii(report, "--" + reportBoundary + CRLF);
+        report.write(NOTIFICATION_PART_HEADERS);
+        writeDispositionNotification(mdnData, report);
+
+        report.write(CRLF_BYTES);
+        writeAscii(report, "--" + reportBoundary + "--" + CRLF);
+    }
+
+    private void writeHumanReadableText(MdnData mdnData, InternetHeaders requestHeaders, OutputStream report) throws IOException {
+        report.write(HEADERS_RECEIVED);
+        if (requestHeaders != null) {
+            Enumeration allHeaders = requestHeaders.getAllHeaders();
+            while (allHeaders.hasMoreElements()) {
+                Header header = (Header) allHeaders.nextElement();
+                writeField(report, header.getName());
+                report.write(HEADER_SEPARATOR);
+                writeField(report, header.getValue());
+                report.write(CRLF_BYTES);
+            }
+        }
+        report.write(CRLF_BYTES);
+
+        report.write(MESSAGE_SENT_TO);
+        if (mdnData.getAs2To() != null) {
+            writeField(report, mdnData.getAs2To());
+        } else {
+            report.write(UNKNOWN_AS2_SYSTEM_ID);
+        }
+        report.write(ON);
+        writeAscii(report, As2DateUtil.format(mdnData.getDate()));
+        report.write(WITH_SUBJECT);
+        writeField(report, mdnData.getSubject());
+        report.write(HAS_BEEN_RECEIVED);
+        report.write(CRLF_BYTES);
+
+        As2Disposition as2Disposition = mdnData.getAs2Disposition();
+        As2Disposition.DispositionModifier dispositionModifier = as2Disposition.getDispositionModifier();
+        if (as2Disposition.getDispositionType() == As2Disposition.DispositionType.PROCESSED) {
+            if (dispositionModifier == null) {
+                report.write(PROCESSED_SUCCESSFULLY);
+            } else {
+                report.write(dispositionModifier.getPrefix() == As2Disposition.DispositionModifier.Prefix.WARNING ? PROCESSED_WITH_WARNING : PROCESSED_WITH_ERROR);
+                report.write(CRLF_BYTES);
+                report.write(WARNING_OR_ERROR_MESSAGE);
+                writeText(report, dispositionModifier.toString());
+            }
+        } else if (dispositionModifier != null) {
+            // Failed, the modifier holds the reason
+            writeText(report, dispositionModifier.toString());
+        }
+        report.write(CRLF_BYTES);
+    }
+
+    private void writeDispositionNotification(MdnData mdnData, OutputStream report) throws IOException {
+        report.write(REPORTING_UA);
+
+        report.write(DISPOSITION);
+        writeField(report, mdnData.getAs2Disposition().toString());
+        report.write(CRLF_BYTES);
+
+        report.write(ORIGINAL_RECIPIENT);
+        writeField(report, String.valueOf(mdnData.getAs2To()));
+        report.write(CRLF_BYTES);
+
+        report.write(FINAL_RECIPIENT);
+        writeField(report, String.valueOf(mdnData.getAs2To()));
+        report.write(CRLF_BYTES);
+
+        report.write(ORIGINAL_MESSAGE_ID);
+        writeField(report, String.valueOf(mdnData.getMessageId()));
+        report.write(CRLF_BYTES);
+
+        if (mdnData.getMic() != null) {
+            report.write(RECEIVED_CONTENT_MIC);
+            writeField(report, mdnData.getMic().toString());
+            report.write(CRLF_BYTES);
+        }
+    }
+
+    /** Writes the value of a header field, on a single line of US-ASCII */
+    static void writeField(OutputStream outputStream, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            outputStream.write(c == '\r' || c == '\n' ? ' ' : toAscii(c));
+        }
+    }
+
+    /** Writes text as US-ASCII, with every line terminated by CRLF */
+    static void writeText(OutputStream outputStream, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                outputStream.write(CRLF_BYTES);
+            } else if (c != '\r') {
+                outputStream.write(toAscii(c));
+            }
+        }
+    }
+
+    /** The MDN is 7bit, hence anything else is replaced */
+    private static int toAscii(char c) {
+        return c < 128 ? c : '?';
+    }
+
+    private static void writeAscii(OutputStream outputStream, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            outputStream.write(toAscii(s.charAt(i)));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("US-ASCII not supported", e);
+        }
+    }
+
+    /** Exposes the buffer, hence the report is signed without copying it */
+    static class ReportBuffer extends ByteArrayOutputStream {
+
+        ReportBuffer() {
+            super(4096);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
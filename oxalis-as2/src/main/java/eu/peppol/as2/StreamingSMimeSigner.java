@@ -0,0 +1,166 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CryptoBootstrap;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedDataStreamGenerator;
+import org.bouncycastle.util.encoders.Base64;
+
+import javax.activation.MimeType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.UUID;
+
+/**
+ * Writes S/MIME signed messages (multipart/signed) directly to an output stream, without ever holding the
+ * contents in memory.
+ * <p/>
+ * {@link SMimeMessageFactory} creates a complete {@link javax.mail.internet.MimeMessage} with all the contents
+ * held in memory, which is fine for small messages, but not for large ones. This class writes the MIME body part
+ * holding the payload, while the payload is fed through a streaming CMS generator, which computes the detached
+ * signature. The signature is written as the second body part, once all the data has been written.
+ * <p/>
+ * The only data held in memory is the signature itself, which is a couple of kilobytes regardless of the
+ * size of the payload.
+ * <p/>
+ * The signature is generated using SHA1withRSA, the message integrity check (MIC) is computed over the
+ * signed body part, i.e. MIME headers and contents, as required by RFC 4130.
+ */
+public class StreamingSMimeSigner {
+
+    public static final String MIC_ALGORITHM = "sha1";
+
+    static final String CRLF = "\r\n";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Base 64 lines must not be longer than 76 characters */
+    private static final int BASE64_LINE_LENGTH = 76;
+
+    private final SMimeSigningService signingService;
+
+    public StreamingSMimeSigner(PrivateKey privateKey, X509Certificate ourCertificate) {
+        this(new SMimeSigningService(privateKey, ourCertificate));
+    }
+
+    /** Signs using the per thread signer of the supplied service, see {@link SMimeSigningService#getStreamingSMimeSigner()} */
+    StreamingSMimeSigner(SMimeSigningService signingService) {
+        this.signingService = signingService;
+    }
+
+    /** Creates a new unique MIME boundary */
+    public static String createBoundary() {
+        return "----=_Part_" + UUID.randomUUID().toString().replace("-", "");
+    }
+
+    /** Provides the content type of the multipart/signed message having the supplied boundary */
+    public static String getContentType(String boundary) {
+        return "multipart/signed; protocol=\"application/pkcs7-signature\"; micalg=" + MIC_ALGORITHM + "; boundary=\"" + boundary + "\"";
+    }
+
+    /**
+     * Writes the MIME headers followed by the multipart/signed message. This is equivalent to writing
+     * the MimeMessage created by {@link SMimeMessageFactory#createSignedMimeMessage(java.io.InputStream, javax.activation.MimeType)}
+     *
+     * @return the MIC of the signed contents
+     */
+    public Mic writeSignedMimeMessage(InputStream inputStream, MimeType mimeType, String boundary, OutputStream outputStream) throws IOException {
+        writeAscii(outputStream, "MIME-Version: 1.0" + CRLF + "Content-Type: " + getContentType(boundary) + CRLF + CRLF);
+        return writeSignedMultipart(inputStream, mimeType, boundary, outputStream);
+    }
+
+    /**
+     * Writes the body of the multipart/signed entity, i.e. the signed body part holding the contents of the supplied
+     * input stream, followed by the body part holding the detached signature. The supplied input stream is read once
+     * and is not closed.
+     *
+     * @return the MIC of the signed contents
+     */
+    public Mic writeSignedMultipart(InputStream inputStream, MimeType mimeType, String boundary, OutputStream outputStream) throws IOException {
+        return writeSignedMultipart(inputStream, mimeType.toString(), boundary, outputStream);
+    }
+
+    /**
+     * Writes the body of the multipart/signed entity, like {@link #writeSignedMultipart(java.io.InputStream, javax.activation.MimeType, String, java.io.OutputStream)},
+     * with the content type of the signed body part given as text.
+     *
+     * @return the MIC of the signed contents
+     */
+    public Mic writeSignedMultipart(InputStream inputStream, String contentType, String boundary, OutputStream outputStream) throws IOException {
+
+        // Receives the CMS SignedData structure, which is small as the signature is detached
+        ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        OutputStream signingStream = openSigningStream(signatureBytes);
+        MessageDigest micDigest = CryptoBootstrap.acquireMessageDigest("SHA-1");
+        try {
+            writeAscii(outputStream, "--" + boundary + CRLF);
+
+            // Everything in the first body part, including the MIME headers, is signed
+            byte[] bodyPartHeaders = ("Content-Type: " + contentType + CRLF + "Content-Transfer-Encoding: binary" + CRLF + CRLF).getBytes("US-ASCII");
+            outputStream.write(bodyPartHeaders);
+            signingStream.write(bodyPartHeaders);
+            micDigest.update(bodyPartHeaders);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+                signingStream.write(buffer, 0, bytesRead);
+                micDigest.update(buffer, 0, bytesRead);
+            }
+
+            // Completes the signature
+            signingStream.close();
+
+            writeAscii(outputStream, CRLF + "--" + boundary + CRLF);
+            writeAscii(outputStream, "Content-Type: application/pkcs7-signature; name=smime.p7s; smime-type=signed-data" + CRLF
+                    + "Content-Transfer-Encoding: base64" + CRLF
+                    + "Content-Disposition: attachment; filename=\"smime.p7s\"" + CRLF
+                    + "Content-Description: S/MIME Cryptographic Signature" + CRLF + CRLF);
+            writeBase64(outputStream, signatureBytes.toByteArray());
+            writeAscii(outputStream, CRLF + "--" + boundary + "--" + CRLF);
+            outputStream.flush();
+
+            return new Mic(new String(Base64.encode(micDigest.digest()), "US-ASCII"), MIC_ALGORITHM);
+        } finally {
+            CryptoBootstrap.release(micDigest);
+        }
+    }
+
+    OutputStream openSigningStream(OutputStream signatureOutputStream) {
+        CMSSignedDataStreamGenerator generator = new CMSSignedDataStreamGenerator();
+
+        // The signer information generator of this thread is reused, as is our certificate
+        generator.addSignerInfoGenerator(signingService.getSignerInfoGenerator());
+        try {
+            generator.addCertificates(signingService.getCertificates());
+        } catch (CMSException e) {
+            throw new IllegalStateException("Unable to add our certificate to the signature. " + e.getMessage(), e);
+        }
+
+        try {
+            // Detached signature, i.e. the contents are not written into the signature
+            return generator.open(signatureOutputStream, false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open the CMS signature stream. " + e.getMessage(), e);
+        }
+    }
+
+    static void writeAscii(OutputStream outputStream, String s) throws IOException {
+        outputStream.write(s.getBytes("US-ASCII"));
+    }
+
+    static void writeBase64(OutputStream outputStream, byte[] bytes) throws IOException {
+        byte[] encoded = Base64.encode(bytes);
+        for (int offset = 0; offset < encoded.length; offset += BASE64_LINE_LENGTH) {
+            if (offset > 0) {
+                writeAscii(outputStream, CRLF);
+            }
+            outputStream.write(encoded, offset, Math.min(BASE64_LINE_LENGTH, encoded.length - offset));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.File;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class DuplicateMessageIndexTest {
+
+    private static final long ONE_DAY = 24 * 60 * 60 * 1000L;
+    private static final String FROM = "APP_1000000006";
+    private static final String TO = "APP_1000000007";
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = File.createTempFile("duplicate-index", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void removeDirectory() {
+        delete(directory);
+    }
+
+    @Test
+    public void storedMdnIsReplayed() throws Exception {
+        DuplicateMessageIndex duplicateMessageIndex = new DuplicateMessageIndex(directory, ONE_DAY, 1000);
+        assertNull(duplicateMessageIndex.findMdn(FROM, TO, "<42@oxalis>"));
+
+        duplicateMessageIndex.storeMdn(FROM, TO, "<42@oxalis>", createMdn());
+
+        StoredMdn storedMdn = duplicateMessageIndex.findMdn(FROM, TO, "<42@oxalis>");
+        assertNotNull(storedMdn);
+        assertEquals(storedMdn.getMessageId(), "<mdn-42@oxalis>");
+        assertEquals(storedMdn.getHttpHeaders().getHeader("Content-Type", null), "multipart/signed; boundary=\"abc\"");
+        assertNull(storedMdn.getHttpHeaders().getHeader(DuplicateMessageIndex.ORIGINAL_AS2_FROM));
+        assertNull(storedMdn.getHttpHeaders().getHeader(DuplicateMessageIndex.ORIGINAL_AS2_TO));
+        assertNull(storedMdn.getHttpHeaders().getHeader(DuplicateMessageIndex.ORIGINAL_MESSAGE_ID));
+        assertTrue(Arrays.equals(storedMdn.getBody(), createMdn().getBody()));
+
+        assertNull(duplicateMessageIndex.findMdn(FROM, TO, "<43@oxalis>"));
+    }
+
+    @Test
+    public void messageIdIsOnlyRecognisedForTheSameSenderAndReceiver() throws Exception {
+        DuplicateMessageIndex duplicateMessageIndex = new DuplicateMessageIndex(directory, ONE_DAY, 1000);
+        duplicateMessageIndex.storeMdn(FROM, TO, "<42@oxalis>", createMdn());
+
+        assertNull(duplicateMessageIndex.findMdn("APP_1000000099", TO, "<42@oxalis>"));
+        assertNull(duplicateMessageIndex.findMdn(FROM, "APP_1000000099", "<42@oxalis>"));
+        assertNotNull(duplicateMessageIndex.findMdn(FROM, TO, "<42@oxalis>"));
+    }
+
+    @Test
+    public void indexIsRebuiltFromDisk() throws Exception {
+        new DuplicateMessageIndex(directory, ONE_DAY, 1000).storeMdn(FROM, TO, "<42@oxalis>", createMdn());
+
+        DuplicateMessageIndex reopened = new DuplicateMessageIndex(directory, ONE_DAY, 1000);
+        assertNotNull(reopened.findMdn(FROM, TO, "<42@oxalis>"));
+    }
+
+    @Test
+    public void expiredMessagesAreForgotten() throws Exception {
+        DuplicateMessageIndex duplicateMessageIndex = new DuplicateMessageIndex(directory, ONE_DAY, 1000);
+        duplicateMessageIndex.storeMdn(FROM, TO, "<42@oxalis>", createMdn());
+        duplicateMessageIndex.storeMdn(FROM, TO, "<43@oxalis>", createMdn());
+
+        File file = duplicateMessageIndex.fileFor(DuplicateMessageIndex.digest(FROM, TO, "<42@oxalis>"));
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 2 * ONE_DAY));
+        assertNull(duplicateMessageIndex.findMdn(FROM, TO, "<42@oxalis>"));
+
+        assertEquals(duplicateMessageIndex.removeExpired(), 1);
+        assertFalse(file.exists());
+        assertNotNull(duplicateMessageIndex.findMdn(FROM, TO, "<43@oxalis>"));
+    }
+
+    @Test
+    public void bloomFilterHasNoFalseNegatives() throws Exception {
+        BloomFilter bloomFilter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            bloomFilter.add(DuplicateMessageIndex.digest("added-" + i));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bloomFilter.mightContain(DuplicateMessageIndex.digest("added-" + i)));
+            if (bloomFilter.mightContain(DuplicateMessageIndex.digest("other-" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300, "Too many false positives: " + falsePositives);
+    }
+
+    private StoredMdn createMdn() throws Exception {
+        InternetHeaders headers = new InternetHeaders();
+        headers.setHeader("Message-ID", "<mdn-42@oxalis>");
+        headers.setHeader("Content-Type", "multipart/signed; boundary=\"abc\"");
+        return new StoredMdn(headers, "--abc\r\nThe MDN\r\n--abc--\r\n".getBytes("US-ASCII"));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -3,6 +3,7 @@ package eu.peppol.as2;
 import eu.peppol.document.SimpleSbdhMessageRepository;
 import eu.peppol.persistence.MessageRepository;
 import eu.peppol.persistence.SimpleMessageRepository;
+import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
 import eu.peppol.util.GlobalConfiguration;
 import org.testng.AssertJUnit;
@@ -16,11 +17,13 @@ import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeMessage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
 /**
@@ -104,4 +107,68 @@ public class InboundMessageReceiverTest {
             assertEquals(e.getMdnData().getSubject(), MdnData.SUBJECT);
         }
     }
+
+    @Test
+    public void authenticatedRetransmissionIsRecognised() throws Exception {
+        useOurCommonNameAsAs2From();
+        DuplicateMessageIndex duplicateMessageIndex = createDuplicateMessageIndex();
+        StoredMdn storedMdn = createStoredMdn();
+        duplicateMessageIndex.storeMdn(headerValue(As2Header.AS2_FROM), headerValue(As2Header.AS2_TO), "42", storedMdn);
+
+        try {
+            new InboundMessageReceiver(duplicateMessageIndex).receive(headers, inputStream, messageRepository);
+            fail("The retransmission should have been recognised");
+        } catch (DuplicateMessageException e) {
+            assertEquals(e.getStoredMdn().getMessageId(), storedMdn.getMessageId());
+        }
+    }
+
+    @Test
+    public void messageIdOfAnotherSenderIsNotReplayed() throws Exception {
+        useOurCommonNameAsAs2From();
+        DuplicateMessageIndex duplicateMessageIndex = createDuplicateMessageIndex();
+        duplicateMessageIndex.storeMdn(PeppolAs2SystemIdentifier.AS2_SYSTEM_ID_PREFIX + "APP_1000000099", headerValue(As2Header.AS2_TO), "42", createStoredMdn());
+
+        MdnData mdnData = new InboundMessageReceiver(duplicateMessageIndex).receive(headers, inputStream, messageRepository);
+        assertEquals(mdnData.getAs2Disposition().getDispositionType(), As2Disposition.DispositionType.PROCESSED);
+    }
+
+    /** A sender claiming to be another is rejected, rather than being handed the MDN of the other */
+    @Test
+    public void unauthenticatedRetransmissionIsNotReplayed() throws Exception {
+        String as2From = PeppolAs2SystemIdentifier.AS2_SYSTEM_ID_PREFIX + "APP_1000000099";
+        headers.setHeader(As2Header.AS2_FROM.getHttpHeaderName(), as2From);
+        DuplicateMessageIndex duplicateMessageIndex = createDuplicateMessageIndex();
+        duplicateMessageIndex.storeMdn(as2From, headerValue(As2Header.AS2_TO), "42", createStoredMdn());
+
+        try {
+            new InboundMessageReceiver(duplicateMessageIndex).receive(headers, inputStream, messageRepository);
+            fail("The signer does not match the AS2-From, the message should have been rejected");
+        } catch (ErrorWithMdnException e) {
+            assertTrue(e.getMessage().contains("AS2-From"), e.getMessage());
+        }
+    }
+
+    /** The message is signed with our own certificate, hence the AS2-From must be our common name */
+    private void useOurCommonNameAsAs2From() throws Exception {
+        CommonName commonName = CommonName.valueOf(KeystoreManager.getInstance().getOurCertificate().getSubjectX500Principal());
+        headers.setHeader(As2Header.AS2_FROM.getHttpHeaderName(), PeppolAs2SystemIdentifier.valueOf(commonName).toString());
+    }
+
+    private String headerValue(As2Header as2Header) {
+        return HeaderUtil.getFirstValue(headers, as2Header.getHttpHeaderName());
+    }
+
+    private DuplicateMessageIndex createDuplicateMessageIndex() throws IOException {
+        File directory = File.createTempFile("duplicate-index", "");
+        directory.delete();
+        directory.deleteOnExit();
+        return new DuplicateMessageIndex(directory, 24 * 60 * 60 * 1000L, 1000);
+    }
+
+    private StoredMdn createStoredMdn() throws IOException {
+        InternetHeaders mdnHeaders = new InternetHeaders();
+        mdnHeaders.setHeader("Message-ID", "<mdn-42@oxalis>");
+        return new StoredMdn(mdnHeaders, "The MDN".getBytes("US-ASCII"));
+    }
 }
@@ -0,0 +1,147 @@
+package eu.peppol.as2;
+
+import eu.peppol.identifier.ParticipantId;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.testng.Assert.*;
+
+public class InboundSignedMessageParserTest {
+
+    private SMimeSigningService signingService;
+    private byte[] payload;
+    private InboundSignedMessageParser parser;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Principal subject = new X500Principal("CN=APP_TEST, O=Oxalis, C=NO");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000L), new Date(System.currentTimeMillis() + 3600000L), subject, keyPair.getPublic());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate())));
+
+        signingService = new SMimeSigningService(keyPair.getPrivate(), certificate);
+        payload = readResource("peppol-bis-invoice-sbdh.xml");
+        parser = new InboundSignedMessageParser();
+    }
+
+    @Test
+    public void parseStreamedMessage() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        Mic expectedMic = signingService.getStreamingSMimeSigner().writeSignedMimeMessage(new ByteArrayInputStream(payload), new MimeType("application/xml"), StreamingSMimeSigner.createBoundary(), message);
+
+        InboundSignedMessage inboundSignedMessage = parser.parse(new ByteArrayInputStream(message.toByteArray()), new InternetHeaders());
+        try {
+            assertEquals(inboundSignedMessage.getMic().toString(), expectedMic.toString());
+            assertEquals(inboundSignedMessage.getSignersX509Certificate(), signingService.getOurCertificate());
+            assertEquals(inboundSignedMessage.getPeppolStandardBusinessHeader().getRecipientId(), new ParticipantId("0007:4455454480"));
+            assertEquals(inboundSignedMessage.getPayloadSize(), payload.length);
+            assertTrue(Arrays.equals(read(inboundSignedMessage.getPayloadInputStream()), payload));
+        } finally {
+            inboundSignedMessage.delete();
+        }
+        assertFalse(inboundSignedMessage.getPayloadFile().exists());
+    }
+
+    /** Other access points send the multipart only, with the Content-Type given in the http headers */
+    @Test
+    public void parseMessageWithoutMimeHeaders() throws Exception {
+        String boundary = StreamingSMimeSigner.createBoundary();
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        Mic expectedMic = signingService.getStreamingSMimeSigner().writeSignedMultipart(new ByteArrayInputStream(payload), new MimeType("application/xml"), boundary, message);
+
+        InternetHeaders httpHeaders = new InternetHeaders();
+        httpHeaders.addHeader("Content-Type", StreamingSMimeSigner.getContentType(boundary));
+
+        InboundSignedMessage inboundSignedMessage = parser.parse(new ByteArrayInputStream(message.toByteArray()), httpHeaders);
+        try {
+            assertEquals(inboundSignedMessage.getMic().toString(), expectedMic.toString());
+            assertTrue(Arrays.equals(read(inboundSignedMessage.getPayloadInputStream()), payload));
+        } finally {
+            inboundSignedMessage.delete();
+        }
+    }
+
+    /** Messages created by JavaMail, i.e. with whatever transfer encoding it chooses, are verified as well */
+    @Test
+    public void parseMessageCreatedByJavaMail() throws Exception {
+        MimeMessage mimeMessage = signingService.getSMimeMessageFactory().createSignedMimeMessage(new ByteArrayInputStream(payload), new MimeType("application/xml"));
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        mimeMessage.writeTo(message);
+
+        InboundSignedMessage inboundSignedMessage = parser.parse(new ByteArrayInputStream(message.toByteArray()), new InternetHeaders());
+        try {
+            assertTrue(Arrays.equals(read(inboundSignedMessage.getPayloadInputStream()), payload));
+        } finally {
+            inboundSignedMessage.delete();
+        }
+    }
+
+    @Test
+    public void tamperedMessageIsRejected() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        signingService.getStreamingSMimeSigner().writeSignedMimeMessage(new ByteArrayInputStream(payload), new MimeType("application/xml"), StreamingSMimeSigner.createBoundary(), message);
+        String tampered = message.toString("UTF-8").replace("4455454480", "4455454481");
+
+        try {
+            parser.parse(new ByteArrayInputStream(tampered.getBytes("UTF-8")), new InternetHeaders());
+            fail("Tampered message should not be verified");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().toLowerCase().contains("verif"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void payloadWithoutSbdhIsRejected() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        signingService.getStreamingSMimeSigner().writeSignedMimeMessage(new ByteArrayInputStream(readResource("example.xml")), new MimeType("application/xml"), StreamingSMimeSigner.createBoundary(), message);
+
+        try {
+            parser.parse(new ByteArrayInputStream(message.toByteArray()), new InternetHeaders());
+            fail("Payload without SBDH should be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("Standard Business Document Header"), e.getMessage());
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream inputStream = InboundSignedMessageParserTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        return read(inputStream);
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                byteArrayOutputStream.write(buffer, 0, bytesRead);
+            }
+            return byteArrayOutputStream.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package eu.peppol.as2;
+
+import org.testng.annotations.Test;
+
+import javax.mail.internet.InternetHeaders;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.testng.Assert.*;
+
+public class MultipartReaderTest {
+
+    private static final String MULTIPART = "This is the preamble\r\n" +
+            "--simple boundary\r\n" +
+            "\r\n" +
+            "Implicitly typed plain US-ASCII text.\r\n" +
+            "--simple boundary\r\n" +
+            "Content-type: text/plain; charset=us-ascii\r\n" +
+            "\r\n" +
+            "Explicitly typed, ending with a line break\r\n" +
+            "\r\n" +
+            "--simple boundary--\r\n" +
+            "This is the epilogue\r\n";
+
+    @Test
+    public void readsAllBodyParts() throws Exception {
+        MultipartReader multipartReader = new MultipartReader(new ByteArrayInputStream(MULTIPART.getBytes("US-ASCII")), "simple boundary");
+
+        assertTrue(multipartReader.nextPart());
+        assertNull(multipartReader.readHeaders().getHeader("Content-Type", null));
+        assertEquals(read(multipartReader.getPartInputStream()), "Implicitly typed plain US-ASCII text.");
+
+        assertTrue(multipartReader.nextPart());
+        InternetHeaders headers = multipartReader.readHeaders();
+        assertEquals(headers.getHeader("Content-Type", null), "text/plain; charset=us-ascii");
+        assertEquals(read(multipartReader.getPartInputStream()), "Explicitly typed, ending with a line break\r\n");
+
+        assertFalse(multipartReader.nextPart());
+        assertFalse(multipartReader.nextPart());
+    }
+
+    @Test
+    public void unreadPartsAreSkipped() throws Exception {
+        MultipartReader multipartReader = new MultipartReader(new ByteArrayInputStream(MULTIPART.getBytes("US-ASCII")), "simple boundary");
+
+        assertTrue(multipartReader.nextPart());
+        assertTrue(multipartReader.nextPart());
+        assertEquals(read(multipartReader.getPartInputStream()), "Content-type: text/plain; charset=us-ascii\r\n\r\nExplicitly typed, ending with a line break\r\n");
+        assertFalse(multipartReader.nextPart());
+    }
+
+    /** Content resembling the boundary, split across reads of a single byte, must not be mistaken for the boundary */
+    @Test
+    public void contentResemblingTheBoundaryIsPreserved() throws Exception {
+        StringBuilder contents = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            contents.append("\r\n--simple boundar").append(i % 10);
+        }
+        String multipart = "--simple boundary\r\n\r\n" + contents + "\r\n--simple boundary--\r\n";
+
+        MultipartReader multipartReader = new MultipartReader(new OneByteInputStream(new ByteArrayInputStream(multipart.getBytes("US-ASCII"))), "simple boundary");
+        assertTrue(multipartReader.nextPart());
+        multipartReader.readHeaders();
+        assertEquals(read(multipartReader.getPartInputStream()), contents.toString());
+        assertFalse(multipartReader.nextPart());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void missingCloseDelimiterIsReported() throws Exception {
+        String truncated = "--simple boundary\r\n\r\nThe contents were trunc";
+        MultipartReader multipartReader = new MultipartReader(new ByteArrayInputStream(truncated.getBytes("US-ASCII")), "simple boundary");
+
+        assertTrue(multipartReader.nextPart());
+        read(multipartReader.getPartInputStream());
+    }
+
+    private String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        return byteArrayOutputStream.toString("US-ASCII");
+    }
+
+    /** Returns at most a single byte from every read, like a slow network connection */
+    static class OneByteInputStream extends FilterInputStream {
+
+        OneByteInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CommonName;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.testng.Assert.*;
+
+public class ReceivedMdnParserTest {
+
+    private static final String REPORT_BOUNDARY = "----=_Part_0_119619154.1384331414130";
+    private static final CommonName RECEIVER = new CommonName("APP_TEST");
+
+    private StreamingSMimeSigner signer;
+    private StreamingSMimeSigner impostor;
+    private X509Certificate certificate;
+    private ReceivedMdnParser receivedMdnParser;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        KeyPair keyPair = generateKeyPair();
+        certificate = selfSignedCertificate("CN=" + RECEIVER + ", O=Oxalis, C=NO", keyPair);
+        signer = new StreamingSMimeSigner(keyPair.getPrivate(), certificate);
+
+        // Anyone answering the http request may sign with a certificate of their own
+        KeyPair impostorsKeyPair = generateKeyPair();
+        impostor = new StreamingSMimeSigner(impostorsKeyPair.getPrivate(), selfSignedCertificate("CN=APP_IMPOSTOR, O=Oxalis, C=NO", impostorsKeyPair));
+
+        receivedMdnParser = new ReceivedMdnParser();
+    }
+
+    @Test
+    public void parseMdnFromOpenAS2() throws Exception {
+        InputStream resourceAsStream = ReceivedMdnParserTest.class.getClassLoader().getResourceAsStream("openas2-mdn-no-headers.txt");
+        assertNotNull(resourceAsStream);
+        // The resource file has Unix line endings, MIME requires CRLF
+        String mdn = new String(ReceivedMdnParser.readLimited(resourceAsStream), "US-ASCII").replace("\r\n", "\n").replace("\n", "\r\n");
+
+        MimeType contentType = new MimeType(StreamingSMimeSigner.getContentType("----=_Part_2_1193010873.1384331414156"));
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(new ByteArrayInputStream(mdn.getBytes("US-ASCII")), contentType, Mic.valueOf("Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1"), new CommonName("OpenAS2A"));
+
+        assertEquals(receivedMdn.getDisposition().getDispositionType(), As2Disposition.DispositionType.PROCESSED);
+        assertEquals(receivedMdn.getOriginalMessageId(), "42");
+        assertEquals(receivedMdn.getReceivedMic().toString(), "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1");
+        assertTrue(receivedMdn.isMicVerified());
+        assertTrue(receivedMdn.getPlainText().startsWith("The message sent to Recipient OpenAS2A"));
+
+        // OpenAS2 does not include the certificate of the signer
+        assertNull(receivedMdn.getSignersCertificate());
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.WARNING);
+    }
+
+    @Test
+    public void signedMdnWithMatchingMicIsProcessed() throws Exception {
+        Mic mic = new Mic("Fp67Ews9SJa5pKGXVl07dBuVW4I=", "SHA-1");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(signedMdn("processed", "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1", false), contentTypeOfSignedMdn(), mic, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.PROCESSED, receivedMdn.getProblems().toString());
+        assertTrue(receivedMdn.isSignatureVerified());
+        assertTrue(receivedMdn.isMicVerified());
+        assertEquals(receivedMdn.getSignersCertificate(), certificate);
+        assertEquals(receivedMdn.getOriginalMessageId(), "<4711@oxalis>");
+    }
+
+    @Test
+    public void micMismatchGivesWarning() throws Exception {
+        Mic mic = new Mic("AAAAEws9SJa5pKGXVl07dBuVW4I=", "sha1");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(signedMdn("processed", "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1", false), contentTypeOfSignedMdn(), mic, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.WARNING);
+        assertTrue(receivedMdn.isSignatureVerified());
+        assertFalse(receivedMdn.isMicVerified());
+        assertEquals(receivedMdn.getProblems().size(), 1);
+    }
+
+    @Test
+    public void tamperedMdnGivesWarning() throws Exception {
+        Mic mic = new Mic("Fp67Ews9SJa5pKGXVl07dBuVW4I=", "sha1");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(signedMdn("processed", "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1", true), contentTypeOfSignedMdn(), mic, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.WARNING);
+        assertFalse(receivedMdn.isSignatureVerified());
+    }
+
+    @Test
+    public void failedDispositionGivesFailure() throws Exception {
+        Mic mic = new Mic("Fp67Ews9SJa5pKGXVl07dBuVW4I=", "sha1");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(signedMdn("failed/Failure: unsupported format", null, false), contentTypeOfSignedMdn(), mic, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.FAILED);
+        assertTrue(receivedMdn.isSignatureVerified());
+    }
+
+    @Test
+    public void unsignedMdnGivesWarning() throws Exception {
+        MimeType contentType = new MimeType("multipart/report; report-type=disposition-notification; boundary=\"" + REPORT_BOUNDARY + "\"");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(new ByteArrayInputStream(report("processed", "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1").getBytes("US-ASCII")), contentType, null, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.WARNING);
+        assertFalse(receivedMdn.isSignatureVerified());
+        assertNull(receivedMdn.getSignersCertificate());
+    }
+
+    @Test
+    public void mdnSignedByAnotherCertificateIsNotTrusted() throws Exception {
+        Mic mic = new Mic("Fp67Ews9SJa5pKGXVl07dBuVW4I=", "SHA-1");
+        ReceivedMdn receivedMdn = receivedMdnParser.parse(signedMdn(impostor, "processed", "Fp67Ews9SJa5pKGXVl07dBuVW4I=, sha1", false), contentTypeOfSignedMdn(), mic, RECEIVER);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.WARNING);
+        assertFalse(receivedMdn.isSignatureVerified());
+        assertTrue(receivedMdn.getProblems().get(0).contains("APP_IMPOSTOR"), receivedMdn.getProblems().toString());
+    }
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    private static X509Certificate selfSignedCertificate(String distinguishedName, KeyPair keyPair) throws Exception {
+        X500Principal subject = new X500Principal(distinguishedName);
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000L), new Date(System.currentTimeMillis() + 3600000L), subject, keyPair.getPublic());
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate())));
+    }
+
+    private MimeType contentTypeOfSignedMdn() throws Exception {
+        return new MimeType(StreamingSMimeSigner.getContentType("outer-boundary"));
+    }
+
+    private InputStream signedMdn(String disposition, String receivedContentMic, boolean tamper) throws Exception {
+        return signedMdn(signer, disposition, receivedContentMic, tamper);
+    }
+
+    private InputStream signedMdn(StreamingSMimeSigner signer, String disposition, String receivedContentMic, boolean tamper) throws Exception {
+        MimeType reportType = new MimeType("multipart/report; report-type=disposition-notification; boundary=\"" + REPORT_BOUNDARY + "\"");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        signer.writeSignedMultipart(new ByteArrayInputStream(report(disposition, receivedContentMic).getBytes("US-ASCII")), reportType, "outer-boundary", byteArrayOutputStream);
+
+        String signedMdn = byteArrayOutputStream.toString("US-ASCII");
+        if (tamper) {
+            signedMdn = signedMdn.replace("has been received", "has been rejected");
+        }
+        return new ByteArrayInputStream(signedMdn.getBytes("US-ASCII"));
+    }
+
+    private String report(String disposition, String receivedContentMic) {
+        return "--" + REPORT_BOUNDARY + "\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Transfer-Encoding: 7bit\r\n" +
+                "\r\n" +
+                "The message has been received\r\n" +
+                "--" + REPORT_BOUNDARY + "\r\n" +
+                "Content-Type: message/disposition-notification\r\n" +
+                "Content-Transfer-Encoding: 7bit\r\n" +
+                "\r\n" +
+                "Reporting-UA: Oxalis\r\n" +
+                "Original-Message-ID: <4711@oxalis>\r\n" +
+                "Disposition: automatic-action/MDN-sent-automatically; " + disposition + "\r\n" +
+                (receivedContentMic == null ? "" : "Received-Content-MIC: " + receivedContentMic + "\r\n") +
+                "\r\n" +
+                "--" + REPORT_BOUNDARY + "--\r\n";
+    }
+}
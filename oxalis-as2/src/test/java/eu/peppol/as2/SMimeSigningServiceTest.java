@@ -0,0 +1,195 @@
+package eu.peppol.as2;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.mail.smime.SMIMESigned;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class SMimeSigningServiceTest {
+
+    private PrivateKey privateKey;
+    private X509Certificate certificate;
+    private SMimeSigningService signingService;
+
+    @BeforeClass
+    public void createSelfSignedCertificate() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Principal subject = new X500Principal("CN=APP_TEST, O=Oxalis, C=NO");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000L), new Date(System.currentTimeMillis() + 3600000L), subject, keyPair.getPublic());
+        privateKey = keyPair.getPrivate();
+        certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(privateKey)));
+
+        signingService = new SMimeSigningService(privateKey, certificate);
+    }
+
+    @Test
+    public void signerIsReusedWithinThreadOnly() throws Exception {
+        assertSame(signingService.getSignerInfoGenerator(), signingService.getSignerInfoGenerator());
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Object otherThreadsSigner = executorService.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return signingService.getSignerInfoGenerator();
+                }
+            }).get();
+            assertNotSame(otherThreadsSigner, signingService.getSignerInfoGenerator());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void consecutiveSignaturesOfTheSameThreadAreValid() throws Exception {
+        SMimeMessageFactory sMimeMessageFactory = signingService.getSMimeMessageFactory();
+        for (int i = 0; i < 3; i++) {
+            MimeMessage mimeMessage = sMimeMessageFactory.createSignedMimeMessage("Message number " + i, new MimeType("text/plain"));
+            assertValidSignature(mimeMessage);
+        }
+        assertEquals(signingService.getOurAs2SystemIdentifier().toString(), "peppol-APP_TEST");
+    }
+
+    @Test
+    public void concurrentSignaturesAreValid() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<MimeMessage>> futures = new ArrayList<Future<MimeMessage>>();
+            for (int i = 0; i < 64; i++) {
+                final String payload = "<Invoice>" + i + "</Invoice>";
+                futures.add(executorService.submit(new Callable<MimeMessage>() {
+                    @Override
+                    public MimeMessage call() throws Exception {
+                        return signingService.getSMimeMessageFactory().createSignedMimeMessage(payload, new MimeType("application/xml"));
+                    }
+                }));
+            }
+            for (Future<MimeMessage> future : futures) {
+                assertValidSignature(future.get());
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /** The signature is computed once, when the message is created, not every time it is written */
+    @Test
+    public void signedMessageIsWrittenIdenticallyEveryTime() throws Exception {
+        MimeMessage mimeMessage = signingService.getSMimeMessageFactory().createSignedMimeMessage("Arne Barne Busemann", new MimeType("text/plain"));
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        mimeMessage.writeTo(first);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        mimeMessage.writeTo(second);
+
+        assertTrue(Arrays.equals(first.toByteArray(), second.toByteArray()));
+        assertNotNull(mimeMessage.getHeader("Message-ID"));
+    }
+
+    /**
+     * Compares signing with a new factory for every message, which is what we used to do, with signing using the
+     * shared service. Reports the time and the number of bytes allocated per signature.
+     */
+    @Test(groups = {"manual"})
+    public void benchmarkSharedSignerVersusNewFactory() throws Exception {
+        int warmup = 2000;
+        int iterations = 10000;
+
+        for (int i = 0; i < warmup; i++) {
+            signWithNewFactory();
+            signWithSharedService();
+        }
+
+        long[] newFactory = measure(new Runnable() {
+            @Override
+            public void run() {
+                signWithNewFactory();
+            }
+        }, iterations);
+        long[] shared = measure(new Runnable() {
+            @Override
+            public void run() {
+                signWithSharedService();
+            }
+        }, iterations);
+
+        System.out.println("New factory per message: " + newFactory[0] / iterations + "ns, " + newFactory[1] / iterations + " bytes per signature");
+        System.out.println("Shared signing service : " + shared[0] / iterations + "ns, " + shared[1] / iterations + " bytes per signature");
+        assertTrue(shared[1] < newFactory[1], "The shared signing service should allocate less");
+    }
+
+    private void signWithNewFactory() {
+        write(new SMimeMessageFactory(privateKey, certificate).createSignedMimeMessage("<Invoice>Arne Barne Busemann</Invoice>", mimeType()));
+    }
+
+    private void signWithSharedService() {
+        write(signingService.getSMimeMessageFactory().createSignedMimeMessage("<Invoice>Arne Barne Busemann</Invoice>", mimeType()));
+    }
+
+    /** @return elapsed nanoseconds and allocated bytes of the current thread */
+    private long[] measure(Runnable runnable, int iterations) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runnable.run();
+        }
+        return new long[]{System.nanoTime() - start, threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore};
+    }
+
+    private static MimeType mimeType() {
+        try {
+            return new MimeType("application/xml");
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(MimeMessage mimeMessage) {
+        try {
+            mimeMessage.writeTo(new ByteArrayOutputStream());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void assertValidSignature(MimeMessage mimeMessage) throws Exception {
+        SMIMESigned smimeSigned = new SMIMESigned((MimeMultipart) mimeMessage.getContent());
+        SignerInformation signer = (SignerInformation) smimeSigned.getSignerInfos().getSigners().iterator().next();
+        X509CertificateHolder certificateHolder = (X509CertificateHolder) smimeSigned.getCertificates().getMatches(signer.getSID()).iterator().next();
+        assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider("BC").build(certificateHolder)));
+    }
+}
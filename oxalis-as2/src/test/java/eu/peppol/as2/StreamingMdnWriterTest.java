@@ -0,0 +1,200 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.CommonName;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.testng.Assert.*;
+
+public class StreamingMdnWriterTest {
+
+    private PrivateKey privateKey;
+    private X509Certificate certificate;
+    private SMimeSigningService signingService;
+    private StreamingMdnWriter streamingMdnWriter;
+
+    @BeforeClass(alwaysRun = true)
+    public void createSelfSignedCertificate() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Principal subject = new X500Principal("CN=APP_TEST, O=Oxalis, C=NO");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000L), new Date(System.currentTimeMillis() + 3600000L), subject, keyPair.getPublic());
+        privateKey = keyPair.getPrivate();
+        certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(privateKey)));
+
+        signingService = new SMimeSigningService(privateKey, certificate);
+        streamingMdnWriter = new StreamingMdnWriter(signingService);
+    }
+
+    @Test
+    public void processedMdnIsParsedAndVerified() throws Exception {
+        Mic mic = new Mic("eeWNkOTx7yJYr2EW8CR85I7QJQY=", "sha1");
+        MdnData mdnData = new MdnData.Builder()
+                .subject("PEPPOL message")
+                .as2From("APP_1000000006")
+                .as2To("APP_1000000009")
+                .disposition(As2Disposition.processed())
+                .mic(mic)
+                .messageId("<42@example.com>")
+                .build();
+
+        ReceivedMdn receivedMdn = writeAndParse(mdnData, mic);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.PROCESSED, receivedMdn.toString());
+        assertTrue(receivedMdn.isSignatureVerified(), receivedMdn.toString());
+        assertTrue(receivedMdn.isMicVerified(), receivedMdn.toString());
+        assertEquals(receivedMdn.getOriginalMessageId(), "<42@example.com>");
+        assertEquals(receivedMdn.getSignersCertificate(), certificate);
+        assertTrue(receivedMdn.getPlainText().contains("AS2-From: APP_1000000009"), receivedMdn.getPlainText());
+        assertTrue(receivedMdn.getPlainText().contains("processed successfully"), receivedMdn.getPlainText());
+    }
+
+    @Test
+    public void failureIsReported() throws Exception {
+        MdnData mdnData = new MdnData.Builder()
+                .as2From("APP_1000000006")
+                .as2To("APP_1000000009")
+                .disposition(As2Disposition.failed("Unable to parse SBDH\nsecond line with non-ascii æøå"))
+                .messageId("<43@example.com>")
+                .build();
+
+        ReceivedMdn receivedMdn = writeAndParse(mdnData, null);
+
+        assertEquals(receivedMdn.getOutcome(), ReceivedMdn.Outcome.FAILED, receivedMdn.toString());
+        assertTrue(receivedMdn.isSignatureVerified(), receivedMdn.toString());
+        assertTrue(receivedMdn.getPlainText().contains("Unable to parse SBDH\r\nsecond line with non-ascii ???"), receivedMdn.getPlainText());
+    }
+
+    @Test
+    public void httpHeadersDescribeTheMdn() throws Exception {
+        MdnData mdnData = new MdnData.Builder()
+                .as2From("APP_1000000006")
+                .as2To("APP_1000000009")
+                .disposition(As2Disposition.processed())
+                .build();
+        String boundary = StreamingMdnWriter.createBoundary();
+
+        InternetHeaders httpHeaders = streamingMdnWriter.createHttpHeaders(mdnData, boundary);
+
+        MimeType contentType = new MimeType(httpHeaders.getHeader("Content-Type", null));
+        assertEquals(contentType.getBaseType(), "multipart/signed");
+        assertEquals(contentType.getParameter("boundary"), boundary);
+        assertEquals(httpHeaders.getHeader("AS2-From", null), "APP_1000000006");
+        assertEquals(httpHeaders.getHeader("AS2-To", null), "APP_1000000009");
+        assertNotNull(httpHeaders.getHeader("Message-ID", null));
+        assertNotEquals(streamingMdnWriter.createHttpHeaders(mdnData, boundary).getHeader("Message-ID", null), httpHeaders.getHeader("Message-ID", null));
+    }
+
+    /**
+     * Compares creating the MDN with the MdnMimeMessageFactory and writing it, which is what we used to do, with
+     * writing it using the StreamingMdnWriter. Reports the time and the number of bytes allocated per MDN.
+     */
+    @Test(groups = {"manual"})
+    public void benchmarkStreamingWriterVersusMimeMessageFactory() throws Exception {
+        int warmup = 2000;
+        int iterations = 10000;
+
+        final MdnData mdnData = new MdnData.Builder()
+                .subject("PEPPOL message")
+                .as2From("APP_1000000006")
+                .as2To("APP_1000000009")
+                .disposition(As2Disposition.processed())
+                .mic(new Mic("eeWNkOTx7yJYr2EW8CR85I7QJQY=", "sha1"))
+                .messageId("<42@example.com>")
+                .build();
+        final InternetHeaders requestHeaders = sampleRequestHeaders();
+        final MdnMimeMessageFactory mdnMimeMessageFactory = new MdnMimeMessageFactory(signingService);
+
+        Runnable mimeMessageFactory = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MimeMessage mdn = mdnMimeMessageFactory.createMdn(mdnData, requestHeaders);
+                    mdn.writeTo(new ByteArrayOutputStream());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        Runnable streamingWriter = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String boundary = StreamingMdnWriter.createBoundary();
+                    streamingMdnWriter.createHttpHeaders(mdnData, boundary);
+                    streamingMdnWriter.writeMdn(mdnData, requestHeaders, boundary, new ByteArrayOutputStream());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        for (int i = 0; i < warmup; i++) {
+            mimeMessageFactory.run();
+            streamingWriter.run();
+        }
+
+        long[] before = measure(mimeMessageFactory, iterations);
+        long[] after = measure(streamingWriter, iterations);
+
+        System.out.println("MdnMimeMessageFactory: " + before[0] / iterations + "ns, " + before[1] / iterations + " bytes per MDN");
+        System.out.println("StreamingMdnWriter   : " + after[0] / iterations + "ns, " + after[1] / iterations + " bytes per MDN");
+        assertTrue(after[1] < before[1], "The streaming writer should allocate less");
+    }
+
+    private ReceivedMdn writeAndParse(MdnData mdnData, Mic expectedMic) throws Exception {
+        String boundary = StreamingMdnWriter.createBoundary();
+        InternetHeaders httpHeaders = streamingMdnWriter.createHttpHeaders(mdnData, boundary);
+        ByteArrayOutputStream mdn = new ByteArrayOutputStream();
+        streamingMdnWriter.writeMdn(mdnData, sampleRequestHeaders(), boundary, mdn);
+
+        MimeType contentType = new MimeType(httpHeaders.getHeader("Content-Type", null));
+        return new ReceivedMdnParser().parse(new ByteArrayInputStream(mdn.toByteArray()), contentType, expectedMic, new CommonName("APP_TEST"));
+    }
+
+    private static InternetHeaders sampleRequestHeaders() {
+        InternetHeaders headers = new InternetHeaders();
+        headers.addHeader("Message-ID", "<42@example.com>");
+        headers.addHeader("AS2-From", "APP_1000000009");
+        headers.addHeader("AS2-To", "APP_1000000006");
+        headers.addHeader("AS2-Version", "1.0");
+        headers.addHeader("Subject", "PEPPOL message");
+        headers.addHeader("Disposition-Notification-Options", "signed-receipt-protocol=required, pkcs7-signature; signed-receipt-micalg=required,sha1");
+        headers.addHeader("Content-Type", "multipart/signed; protocol=\"application/pkcs7-signature\"; micalg=sha1; boundary=\"----=_Part_0\"");
+        return headers;
+    }
+
+    /** @return elapsed nanoseconds and allocated bytes of the current thread */
+    private long[] measure(Runnable runnable, int iterations) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runnable.run();
+        }
+        return new long[]{System.nanoTime() - start, threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore};
+    }
+}
@@ -0,0 +1,61 @@
+package eu.peppol.as2;
+
+import eu.peppol.security.KeystoreManager;
+import org.bouncycastle.util.encoders.Base64;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "integration")
+public class StreamingSMimeSignerTest {
+
+    private StreamingSMimeSigner streamingSMimeSigner;
+
+    @BeforeMethod
+    public void setUp() {
+        KeystoreManager keystoreManager = KeystoreManager.getInstance();
+        streamingSMimeSigner = new StreamingSMimeSigner(keystoreManager.getOurPrivateKey(), keystoreManager.getOurCertificate());
+    }
+
+    @Test
+    public void signatureOfStreamedMessageIsValid() throws Exception {
+
+        String payload = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Invoice>Arne Barne Busemann</Invoice>\n";
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        String boundary = StreamingSMimeSigner.createBoundary();
+        Mic mic = streamingSMimeSigner.writeSignedMimeMessage(new ByteArrayInputStream(payload.getBytes("UTF-8")), new MimeType("application/xml"), boundary, byteArrayOutputStream);
+
+        MimeMessage mimeMessage = MimeMessageHelper.createMimeMessage(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertTrue(mimeMessage.getContentType().startsWith("multipart/signed"));
+
+        // Throws an exception if the signature is invalid
+        SignedMimeMessageInspector signedMimeMessageInspector = new SignedMimeMessageInspector(mimeMessage);
+        assertEquals(signedMimeMessageInspector.getSignersX509Certificate(), KeystoreManager.getInstance().getOurCertificate());
+
+        InputStream inputStream = signedMimeMessageInspector.getPayload();
+        ByteArrayOutputStream receivedPayload = new ByteArrayOutputStream();
+        int c;
+        while ((c = inputStream.read()) != -1) {
+            receivedPayload.write(c);
+        }
+        assertEquals(receivedPayload.toString("UTF-8"), payload);
+
+        // The MIC is calculated over the headers and contents of the signed body part
+        MimeBodyPart signedBodyPart = (MimeBodyPart) ((MimeMultipart) mimeMessage.getContent()).getBodyPart(0);
+        ByteArrayOutputStream signedBytes = new ByteArrayOutputStream();
+        signedBodyPart.writeTo(signedBytes);
+        String expectedDigest = new String(Base64.encode(MessageDigest.getInstance("SHA-1").digest(signedBytes.toByteArray())));
+        assertEquals(mic.toString(), expectedDigest + ", sha1");
+    }
+}
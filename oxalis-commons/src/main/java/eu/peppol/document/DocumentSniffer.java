@@ -1,15 +1,25 @@
 package eu.peppol.document;
 
-import java.io.BufferedReader;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Performs a quick check of the document in order to determine whether it contains
  * and SBDH or not.
- *
- * this is done by simply checking the first 10 lines to see if they contain the the tag <code>StandardBusinessDocument</code>
+ * <p/>
+ * The bytes preceding the end of the start tag of the root element are examined, without parsing the document, and
+ * reading stops after at most {@link #DEFAULT_PREFIX_SIZE} bytes, or the number of bytes requested. Thus the byte order
+ * mark, the encoding, the XML declaration, the name of the root element and the position at which it starts are
+ * determined. The document contains an SBDH if the root element is <code>StandardBusinessDocument</code>.
+ * <p/>
+ * If the supplied stream supports mark and reset, it is reset to the start of the document once examined. Otherwise the
+ * document must be read from {@link #getInputStream()}, into which the bytes examined have been pushed back.
  *
  * @author steinar
  *         Date: 06.11.13
@@ -17,39 +27,346 @@ import java.io.InputStreamReader;
  */
 public class DocumentSniffer {
 
+    public static final int DEFAULT_PREFIX_SIZE = 8 * 1024;
+
+    static final String UBL_NAMESPACE_PREFIX = "urn:oasis:names:specification:ubl:schema:xsd:";
+
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([^\\s=]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+
+    private final int prefixSize;
+    private final InputStream inputStream;
+
+    /** The bytes read from the stream */
+    private final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+    private boolean utf16;
+    private boolean bigEndian;
+
+    /** Number of bytes examined, of which the ones following the byte order mark are replayed when read as characters */
+    private long position;
+    private byte[] replay;
+    private int replayLength;
 
     boolean sbdhDetected = false;
+    private byte[] byteOrderMark = new byte[0];
+    private String encoding;
+    private String xmlDeclaration;
+    private QName rootElementName;
+    private long rootElementOffset = -1;
 
     public DocumentSniffer(InputStream resourceAsStream) {
+        this(resourceAsStream, DEFAULT_PREFIX_SIZE);
+    }
+
+    public DocumentSniffer(InputStream resourceAsStream, int prefixSize) {
+        this.prefixSize = prefixSize;
 
         if (resourceAsStream.markSupported()) {
-            resourceAsStream.mark(Integer.MAX_VALUE);
+            resourceAsStream.mark(prefixSize);
+            try {
+                sniff(resourceAsStream);
+            } finally {
+                reset(resourceAsStream);
+            }
+            inputStream = resourceAsStream;
+        } else {
+            PushbackInputStream pushbackInputStream = new PushbackInputStream(resourceAsStream, prefixSize);
+            try {
+                sniff(pushbackInputStream);
+            } finally {
+                unread(pushbackInputStream);
+            }
+            inputStream = pushbackInputStream;
         }
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(resourceAsStream));
-        String line;
+    }
 
+    private void sniff(InputStream in) {
         try {
-            for (int i = 0; i < 10 && (line = bufferedReader.readLine()) != null; i++) {
-                if (line.contains("<StandardBusinessDocument")) {
-                    sbdhDetected = true;
-                    break;
+            readByteOrderMark(in);
+            readProlog(in);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to examine the document: " + e.getMessage(), e);
+        }
+        // If the root element was not found within the prefix, we are unable to tell
+        sbdhDetected = rootElementName != null && SbdhParser.STANDARD_BUSINESS_DOCUMENT.equals(rootElementName.getLocalPart());
+    }
+
+    /** Determines the encoding from the first four bytes, as described in appendix F of the XML specification */
+    private void readByteOrderMark(InputStream in) throws IOException {
+        byte[] start = new byte[4];
+        int length = 0;
+        int c;
+        while (length < start.length && (c = readByte(in)) != -1) {
+            start[length++] = (byte) c;
+        }
+        int b0 = length > 0 ? start[0] & 0xFF : -1;
+        int b1 = length > 1 ? start[1] & 0xFF : -1;
+
+        int byteOrderMarkLength = 0;
+        if (length >= 3 && b0 == 0xEF && b1 == 0xBB && (start[2] & 0xFF) == 0xBF) {
+            byteOrderMarkLength = 3;
+            encoding = "UTF-8";
+        } else if (b0 == 0xFE && b1 == 0xFF) {
+            byteOrderMarkLength = 2;
+            encoding = "UTF-16BE";
+        } else if (b0 == 0xFF && b1 == 0xFE) {
+            byteOrderMarkLength = 2;
+            encoding = "UTF-16LE";
+        } else if (b0 == 0x00 && b1 == 0x3C) {
+            encoding = "UTF-16BE";
+        } else if (b0 == 0x3C && b1 == 0x00) {
+            encoding = "UTF-16LE";
+        }
+
+        if (byteOrderMarkLength > 0) {
+            byteOrderMark = new byte[byteOrderMarkLength];
+            System.arraycopy(start, 0, byteOrderMark, 0, byteOrderMarkLength);
+        }
+        utf16 = encoding != null && encoding.startsWith("UTF-16");
+        bigEndian = "UTF-16BE".equals(encoding);
+
+        // The bytes following the byte order mark are examined once more, as characters
+        position = byteOrderMarkLength;
+        replay = start;
+        replayLength = length;
+    }
+
+    private void readProlog(InputStream in) throws IOException {
+        while (true) {
+            int c = nextChar(in);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                continue;
+            }
+            if (c != '<') {
+                // End of the prefix or of the document, or not XML at all
+                return;
+            }
+
+            long offset = position - charLength();
+            int d = nextChar(in);
+            if (d == '?') {
+                String processingInstruction = readUntil(in, "<?", "?>", false);
+                if (processingInstruction == null) {
+                    return;
+                }
+                if (xmlDeclaration == null && processingInstruction.matches("(?s)<\\?xml\\s.*")) {
+                    xmlDeclaration = processingInstruction;
+                    Matcher matcher = ENCODING_PATTERN.matcher(processingInstruction);
+                    if (matcher.find() && encoding == null) {
+                        encoding = matcher.group(1);
+                    }
+                }
+            } else if (d == '!') {
+                int e = nextChar(in);
+                String declaration;
+                if (e == '-' && nextChar(in) == '-') {
+                    declaration = readUntil(in, "<!--", "-->", false);
+                } else {
+                    // Document type declaration, possibly with an internal subset
+                    declaration = readUntil(in, "<!" + (char) e, ">", true);
                 }
+                if (declaration == null) {
+                    return;
+                }
+            } else if (d != -1) {
+                readRootElement(in, "<" + (char) d, offset);
+                return;
+            } else {
+                return;
             }
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
         }
+    }
 
-        if (resourceAsStream.markSupported()) {
-            try {
-                resourceAsStream.reset();
-            } catch (IOException e) {
-                throw new IllegalStateException("Unable to reset the input stream: " + e.getMessage(), e);
+    /** Reads the start tag of the root element, determining its name from the tag and the name space declarations */
+    private void readRootElement(InputStream in, String start, long offset) throws IOException {
+        StringBuilder sb = new StringBuilder(start);
+        char quote = 0;
+        while (true) {
+            int c = nextChar(in);
+            if (c == -1) {
+                return;
+            }
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            } else if (c == '>') {
+                break;
+            }
+            sb.append((char) c);
+        }
+
+        String startTag = sb.toString();
+        int endOfName = 1;
+        while (endOfName < startTag.length() && !Character.isWhitespace(startTag.charAt(endOfName)) && startTag.charAt(endOfName) != '/') {
+            endOfName++;
+        }
+        String qualifiedName = startTag.substring(1, endOfName);
+        int colon = qualifiedName.indexOf(':');
+        String prefix = colon < 0 ? XMLConstants.DEFAULT_NS_PREFIX : qualifiedName.substring(0, colon);
+        String localName = qualifiedName.substring(colon + 1);
+
+        String namespaceDeclaration = prefix.length() == 0 ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+        String namespaceUri = XMLConstants.NULL_NS_URI;
+        Matcher matcher = ATTRIBUTE_PATTERN.matcher(startTag.substring(endOfName));
+        while (matcher.find()) {
+            if (namespaceDeclaration.equals(matcher.group(1))) {
+                String value = matcher.group(2);
+                namespaceUri = value.substring(1, value.length() - 1);
+            }
+        }
+
+        rootElementName = new QName(namespaceUri, localName, prefix);
+        rootElementOffset = offset;
+    }
+
+    /**
+     * Reads until the terminator, which is only recognized outside of square brackets if so requested.
+     *
+     * @return the text read, or null if the terminator was not found within the prefix
+     */
+    private String readUntil(InputStream in, String start, String terminator, boolean skipBrackets) throws IOException {
+        StringBuilder sb = new StringBuilder(start);
+        int depth = 0;
+        while (true) {
+            int c = nextChar(in);
+            if (c == -1) {
+                return null;
             }
+            sb.append((char) c);
+            if (skipBrackets && c == '[') {
+                depth++;
+            } else if (skipBrackets && c == ']') {
+                depth--;
+            } else if (depth == 0 && sb.length() >= start.length() + terminator.length() && endsWith(sb, terminator)) {
+                return sb.toString();
+            }
+        }
+    }
+
+    private static boolean endsWith(StringBuilder sb, String suffix) {
+        int offset = sb.length() - suffix.length();
+        for (int i = 0; i < suffix.length(); i++) {
+            if (sb.charAt(offset + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next character of the markup. Only UTF-16 and the encodings in which ASCII characters are single
+     * bytes are distinguished, as the markup we look for consists of ASCII characters only.
+     */
+    private int nextChar(InputStream in) throws IOException {
+        int b0 = nextByte(in);
+        if (!utf16 || b0 == -1) {
+            return b0;
+        }
+        int b1 = nextByte(in);
+        if (b1 == -1) {
+            return -1;
+        }
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private int charLength() {
+        return utf16 ? 2 : 1;
+    }
+
+    private int nextByte(InputStream in) throws IOException {
+        if (position < replayLength) {
+            return replay[(int) position++] & 0xFF;
+        }
+        int c = readByte(in);
+        if (c != -1) {
+            position++;
+        }
+        return c;
+    }
+
+    /** Reads a byte from the stream, remembering it, or returns -1 if the prefix has been exhausted */
+    private int readByte(InputStream in) throws IOException {
+        if (prefix.size() >= prefixSize) {
+            return -1;
+        }
+        int c = in.read();
+        if (c != -1) {
+            prefix.write(c);
+        }
+        return c;
+    }
 
+    private void reset(InputStream in) {
+        try {
+            in.reset();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to reset the input stream: " + e.getMessage(), e);
+        }
+    }
+
+    private void unread(PushbackInputStream pushbackInputStream) {
+        try {
+            pushbackInputStream.unread(prefix.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to push back the examined bytes: " + e.getMessage(), e);
         }
     }
 
     public boolean isSbdhDetected() {
         return sbdhDetected;
     }
+
+    /** @return the document, positioned at its start */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /** @return true if the root element was found within the prefix examined */
+    public boolean isRootElementFound() {
+        return rootElementName != null;
+    }
+
+    /** @return the name space and local name of the root element, or null if not found */
+    public QName getRootElementName() {
+        return rootElementName;
+    }
+
+    /** @return number of bytes preceding the root element, or -1 if not found */
+    public long getRootElementOffset() {
+        return rootElementOffset;
+    }
+
+    /** @return the byte order mark, which is empty if there is none */
+    public byte[] getByteOrderMark() {
+        return byteOrderMark.clone();
+    }
+
+    /** @return the encoding given by the byte order mark or the XML declaration, UTF-8 if neither is present */
+    public String getEncoding() {
+        return encoding != null ? encoding : "UTF-8";
+    }
+
+    /** @return true if the encoding is UTF-16, i.e. ASCII characters are not single bytes */
+    public boolean isUtf16() {
+        return utf16;
+    }
+
+    /** @return the XML declaration, or null if there is none */
+    public String getXmlDeclaration() {
+        return xmlDeclaration;
+    }
+
+    /**
+     * @return the kind of UBL document, i.e. the local name of the root element such as <code>Invoice</code>, if the
+     *         root element is within a UBL name space. Otherwise null.
+     */
+    public String getUblDocumentType() {
+        if (rootElementName == null || !rootElementName.getNamespaceURI().startsWith(UBL_NAMESPACE_PREFIX)) {
+            return null;
+        }
+        return rootElementName.getLocalPart();
+    }
 }
@@ -2,53 +2,40 @@ package eu.peppol.document;
 
 import eu.peppol.PeppolStandardBusinessHeader;
 import eu.peppol.identifier.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.UUID;
 
 /**
+ * Parses the header fields of a UBL document, which is not wrapped in an SBDH, into a PeppolStandardBusinessHeader.
+ * <p/>
+ * The fields are extracted in a single forward pass by the {@link UblHeaderExtractor}, hence the document is neither
+ * held in memory nor read beyond the last of the fields.
+ *
  * @author steinar
  *         Date: 05.11.13
  *         Time: 15:07
  */
 public class NoSbdhParser {
 
+    public static final Logger log = LoggerFactory.getLogger(NoSbdhParser.class);
 
-    private XPath xPath;
-    private Document document;
-    private final DocumentBuilderFactory documentBuilderFactory;
-
-    public NoSbdhParser() {
-        documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        documentBuilderFactory.setNamespaceAware(true);
-    }
 
     public PeppolStandardBusinessHeader parse(InputStream inputStream) {
         try {
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            document = documentBuilder.parse(inputStream);
-
-            xPath = XPathFactory.newInstance().newXPath();
-            xPath.setNamespaceContext(new HardCodedNamespaceResolver());
-
-            PlainUBLHeaderParser plainUBLHeaderParser = new PlainUBLHeaderParser(document, xPath);
+            UblHeaderExtractor ublHeaderExtractor = UblHeaderExtractor.extract(inputStream);
 
             // TODO: use the EndpointID rather than cac:PartyLegalEntity/cbc:CompanyID, if EndpointID has been specified
             PeppolStandardBusinessHeader sbdh = new PeppolStandardBusinessHeader();
-            sbdh.setRecipientId(plainUBLHeaderParser.fetchRecipient());
-            sbdh.setSenderId(plainUBLHeaderParser.fetchSender());
+            sbdh.setRecipientId(ublHeaderExtractor.getRecipient());
+            sbdh.setSenderId(ublHeaderExtractor.getSender());
             sbdh.setCreationDateAndTime(new Date());
-            sbdh.setDocumentTypeIdentifier(plainUBLHeaderParser.fetchDocumentTypeId());
-            sbdh.setProfileTypeIdentifier(plainUBLHeaderParser.fetchProcessTypeId());
+            sbdh.setDocumentTypeIdentifier(fetchDocumentTypeId(ublHeaderExtractor));
+            sbdh.setProfileTypeIdentifier(PeppolProcessTypeId.valueOf(ublHeaderExtractor.getProfileId()));
             sbdh.setMessageId(new MessageId(UUID.randomUUID().toString()));
             return sbdh;
         } catch (Exception e) {
@@ -57,94 +44,22 @@ public class NoSbdhParser {
 
     }
 
-    static class PlainUBLHeaderParser {
-        private final Document document;
-        private final XPath xPath;
-
-        public PlainUBLHeaderParser(Document document, XPath xPath) {
-
-            this.document = document;
-            this.xPath = xPath;
-        }
-
-        String localName() {
-            return document.getDocumentElement().getLocalName();
-        }
-
-        String rootNameSpace() {
-            return document.getDocumentElement().getNamespaceURI();
-        }
-
-        String ublVersion() {
-            return retriveValueForXpath("//cbc:UBLVersionID");
-        }
-
-        public CustomizationIdentifier fetchCustomizationId() {
-            String value = retriveValueForXpath("//cbc:CustomizationID");
-            return CustomizationIdentifier.valueOf(value);
-        }
-
-        public PeppolProcessTypeId fetchProcessTypeId() {
-            String value = retriveValueForXpath("//cbc:ProfileID");
-            return PeppolProcessTypeId.valueOf(value);
-        }
-
-        public ParticipantId fetchSender() {
-            ParticipantId s = participantId("//cac:AccountingSupplierParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID");
-            return s;
-        }
-
-        public ParticipantId fetchRecipient() {
-            ParticipantId s = participantId("//cac:AccountingCustomerParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID");
-            return s;
-        }
-
-        String retriveValueForXpath(String s) {
-            try {
-                String value = xPath.evaluate(s, document);
-                if (value == null) {
-                    throw new IllegalStateException("Unable to find value for Xpath expr " + s);
-                }
-                return value.trim();
-            } catch (XPathExpressionException e) {
-                throw new IllegalStateException("Unable to evaluate " + s + "; " + e.getMessage(), e);
-            }
-
-        }
-
-
-        /**
-         * Retrieves the ParticipantId which is held in an XML element, retrieved using the supplied XPath.
-         *
-         * @param xPathExpr
-         * @return
-         */
-        ParticipantId participantId(String xPathExpr) {
+    /** Parses the header fields of the supplied payload */
+    public PeppolStandardBusinessHeader parse(Payload payload) {
+        InputStream inputStream = payload.openStream();
+        try {
+            return parse(inputStream);
+        } finally {
             try {
-                Element element = (Element) xPath.evaluate(xPathExpr, document, XPathConstants.NODE);
-                String schemeIdTextValue = element.getAttribute("schemeID");
-                String companyId = element.getFirstChild().getNodeValue().trim();
-                if (schemeIdTextValue == null) {
-                    throw new IllegalStateException("Unable to locate schemeID attribute for XPath: " + xPathExpr);
-                }
-                if (companyId == null) {
-                    throw new IllegalStateException("Unable to locate the actual contents for XPath: " + xPathExpr);
-                }
-
-                SchemeId schemeId = SchemeId.parse(schemeIdTextValue);
-
-                return new ParticipantId(schemeId.getIso6523Icd() + ":" + companyId);
-
-            } catch (XPathExpressionException e) {
-                throw new IllegalStateException(e);
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
             }
         }
+    }
 
-
-        public PeppolDocumentTypeId fetchDocumentTypeId() {
-
-            CustomizationIdentifier customizationIdentifier = fetchCustomizationId();
-            return new PeppolDocumentTypeId(rootNameSpace(), localName(), customizationIdentifier, ublVersion());
-        }
+    PeppolDocumentTypeId fetchDocumentTypeId(UblHeaderExtractor ublHeaderExtractor) {
+        CustomizationIdentifier customizationIdentifier = CustomizationIdentifier.valueOf(ublHeaderExtractor.getCustomizationId());
+        return new PeppolDocumentTypeId(ublHeaderExtractor.getRootName().getNamespaceURI(), ublHeaderExtractor.getRootName().getLocalPart(), customizationIdentifier, ublHeaderExtractor.getUblVersion());
     }
 }
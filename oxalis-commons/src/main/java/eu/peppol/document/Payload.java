@@ -0,0 +1,203 @@
+package eu.peppol.document;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The document to be transmitted, which may be read any number of times.
+ * <p/>
+ * Small documents are held on the heap, while larger ones are held in a file, i.e. either the file supplied by the
+ * caller or a temporary file into which the document has been spooled. Thus documents of any size may be transmitted
+ * without holding them in memory:
+ * <pre>
+ *     Payload payload = Payload.spool(inputStream);
+ *     try {
+ *         InputStream document = payload.openStream();
+ *         ...
+ *     } finally {
+ *         payload.close();    // Removes the temporary file, if any
+ *     }
+ * </pre>
+ * Instances are immutable, hence safe to share between threads, until closed. The party which created or was handed
+ * the payload owns it, and must close it once done. Closing a payload more than once has no effect.
+ */
+public abstract class Payload implements Closeable {
+
+    public static final Logger log = LoggerFactory.getLogger(Payload.class);
+
+    /** Documents larger than this are spooled to a temporary file rather than held in memory */
+    public static final int DEFAULT_MEMORY_THRESHOLD = 1024 * 1024;
+
+    public static Payload of(byte[] bytes) {
+        return new InMemoryPayload(bytes, bytes.length);
+    }
+
+    /** Refers to the supplied file, which is neither copied nor removed when the payload is closed */
+    public static Payload of(File file) {
+        if (!file.isFile() || !file.canRead()) {
+            throw new IllegalArgumentException("Unable to read payload from " + file);
+        }
+        return new FilePayload(file, false);
+    }
+
+    /** Reads the supplied stream to the end, without closing it */
+    public static Payload spool(InputStream inputStream) {
+        return spool(inputStream, DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    public static Payload spool(InputStream inputStream, int memoryThreshold) {
+        PayloadOutputStream payloadOutputStream = new PayloadOutputStream(memoryThreshold);
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                payloadOutputStream.write(buffer, 0, bytesRead);
+            }
+            return payloadOutputStream.toPayload();
+        } catch (IOException e) {
+            payloadOutputStream.discard();
+            throw new IllegalStateException("Unable to save the payload: " + e.getMessage(), e);
+        }
+    }
+
+    /** @return number of bytes of the document */
+    public abstract long size();
+
+    /** @return true if the document is held on the heap */
+    public abstract boolean isInMemory();
+
+    /** @return a new stream, positioned at the start of the document, which must be closed by the caller */
+    public abstract InputStream openStream();
+
+    /** Writes the entire document to the supplied channel, which is not closed */
+    public abstract void transferTo(WritableByteChannel writableByteChannel);
+
+    /** Writes the entire document to the supplied stream, which is not closed */
+    public void transferTo(OutputStream outputStream) {
+        transferTo(Channels.newChannel(outputStream));
+    }
+
+    /** Releases the temporary file, if any, after which the payload may no longer be read */
+    @Override
+    public void close() {
+    }
+
+    static class InMemoryPayload extends Payload {
+
+        private final byte[] bytes;
+        private final int length;
+
+        InMemoryPayload(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        @Override
+        public long size() {
+            return length;
+        }
+
+        @Override
+        public boolean isInMemory() {
+            return true;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(bytes, 0, length);
+        }
+
+        @Override
+        public void transferTo(WritableByteChannel writableByteChannel) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(bytes, 0, length);
+            try {
+                while (byteBuffer.hasRemaining()) {
+                    writableByteChannel.write(byteBuffer);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to write payload: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    static class FilePayload extends Payload {
+
+        private final File file;
+        private final boolean temporary;
+        private final long size;
+
+        FilePayload(File file, boolean temporary) {
+            this.file = file;
+            this.temporary = temporary;
+            this.size = file.length();
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isInMemory() {
+            return false;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        @Override
+        public InputStream openStream() {
+            try {
+                return new BufferedInputStream(new FileInputStream(file));
+            } catch (FileNotFoundException e) {
+                throw new IllegalStateException("Unable to open payload " + file + ": " + e.getMessage(), e);
+            }
+        }
+
+        /** Transfers the file by means of the file channel, which allows the operating system to avoid copying it */
+        @Override
+        public void transferTo(WritableByteChannel writableByteChannel) {
+            try {
+                FileInputStream fileInputStream = new FileInputStream(file);
+                try {
+                    FileChannel fileChannel = fileInputStream.getChannel();
+                    long position = 0;
+                    while (position < size) {
+                        position += fileChannel.transferTo(position, size - position, writableByteChannel);
+                    }
+                } finally {
+                    fileInputStream.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to write payload " + file + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (temporary) {
+                file.delete();
+            }
+        }
+
+        /** Last resort for a payload which its owner failed to close, reported as it leaves the file until collected */
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                if (temporary && file.exists()) {
+                    log.warn("Payload " + file + " was not closed by its owner, removing it");
+                    close();
+                }
+            } finally {
+                super.finalize();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package eu.peppol.document;
+
+import java.io.*;
+
+/**
+ * Output stream collecting a {@link Payload}, which is held in memory until it grows beyond the threshold, after which
+ * it is spooled to a temporary file.
+ */
+public class PayloadOutputStream extends OutputStream {
+
+    private final int memoryThreshold;
+
+    private Buffer buffer;
+    private File file;
+    private OutputStream fileOutputStream;
+
+    public PayloadOutputStream() {
+        this(Payload.DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    public PayloadOutputStream(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+        buffer = new Buffer(Math.min(memoryThreshold, 8192));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fileOutputStream == null && buffer.size() + len > memoryThreshold) {
+            spoolToFile();
+        }
+        if (fileOutputStream != null) {
+            fileOutputStream.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+    }
+
+    private void spoolToFile() throws IOException {
+        file = File.createTempFile("oxalis-payload", ".xml");
+        fileOutputStream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        buffer.writeTo(fileOutputStream);
+        buffer = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+        }
+    }
+
+    /** Completes the payload, which is handed over to the caller, who must close it */
+    public Payload toPayload() throws IOException {
+        close();
+        if (file != null) {
+            return new Payload.FilePayload(file, true);
+        } else {
+            return buffer.toPayload();
+        }
+    }
+
+    /** Abandons the payload, removing the temporary file if any */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Ignored, as the file is removed anyway
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /** Hands over the bytes written without copying them */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        Payload toPayload() {
+            return new Payload.InMemoryPayload(buf, count);
+        }
+    }
+}
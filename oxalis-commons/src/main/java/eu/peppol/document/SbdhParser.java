@@ -2,25 +2,26 @@ package eu.peppol.document;
 
 import eu.peppol.PeppolStandardBusinessHeader;
 import eu.peppol.identifier.*;
+import eu.peppol.util.XmlInfrastructure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.unece.cefact.namespaces.standardbusinessdocumentheader.*;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.Calendar;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
 /**
  * Parses the SBDH into a PeppolMessageInformation instance
+ * <p/>
+ * The elements of the header are read one by one using StAX, rather than unmarshalled by JAXB. Reading stops at the
+ * end of the header, hence the time taken does not depend upon the size of the payload following it. The parser holds
+ * no state, a single instance may be shared by every thread.
  *
  * @author steinar
  *         Date: 25.10.13
@@ -30,135 +31,201 @@ public class SbdhParser {
 
 
     public static final Logger log = LoggerFactory.getLogger(SbdhParser.class);
-    private final JAXBContext jaxbContext;
-    private final XMLInputFactory xmlInputFactory;
-
-    public SbdhParser() {
-        try {
-            jaxbContext = JAXBContext.newInstance("org.unece.cefact.namespaces.standardbusinessdocumentheader");
-        } catch (JAXBException e) {
-            String msg = "Unable to initialize the JAXBContext: " + e.getMessage();
-            log.error(msg, e);
-            throw new IllegalStateException(msg, e);
-        }
 
-        xmlInputFactory = XMLInputFactory.newInstance();
+    static final String STANDARD_BUSINESS_DOCUMENT = "StandardBusinessDocument";
+    static final String STANDARD_BUSINESS_DOCUMENT_HEADER = "StandardBusinessDocumentHeader";
 
+    private static final DatatypeFactory datatypeFactory;
 
+    static {
+        try {
+            datatypeFactory = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("Unable to create DatatypeFactory: " + e.getMessage(), e);
+        }
     }
 
-    /** Parses the SBDH from the provided stream into a PeppolMessageInformation object which is created here */
+    /**
+     * Parses the SBDH from the provided stream into a PeppolMessageInformation object which is created here.
+     * <p/>
+     * Only the header is parsed, reading stops at the end of the header. Hence the payload following the
+     * header is neither parsed nor held in memory and the remainder of the stream is left unread.
+     */
     public PeppolStandardBusinessHeader parse(InputStream inputStream) {
 
-
-        Unmarshaller unmarshaller = createUnmarshaller();
-
+        // The reader is never closed, as the reader of the JDK would close the stream, which belongs to the caller
         XMLStreamReader xmlReader = createXmlStreamRader(inputStream);
-
-        PeppolStandardBusinessHeader peppolSbdh = new PeppolStandardBusinessHeader();
         try {
+            moveToStandardBusinessDocumentHeader(xmlReader);
+            HeaderElements headerElements = readHeaderElements(xmlReader);
 
-            JAXBElement<StandardBusinessDocument> sbdh = (JAXBElement) unmarshaller.unmarshal(xmlReader);
-
-            StandardBusinessDocument standardBusinessDocument = sbdh.getValue();
-            StandardBusinessDocumentHeader standardBusinessDocumentHeader = standardBusinessDocument.getStandardBusinessDocumentHeader();
-
+            PeppolStandardBusinessHeader peppolSbdh = new PeppolStandardBusinessHeader();
 
-            // Receiver
-            String receiver = getReceiver(standardBusinessDocumentHeader);
-            peppolSbdh.setRecipientId(new ParticipantId(receiver));
-
-            // Sender
-            String sender = getSender(standardBusinessDocumentHeader);
-            peppolSbdh.setSenderId(new ParticipantId(sender));
-
-            // Message id
-            String messageId = getMessageId(standardBusinessDocumentHeader);
-            peppolSbdh.setMessageId(new MessageId(messageId));
+            peppolSbdh.setRecipientId(new ParticipantId(headerElements.required("Receiver/Identifier", headerElements.receiver)));
+            peppolSbdh.setSenderId(new ParticipantId(headerElements.required("Sender/Identifier", headerElements.sender)));
+            peppolSbdh.setMessageId(new MessageId(headerElements.instanceIdentifier));
 
             // Computes the document type and process/profile type identifier
-            parseDocumentIdentificationAndScopes(peppolSbdh,standardBusinessDocumentHeader);
-
-            XMLGregorianCalendar creationDateAndTime = standardBusinessDocumentHeader.getDocumentIdentification().getCreationDateAndTime();
-            Calendar cal = creationDateAndTime.toGregorianCalendar();
+            if (headerElements.customization != null) {
+                peppolSbdh.setDocumentTypeIdentifier(new PeppolDocumentTypeId(headerElements.standard, headerElements.type, CustomizationIdentifier.valueOf(headerElements.customization), headerElements.typeVersion));
+            }
+            if (headerElements.processTypeIdentifier != null) {
+                peppolSbdh.setProfileTypeIdentifier(new PeppolProcessTypeId(headerElements.processTypeIdentifier));
+            }
 
-            peppolSbdh.setCreationDateAndTime(cal.getTime());
+            String creationDateAndTime = headerElements.required("DocumentIdentification/CreationDateAndTime", headerElements.creationDateAndTime);
+            peppolSbdh.setCreationDateAndTime(datatypeFactory.newXMLGregorianCalendar(creationDateAndTime).toGregorianCalendar().getTime());
 
             return peppolSbdh;
-        } catch (JAXBException e) {
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Unable to parse SBDH: " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
             throw new IllegalStateException("Unable to parse SBDH: " + e.getMessage(), e);
         }
     }
 
-    private void parseDocumentIdentificationAndScopes(PeppolStandardBusinessHeader peppolMessageMetaData, StandardBusinessDocumentHeader standardBusinessDocumentHeader) {
-
-        DocumentIdentification documentIdentification = standardBusinessDocumentHeader.getDocumentIdentification();
-
-        List<Scope> scopes = standardBusinessDocumentHeader.getBusinessScope().getScope();
-
-        for (Scope scope : scopes) {
-            if (scope.getType().equalsIgnoreCase("DOCUMENTID")) {
-                String rootNameSpace = documentIdentification.getStandard();
-                String localRootName = documentIdentification.getType();
-                String version = documentIdentification.getTypeVersion();
-                String customization = scope.getInstanceIdentifier();
-
-                PeppolDocumentTypeId peppolDocumentTypeId = new PeppolDocumentTypeId(rootNameSpace, localRootName, CustomizationIdentifier.valueOf(customization), version);
-                peppolMessageMetaData.setDocumentTypeIdentifier(peppolDocumentTypeId);
-                continue;
-            }
-
-            if (scope.getType().equalsIgnoreCase("PROCESSID")) {
-                String processTypeIdentifer = scope.getInstanceIdentifier();
-                peppolMessageMetaData.setProfileTypeIdentifier(new PeppolProcessTypeId(processTypeIdentifer));
-                continue;
+    /** Parses the SBDH of the supplied payload, of which only the header is read */
+    public PeppolStandardBusinessHeader parse(Payload payload) {
+        InputStream inputStream = payload.openStream();
+        try {
+            return parse(inputStream);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
             }
         }
     }
 
-    private String getSender(StandardBusinessDocumentHeader standardBusinessDocumentHeader) {
-        Partner partner = standardBusinessDocumentHeader.getSender().get(0);
-        return partner.getIdentifier().getValue();
-    }
-
-    private String getMessageId(StandardBusinessDocumentHeader standardBusinessDocumentHeader) {
-        DocumentIdentification documentIdentification = standardBusinessDocumentHeader.getDocumentIdentification();
-        String instanceIdentifier = documentIdentification.getInstanceIdentifier();
-        return instanceIdentifier;
-    }
-
-
-    private String getReceiver(StandardBusinessDocumentHeader standardBusinessDocumentHeader) {
-        Partner partner = standardBusinessDocumentHeader.getReceiver().get(0);
-        PartnerIdentification identifier = partner.getIdentifier();
-        return identifier.getValue();
-    }
-
-    Unmarshaller createUnmarshaller() {
+    /** Positions the reader at the start of the StandardBusinessDocumentHeader element, which must be the first child of the root */
+    void moveToStandardBusinessDocumentHeader(XMLStreamReader xmlReader) {
         try {
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            return  unmarshaller;
-        } catch (JAXBException e) {
-            throw new IllegalStateException("Unable to create JAXB unmarshaller: " + e.getMessage(), e);
+            xmlReader.nextTag();
+            if (!STANDARD_BUSINESS_DOCUMENT.equals(xmlReader.getLocalName())) {
+                throw new IllegalStateException("Payload does not contain Standard Business Document Header, root element is " + xmlReader.getName());
+            }
+            xmlReader.nextTag();
+            if (!xmlReader.isStartElement() || !STANDARD_BUSINESS_DOCUMENT_HEADER.equals(xmlReader.getLocalName())) {
+                throw new IllegalStateException("Payload does not contain Standard Business Document Header, found " + xmlReader.getName());
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Unable to parse SBDH: " + e.getMessage(), e);
         }
     }
 
-    XMLEventReader createXmlEventReader(InputStream inputStream) {
-        try {
-            XMLEventReader xmlEventReader = xmlInputFactory.createXMLEventReader(inputStream);
-            return xmlEventReader;
-        } catch (XMLStreamException e) {
-            throw new IllegalStateException("Unable to create XML reader: " + e.getMessage(), e);
+    /**
+     * Reads the elements of the header we need, leaving the reader at the end of the StandardBusinessDocumentHeader
+     * element.
+     */
+    HeaderElements readHeaderElements(XMLStreamReader xmlReader) throws XMLStreamException {
+        HeaderElements headerElements = new HeaderElements();
+
+        // Local names of the elements enclosing the current one, within the header
+        Deque<String> path = new ArrayDeque<String>();
+
+        while (xmlReader.hasNext()) {
+            int event = xmlReader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String parent = path.peek();
+                String name = xmlReader.getLocalName();
+                if (!headerElements.isSimpleElement(parent, name)) {
+                    path.push(name);
+                } else {
+                    headerElements.set(parent, name, xmlReader.getElementText().trim());
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (path.isEmpty()) {
+                    // End of StandardBusinessDocumentHeader
+                    return headerElements;
+                }
+                if ("Scope".equals(path.pop())) {
+                    headerElements.endOfScope();
+                }
+            }
         }
+        throw new IllegalStateException("Unable to parse SBDH: end of document within " + STANDARD_BUSINESS_DOCUMENT_HEADER);
     }
 
     XMLStreamReader createXmlStreamRader(InputStream inputStream) {
         try {
-            return xmlInputFactory.createXMLStreamReader(inputStream);
+            return XmlInfrastructure.xmlInputFactory().createXMLStreamReader(inputStream);
         } catch (XMLStreamException e) {
             throw new IllegalStateException("Unable to crate XML Stream Reader: " + e.getMessage(), e);
         }
     }
 
-}
+    /** The text of the simple elements of the header, which are the ones we need */
+    static class HeaderElements {
+
+        String sender;
+        String receiver;
+        String standard;
+        String typeVersion;
+        String instanceIdentifier;
+        String type;
+        String creationDateAndTime;
+        String customization;
+        String processTypeIdentifier;
+
+        private String scopeType;
+        private String scopeInstanceIdentifier;
+
+        boolean isSimpleElement(String parent, String name) {
+            if ("Identifier".equals(name)) {
+                return "Sender".equals(parent) || "Receiver".equals(parent);
+            }
+            if ("DocumentIdentification".equals(parent)) {
+                return true;
+            }
+            return "Scope".equals(parent) && ("Type".equals(name) || "InstanceIdentifier".equals(name));
+        }
 
+        void set(String parent, String name, String text) {
+            if ("Sender".equals(parent)) {
+                // Only the first sender and receiver are used
+                if (sender == null) {
+                    sender = text;
+                }
+            } else if ("Receiver".equals(parent)) {
+                if (receiver == null) {
+                    receiver = text;
+                }
+            } else if ("Scope".equals(parent)) {
+                if ("Type".equals(name)) {
+                    scopeType = text;
+                } else {
+                    scopeInstanceIdentifier = text;
+                }
+            } else if ("Standard".equals(name)) {
+                standard = text;
+            } else if ("TypeVersion".equals(name)) {
+                typeVersion = text;
+            } else if ("InstanceIdentifier".equals(name)) {
+                instanceIdentifier = text;
+            } else if ("Type".equals(name)) {
+                type = text;
+            } else if ("CreationDateAndTime".equals(name)) {
+                creationDateAndTime = text;
+            }
+        }
+
+        void endOfScope() {
+            if ("DOCUMENTID".equalsIgnoreCase(scopeType)) {
+                customization = scopeInstanceIdentifier;
+            } else if ("PROCESSID".equalsIgnoreCase(scopeType)) {
+                processTypeIdentifier = scopeInstanceIdentifier;
+            }
+            scopeType = null;
+            scopeInstanceIdentifier = null;
+        }
+
+        String required(String element, String value) {
+            if (value == null) {
+                throw new IllegalStateException("Standard Business Document Header does not contain " + element);
+            }
+            return value;
+        }
+    }
+}
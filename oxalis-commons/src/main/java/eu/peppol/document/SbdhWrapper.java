@@ -2,316 +2,233 @@ package eu.peppol.document;
 
 import eu.peppol.PeppolStandardBusinessHeader;
 import eu.peppol.identifier.ParticipantId;
-import eu.peppol.identifier.SchemeId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.namespace.QName;
-import javax.xml.stream.*;
-import javax.xml.stream.events.*;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
-import java.util.*;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
 
 /**
+ * Wraps a UBL document in a Standard Business Document Header.
+ * <p/>
+ * The document is not parsed and written again. The header is written first, followed by the bytes of the original
+ * document from the start of its root element, which are copied untouched. Hence the payload within the SBDH is
+ * byte for byte identical to the original, and memory usage does not depend upon the size of the document.
+ * <p/>
+ * The values of the header are taken from the supplied PeppolStandardBusinessHeader. If it is not complete, the values
+ * are extracted from the document, which must then be found within the first {@link #LOOKAHEAD_LIMIT} bytes.
+ * <p/>
+ * The start of the root element is located by the {@link DocumentSniffer}. The document must be encoded in UTF-8, or
+ * another encoding in which the markup is ASCII. The XML declaration of the document is retained, while any processing
+ * instructions, comments and document type declaration preceding the root element are discarded.
+ *
  * @author steinar
  *         Date: 08.11.13
  *         Time: 15:50
  */
 public class SbdhWrapper {
 
+    public static final Logger log = LoggerFactory.getLogger(SbdhWrapper.class);
+
 
     public static final String SBDH_URI = "http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader";
-    private final Characters tab;
-    private boolean accountingSupplierPartySeen = false;
-    private boolean accountingCustomerPartySeen = false;
+
+    /** Maximum number of bytes read in advance, in order to extract the header values from the document */
+    public static final int LOOKAHEAD_LIMIT = 1024 * 1024;
+
+    private static final String DEFAULT_XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
     private ParticipantId receiver;
     private ParticipantId sender;
-    private XMLEventFactory eventFactory;
-    private String namespaceURI;
-    private String ublVersion;
-    private Characters nl;
-    private String localName;
-    private String customizationId;
-    private String profileID;
-    private Stack<String> ctx;
-    private List<XMLEvent> bufferedEvents;
-    private XMLEventReader xmlEventReader;
-    private XMLEventWriter xmlEventWriter;
 
     public SbdhWrapper() {
-        eventFactory = XMLEventFactory.newFactory();
-        nl = eventFactory.createCharacters("\n");
-        tab = eventFactory.createCharacters("\t");
+    }
 
-        ctx = new Stack<String>();
+    /**
+     * Wraps the supplied payload into a new one, which is held in memory or spooled to a temporary file depending upon
+     * its size. The supplied payload is left as is.
+     */
+    public Payload wrap(Payload payload, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
+        PayloadOutputStream payloadOutputStream = new PayloadOutputStream();
+        InputStream inputStream = payload.openStream();
+        try {
+            wrap(inputStream, peppolStandardBusinessHeader, payloadOutputStream);
+            return payloadOutputStream.toPayload();
+        } catch (IOException e) {
+            payloadOutputStream.discard();
+            throw new IllegalStateException("Unable to wrap document in SBDH: " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            payloadOutputStream.discard();
+            throw e;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
+            }
+        }
     }
 
+    /** Wraps the document into a buffer, which is only suitable for documents of moderate size */
     public byte[] wrap(InputStream inputStream, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
-
-        boolean bufferTheEvents = true;
-
-        bufferedEvents = new ArrayList<XMLEvent>();
-
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        wrap(inputStream, peppolStandardBusinessHeader, byteArrayOutputStream);
+        return byteArrayOutputStream.toByteArray();
+    }
 
-        try {
-            xmlEventReader = XMLInputFactory.newFactory().createXMLEventReader(inputStream);
-            xmlEventWriter = XMLOutputFactory.newFactory().createXMLEventWriter(byteArrayOutputStream);
-
-
-            boolean startElementSeen = false;
-
-            parseFirstElement(xmlEventReader);
-
-
-            while (xmlEventReader.hasNext()) {
-                XMLEvent xmlEvent = xmlEventReader.nextEvent();
-
-                saveCurrentXPath(ctx, xmlEvent);
-
-                if (bufferTheEvents) {
-
-                    // Don't buffer XML Processing instructions
-                    if (xmlEvent.isProcessingInstruction()) {
-                        continue;
-                    }
-                    // Ignores the <?xml version= ... at the start
-                    if (xmlEvent.isStartDocument()) {
-                        continue;
-                    }
-
-                    bufferedEvents.add(xmlEvent);
-                } else {
-                    xmlEventWriter.add(xmlEvent);
-                }
-
-                if (bufferTheEvents && xmlEvent.isStartElement() && startElementSeen != true) {
-                    startElementSeen = true;
-                    QName rootName = xmlEvent.asStartElement().getName();
-                    localName = rootName.getLocalPart();
-                    namespaceURI = xmlEvent.asStartElement().getNamespaceURI(rootName.getPrefix());
-                }
-
-                if (bufferTheEvents && xmlEvent.isStartElement() && xmlEvent.asStartElement().getName().getLocalPart().equals("UBLVersionID")) {
-                    XMLEvent textEvent = xmlEventReader.nextEvent();
-                    bufferedEvents.add(textEvent);
-                    ublVersion = textEvent.asCharacters().getData().trim();
-                }
-
-                if (bufferTheEvents && xmlEvent.isStartElement() && xmlEvent.asStartElement().getName().getLocalPart().equals("CustomizationID")) {
-                    XMLEvent textEvent = xmlEventReader.nextEvent();
-                    bufferedEvents.add(textEvent);
-                    customizationId = textEvent.asCharacters().getData().trim();
-                }
-                if (bufferTheEvents && xmlEvent.isStartElement() && xmlEvent.asStartElement().getName().getLocalPart().equals("ProfileID")) {
-                    XMLEvent textEvent = xmlEventReader.nextEvent();
-                    bufferedEvents.add(textEvent);
-                    profileID = textEvent.asCharacters().getData().trim();
-                }
-
-
-                if (bufferTheEvents && xmlEvent.isStartElement() && xmlEvent.asStartElement().getName().getLocalPart().equals("CompanyID")) {
-
-
-                    XMLEvent textEvent = xmlEventReader.nextEvent();
-                    if (ctx.search("PartyLegalEntity") >= 1) {
-
-                        String companyID = textEvent.asCharacters().getData().trim();
-                        String schemeIDAsText = xmlEvent.asStartElement().getAttributeByName(new QName("schemeID")).getValue().trim();
-
-                        SchemeId schemeId = SchemeId.parse(schemeIDAsText);
+    public void wrap(InputStream inputStream, PeppolStandardBusinessHeader peppolStandardBusinessHeader, WritableByteChannel writableByteChannel) {
+        wrap(inputStream, peppolStandardBusinessHeader, Channels.newOutputStream(writableByteChannel));
+    }
 
-                        ParticipantId participantId = new ParticipantId(schemeId.getIso6523Icd() + ":" + companyID);
-                        if (ctx.search("AccountingCustomerParty") >= 1) {
+    /**
+     * Writes the SBDH followed by the original document to the supplied output stream, which is flushed but not
+     * closed.
+     */
+    public void wrap(InputStream inputStream, PeppolStandardBusinessHeader peppolStandardBusinessHeader, OutputStream outputStream) {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, 8192);
+        bufferedInputStream.mark(LOOKAHEAD_LIMIT);
 
-                            receiver = participantId;
-                        } else if (ctx.search("AccountingSupplierParty") >= 1) {
-                            sender = participantId;
-                        }
+        try {
+            DocumentSniffer documentSniffer = new DocumentSniffer(bufferedInputStream, LOOKAHEAD_LIMIT);
+            if (!documentSniffer.isRootElementFound()) {
+                throw new IllegalStateException("Unable to wrap document in SBDH, no root element found within the first " + LOOKAHEAD_LIMIT + " bytes");
+            }
+            if (documentSniffer.isUtf16()) {
+                throw new IllegalStateException("Unable to wrap document in SBDH, only UTF-8 and ASCII compatible encodings are supported");
+            }
+            Charset charset = charset(documentSniffer.getEncoding());
 
-                        if (receiver != null && sender != null) {
-                            bufferTheEvents = false;
+            PeppolStandardBusinessHeader header = peppolStandardBusinessHeader;
+            if (!isComplete(header)) {
+                bufferedInputStream.reset();
+                header = new NoSbdhParser().parse(bufferedInputStream);
+            }
+            sender = header.getSenderId();
+            receiver = header.getRecipientId();
 
-                            flushBuffer(bufferedEvents, xmlEventWriter);
+            // Positions the stream at the start of the root element
+            resetToMark(bufferedInputStream);
+            skipFully(bufferedInputStream, documentSniffer.getRootElementOffset());
 
-                            // Writes the current text content into the buffer as we have not found everything we need yet.
-                            xmlEventWriter.add(textEvent);
-                        } else {
-                            bufferedEvents.add(textEvent);
-                        }
-                    }
+            outputStream.write(documentSniffer.getByteOrderMark());
+            outputStream.write(createHeader(documentSniffer.getXmlDeclaration(), header).getBytes(charset));
 
-                }
-            }
+            copy(bufferedInputStream, outputStream);
 
-        } catch (XMLStreamException e) {
-            e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+            outputStream.write(("\n</StandardBusinessDocument>\n").getBytes(charset));
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to wrap document in SBDH: " + e.getMessage(), e);
         }
-        return byteArrayOutputStream.toByteArray();
     }
 
-    /**
-     * Parses the root element of the document and fetches the the xml local name and xml namespace
-     *
-     * @param xmlEventReader
-     * @throws XMLStreamException
-     */
-    QName parseFirstElement(XMLEventReader xmlEventReader) throws XMLStreamException {
-
-        while (xmlEventReader.hasNext()) {
-            XMLEvent xmlEvent = xmlEventReader.nextEvent();
-
-            saveCurrentXPath(ctx, xmlEvent);
-
-            // Skips past any XML Processing instructions
-            if (xmlEvent.isProcessingInstruction()) {
-                continue;
-            }
-            // Skips the <?xml version= ... at the start
-            if (xmlEvent.isStartDocument()) {
-                continue;
-            }
-
-            bufferedEvents.add(xmlEvent);
+    static boolean isComplete(PeppolStandardBusinessHeader header) {
+        return header != null
+                && header.getSenderId() != null
+                && header.getRecipientId() != null
+                && header.getDocumentTypeIdentifier() != null
+                && header.getProfileTypeIdentifier() != null;
+    }
 
-            if (xmlEvent.isStartElement()) {
-                QName rootName = xmlEvent.asStartElement().getName();
-                localName = rootName.getLocalPart();
-                namespaceURI = rootName.getNamespaceURI();
+    /** Creates the XML declaration and the SBDH up to, but not including, the root element of the document */
+    String createHeader(String xmlDeclaration, PeppolStandardBusinessHeader header) {
+        PeppolDocumentTypeId documentTypeId = header.getDocumentTypeIdentifier();
+        String instanceIdentifier = header.getMessageId() != null ? header.getMessageId().stringValue() : UUID.randomUUID().toString();
+        Date creationDateAndTime = header.getCreationDateAndTime() != null ? header.getCreationDateAndTime() : new Date();
+
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append(xmlDeclaration != null ? xmlDeclaration : DEFAULT_XML_DECLARATION).append('\n');
+        sb.append("<StandardBusinessDocument xmlns=\"").append(SBDH_URI).append("\">\n");
+        sb.append("\t<StandardBusinessDocumentHeader>\n");
+        simpleElement(sb, 2, "HeaderVersion", "1.0");
+        sb.append("\t\t<Sender>\n");
+        sb.append("\t\t\t<Identifier Authority=\"iso6523-actorid-upis\">").append(escape(header.getSenderId().toString())).append("</Identifier>\n");
+        sb.append("\t\t</Sender>\n");
+        sb.append("\t\t<Receiver>\n");
+        sb.append("\t\t\t<Identifier Authority=\"iso6523-actorid-upis\">").append(escape(header.getRecipientId().toString())).append("</Identifier>\n");
+        sb.append("\t\t</Receiver>\n");
+        sb.append("\t\t<DocumentIdentification>\n");
+        simpleElement(sb, 3, "Standard", documentTypeId.getRootNameSpace());
+        simpleElement(sb, 3, "TypeVersion", documentTypeId.getVersion());
+        simpleElement(sb, 3, "InstanceIdentifier", instanceIdentifier);
+        simpleElement(sb, 3, "Type", documentTypeId.getLocalName());
+        simpleElement(sb, 3, "CreationDateAndTime", formatCreationDateAndTime(creationDateAndTime));
+        sb.append("\t\t</DocumentIdentification>\n");
+        sb.append("\t\t<BusinessScope>\n");
+        scope(sb, "DOCUMENTID", documentTypeId.getCustomizationIdentifier().toString());
+        scope(sb, "PROCESSID", header.getProfileTypeIdentifier().toString());
+        sb.append("\t\t</BusinessScope>\n");
+        sb.append("\t</StandardBusinessDocumentHeader>\n");
+
+        return sb.toString();
+    }
 
-                return rootName;
-            }
-        }
+    /** Formats the point in time in UTC, with an explicit offset, as Java 6 has no pattern for the ISO 8601 time zone */
+    static String formatCreationDateAndTime(Date creationDateAndTime) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        simpleDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return simpleDateFormat.format(creationDateAndTime);
+    }
 
-        throw new IllegalStateException("Internal error, iterated all elements without finding the root element");
+    private void scope(StringBuilder sb, String type, String instanceIdentifier) {
+        sb.append("\t\t\t<Scope>\n");
+        simpleElement(sb, 4, "Type", type);
+        simpleElement(sb, 4, "InstanceIdentifier", instanceIdentifier);
+        sb.append("\t\t\t</Scope>\n");
     }
 
-    private void flushBuffer(List<XMLEvent> bufferedEvents, XMLEventWriter xmlEventWriter) throws XMLStreamException {
-
-        xmlEventWriter.add(eventFactory.createStartDocument());
-        nl();
-        StartElement standardBusinessDocument = eventFactory.createStartElement("", SBDH_URI, "StandardBusinessDocument");
-        xmlEventWriter.add(standardBusinessDocument);
-        Namespace namespace = eventFactory.createNamespace("http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader");
-        xmlEventWriter.add(namespace);
-        xmlEventWriter.add(nl);
-
-        tab(1);
-        StartElement standardBusinessDocumentHeader = eventFactory.createStartElement("", SBDH_URI, "StandardBusinessDocumentHeader");
-        xmlEventWriter.add(standardBusinessDocumentHeader);
-        xmlEventWriter.add(nl);
-
-        tab(2);
-        simpleElement(xmlEventWriter, "HeaderVersion", "1.0");
-        tab(2);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "Sender"));
-        nl();
-        tab(3);
-        StartElement identifier = eventFactory.createStartElement("", SBDH_URI, "Identifier");
-        xmlEventWriter.add(identifier);
-        Attribute authorityAttribute = eventFactory.createAttribute("Authority", "iso6523-actorid-upis");
-        xmlEventWriter.add(authorityAttribute);
-        xmlEventWriter.add(eventFactory.createCharacters(sender.toString()));
-        EndElement endIdentifier = eventFactory.createEndElement("", SBDH_URI, "Identifier");
-        xmlEventWriter.add(endIdentifier);
-        nl();
-
-        tab(2);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "Sender"));
-        xmlEventWriter.add(nl);
-        tab(2);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "Receiver"));
-        nl();
-        tab(3);
-        xmlEventWriter.add(identifier);
-        xmlEventWriter.add(authorityAttribute);
-        xmlEventWriter.add(eventFactory.createCharacters(receiver.toString()));
-        xmlEventWriter.add(endIdentifier);
-        nl();
-        tab(2);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "Receiver"));
-        xmlEventWriter.add(nl);
-
-        tab(2);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "DocumentIdentification"));
-        nl();
-        tab(3);
-        simpleElement(xmlEventWriter, "Standard", namespaceURI);
-        tab(3);
-        simpleElement(xmlEventWriter, "TypeVersion", ublVersion);
-
-        tab(3);
-        simpleElement(xmlEventWriter, "InstanceIdentifier", UUID.randomUUID().toString());
-        tab(3);
-        simpleElement(xmlEventWriter, "Type", localName);
-        tab(3);
-        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        simpleElement(xmlEventWriter, "CreationDateAndTime", simpleDateFormat.format(new Date()));
-        tab(2);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "DocumentIdentification"));
-        nl();
-        tab(2);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "BusinessScope"));
-        nl();
-        tab(3);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "Scope"));
-        nl();
-        tab(4);
-        simpleElement(xmlEventWriter, "Type", "DOCUMENTID");
-        tab(4);
-        simpleElement(xmlEventWriter, "InstanceIdentifier", customizationId);
-        tab(3);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "Scope"));
-        nl();
-
-        tab(3);
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, "Scope"));
-        nl();
-        tab(4);
-        simpleElement(xmlEventWriter, "Type", "PROCESSID");
-        tab(4);
-        simpleElement(xmlEventWriter, "InstanceIdentifier", profileID);
-        tab(3);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "Scope"));
-        xmlEventWriter.add(nl);
-        tab(2);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "BusinessScope"));
-        xmlEventWriter.add(nl);
-        tab(1);
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, "StandardBusinessDocumentHeader"));
-        xmlEventWriter.add(nl);
-
-        // Flush the buffer now
-        for (XMLEvent event : bufferedEvents) {
-            xmlEventWriter.add(event);
+    private void simpleElement(StringBuilder sb, int indentation, String tagName, String value) {
+        for (int i = 0; i < indentation; i++) {
+            sb.append('\t');
         }
-
+        sb.append('<').append(tagName).append('>').append(escape(value)).append("</").append(tagName).append(">\n");
     }
 
-    private void nl() throws XMLStreamException {
-        xmlEventWriter.add(nl);
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
     }
 
-    private void tab(int count) throws XMLStreamException {
-        for (int i= 0; i < count; i++) {
-            xmlEventWriter.add(tab);
+    private void resetToMark(BufferedInputStream bufferedInputStream) throws IOException {
+        try {
+            bufferedInputStream.reset();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to find the header fields within the first " + LOOKAHEAD_LIMIT + " bytes of the document", e);
         }
     }
 
-    private void simpleElement(XMLEventWriter xmlEventWriter, String tagName, String value) throws XMLStreamException {
-        xmlEventWriter.add(eventFactory.createStartElement("", SBDH_URI, tagName));
-        xmlEventWriter.add(eventFactory.createCharacters(value));
-        xmlEventWriter.add(eventFactory.createEndElement("", SBDH_URI, tagName));
-        xmlEventWriter.add(nl);
+    private static Charset charset(String encoding) {
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Unable to wrap document in SBDH, unsupported encoding " + encoding, e);
+        }
     }
 
-    private void saveCurrentXPath(Stack<String> ctx, XMLEvent xmlEvent) {
-        if (xmlEvent.isStartElement()) {
-            ctx.push(xmlEvent.asStartElement().getName().getLocalPart());
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException("Unexpected end of document");
+            }
+            count -= skipped;
         }
+    }
 
-        if (xmlEvent.isEndElement()) {
-            ctx.pop();
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, bytesRead);
         }
     }
 
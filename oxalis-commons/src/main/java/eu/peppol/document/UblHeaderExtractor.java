@@ -0,0 +1,185 @@
+package eu.peppol.document;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.SchemeId;
+import eu.peppol.util.XmlInfrastructure;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the header fields of a UBL document in a single forward pass, without building a DOM. Reading stops as
+ * soon as every field has been found, which is usually within the first few kilobytes of the document.
+ * <p/>
+ * The fields are located by the same paths as the XPath expressions formerly used:
+ * <pre>
+ *     //cbc:UBLVersionID
+ *     //cbc:CustomizationID
+ *     //cbc:ProfileID
+ *     //cac:AccountingSupplierParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID
+ *     //cac:AccountingCustomerParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID
+ * </pre>
+ * i.e. the first element in document order, at any depth, whose ancestors end with the path.
+ */
+class UblHeaderExtractor {
+
+    static final String CAC = "urn:oasis:names:specification:ubl:schema:xsd:CommonAggregateComponents-2";
+    static final String CBC = "urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2";
+
+    static final ElementPath UBL_VERSION_ID = new ElementPath(cbc("UBLVersionID"));
+    static final ElementPath CUSTOMIZATION_ID = new ElementPath(cbc("CustomizationID"));
+    static final ElementPath PROFILE_ID = new ElementPath(cbc("ProfileID"));
+    static final ElementPath SENDER = new ElementPath(cac("AccountingSupplierParty"), cac("Party"), cac("PartyLegalEntity"), cbc("CompanyID"));
+    static final ElementPath RECIPIENT = new ElementPath(cac("AccountingCustomerParty"), cac("Party"), cac("PartyLegalEntity"), cbc("CompanyID"));
+
+    private QName rootName;
+    private String ublVersion;
+    private String customizationId;
+    private String profileId;
+    private ParticipantId sender;
+    private ParticipantId recipient;
+
+    /** Elements from the root down to the current one */
+    private final List<QName> path = new ArrayList<QName>();
+
+    /** Reads the header fields of the supplied document, leaving the remainder of the stream unread */
+    static UblHeaderExtractor extract(InputStream inputStream) {
+        UblHeaderExtractor ublHeaderExtractor = new UblHeaderExtractor();
+        try {
+            // The reader is not closed, as the reader of the JDK would close the stream, which belongs to the caller
+            XMLStreamReader xmlReader = XmlInfrastructure.xmlInputFactory().createXMLStreamReader(inputStream);
+            ublHeaderExtractor.read(xmlReader);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Unable to parse UBL document: " + e.getMessage(), e);
+        }
+        return ublHeaderExtractor;
+    }
+
+    private void read(XMLStreamReader xmlReader) throws XMLStreamException {
+        while (xmlReader.hasNext() && !isComplete()) {
+            int event = xmlReader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                QName name = xmlReader.getName();
+                path.add(name);
+                if (rootName == null) {
+                    rootName = name;
+                }
+
+                if (ublVersion == null && UBL_VERSION_ID.matches(path)) {
+                    ublVersion = elementText(xmlReader);
+                } else if (customizationId == null && CUSTOMIZATION_ID.matches(path)) {
+                    customizationId = elementText(xmlReader);
+                } else if (profileId == null && PROFILE_ID.matches(path)) {
+                    profileId = elementText(xmlReader);
+                } else if (sender == null && SENDER.matches(path)) {
+                    sender = participantId(xmlReader);
+                } else if (recipient == null && RECIPIENT.matches(path)) {
+                    recipient = participantId(xmlReader);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    /** Reads the text of the current element, leaving the reader at its end element, which is thus removed from the path */
+    private String elementText(XMLStreamReader xmlReader) throws XMLStreamException {
+        String text = xmlReader.getElementText();
+        path.remove(path.size() - 1);
+        return text.trim();
+    }
+
+    private ParticipantId participantId(XMLStreamReader xmlReader) throws XMLStreamException {
+        String schemeIdTextValue = xmlReader.getAttributeValue(null, "schemeID");
+        String companyId = elementText(xmlReader);
+
+        SchemeId schemeId = SchemeId.parse(schemeIdTextValue == null ? "" : schemeIdTextValue);
+        return new ParticipantId(schemeId.getIso6523Icd() + ":" + companyId);
+    }
+
+    private boolean isComplete() {
+        return rootName != null && ublVersion != null && customizationId != null && profileId != null && sender != null && recipient != null;
+    }
+
+    QName getRootName() {
+        return rootName;
+    }
+
+    /** @return the value, or the empty string if not found, like the XPath evaluation did */
+    String getUblVersion() {
+        return ublVersion != null ? ublVersion : "";
+    }
+
+    String getCustomizationId() {
+        return customizationId != null ? customizationId : "";
+    }
+
+    String getProfileId() {
+        return profileId != null ? profileId : "";
+    }
+
+    ParticipantId getSender() {
+        if (sender == null) {
+            throw new IllegalStateException("Unable to locate the sender in " + SENDER);
+        }
+        return sender;
+    }
+
+    ParticipantId getRecipient() {
+        if (recipient == null) {
+            throw new IllegalStateException("Unable to locate the recipient in " + RECIPIENT);
+        }
+        return recipient;
+    }
+
+    private static QName cac(String localName) {
+        return new QName(CAC, localName);
+    }
+
+    private static QName cbc(String localName) {
+        return new QName(CBC, localName);
+    }
+
+    /**
+     * Path of elements, preceded by any number of ancestors, i.e. //a/b/c. The names are compared by name space URI
+     * and local name, hence the prefixes used in the document do not matter.
+     */
+    static class ElementPath {
+
+        private final QName[] names;
+
+        ElementPath(QName... names) {
+            this.names = names;
+        }
+
+        /** @return true if the path from the root to the current element ends with this path */
+        boolean matches(List<QName> path) {
+            int offset = path.size() - names.length;
+            if (offset < 0) {
+                return false;
+            }
+            // Compares the innermost element first, as that is the most likely to differ
+            for (int i = names.length - 1; i >= 0; i--) {
+                if (!names[i].equals(path.get(offset + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("/");
+            for (QName name : names) {
+                sb.append('/').append(name.getLocalPart());
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package eu.peppol.persistence;
+
+import eu.peppol.PeppolMessageMetaData;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.util.GlobalConfiguration;
+import eu.peppol.util.Util;
+import eu.peppol.util.XmlInfrastructure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MessageRepository which makes every message received durable before returning, by appending it to a
+ * {@link MessageJournal} with group commit. Concurrent receptions share the cost of forcing the journal to disk,
+ * rather than writing and syncing two files each.
+ * <p/>
+ * A background compactor moves the committed messages into the same layout as {@link SimpleMessageRepository},
+ * i.e. the payload and the header file in the directory of the recipient and sender, hence messages appear in the
+ * inbound message store shortly after they have been received. The files are synced before the journal segments
+ * holding them are deleted. Should we crash, the messages not yet compacted are moved upon restart.
+ * <p/>
+ * A committed record which fails its checksum is copied into the <code>quarantine</code> directory of the journal
+ * and skipped, rather than holding up the messages following it, see {@link #getQuarantinedCount()}.
+ * <p/>
+ * Used instead of the SimpleMessageRepository when <code>oxalis.inbound.journal</code> is true. Should be closed
+ * when the application is stopped, which moves the messages committed into the inbound message store.
+ */
+public class JournalMessageRepository implements MessageRepository, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalMessageRepository.class);
+
+    private static final long COMPACTION_INTERVAL_MILLIS = 200;
+    private static final String QUARANTINE = "quarantine";
+
+    private final String inboundMessageStore;
+    private final SimpleMessageRepository fileLayout;
+    private final MessageJournal messageJournal;
+    private final ScheduledExecutorService compactor;
+
+    // Guarded by this
+    private MessageJournal.Reader reader;
+    private long reportedUnreadablePosition = -1;
+    private long quarantinedCount;
+    private boolean closed;
+
+    public JournalMessageRepository(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration, globalConfiguration.getInboundMessageStore(),
+                new File(globalConfiguration.getInboundJournalDirectory()),
+                globalConfiguration.getInboundJournalSegmentSize(),
+                globalConfiguration.getInboundJournalCommitInterval());
+    }
+
+    JournalMessageRepository(GlobalConfiguration globalConfiguration, String inboundMessageStore, File journalDirectory, long segmentSize, long commitIntervalMillis) {
+        this(globalConfiguration, inboundMessageStore, journalDirectory, segmentSize, commitIntervalMillis, 0, COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param compactionDelayMillis    time before the first compaction by the background compactor
+     * @param compactionIntervalMillis time between the compactions by the background compactor, which is not started
+     *                                 if zero, in which case the messages are moved by {@link #compact()} only
+     */
+    JournalMessageRepository(GlobalConfiguration globalConfiguration, String inboundMessageStore, File journalDirectory, long segmentSize, long commitIntervalMillis, long compactionDelayMillis, long compactionIntervalMillis) {
+        this.inboundMessageStore = inboundMessageStore;
+        this.fileLayout = new SimpleMessageRepository(globalConfiguration);
+        try {
+            this.messageJournal = new MessageJournal(journalDirectory, segmentSize, commitIntervalMillis);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open message journal in " + journalDirectory + ": " + e.getMessage(), e);
+        }
+
+        if (compactionIntervalMillis <= 0) {
+            compactor = null;
+            log.info("Inbound messages are journaled in " + journalDirectory + ", background compaction is disabled");
+            return;
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "oxalis-journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    log.error("Unable to compact message journal in " + messageJournal.getDirectory() + ": " + e.getMessage(), e);
+                }
+            }
+        }, compactionDelayMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+
+        log.info("Inbound messages are journaled in " + journalDirectory + " and compacted into " + inboundMessageStore);
+    }
+
+    /** The document is held in memory already, and is serialized before the journal is locked for appending */
+    @Override
+    public void saveInboundMessage(String inboundMessageStore, PeppolMessageMetaData peppolMessageMetaData, Document document) throws OxalisMessagePersistenceException {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            XmlInfrastructure.transformer().transform(new DOMSource(document), new StreamResult(byteArrayOutputStream));
+
+            messageJournal.append(createRecord(inboundMessageStore, peppolMessageMetaData), new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        } catch (TransformerException e) {
+            throw new OxalisMessagePersistenceException(peppolMessageMetaData, e);
+        } catch (IOException e) {
+            throw new OxalisMessagePersistenceException(peppolMessageMetaData, e);
+        }
+    }
+
+    /** The payload is streamed into the journal, the stream should hence supply a payload which has been spooled */
+    @Override
+    public void saveInboundMessage(PeppolMessageMetaData peppolMessageMetaData, InputStream payloadInputStream) throws OxalisMessagePersistenceException {
+        try {
+            messageJournal.append(createRecord(inboundMessageStore, peppolMessageMetaData), payloadInputStream);
+        } catch (IOException e) {
+            throw new OxalisMessagePersistenceException(peppolMessageMetaData, e);
+        }
+    }
+
+    private JournalRecord createRecord(String inboundMessageStore, PeppolMessageMetaData peppolMessageMetaData) {
+        // The header file holds the same text as written by the SimpleMessageRepository
+        String headerText = peppolMessageMetaData.toString() + System.getProperty("line.separator");
+
+        return new JournalRecord(inboundMessageStore,
+                peppolMessageMetaData.getRecipientId().stringValue(),
+                peppolMessageMetaData.getSenderId().stringValue(),
+                peppolMessageMetaData.getTransmissionId().toString(),
+                headerText);
+    }
+
+    /**
+     * Moves the committed messages not yet compacted into the inbound message store. The directories holding the
+     * files written are synced before the journal is told the messages have been compacted.
+     *
+     * @return number of messages moved
+     */
+    synchronized int compact() throws IOException {
+        if (reader == null) {
+            reader = messageJournal.openReader(messageJournal.getCompactedPosition());
+        }
+
+        long committedPosition = messageJournal.getCommittedPosition();
+        int count = 0;
+        long startPosition = reader.getPosition();
+        Set<File> directories = new HashSet<File>();
+        while (true) {
+            JournalRecord record;
+            while ((record = reader.next(committedPosition)) != null) {
+                if (record.isCorrupt()) {
+                    directories.add(quarantineRecord());
+                } else {
+                    directories.add(writeMessageFiles(record));
+                    count++;
+                }
+            }
+            if (reader.getPosition() >= committedPosition || !quarantineRemainderOfSegment(directories)) {
+                break;
+            }
+        }
+
+        if (reader.getPosition() < committedPosition && reader.getPosition() != reportedUnreadablePosition) {
+            reportedUnreadablePosition = reader.getPosition();
+            log.error("Unable to read committed record at position " + reportedUnreadablePosition + " of message journal in "
+                    + messageJournal.getDirectory() + ", the remainder of the segment will be quarantined once the next segment has been started");
+        }
+
+        if (reader.getPosition() > startPosition) {
+            for (File directory : directories) {
+                Util.syncDirectory(directory);
+            }
+            messageJournal.markCompacted(reader.getPosition());
+        }
+        return count;
+    }
+
+    /** @return the directory holding the message files */
+    private File writeMessageFiles(JournalRecord record) throws IOException {
+        File messageDirectory = fileLayout.prepareMessageDirectory(record.getInboundMessageStore(),
+                new ParticipantId(record.getRecipientId()), new ParticipantId(record.getSenderId()));
+        TransmissionId transmissionId = new TransmissionId(record.getTransmissionId());
+
+        // The payload is copied from the journal segment, rather than read into memory
+        File messageFile = fileLayout.computeMessageFileName(transmissionId, messageDirectory);
+        File temporaryFile = temporaryFileFor(messageFile);
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            reader.transferPayload(fileOutputStream.getChannel());
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        MessageJournal.rename(temporaryFile, messageFile);
+
+        writeDurably(fileLayout.computeHeaderFileName(transmissionId, messageDirectory), record.getHeaderText().getBytes("UTF-8"));
+        return messageDirectory;
+    }
+
+    /** Copies the record most recently read, which fails its checksum, into the quarantine directory */
+    private File quarantineRecord() throws IOException {
+        long position = reader.getRecordPosition();
+        File quarantineFile = quarantineFile(position);
+        FileOutputStream fileOutputStream = new FileOutputStream(quarantineFile);
+        try {
+            reader.transferRecord(fileOutputStream.getChannel());
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        quarantinedCount++;
+        log.error("Committed record at position " + position + " of message journal in " + messageJournal.getDirectory()
+                + " fails its checksum, moved to " + quarantineFile + " (" + quarantinedCount + " quarantined)");
+        return quarantineFile.getParentFile();
+    }
+
+    /**
+     * Copies the remainder of the segment into the quarantine directory, as a record with a damaged header prevents
+     * the records following it from being located.
+     *
+     * @return false if the segment is still being appended to
+     */
+    private boolean quarantineRemainderOfSegment(Set<File> directories) throws IOException {
+        long position = reader.getPosition();
+        File quarantineFile = quarantineFile(position);
+        FileOutputStream fileOutputStream = new FileOutputStream(quarantineFile);
+        boolean skipped;
+        try {
+            skipped = reader.skipRemainderOfSegment(fileOutputStream.getChannel());
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        if (!skipped) {
+            quarantineFile.delete();
+            return false;
+        }
+        quarantinedCount++;
+        directories.add(quarantineFile.getParentFile());
+        log.error("Committed record at position " + position + " of message journal in " + messageJournal.getDirectory()
+                + " is damaged, the remainder of its segment has been moved to " + quarantineFile + " (" + quarantinedCount + " quarantined)");
+        return true;
+    }
+
+    private File quarantineFile(long position) throws IOException {
+        File quarantineDirectory = new File(messageJournal.getDirectory(), QUARANTINE);
+        if (!quarantineDirectory.isDirectory() && !quarantineDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + quarantineDirectory);
+        }
+        return new File(quarantineDirectory, String.format("%020d", position) + ".record");
+    }
+
+    /**
+     * The file is synced before the journal segment is deleted, and is written under a temporary name, hence it is
+     * never seen partially written.
+     */
+    private void writeDurably(File file, byte[] contents) throws IOException {
+        File temporaryFile = temporaryFileFor(file);
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            fileOutputStream.write(contents);
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        MessageJournal.rename(temporaryFile, file);
+    }
+
+    private static File temporaryFileFor(File file) {
+        return new File(file.getParentFile(), file.getName() + ".tmp");
+    }
+
+    /** Number of committed records which could not be read, and have been moved into the quarantine directory */
+    public synchronized long getQuarantinedCount() {
+        return quarantinedCount;
+    }
+
+    /** Number of times the journal has been forced to disk, each of which may include several messages */
+    long getCommitCount() {
+        return messageJournal.getCommitCount();
+    }
+
+    /** Stops the compactor, after having moved the messages committed, and closes the journal */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            messageJournal.close();
+            synchronized (this) {
+                compact();
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to close message journal in " + messageJournal.getDirectory() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return JournalMessageRepository.class.getSimpleName();
+    }
+}
@@ -0,0 +1,112 @@
+package eu.peppol.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message received, as appended to the {@link MessageJournal}: the routing data needed in order to move the
+ * message into its final location and the text of the header file. The payload is streamed into the journal and
+ * out of it again, see {@link MessageJournal#append(JournalRecord, java.io.InputStream)} and
+ * {@link MessageJournal.Reader#transferPayload(java.nio.channels.WritableByteChannel)}, rather than held in memory.
+ * <p/>
+ * Encoded as a fixed size header, followed by the metadata and the payload:
+ * <pre>
+ *     magic (4) | metadata length (4) | payload length (4) | CRC32 of metadata and payload (4) | metadata | payload
+ * </pre>
+ * The checksum reveals a record torn by a crash while it was being appended, or corrupted afterwards.
+ */
+class JournalRecord {
+
+    static final int MAGIC = 0x4f584a31;
+
+    static final int HEADER_SIZE = 16;
+
+    /** Returned by the reader for a complete record which fails its checksum */
+    static final JournalRecord CORRUPT = new JournalRecord(null, null, null, null, null);
+
+    private final String inboundMessageStore;
+    private final String recipientId;
+    private final String senderId;
+    private final String transmissionId;
+    private final String headerText;
+
+    JournalRecord(String inboundMessageStore, String recipientId, String senderId, String transmissionId, String headerText) {
+        this.inboundMessageStore = inboundMessageStore;
+        this.recipientId = recipientId;
+        this.senderId = senderId;
+        this.transmissionId = transmissionId;
+        this.headerText = headerText;
+    }
+
+    String getInboundMessageStore() {
+        return inboundMessageStore;
+    }
+
+    String getRecipientId() {
+        return recipientId;
+    }
+
+    String getSenderId() {
+        return senderId;
+    }
+
+    String getTransmissionId() {
+        return transmissionId;
+    }
+
+    String getHeaderText() {
+        return headerText;
+    }
+
+    boolean isCorrupt() {
+        return this == CORRUPT;
+    }
+
+    /** @return the header of a record holding the supplied metadata and payload */
+    static ByteBuffer encodeHeader(int metadataLength, long payloadLength, int crc) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(metadataLength).putInt((int) payloadLength).putInt(crc);
+        header.flip();
+        return header;
+    }
+
+    byte[] encodeMetadata() {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(512);
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            dataOutputStream.writeUTF(inboundMessageStore);
+            dataOutputStream.writeUTF(recipientId);
+            dataOutputStream.writeUTF(senderId);
+            dataOutputStream.writeUTF(transmissionId);
+            byte[] headerBytes = headerText.getBytes("UTF-8");
+            dataOutputStream.writeInt(headerBytes.length);
+            dataOutputStream.write(headerBytes);
+            dataOutputStream.close();
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode journal record for " + transmissionId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Decodes the metadata of a record, of which the checksum has been verified */
+    static JournalRecord decodeMetadata(byte[] metadata) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(metadata));
+        String inboundMessageStore = dataInputStream.readUTF();
+        String recipientId = dataInputStream.readUTF();
+        String senderId = dataInputStream.readUTF();
+        String transmissionId = dataInputStream.readUTF();
+        byte[] headerBytes = new byte[dataInputStream.readInt()];
+        dataInputStream.readFully(headerBytes);
+
+        return new JournalRecord(inboundMessageStore, recipientId, senderId, transmissionId, new String(headerBytes, "UTF-8"));
+    }
+
+    /** Number of bytes occupied by the record in the journal */
+    static long encodedLength(int metadataLength, long payloadLength) {
+        return (long) HEADER_SIZE + metadataLength + payloadLength;
+    }
+}
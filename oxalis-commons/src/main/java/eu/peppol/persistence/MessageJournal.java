@@ -0,0 +1,624 @@
+package eu.peppol.persistence;
+
+import eu.peppol.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented write-ahead log of the messages received, which is appended to with group commit.
+ * <p/>
+ * Records are appended to the active segment, after which the appending thread waits until its record has been
+ * committed, i.e. forced to disk. The commits are performed by a single thread, which forces the active segment
+ * every few milliseconds, hence every thread which has appended during that period shares the cost of a single
+ * {@link FileChannel#force(boolean)}.
+ * <p/>
+ * Positions are logical offsets, which grow across segments. A segment is named by the position of its first record
+ * and is replaced by a new segment when it exceeds the segment size. The records of a segment are moved elsewhere
+ * by a reader, i.e. the compactor of the {@link JournalMessageRepository}, which reports its progress through
+ * {@link #markCompacted(long)}, upon which the segments entirely compacted are deleted.
+ * <p/>
+ * A record torn by a crash while it was being appended has never been committed, and is truncated upon recovery.
+ * The directory is synced whenever a segment or the checkpoint is created, hence neither is lost by a crash.
+ * <p/>
+ * Thread safe.
+ */
+class MessageJournal {
+
+    public static final Logger log = LoggerFactory.getLogger(MessageJournal.class);
+
+    private static final String SUFFIX = ".journal";
+    private static final String CHECKPOINT = "compacted.checkpoint";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File directory;
+    private final long segmentSize;
+    private final long commitIntervalMillis;
+
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private FileChannel activeChannel;
+    private long activeSegmentStart;
+    private long appendedPosition;
+    private long committedPosition;
+    private long commitCount;
+    private IOException failure;
+    private boolean closed;
+
+    private final Thread committer;
+
+    /**
+     * Opens the journal, recovering the segments found in the directory.
+     *
+     * @param directory holds the segments, created if it does not exist
+     * @param segmentSize number of bytes after which a new segment is started
+     * @param commitIntervalMillis number of milliseconds the committer waits for more records to be appended, before forcing them to disk
+     */
+    MessageJournal(File directory, long segmentSize, long commitIntervalMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create directory " + directory + " for the message journal");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitIntervalMillis = commitIntervalMillis;
+
+        recover();
+
+        committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitContinuously();
+            }
+        }, "oxalis-journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends the record, followed by the payload read from the supplied stream, and waits until it has been
+     * committed. The payload is copied while holding the lock, hence it should be readily available, like a payload
+     * spooled to disk, rather than being received from the network.
+     *
+     * @return the position following the record
+     */
+    long append(JournalRecord record, InputStream payloadInputStream) throws IOException {
+        byte[] metadata = record.encodeMetadata();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        long end;
+        synchronized (lock) {
+            verifyUsable();
+            try {
+                if (appendedPosition - activeSegmentStart >= segmentSize) {
+                    roll();
+                }
+                long recordStart = appendedPosition - activeSegmentStart;
+
+                // The header is written last, as the length and checksum of the payload are not known in advance
+                activeChannel.position(recordStart + JournalRecord.HEADER_SIZE);
+                CRC32 crc32 = new CRC32();
+                crc32.update(metadata);
+                writeFully(ByteBuffer.wrap(metadata));
+                long payloadLength;
+                try {
+                    payloadLength = copyPayload(payloadInputStream, buffer, crc32);
+                } catch (UnreadablePayloadException e) {
+                    // Not a failure of the journal, the partial record is removed and the next one appended in its place
+                    activeChannel.truncate(recordStart);
+                    activeChannel.position(recordStart);
+                    throw e;
+                }
+
+                ByteBuffer header = JournalRecord.encodeHeader(metadata.length, payloadLength, (int) crc32.getValue());
+                long headerPosition = recordStart;
+                while (header.hasRemaining()) {
+                    headerPosition += activeChannel.write(header, headerPosition);
+                }
+
+                long length = JournalRecord.encodedLength(metadata.length, payloadLength);
+                activeChannel.position(recordStart + length);
+                appendedPosition += length;
+            } catch (UnreadablePayloadException e) {
+                throw e;
+            } catch (IOException e) {
+                // The segment might hold a partial record, which would be followed by the next one
+                failure = e;
+                lock.notifyAll();
+                throw e;
+            }
+            end = appendedPosition;
+
+            // Wakes the committer
+            lock.notifyAll();
+        }
+
+        awaitCommit(end);
+        return end;
+    }
+
+    /** @return the length of the payload copied into the active segment */
+    private long copyPayload(InputStream payloadInputStream, byte[] buffer, CRC32 crc32) throws IOException {
+        long payloadLength = 0;
+        while (true) {
+            int bytesRead;
+            try {
+                bytesRead = payloadInputStream.read(buffer);
+            } catch (IOException e) {
+                throw new UnreadablePayloadException("Unable to read payload: " + e.getMessage(), e);
+            }
+            if (bytesRead == -1) {
+                return payloadLength;
+            }
+            payloadLength += bytesRead;
+            if (payloadLength > Integer.MAX_VALUE) {
+                throw new UnreadablePayloadException("Payload exceeds " + Integer.MAX_VALUE + " bytes", null);
+            }
+            crc32.update(buffer, 0, bytesRead);
+            writeFully(ByteBuffer.wrap(buffer, 0, bytesRead));
+        }
+    }
+
+    private void writeFully(ByteBuffer byteBuffer) throws IOException {
+        while (byteBuffer.hasRemaining()) {
+            activeChannel.write(byteBuffer);
+        }
+    }
+
+    private void awaitCommit(long position) throws IOException {
+        synchronized (lock) {
+            while (committedPosition < position) {
+                // The records appended before the journal was closed are committed by the committer
+                if (failure != null) {
+                    throw new IOException("Message journal in " + directory + " has failed: " + failure.getMessage(), failure);
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal to be committed");
+                }
+            }
+        }
+    }
+
+    private void verifyUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Message journal in " + directory + " has failed: " + failure.getMessage(), failure);
+        }
+        if (closed) {
+            throw new IOException("Message journal in " + directory + " has been closed");
+        }
+    }
+
+    /** Forces the active segment to disk whenever records have been appended, until closed */
+    private void commitContinuously() {
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (appendedPosition == committedPosition && !closed && failure == null) {
+                        lock.wait();
+                    }
+                    if (failure != null || appendedPosition == committedPosition) {
+                        return;
+                    }
+                }
+
+                // Lets the concurrent appenders join this commit
+                if (commitIntervalMillis > 0) {
+                    Thread.sleep(commitIntervalMillis);
+                }
+
+                FileChannel channel;
+                long position;
+                synchronized (lock) {
+                    channel = activeChannel;
+                    position = appendedPosition;
+                }
+                try {
+                    channel.force(false);
+                } catch (ClosedChannelException e) {
+                    // The segment has been rolled, which forced it before it was closed
+                }
+                synchronized (lock) {
+                    if (position > committedPosition) {
+                        committedPosition = position;
+                    }
+                    commitCount++;
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to commit message journal in " + directory + ": " + e.getMessage(), e);
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Message journal committer interrupted"));
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (lock) {
+            failure = e;
+            lock.notifyAll();
+        }
+    }
+
+    /** Forces and closes the active segment, and starts a new one. Invoked while holding the lock */
+    private void roll() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        committedPosition = appendedPosition;
+        lock.notifyAll();
+
+        openSegment(appendedPosition);
+    }
+
+    private void openSegment(long start) throws IOException {
+        File segment = segmentFile(start);
+        boolean created = !segment.exists();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(segment, "rw");
+        activeChannel = randomAccessFile.getChannel();
+        activeChannel.position(activeChannel.size());
+        activeSegmentStart = start;
+        if (created) {
+            Util.syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Opens the last segment for appending, truncating any record torn by a crash. The other segments were forced
+     * before a new segment was started, hence they are complete.
+     */
+    private void recover() throws IOException {
+        List<Long> segments = listSegments();
+        if (segments.isEmpty()) {
+            long start = Math.max(0, readCheckpoint());
+            openSegment(start);
+            appendedPosition = start;
+            committedPosition = start;
+            return;
+        }
+
+        long lastStart = segments.get(segments.size() - 1);
+        long validLength = validLength(segmentFile(lastStart));
+        openSegment(lastStart);
+        if (validLength < activeChannel.size()) {
+            log.warn("Truncating torn record at position " + (lastStart + validLength) + " of message journal in " + directory);
+            activeChannel.truncate(validLength);
+            activeChannel.force(false);
+        }
+        activeChannel.position(validLength);
+        appendedPosition = lastStart + validLength;
+        committedPosition = appendedPosition;
+    }
+
+    /**
+     * Number of bytes of the segment up to the end of the last intact record. A corrupt record followed by an intact
+     * one has been committed, and is kept in order to be quarantined by the compactor.
+     */
+    private long validLength(File segment) throws IOException {
+        Reader reader = new Reader(directory, segment);
+        try {
+            long validLength = 0;
+            JournalRecord record;
+            while ((record = reader.next(Long.MAX_VALUE)) != null) {
+                if (!record.isCorrupt()) {
+                    validLength = reader.getPositionInSegment();
+                }
+            }
+            return validLength;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Every record before this position has been committed, and may be read */
+    long getCommittedPosition() {
+        synchronized (lock) {
+            return committedPosition;
+        }
+    }
+
+    /** Number of commits performed, each of which may include several records */
+    long getCommitCount() {
+        synchronized (lock) {
+            return commitCount;
+        }
+    }
+
+    /** The position from which records remain to be compacted */
+    long getCompactedPosition() throws IOException {
+        List<Long> segments = listSegments();
+        long firstSegmentStart = segments.isEmpty() ? 0 : segments.get(0);
+        return Math.max(firstSegmentStart, readCheckpoint());
+    }
+
+    /**
+     * Records that every record before the supplied position has been moved elsewhere, upon which the segments
+     * holding such records only are deleted.
+     */
+    void markCompacted(long position) throws IOException {
+        writeCheckpoint(position);
+
+        List<Long> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            // A segment ends where the next one starts
+            if (segments.get(i + 1) <= position) {
+                File segment = segmentFile(segments.get(i));
+                if (!segment.delete()) {
+                    log.warn("Unable to delete compacted segment " + segment);
+                }
+            }
+        }
+    }
+
+    /** Opens a reader positioned at the supplied position */
+    Reader openReader(long position) throws IOException {
+        List<Long> segments = listSegments();
+        long start = segments.isEmpty() ? 0 : segments.get(0);
+        for (Long segmentStart : segments) {
+            if (segmentStart <= position) {
+                start = segmentStart;
+            }
+        }
+        Reader reader = new Reader(directory, segmentFile(start));
+        reader.skip(position - start);
+        return reader;
+    }
+
+    /** Waits for the records appended to be committed, and closes the journal */
+    void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            activeChannel.close();
+        }
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    File segmentFile(long start) {
+        return new File(directory, String.format("%020d", start) + SUFFIX);
+    }
+
+    /** @return the start positions of the segments, in ascending order */
+    List<Long> listSegments() {
+        List<Long> segments = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long readCheckpoint() throws IOException {
+        File checkpoint = new File(directory, CHECKPOINT);
+        if (!checkpoint.isFile()) {
+            return -1;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(checkpoint, "r");
+        try {
+            return randomAccessFile.readLong();
+        } catch (EOFException e) {
+            return -1;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /** Written under a temporary name and renamed, hence a partially written checkpoint is never read */
+    private void writeCheckpoint(long position) throws IOException {
+        File checkpoint = new File(directory, CHECKPOINT);
+        File temporaryFile = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        try {
+            fileOutputStream.write(ByteBuffer.allocate(8).putLong(position).array());
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        rename(temporaryFile, checkpoint);
+        Util.syncDirectory(directory);
+    }
+
+    /** Replaces the target atomically, except on platforms which will not rename onto an existing file */
+    static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("Unable to rename " + from + " to " + to);
+            }
+        }
+    }
+
+    /** The payload to be appended could not be read, which leaves the journal usable */
+    static class UnreadablePayloadException extends IOException {
+        UnreadablePayloadException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Reads the records sequentially, moving on to the next segment at the end of each segment. The payload of the
+     * record most recently read may be transferred before the next record is read. Not thread safe.
+     */
+    static class Reader {
+
+        private final File directory;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private RandomAccessFile segment;
+        private long segmentStart;
+        private long positionInSegment;
+
+        // The record most recently read, within the current segment
+        private long recordStart;
+        private long recordLength;
+        private long payloadLength;
+
+        private Reader(File directory, File segmentFile) throws IOException {
+            this.directory = directory;
+            open(segmentFile);
+        }
+
+        private void open(File segmentFile) throws IOException {
+            segment = new RandomAccessFile(segmentFile, "r");
+            String name = segmentFile.getName();
+            segmentStart = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            positionInSegment = 0;
+        }
+
+        private void skip(long bytes) throws IOException {
+            positionInSegment += bytes;
+            segment.seek(positionInSegment);
+        }
+
+        /** The position of the next record to be read */
+        long getPosition() {
+            return segmentStart + positionInSegment;
+        }
+
+        long getPositionInSegment() {
+            return positionInSegment;
+        }
+
+        /** The position of the record most recently read */
+        long getRecordPosition() {
+            return segmentStart + recordStart;
+        }
+
+        /**
+         * Reads the next record, provided it starts before the supplied limit. The payload is read in order to verify
+         * the checksum, but is not held in memory.
+         *
+         * @return the record, {@link JournalRecord#CORRUPT} if the record is complete but fails its checksum, or null
+         * if there are no more complete records before the limit
+         */
+        JournalRecord next(long limit) throws IOException {
+            if (getPosition() >= limit) {
+                return null;
+            }
+            if (positionInSegment >= segment.length()) {
+                // Continues with the next segment, if there is one
+                File nextSegment = new File(directory, String.format("%020d", getPosition()) + SUFFIX);
+                if (!nextSegment.isFile()) {
+                    return null;
+                }
+                segment.close();
+                open(nextSegment);
+            }
+
+            if (segment.length() - positionInSegment < JournalRecord.HEADER_SIZE) {
+                return null;
+            }
+            segment.seek(positionInSegment);
+            int magic = segment.readInt();
+            int metadataLength = segment.readInt();
+            int payloadLength = segment.readInt();
+            int crc = segment.readInt();
+            if (magic != JournalRecord.MAGIC || metadataLength < 0 || payloadLength < 0
+                    || segment.length() - positionInSegment < JournalRecord.encodedLength(metadataLength, payloadLength)) {
+                return null;
+            }
+
+            byte[] metadata = new byte[metadataLength];
+            segment.readFully(metadata);
+            CRC32 crc32 = new CRC32();
+            crc32.update(metadata);
+            long remaining = payloadLength;
+            while (remaining > 0) {
+                int bytesRead = segment.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Segment of message journal in " + directory + " ended within record at position " + getPosition());
+                }
+                crc32.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+
+            this.recordStart = positionInSegment;
+            this.recordLength = JournalRecord.encodedLength(metadataLength, payloadLength);
+            this.payloadLength = payloadLength;
+            positionInSegment += recordLength;
+
+            if ((int) crc32.getValue() != crc) {
+                return JournalRecord.CORRUPT;
+            }
+            return JournalRecord.decodeMetadata(metadata);
+        }
+
+        /** Copies the payload of the record most recently read */
+        void transferPayload(WritableByteChannel target) throws IOException {
+            transfer(recordStart + recordLength - payloadLength, payloadLength, target);
+        }
+
+        /** Copies the record most recently read, as held in the journal */
+        void transferRecord(WritableByteChannel target) throws IOException {
+            transfer(recordStart, recordLength, target);
+        }
+
+        /**
+         * Moves past the remainder of the current segment, which holds a record whose header is damaged, hence
+         * the position of the records following it is unknown. Only done once a following segment exists, as the
+         * active segment is still being appended to.
+         *
+         * @param target receives the remainder of the segment
+         * @return false if the current segment is the last one
+         */
+        boolean skipRemainderOfSegment(WritableByteChannel target) throws IOException {
+            long segmentLength = segment.length();
+            if (!new File(directory, String.format("%020d", segmentStart + segmentLength) + SUFFIX).isFile()) {
+                return false;
+            }
+            transfer(positionInSegment, segmentLength - positionInSegment, target);
+            positionInSegment = segmentLength;
+            return true;
+        }
+
+        private void transfer(long position, long count, WritableByteChannel target) throws IOException {
+            FileChannel channel = segment.getChannel();
+            while (count > 0) {
+                long transferred = channel.transferTo(position, count, target);
+                if (transferred <= 0) {
+                    throw new EOFException("Segment of message journal in " + directory + " ended at position " + (segmentStart + position));
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        }
+
+        void close() throws IOException {
+            segment.close();
+        }
+    }
+}
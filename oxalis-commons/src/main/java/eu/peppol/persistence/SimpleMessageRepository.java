@@ -5,12 +5,11 @@ import eu.peppol.identifier.MessageId;
 import eu.peppol.identifier.ParticipantId;
 import eu.peppol.identifier.TransmissionId;
 import eu.peppol.util.GlobalConfiguration;
+import eu.peppol.util.XmlInfrastructure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
@@ -73,12 +72,12 @@ public class SimpleMessageRepository implements MessageRepository {
 
     }
 
-    private File computeHeaderFileName(TransmissionId messageId, File messageDirectory) {
+    File computeHeaderFileName(TransmissionId messageId, File messageDirectory) {
         String headerFileName = normalize(messageId.toString()) + ".txt";
         return new File(messageDirectory, headerFileName);
     }
 
-    private File computeMessageFileName(TransmissionId messageId, File messageDirectory) {
+    File computeMessageFileName(TransmissionId messageId, File messageDirectory) {
         String messageFileName = normalize(messageId.toString()) + ".xml";
         return new File(messageDirectory, messageFileName);
     }
@@ -129,10 +128,7 @@ public class SimpleMessageRepository implements MessageRepository {
 
             StreamResult result = new StreamResult(writer);
 
-            TransformerFactory tf = TransformerFactory.newInstance();
-            Transformer transformer;
-            transformer = tf.newTransformer();
-            transformer.transform(new DOMSource(document), result);
+            XmlInfrastructure.transformer().transform(new DOMSource(document), result);
             fos.close();
             log.debug("File " + outputFile + " written");
         } catch (Exception e) {
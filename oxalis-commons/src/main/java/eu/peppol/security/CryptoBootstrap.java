@@ -0,0 +1,144 @@
+package eu.peppol.security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registers the BouncyCastle provider once, and provides per thread pools of the cryptographic primitives used on
+ * every message, thus avoiding the contention on the JCA provider lock caused by registering providers and looking
+ * up algorithms.
+ * <p/>
+ * The digests are acquired from and released to the pool of the current thread:
+ * <pre>
+ *     MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest("SHA-1");
+ *     try {
+ *         ...
+ *     } finally {
+ *         CryptoBootstrap.release(messageDigest);
+ *     }
+ * </pre>
+ * Instances acquired are never handed out twice, hence nested use of the same algorithm is safe. An instance which
+ * is not released is simply garbage collected.
+ */
+public final class CryptoBootstrap {
+
+    public static final String PROVIDER_NAME = BouncyCastleProvider.PROVIDER_NAME;
+
+    /** Number of idle instances of each algorithm kept by every thread */
+    private static final int MAX_POOLED_PER_ALGORITHM = 4;
+
+    /** The provider chosen by the JCA for each algorithm requested without naming a provider */
+    private static final ConcurrentMap<String, String> defaultProviders = new ConcurrentHashMap<String, String>();
+
+    private static final ThreadLocal<Map<String, Deque<MessageDigest>>> messageDigests = new ThreadLocal<Map<String, Deque<MessageDigest>>>() {
+        @Override
+        protected Map<String, Deque<MessageDigest>> initialValue() {
+            return new HashMap<String, Deque<MessageDigest>>();
+        }
+    };
+
+    private static final ThreadLocal<CertificateFactory> certificateFactories = new ThreadLocal<CertificateFactory>() {
+        @Override
+        protected CertificateFactory initialValue() {
+            try {
+                return CertificateFactory.getInstance("X.509");
+            } catch (CertificateException e) {
+                throw new IllegalStateException("Unable to create X.509 CertificateFactory: " + e.getMessage(), e);
+            }
+        }
+    };
+
+    static {
+        if (Security.getProvider(PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    private CryptoBootstrap() {
+    }
+
+    /**
+     * Ensures the BouncyCastle provider has been registered, which happens once, when this class is loaded.
+     * Costs nothing once loaded, hence may be invoked wherever the provider is needed.
+     */
+    public static void registerProvider() {
+        // The static initializer has done the work
+    }
+
+    /** Acquires a digest of the supplied algorithm, from the first provider supporting it */
+    public static MessageDigest acquireMessageDigest(String algorithm) {
+        return acquireMessageDigest(algorithm, null);
+    }
+
+    /**
+     * Acquires a digest of the supplied algorithm from the supplied provider, which is reset and ready for use.
+     *
+     * @param providerName name of the provider, or null for the first provider supporting the algorithm
+     */
+    public static MessageDigest acquireMessageDigest(String algorithm, String providerName) {
+        String key = key(algorithm, providerName != null ? providerName : defaultProviders.get(algorithm));
+        MessageDigest messageDigest = key == null ? null : poll(messageDigests.get(), key);
+        if (messageDigest != null) {
+            return messageDigest;
+        }
+        try {
+            if (providerName != null) {
+                return MessageDigest.getInstance(algorithm, providerName);
+            }
+            messageDigest = MessageDigest.getInstance(algorithm);
+            defaultProviders.put(algorithm, messageDigest.getProvider().getName());
+            return messageDigest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Message digest " + algorithm + " not found: " + e.getMessage(), e);
+        } catch (NoSuchProviderException e) {
+            throw new IllegalStateException("Provider " + providerName + " not found: " + e.getMessage(), e);
+        }
+    }
+
+    /** Returns the digest to the pool of the current thread */
+    public static void release(MessageDigest messageDigest) {
+        messageDigest.reset();
+        offer(messageDigests.get(), key(messageDigest.getAlgorithm(), messageDigest.getProvider().getName()), messageDigest);
+    }
+
+    /**
+     * Provides the X.509 CertificateFactory of the current thread, which is not to be shared with other threads.
+     * Every method of the factory completes its work before returning, hence nested use is safe.
+     */
+    public static CertificateFactory getCertificateFactory() {
+        return certificateFactories.get();
+    }
+
+    private static <T> T poll(Map<String, Deque<T>> pool, String key) {
+        Deque<T> idle = pool.get(key);
+        return idle == null ? null : idle.pollFirst();
+    }
+
+    private static <T> void offer(Map<String, Deque<T>> pool, String key, T instance) {
+        Deque<T> idle = pool.get(key);
+        if (idle == null) {
+            idle = new ArrayDeque<T>(MAX_POOLED_PER_ALGORITHM);
+            pool.put(key, idle);
+        }
+        if (idle.size() < MAX_POOLED_PER_ALGORITHM) {
+            idle.offerFirst(instance);
+        }
+    }
+
+    /** @return the key of the pool, or null if the provider is not yet known */
+    private static String key(String algorithm, String providerName) {
+        return providerName == null ? null : algorithm + "/" + providerName;
+    }
+}
@@ -28,20 +28,10 @@ public enum OxalisCertificateValidator {
     INSTANCE;
 
     public static final Logger log = LoggerFactory.getLogger(OxalisCertificateValidator.class);
-    private final CertificateFactory certificateFactory;
 
     public static final OcspValidatorCache cache = OcspValidatorCache.getInstance();
     private int cacheHits = 0;
 
-    OxalisCertificateValidator() {
-        // Seems the CertificateFactory is the only thread safe object around here :-)
-        try {
-            certificateFactory = CertificateFactory.getInstance("X.509");
-        } catch (CertificateException e) {
-            throw new IllegalStateException("Unable to create CertificateFactory " + e.getMessage(), e);
-        }
-    }
-
 
     public static OxalisCertificateValidator getInstance() {
         return INSTANCE;
@@ -119,7 +109,7 @@ public enum OxalisCertificateValidator {
 
         try {
 
-            CertPath certPath = certificateFactory.generateCertPath(Arrays.asList(x509Certificate));
+            CertPath certPath = CryptoBootstrap.getCertificateFactory().generateCertPath(Arrays.asList(x509Certificate));
             CertPathValidatorResult validatorResult = certPathValidator.validate(certPath, pkixParameters);
 
             // Insert serial number of this certificate to improve performance
@@ -149,8 +139,6 @@ public enum OxalisCertificateValidator {
             return thumbPrint;
         } catch (CertificateEncodingException e) {
             throw new IllegalStateException("Unable to encode certificate " + certificateInfo(x509Certificate) + " for thumbprint calculation ", e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException("Unable to calculate certificate thumbprint for certificate " + certificateInfo(x509Certificate), e);
         }
     }
 
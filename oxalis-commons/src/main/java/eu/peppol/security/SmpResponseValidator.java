@@ -25,6 +25,14 @@ import java.util.Iterator;
  */
 public class SmpResponseValidator {
 
+    /** The factory is not thread safe, and looking it up by the provider framework each time is costly */
+    private static final ThreadLocal<XMLSignatureFactory> xmlSignatureFactory = new ThreadLocal<XMLSignatureFactory>() {
+        @Override
+        protected XMLSignatureFactory initialValue() {
+            return XMLSignatureFactory.getInstance("DOM");
+        }
+    };
+
     private XMLSignature signature;
     private final DOMValidateContext domValidateContext;
 
@@ -49,9 +57,8 @@ public class SmpResponseValidator {
         domValidateContext = new DOMValidateContext(new X509KeySelector(), signatureNode);
 
         // Unmarshals the XMLSignature, i.e. gets rid of white space etc.
-        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
         try {
-            signature = fac.unmarshalXMLSignature(domValidateContext);
+            signature = xmlSignatureFactory.get().unmarshalXMLSignature(domValidateContext);
         } catch (MarshalException e) {
             throw new IllegalStateException("Unable to unmarshal the XML signature", e);
         }
@@ -0,0 +1,109 @@
+package eu.peppol.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton and thread safe cache of the results of verifying the signature of SMP responses, keyed by the SHA-256
+ * digest of the response and the certificate of the signer.
+ * <p/>
+ * SMP responses seldom change, hence verifying the signature of a response we have already verified, i.e.
+ * canonicalisation, digesting of the references and the RSA operation, is skipped. Any change to the contents of the
+ * response, or the certificate, yields another key and thus a new verification.
+ */
+public enum SmpSignatureCache {
+
+    INSTANCE;
+
+    public static final Logger log = LoggerFactory.getLogger(SmpSignatureCache.class);
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final Map<BigInteger, Boolean> results = new LinkedHashMap<BigInteger, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BigInteger, Boolean> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private final AtomicLong verificationCount = new AtomicLong();
+    private final AtomicLong avoidedVerificationCount = new AtomicLong();
+
+    public static SmpSignatureCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Determines whether the signature of the SMP response is valid, verifying the signature only if this very
+     * response, signed by the same certificate, has not been verified before.
+     *
+     * @param smpResponse the bytes of the response, from which the document of the validator was parsed
+     * @param smpResponseValidator validator of the parsed response
+     * @return true if the signature is valid, false otherwise.
+     */
+    public boolean isSmpSignatureValid(byte[] smpResponse, SmpResponseValidator smpResponseValidator) {
+        BigInteger key = createKey(smpResponse, smpResponseValidator.getCertificate());
+
+        Boolean valid;
+        synchronized (results) {
+            valid = results.get(key);
+        }
+        if (valid != null) {
+            avoidedVerificationCount.incrementAndGet();
+            log.debug("Signature of SMP response " + key.toString(16) + " found in cache");
+            return valid;
+        }
+
+        valid = smpResponseValidator.isSmpSignatureValid();
+        verificationCount.incrementAndGet();
+        synchronized (results) {
+            results.put(key, valid);
+        }
+        return valid;
+    }
+
+    private BigInteger createKey(byte[] smpResponse, X509Certificate certificate) {
+        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest("SHA-256");
+        try {
+            messageDigest.update(smpResponse);
+            if (certificate != null) {
+                messageDigest.update(certificate.getEncoded());
+            }
+            return new BigInteger(1, messageDigest.digest());
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException("Unable to encode certificate " + certificate.getSubjectDN() + " of SMP response: " + e.getMessage(), e);
+        } finally {
+            CryptoBootstrap.release(messageDigest);
+        }
+    }
+
+    /** Number of signatures actually verified */
+    public long getVerificationCount() {
+        return verificationCount.get();
+    }
+
+    /** Number of verifications avoided, as the result was found in the cache */
+    public long getAvoidedVerificationCount() {
+        return avoidedVerificationCount.get();
+    }
+
+    public int size() {
+        synchronized (results) {
+            return results.size();
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (results) {
+            results.clear();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package eu.peppol.smp;
+
+import com.google.inject.Inject;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.security.SmpSignatureCache;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorates a {@link SmpLookupManager} with a cache of the lookups, keyed by participant and document type, as every
+ * lookup from the SMP involves a http round trip, parsing and verification of the signed service metadata.
+ * <p/>
+ * Entries live for a configurable period of time, after which they are refreshed. During the following stale period,
+ * the expired entry is still provided while it is refreshed in the background, hence the transmissions to our most
+ * frequent receivers never wait for the SMP. Entries older than the stale period are looked up while the caller waits.
+ * Failed lookups are not cached.
+ * <p/>
+ * The least recently used entries are evicted once the cache holds the maximum number of entries. The cache is
+ * available through JMX as <code>eu.peppol.smp:type=SmpLookupCache</code>
+ */
+public class CachingSmpLookupManager implements SmpLookupManager, SmpLookupCacheMXBean {
+
+    public static final Logger log = LoggerFactory.getLogger(CachingSmpLookupManager.class);
+
+    public static final String OBJECT_NAME = "eu.peppol.smp:type=SmpLookupCache";
+
+    private static final int REFRESH_THREADS = 2;
+
+    private final SmpLookupManager delegate;
+    private final int maxEntries;
+    private final long timeToLive;
+    private final long stalePeriod;
+    private final Executor refresher;
+
+    // Guarded by itself, in order of access
+    private final Map<CacheKey, CacheEntry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    @Inject
+    public CachingSmpLookupManager(SmpLookupManagerImpl delegate, GlobalConfiguration globalConfiguration) {
+        this(delegate, globalConfiguration.getSmpCacheSize(), globalConfiguration.getSmpCacheTimeToLive(),
+                globalConfiguration.getSmpCacheStalePeriod(), createRefresher());
+        registerMBean();
+    }
+
+    CachingSmpLookupManager(SmpLookupManager delegate, int maxEntries, long timeToLive, long stalePeriod, Executor refresher) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("SMP cache size must be positive, was " + maxEntries);
+        }
+        this.delegate = delegate;
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.stalePeriod = stalePeriod;
+        this.refresher = refresher;
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true);
+    }
+
+    private static Executor createRefresher() {
+        return Executors.newFixedThreadPool(REFRESH_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "oxalis-smp-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public URL getEndpointAddress(final ParticipantId participant, final PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookup(new Lookup<URL, RuntimeException>(LookupType.ENDPOINT_ADDRESS, participant, documentTypeIdentifier) {
+            @Override
+            URL load() {
+                return delegate.getEndpointAddress(participant, documentTypeIdentifier);
+            }
+        });
+    }
+
+    @Override
+    public X509Certificate getEndpointCertificate(final ParticipantId participant, final PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookup(new Lookup<X509Certificate, RuntimeException>(LookupType.ENDPOINT_CERTIFICATE, participant, documentTypeIdentifier) {
+            @Override
+            X509Certificate load() {
+                return delegate.getEndpointCertificate(participant, documentTypeIdentifier);
+            }
+        });
+    }
+
+    @Override
+    public List<PeppolDocumentTypeId> getServiceGroups(final ParticipantId participantId) throws SmpLookupException, ParticipantNotRegisteredException {
+        return lookup(new Lookup<List<PeppolDocumentTypeId>, ParticipantNotRegisteredException>(LookupType.SERVICE_GROUPS, participantId, null) {
+            @Override
+            List<PeppolDocumentTypeId> load() throws ParticipantNotRegisteredException {
+                return delegate.getServiceGroups(participantId);
+            }
+        });
+    }
+
+    @Override
+    public PeppolEndpointData getEndpointData(final ParticipantId participantId, final PeppolDocumentTypeId documentTypeIdentifier) {
+        return lookup(new Lookup<PeppolEndpointData, RuntimeException>(LookupType.ENDPOINT_DATA, participantId, documentTypeIdentifier) {
+            @Override
+            PeppolEndpointData load() {
+                return delegate.getEndpointData(participantId, documentTypeIdentifier);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V, E extends Exception> V lookup(final Lookup<V, E> lookup) throws E {
+        long now = currentTimeMillis();
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(lookup.key);
+        }
+
+        if (entry != null) {
+            long age = now - entry.loaded;
+            if (age < timeToLive) {
+                hitCount.incrementAndGet();
+                return (V) entry.value;
+            }
+            if (age < timeToLive + stalePeriod) {
+                staleHitCount.incrementAndGet();
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    refreshInBackground(lookup, entry);
+                }
+                return (V) entry.value;
+            }
+        }
+
+        missCount.incrementAndGet();
+        return load(lookup);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V, E extends Exception> V load(Lookup<V, E> lookup) throws E {
+        long start = System.nanoTime();
+        V value;
+        try {
+            value = lookup.load();
+        } catch (Exception e) {
+            loadFailureCount.incrementAndGet();
+            throw (E) e;
+        } finally {
+            loadCount.incrementAndGet();
+            loadNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        synchronized (entries) {
+            entries.put(lookup.key, new CacheEntry(value, currentTimeMillis()));
+            if (entries.size() > maxEntries) {
+                Iterator<CacheKey> iterator = entries.keySet().iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        return value;
+    }
+
+    private void refreshInBackground(final Lookup<?, ?> lookup, final CacheEntry entry) {
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(lookup);
+                    } catch (Exception e) {
+                        log.warn("Unable to refresh SMP lookup of " + lookup.key + ": " + e.getMessage());
+                    } finally {
+                        entry.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            entry.refreshing.set(false);
+            log.warn("Unable to schedule refresh of SMP lookup of " + lookup.key + ": " + e.getMessage());
+        }
+    }
+
+    /** Overridden by the tests, in order to control the passing of time */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    @Override
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public long getLoadFailureCount() {
+        return loadFailureCount.get();
+    }
+
+    @Override
+    public double getAverageLoadMillis() {
+        long loads = loadCount.get();
+        return loads == 0 ? 0 : loadNanos.get() / 1000000.0 / loads;
+    }
+
+    @Override
+    public long getSignatureVerificationCount() {
+        return SmpSignatureCache.getInstance().getVerificationCount();
+    }
+
+    @Override
+    public long getAvoidedSignatureVerificationCount() {
+        return SmpSignatureCache.getInstance().getAvoidedVerificationCount();
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public void invalidate(String participantId) {
+        ParticipantId participant = new ParticipantId(participantId);
+        synchronized (entries) {
+            Iterator<CacheKey> iterator = entries.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().participantId.equals(participant)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /** Registers this instance with the platform MBean server, replacing any instance previously registered */
+    void registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            mBeanServer.registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.warn("Unable to register " + OBJECT_NAME + " with the MBean server: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingSmpLookupManager{size=" + getSize() + ", hits=" + hitCount + ", staleHits=" + staleHitCount
+                + ", misses=" + missCount + ", loadFailures=" + loadFailureCount + "}";
+    }
+
+    enum LookupType {
+        ENDPOINT_ADDRESS, ENDPOINT_CERTIFICATE, ENDPOINT_DATA, SERVICE_GROUPS
+    }
+
+    /** A lookup from the delegate, which may throw the checked exception E */
+    private abstract static class Lookup<V, E extends Exception> {
+        final CacheKey key;
+
+        Lookup(LookupType lookupType, ParticipantId participantId, PeppolDocumentTypeId documentTypeId) {
+            this.key = new CacheKey(lookupType, participantId, documentTypeId);
+        }
+
+        abstract V load() throws E;
+    }
+
+    static final class CacheKey {
+        final LookupType lookupType;
+        final ParticipantId participantId;
+        final PeppolDocumentTypeId documentTypeId;
+
+        CacheKey(LookupType lookupType, ParticipantId participantId, PeppolDocumentTypeId documentTypeId) {
+            this.lookupType = lookupType;
+            this.participantId = participantId;
+            this.documentTypeId = documentTypeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CacheKey)) return false;
+
+            CacheKey that = (CacheKey) o;
+
+            if (lookupType != that.lookupType) return false;
+            if (!participantId.equals(that.participantId)) return false;
+            if (documentTypeId != null ? !documentTypeId.equals(that.documentTypeId) : that.documentTypeId != null) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = lookupType.hashCode();
+            result = 31 * result + participantId.hashCode();
+            result = 31 * result + (documentTypeId != null ? documentTypeId.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return lookupType + " " + participantId + (documentTypeId != null ? " " + documentTypeId : "");
+        }
+    }
+
+    private static final class CacheEntry {
+        final Object value;
+        final long loaded;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CacheEntry(Object value, long loaded) {
+            this.value = value;
+            this.loaded = loaded;
+        }
+    }
+}
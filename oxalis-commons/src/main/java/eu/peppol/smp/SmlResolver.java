@@ -0,0 +1,212 @@
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.util.DNSLookupHelper;
+import eu.peppol.util.GlobalConfiguration;
+import eu.peppol.util.HostResolver;
+import eu.peppol.util.MessageDigestException;
+import eu.peppol.util.Util;
+
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves the participants in the SML, i.e. computes the host name of the SMP of a participant,
+ * <code>B-&lt;md5 of participant&gt;.&lt;scheme&gt;.&lt;sml host&gt;</code>, and looks it up in the DNS in order to
+ * determine whether the participant is registered.
+ * <p/>
+ * The host names computed are cached, as are the answers from the DNS. Participants found are remembered for the
+ * positive time to live, while participants not found are remembered for the shorter negative time to live, hence
+ * lookups of unregistered participants do not cause repeated DNS timeouts.
+ * <p/>
+ * The DNS is queried in the background, while the caller waits for no more than the configured timeout.
+ * Concurrent lookups of the same host name share a single query.
+ * <p/>
+ * Instances are shared by every {@link SmpLookupManagerImpl} of the same SML, see {@link #getInstance(SmlHost)}.
+ */
+public class SmlResolver {
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private static final int RESOLVER_THREADS = 4;
+
+    private static final ConcurrentMap<SmlHost, SmlResolver> instances = new ConcurrentHashMap<SmlHost, SmlResolver>();
+
+    private final SmlHost smlHost;
+    private final HostResolver hostResolver;
+    private final long positiveTimeToLive;
+    private final long negativeTimeToLive;
+    private final long timeoutMillis;
+    private final Executor executor;
+
+    // Guarded by itself
+    private final Map<String, String> hostnames = createLruMap();
+
+    // Guarded by itself
+    private final Map<String, Answer> answers = createLruMap();
+
+    /** DNS queries in progress, keyed by host name */
+    private final ConcurrentMap<String, FutureTask<Boolean>> queries = new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+    /** Provides the resolver of the SML, which is created upon first use */
+    public static SmlResolver getInstance(SmlHost smlHost) {
+        SmlResolver smlResolver = instances.get(smlHost);
+        if (smlResolver == null) {
+            GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+            smlResolver = new SmlResolver(smlHost, new DNSLookupHelper(),
+                    globalConfiguration.getSmlDnsPositiveTimeToLive(),
+                    globalConfiguration.getSmlDnsNegativeTimeToLive(),
+                    globalConfiguration.getSmlDnsTimeout(),
+                    createExecutor());
+            SmlResolver existing = instances.putIfAbsent(smlHost, smlResolver);
+            if (existing != null) {
+                smlResolver = existing;
+            }
+        }
+        return smlResolver;
+    }
+
+    SmlResolver(SmlHost smlHost, HostResolver hostResolver, long positiveTimeToLive, long negativeTimeToLive, long timeoutMillis, Executor executor) {
+        this.smlHost = smlHost;
+        this.hostResolver = hostResolver;
+        this.positiveTimeToLive = positiveTimeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = executor;
+    }
+
+    private static Executor createExecutor() {
+        return Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "oxalis-sml-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Computes the host name of the SMP of the participant, for instance B-a5e....iso6523-actorid-upis.sml.peppolcentral.org */
+    public String getSmpHostname(ParticipantId participantId) {
+        String value = participantId.stringValue();
+        synchronized (hostnames) {
+            String hostname = hostnames.get(value);
+            if (hostname != null) {
+                return hostname;
+            }
+        }
+
+        String hostname;
+        try {
+            hostname = "B-" + Util.calculateMD5(value.toLowerCase()) + "." + ParticipantId.getScheme() + "." + smlHost;
+        } catch (MessageDigestException e) {
+            throw new IllegalStateException("Unable to compute host name of " + value + ": " + e.getMessage(), e);
+        }
+        synchronized (hostnames) {
+            hostnames.put(value, hostname);
+        }
+        return hostname;
+    }
+
+    /**
+     * Each participant has its own sub-domain in the SML, therefore if one does not exist it means participant is
+     * not registered.
+     *
+     * @throws SmpLookupException if the DNS did not answer within the timeout
+     */
+    public boolean isRegistered(ParticipantId participantId) throws SmpLookupException {
+        try {
+            return hostExists(getSmpHostname(participantId));
+        } catch (TimeoutException e) {
+            throw new SmpLookupException(participantId, e);
+        }
+    }
+
+    boolean hostExists(final String hostname) throws TimeoutException {
+        synchronized (answers) {
+            Answer answer = answers.get(hostname);
+            if (answer != null && answer.expires > currentTimeMillis()) {
+                return answer.exists;
+            }
+        }
+
+        FutureTask<Boolean> query = queries.get(hostname);
+        if (query == null) {
+            FutureTask<Boolean> newQuery = new FutureTask<Boolean>(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    try {
+                        return query(hostname);
+                    } finally {
+                        queries.remove(hostname);
+                    }
+                }
+            });
+            query = queries.putIfAbsent(hostname, newQuery);
+            if (query == null) {
+                query = newQuery;
+                executor.execute(query);
+            }
+        }
+
+        try {
+            return query.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while resolving " + hostname, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to resolve " + hostname + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private boolean query(String hostname) {
+        boolean exists;
+        try {
+            hostResolver.resolve(hostname);
+            exists = true;
+        } catch (UnknownHostException e) {
+            exists = false;
+        }
+
+        long expires = currentTimeMillis() + (exists ? positiveTimeToLive : negativeTimeToLive);
+        synchronized (answers) {
+            answers.put(hostname, new Answer(exists, expires));
+        }
+        return exists;
+    }
+
+    /** Overridden by the tests, in order to control the passing of time */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static <V> Map<String, V> createLruMap() {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    private static final class Answer {
+        final boolean exists;
+        final long expires;
+
+        Answer(boolean exists, long expires) {
+            this.exists = exists;
+            this.expires = expires;
+        }
+    }
+}
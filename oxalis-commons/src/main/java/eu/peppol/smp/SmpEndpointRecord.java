@@ -0,0 +1,172 @@
+package eu.peppol.smp;
+
+import eu.peppol.security.CryptoBootstrap;
+import org.busdox.smp.EndpointType;
+import org.busdox.smp.ProcessType;
+import org.busdox.smp.SignedServiceMetadataType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parts of the signed service metadata of a participant and document type which we need in order to transmit,
+ * extracted once the signature has been verified: the end point of the first process, its transport profile and
+ * certificate, and the identifiers of the processes.
+ * <p/>
+ * Records are kept by the {@link SmpMetadataStore} until they expire, i.e. after the time to live of the store, or
+ * when the SMP says the service expires, whichever comes first.
+ */
+class SmpEndpointRecord {
+
+    private final String smpUrl;
+    private final String endpointAddress;
+    private final String transportProfile;
+    private final String certificate;
+    private final List<String> processIds;
+    private final long expires;
+
+    private volatile X509Certificate x509Certificate;
+
+    SmpEndpointRecord(String smpUrl, String endpointAddress, String transportProfile, String certificate, List<String> processIds, long expires) {
+        this.smpUrl = smpUrl;
+        this.endpointAddress = endpointAddress;
+        this.transportProfile = transportProfile;
+        this.certificate = certificate;
+        this.processIds = Collections.unmodifiableList(processIds);
+        this.expires = expires;
+    }
+
+    /**
+     * Extracts the end point given by
+     * <pre>
+     *     //ServiceMetadata/ServiceInformation/ProcessList/Process[0]/ServiceEndpointList/Endpoint[0]
+     * </pre>
+     *
+     * @param expires point in time after which the record is not to be used
+     */
+    static SmpEndpointRecord valueOf(String smpUrl, SignedServiceMetadataType serviceMetadata, long expires) {
+        List<ProcessType> processes = serviceMetadata.getServiceMetadata().getServiceInformation().getProcessList().getProcess();
+        EndpointType endpointType = processes.get(0).getServiceEndpointList().getEndpoint().get(0);
+
+        List<String> processIds = new ArrayList<String>(processes.size());
+        for (ProcessType process : processes) {
+            processIds.add(process.getProcessIdentifier().getValue());
+        }
+
+        if (endpointType.getServiceExpirationDate() != null) {
+            expires = Math.min(expires, endpointType.getServiceExpirationDate().toGregorianCalendar().getTimeInMillis());
+        }
+
+        return new SmpEndpointRecord(smpUrl,
+                endpointType.getEndpointReference().getAddress().getValue(),
+                endpointType.getTransportProfile(),
+                endpointType.getCertificate(),
+                processIds,
+                expires);
+    }
+
+    /** The URL of the service metadata, which identifies the participant and document type in the SML */
+    String getSmpUrl() {
+        return smpUrl;
+    }
+
+    String getEndpointAddress() {
+        return endpointAddress;
+    }
+
+    String getTransportProfile() {
+        return transportProfile;
+    }
+
+    List<String> getProcessIds() {
+        return processIds;
+    }
+
+    long getExpires() {
+        return expires;
+    }
+
+    boolean isExpired(long now) {
+        return now >= expires;
+    }
+
+    X509Certificate getX509Certificate() throws CertificateException {
+        X509Certificate result = x509Certificate;
+        if (result == null) {
+            String endpointCertificate = "-----BEGIN CERTIFICATE-----\n" + certificate + "\n-----END CERTIFICATE-----";
+            result = (X509Certificate) CryptoBootstrap.getCertificateFactory().generateCertificate(new ByteArrayInputStream(endpointCertificate.getBytes()));
+            x509Certificate = result;
+        }
+        return result;
+    }
+
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(4096);
+            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
+            dataOutputStream.writeUTF(smpUrl);
+            dataOutputStream.writeUTF(endpointAddress);
+            writeNullable(dataOutputStream, transportProfile);
+            writeNullable(dataOutputStream, certificate);
+            dataOutputStream.writeInt(processIds.size());
+            for (String processId : processIds) {
+                dataOutputStream.writeUTF(processId);
+            }
+            dataOutputStream.writeLong(expires);
+            dataOutputStream.close();
+            return byteArrayOutputStream.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode SMP record for " + smpUrl + ": " + e.getMessage(), e);
+        }
+    }
+
+    static SmpEndpointRecord decode(byte[] bytes) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(bytes));
+        String smpUrl = dataInputStream.readUTF();
+        String endpointAddress = dataInputStream.readUTF();
+        String transportProfile = readNullable(dataInputStream);
+        String certificate = readNullable(dataInputStream);
+        int processCount = dataInputStream.readInt();
+        List<String> processIds = new ArrayList<String>(processCount);
+        for (int i = 0; i < processCount; i++) {
+            processIds.add(dataInputStream.readUTF());
+        }
+        long expires = dataInputStream.readLong();
+
+        return new SmpEndpointRecord(smpUrl, endpointAddress, transportProfile, certificate, processIds, expires);
+    }
+
+    /** Strings are written with an int length, as certificates may exceed the limit of writeUTF */
+    private static void writeNullable(DataOutputStream dataOutputStream, String value) throws IOException {
+        if (value == null) {
+            dataOutputStream.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            dataOutputStream.writeInt(bytes.length);
+            dataOutputStream.write(bytes);
+        }
+    }
+
+    private static String readNullable(DataInputStream dataInputStream) throws IOException {
+        int length = dataInputStream.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        dataInputStream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    @Override
+    public String toString() {
+        return "SmpEndpointRecord{" + smpUrl + " -> " + endpointAddress + ", transportProfile=" + transportProfile + ", expires=" + expires + "}";
+    }
+}
@@ -0,0 +1,36 @@
+package eu.peppol.smp;
+
+/**
+ * Management interface of the {@link CachingSmpLookupManager}, which allows the operators to inspect the efficiency of
+ * the cache of SMP lookups and to discard entries, for instance after a receiver has changed its access point.
+ */
+public interface SmpLookupCacheMXBean {
+
+    /** Number of lookups answered by an entry within its time to live */
+    long getHitCount();
+
+    /** Number of lookups answered by an expired entry, while it was being refreshed in the background */
+    long getStaleHitCount();
+
+    /** Number of lookups which had to wait for the SMP */
+    long getMissCount();
+
+    /** Number of lookups from the SMP which failed, including background refreshes */
+    long getLoadFailureCount();
+
+    /** Average number of milliseconds spent looking up an entry from the SMP */
+    double getAverageLoadMillis();
+
+    /** Number of SMP response signatures verified */
+    long getSignatureVerificationCount();
+
+    /** Number of SMP response signature verifications avoided, as the very same response had been verified before */
+    long getAvoidedSignatureVerificationCount();
+
+    int getSize();
+
+    /** Discards every entry of the participant, i.e. the next lookup goes to the SMP */
+    void invalidate(String participantId);
+
+    void invalidateAll();
+}
@@ -28,13 +28,13 @@ import eu.peppol.identifier.PeppolProcessTypeId;
 import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
 import eu.peppol.security.SmpResponseValidator;
+import eu.peppol.security.SmpSignatureCache;
 import eu.peppol.start.identifier.*;
-import eu.peppol.util.DNSLookupHelper;
 import eu.peppol.util.GlobalConfiguration;
 import eu.peppol.util.JaxbContextCache;
+import eu.peppol.util.SingleFlight;
 import eu.peppol.util.Util;
-import org.busdox.smp.EndpointType;
-import org.busdox.smp.ProcessIdentifierType;
+import eu.peppol.util.XmlInfrastructure;
 import org.busdox.smp.SignedServiceMetadataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,18 +46,16 @@ import org.xml.sax.InputSource;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * Thread safe implementation of {@link SmpLookupManager}
@@ -76,8 +74,12 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     private JAXBContext jaxbContext;
 
     private KeystoreManager keystoreManager;
-    private DNSLookupHelper dnsLookupHelper;
-    private SmlHost smlHost;
+    private SmlResolver smlResolver;
+    private SmpMetadataStore metadataStore;
+    private long storeTimeToLive;
+
+    /** Shared by every instance, as most of them are short lived */
+    private static final SingleFlight<String, SignedServiceMetadataType> serviceMetaDataFetches = new SingleFlight<String, SignedServiceMetadataType>();
 
     public SmpLookupManagerImpl() {
         this(discoverSmlHost());
@@ -111,9 +113,23 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     }
 
     public SmpLookupManagerImpl(SmlHost smlHost) {
-        this.smlHost = smlHost;
+        this(SmlResolver.getInstance(smlHost));
+    }
+
+    /** The end points stored are never used longer than a cached lookup, which is refreshed once its time to live expires */
+    SmpLookupManagerImpl(SmlResolver smlResolver) {
+        this(smlResolver, SmpMetadataStore.getInstance(),
+                Math.min(GlobalConfiguration.getInstance().getSmpStoreTimeToLive(), GlobalConfiguration.getInstance().getSmpCacheTimeToLive()));
+    }
+
+    /**
+     * @param metadataStore store of the end points looked up, or null if they are not to be persisted
+     */
+    SmpLookupManagerImpl(SmlResolver smlResolver, SmpMetadataStore metadataStore, long storeTimeToLive) {
+        this.smlResolver = smlResolver;
+        this.metadataStore = metadataStore;
+        this.storeTimeToLive = storeTimeToLive;
         this.keystoreManager = KeystoreManager.getInstance();
-        this.dnsLookupHelper = new DNSLookupHelper();
         try {
             jaxbContext = JaxbContextCache.getInstance(SignedServiceMetadataType.class);
         } catch (JAXBException e) {
@@ -130,8 +146,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     @Override
     public URL getEndpointAddress(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
 
-        EndpointType endpointType = getEndpointType(participant, documentTypeIdentifier);
-        String address = getEndPointUrl(endpointType);
+        String address = getEndpointRecordOrFail(participant, documentTypeIdentifier).getEndpointAddress();
         Log.info("Found endpoint address for " + participant.stringValue() + " from SMP: " + address);
 
         try {
@@ -143,12 +158,12 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
 
     @Override
     public PeppolEndpointData getEndpointData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
-        EndpointType endpointType = getEndpointType(participantId, documentTypeIdentifier);
+        SmpEndpointRecord record = getEndpointRecordOrFail(participantId, documentTypeIdentifier);
 
-        String transportProfile = endpointType.getTransportProfile();
-        String address = getEndPointUrl(endpointType);
+        String transportProfile = record.getTransportProfile();
+        String address = record.getEndpointAddress();
 
-        X509Certificate x509Certificate = getX509CertificateFromEndpointType(endpointType);
+        X509Certificate x509Certificate = getX509Certificate(record);
 
         try {
             return new PeppolEndpointData(new URL(address), BusDoxProtocol.instanceFrom(transportProfile), CommonName.valueOf(x509Certificate.getSubjectX500Principal()));
@@ -157,10 +172,6 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         }
     }
 
-    private String getEndPointUrl(EndpointType endpointType) {
-        return endpointType.getEndpointReference().getAddress().getValue();
-    }
-
     /**
      * Retrieves the end point certificate for the given combination of receiving participant id and document type identifer.
      *
@@ -172,17 +183,12 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     @Override
     public X509Certificate getEndpointCertificate(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
 
-        EndpointType endpointType = getEndpointType(participant, documentTypeIdentifier);
-        return getX509CertificateFromEndpointType(endpointType);
+        return getX509Certificate(getEndpointRecordOrFail(participant, documentTypeIdentifier));
     }
 
-    private X509Certificate getX509CertificateFromEndpointType(EndpointType endpointType) {
+    private X509Certificate getX509Certificate(SmpEndpointRecord record) {
         try {
-            String body = endpointType.getCertificate();
-            String endpointCertificate = "-----BEGIN CERTIFICATE-----\n" + body + "\n-----END CERTIFICATE-----";
-            CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
-            return (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(endpointCertificate.getBytes()));
-
+            return record.getX509Certificate();
         } catch (CertificateException e) {
             throw new RuntimeException("Failed to get certificate from Endpoint data");
         }
@@ -200,7 +206,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         // Creates the URL for the service meta data for the supplied participant
         URL serviceGroupURL = getServiceGroupURL(participantId);
 
-        if (!isParticipantRegistered(serviceGroupURL)) {
+        if (!smlResolver.isRegistered(participantId)) {
             throw new ParticipantNotRegisteredException(participantId);
         }
 
@@ -211,13 +217,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         // Parses the XML response from the SMP
         try {
 
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            DocumentBuilder documentBuilder = null;
-            Document document;
-
-            documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            document = documentBuilder.parse(smpContents);
+            Document document = XmlInfrastructure.documentBuilder().parse(smpContents);
 
             // Locates the namespace URI of the root element
             String nameSpaceURI = document.getDocumentElement().getNamespaceURI();
@@ -260,12 +260,10 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     }
 
     public PeppolProcessTypeId getProcessIdentifierForDocumentType(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
-        SignedServiceMetadataType serviceMetaData = getServiceMetaData(participantId, documentTypeIdentifier);
-        // SOAP generated type...
-        ProcessIdentifierType processIdentifier = serviceMetaData.getServiceMetadata().getServiceInformation().getProcessList().getProcess().get(0).getProcessIdentifier();
+        SmpEndpointRecord record = getEndpointRecord(participantId, documentTypeIdentifier);
 
-        // Converts SOAP generated type into something nicer
-        return PeppolProcessTypeId.valueOf(processIdentifier.getValue());
+        // Converts the identifier of the first process into something nicer
+        return PeppolProcessTypeId.valueOf(record.getProcessIds().get(0));
     }
 
 
@@ -274,7 +272,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         String value = participantId.stringValue();
 
         try {
-            String hostname = "B-" + Util.calculateMD5(value.toLowerCase()) + "." + scheme + "." + smlHost;
+            String hostname = smlResolver.getSmpHostname(participantId);
 
             // Example: iso6523-actorid-upis%3A%3A9908:810017902
             String encodedParticipant = URLEncoder.encode(scheme + "::", "UTF-8") + value;
@@ -286,19 +284,11 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     }
 
 
-    /**
-     * Each participant has its own sub-domain in peppolcentral, therefore if one does not
-     * exist it means participant is not registered.
-     */
-    private boolean isParticipantRegistered(URL serviceGroupURL) {
-        return dnsLookupHelper.domainExists(serviceGroupURL);
-    }
-
-    private URL getSmpUrl(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) throws Exception {
+    URL getSmpUrl(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) throws Exception {
 
         String scheme = ParticipantId.getScheme();
         String value = participantId.stringValue();
-        String hostname = "B-" + Util.calculateMD5(value.toLowerCase()) + "." + scheme + "." + smlHost;
+        String hostname = smlResolver.getSmpHostname(participantId);
         String encodedParticipant = URLEncoder.encode(scheme + "::" + value, "UTF-8");
         String encodedDocumentId = URLEncoder.encode(PeppolDocumentTypeIdAcronym.getScheme() + "::" + documentTypeIdentifier.toString(), "UTF-8");
 
@@ -313,11 +303,34 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         } catch (Exception e) {
             throw new IllegalStateException("Unable to construct URL for " + participant + ", documentType" + documentTypeIdentifier + "; " + e.getMessage(), e);
         }
+        return getServiceMetaData(participant, documentTypeIdentifier, smpUrl);
+    }
+
+    private SignedServiceMetadataType getServiceMetaData(final ParticipantId participant, final PeppolDocumentTypeId documentTypeIdentifier, final URL smpUrl) throws SmpSignedServiceMetaDataException {
+
+        // Concurrent lookups of the same participant and document type share a single request to the SMP
+        try {
+            return serviceMetaDataFetches.execute(smpUrl.toExternalForm(), new Callable<SignedServiceMetadataType>() {
+                @Override
+                public SignedServiceMetadataType call() throws Exception {
+                    return fetchServiceMetaData(participant, documentTypeIdentifier, smpUrl);
+                }
+            });
+        } catch (SmpSignedServiceMetaDataException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, smpUrl, e);
+        }
+    }
 
-        InputSource smpContents = null;
+    private SignedServiceMetadataType fetchServiceMetaData(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier, URL smpUrl) throws SmpSignedServiceMetaDataException {
+
+        String smpContents = null;
         try {
             Log.debug("Constructed SMP url: " + smpUrl.toExternalForm());
-            smpContents = Util.getUrlContent(smpUrl);
+            smpContents = Util.getUrlContentAsString(smpUrl);
         } catch (Exception e) {
             throw new SmpSignedServiceMetaDataException(participant, documentTypeIdentifier, smpUrl, e);
         }
@@ -325,14 +338,11 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
         try {
 
             // Parses the XML response from the SMP
-            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-            documentBuilderFactory.setNamespaceAware(true);
-            DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-            Document document = documentBuilder.parse(smpContents);
+            Document document = XmlInfrastructure.documentBuilder().parse(new InputSource(new StringReader(smpContents)));
 
-            // Validates the signature
+            // Validates the signature, unless this very response has been validated before
             SmpResponseValidator smpResponseValidator = new SmpResponseValidator(document);
-            if (!smpResponseValidator.isSmpSignatureValid()) {
+            if (!SmpSignatureCache.getInstance().isSmpSignatureValid(smpContents.getBytes("UTF-8"), smpResponseValidator)) {
                 throw new IllegalStateException("SMP response contained invalid signature");
             }
 
@@ -346,7 +356,7 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
             }
 */
 
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            Unmarshaller unmarshaller = XmlInfrastructure.unmarshaller(jaxbContext);
 
             return unmarshaller.unmarshal(document, SignedServiceMetadataType.class).getValue();
         } catch (Exception e) {
@@ -355,31 +365,37 @@ public class SmpLookupManagerImpl implements SmpLookupManager {
     }
 
     /**
-     * Retrieves an instance of the complete EndpointType for a given participant and the given document type identifier.
-     * Given by the following XPath:
+     * Retrieves the end point for a given participant and the given document type identifier from the SMP, given by the
+     * following XPath:
      * <pre>
      *     //ServiceMetadata/ServiceInformation/ProcessList/Process[0]/ServiceEndpointList/Endpoint[0]
      * </pre>
-     *
-     * @param participant
-     * @param documentTypeIdentifier
-     * @return
+     * The first lookup after start up is served from the SMP store, if the end point was stored before the restart.
+     * Every other lookup goes to the SMP, as the end point or certificate may have changed since.
      */
-    private EndpointType getEndpointType(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
-
+    SmpEndpointRecord getEndpointRecord(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) throws SmpSignedServiceMetaDataException {
+        URL smpUrl;
         try {
-            SignedServiceMetadataType serviceMetadata = getServiceMetaData(participant, documentTypeIdentifier);
-
-            return serviceMetadata
-                    .getServiceMetadata()
-                    .getServiceInformation()
-                    .getProcessList()
-                    .getProcess()
-                    .get(0)
-                    .getServiceEndpointList()
-                    .getEndpoint()
-                    .get(0);
+            smpUrl = getSmpUrl(participant, documentTypeIdentifier);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to construct URL for " + participant + ", documentType" + documentTypeIdentifier + "; " + e.getMessage(), e);
+        }
 
+        String key = smpUrl.toExternalForm();
+        SmpEndpointRecord record = metadataStore != null ? metadataStore.takeWarmStartRecord(key) : null;
+        if (record == null) {
+            SignedServiceMetadataType serviceMetadata = getServiceMetaData(participant, documentTypeIdentifier, smpUrl);
+            record = SmpEndpointRecord.valueOf(key, serviceMetadata, System.currentTimeMillis() + storeTimeToLive);
+            if (metadataStore != null) {
+                metadataStore.put(record);
+            }
+        }
+        return record;
+    }
+
+    private SmpEndpointRecord getEndpointRecordOrFail(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+        try {
+            return getEndpointRecord(participant, documentTypeIdentifier);
         } catch (Exception e) {
             throw new RuntimeException("Problem with SMP lookup", e);
         }
@@ -0,0 +1,296 @@
+package eu.peppol.smp;
+
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * File backed store of the end points looked up from the SMPs, keyed by the URL of the service metadata. The file is
+ * memory mapped and loaded upon start up, hence a restarted access point resolves the receivers it already knows
+ * without going to the network. Records are not used once they have expired.
+ * <p/>
+ * The records loaded upon start up are only handed out once, by {@link #takeWarmStartRecord(String)}. Every later
+ * lookup goes to the SMP, as the end point or certificate of the receiver may have changed since, and the records
+ * written are merely kept for the next start up.
+ * <p/>
+ * Records are appended to the file, each of which is preceded by a header:
+ * <pre>
+ *     magic (4) | record length (4) | CRC32 of record (4) | record
+ * </pre>
+ * The latest record of an SMP URL supersedes the earlier ones. Once the superseded and expired records make up more
+ * than half of the file, the live records are written into a new file, which replaces the old one. As the store is
+ * merely a cache, the file is not forced to disk, and a record torn by a crash is discarded upon start up.
+ */
+class SmpMetadataStore {
+
+    public static final Logger log = LoggerFactory.getLogger(SmpMetadataStore.class);
+
+    static final int MAGIC = 0x4f58534d;
+
+    static final int HEADER_SIZE = 12;
+
+    /** Size of the file below which it is never compacted */
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private static SmpMetadataStore instance;
+    private static boolean opened;
+    private static String openedFileName;
+
+    private final File file;
+
+    private final ConcurrentMap<String, SmpEndpointRecord> records = new ConcurrentHashMap<String, SmpEndpointRecord>();
+
+    /** The records loaded upon start up, which have not been handed out yet */
+    private final ConcurrentMap<String, SmpEndpointRecord> warmStartRecords = new ConcurrentHashMap<String, SmpEndpointRecord>();
+
+    // Guarded by this
+    private final Map<String, Integer> recordSizes = new HashMap<String, Integer>();
+    private FileChannel channel;
+    private long fileSize;
+    private long liveBytes;
+
+    /**
+     * Provides the store of the access point, which is opened upon first use, and opened once more if another file
+     * has been configured since.
+     *
+     * @return the store, or null if disabled or unavailable, in which case the SMP lookups are not persisted
+     */
+    static synchronized SmpMetadataStore getInstance() {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        String fileName = globalConfiguration.isSmpStoreEnabled() ? globalConfiguration.getSmpStoreFile() : null;
+        if (opened && (fileName == null ? openedFileName == null : fileName.equals(openedFileName))) {
+            return instance;
+        }
+
+        if (instance != null) {
+            try {
+                instance.close();
+            } catch (IOException e) {
+                log.warn("Unable to close SMP store " + openedFileName + ": " + e.getMessage());
+            }
+            instance = null;
+        }
+        opened = true;
+        openedFileName = fileName;
+        if (fileName != null) {
+            File file = new File(fileName);
+            try {
+                instance = new SmpMetadataStore(file);
+                log.info("Loaded " + instance.size() + " SMP lookups from " + file);
+            } catch (IOException e) {
+                log.warn("Unable to open SMP store " + file + ", SMP lookups will not be persisted: " + e.getMessage(), e);
+            }
+        }
+        return instance;
+    }
+
+    SmpMetadataStore(File file) throws IOException {
+        this.file = file;
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        load();
+    }
+
+    private synchronized void load() throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        long size = channel.size();
+        long position = 0;
+
+        if (size > 0) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                long now = System.currentTimeMillis();
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    int magic = buffer.getInt();
+                    int length = buffer.getInt();
+                    int crc = buffer.getInt();
+                    if (magic != MAGIC || length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    if (crc32(bytes) != crc) {
+                        break;
+                    }
+                    position = buffer.position();
+
+                    SmpEndpointRecord record = SmpEndpointRecord.decode(bytes);
+                    if (record.isExpired(now)) {
+                        remove(record.getSmpUrl());
+                    } else {
+                        add(record, HEADER_SIZE + length);
+                    }
+                }
+            } finally {
+                // The file may not be truncated, nor replaced upon compaction, while mapped on some platforms
+                unmap(buffer);
+            }
+            warmStartRecords.putAll(records);
+
+            if (position < size) {
+                log.warn("Discarding " + (size - position) + " unreadable bytes at the end of " + file);
+                channel.truncate(position);
+            }
+        }
+
+        channel.position(position);
+        fileSize = position;
+    }
+
+    /**
+     * Hands out the record of the SMP URL loaded upon start up, which is only done once.
+     *
+     * @return the record, or null if not loaded upon start up, already handed out or expired
+     */
+    SmpEndpointRecord takeWarmStartRecord(String smpUrl) {
+        SmpEndpointRecord record = warmStartRecords.remove(smpUrl);
+        if (record == null || record.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return record;
+    }
+
+    /** @return the latest record of the SMP URL, unless unknown or expired */
+    SmpEndpointRecord get(String smpUrl) {
+        SmpEndpointRecord record = records.get(smpUrl);
+        if (record == null || record.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return record;
+    }
+
+    /** Appends the record to the file, superseding any earlier record of the same SMP URL */
+    synchronized void put(SmpEndpointRecord record) {
+        byte[] bytes = record.encode();
+        try {
+            write(channel, bytes);
+        } catch (IOException e) {
+            log.warn("Unable to write " + record + " to " + file + ": " + e.getMessage());
+            return;
+        }
+        fileSize += HEADER_SIZE + bytes.length;
+        add(record, HEADER_SIZE + bytes.length);
+        warmStartRecords.remove(record.getSmpUrl());
+
+        if (fileSize > COMPACTION_THRESHOLD && fileSize > 2 * liveBytes) {
+            try {
+                compact();
+            } catch (IOException e) {
+                log.warn("Unable to compact " + file + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void add(SmpEndpointRecord record, int size) {
+        remove(record.getSmpUrl());
+        records.put(record.getSmpUrl(), record);
+        recordSizes.put(record.getSmpUrl(), size);
+        liveBytes += size;
+    }
+
+    private void remove(String smpUrl) {
+        records.remove(smpUrl);
+        Integer size = recordSizes.remove(smpUrl);
+        if (size != null) {
+            liveBytes -= size;
+        }
+    }
+
+    /** Writes the live records into a new file, which replaces the current one */
+    synchronized void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        File compactedFile = new File(file.getPath() + ".tmp");
+        FileChannel compactedChannel = new RandomAccessFile(compactedFile, "rw").getChannel();
+        try {
+            compactedChannel.truncate(0);
+            for (SmpEndpointRecord record : records.values()) {
+                if (record.isExpired(now)) {
+                    remove(record.getSmpUrl());
+                } else {
+                    write(compactedChannel, record.encode());
+                }
+            }
+            compactedChannel.force(true);
+        } finally {
+            compactedChannel.close();
+        }
+
+        channel.close();
+        if (!compactedFile.renameTo(file)) {
+            file.delete();
+            if (!compactedFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + compactedFile + " to " + file);
+            }
+        }
+
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        fileSize = channel.size();
+        channel.position(fileSize);
+    }
+
+    private static void write(FileChannel fileChannel, byte[] bytes) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(bytes.length).putInt(crc32(bytes));
+        header.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[]{header, ByteBuffer.wrap(bytes)};
+        long remaining = HEADER_SIZE + bytes.length;
+        while (remaining > 0) {
+            remaining -= fileChannel.write(buffers);
+        }
+    }
+
+    /**
+     * Releases the mapping at once, rather than when the buffer is garbage collected. There is no public API for this,
+     * hence the cleaner of the JDK is invoked, if available.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method cleanMethod = cleaner.getClass().getMethod("clean");
+                cleanMethod.setAccessible(true);
+                cleanMethod.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Unable to unmap SMP store, released upon garbage collection: " + e.getMessage());
+        }
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes);
+        return (int) crc32.getValue();
+    }
+
+    int size() {
+        return records.size();
+    }
+
+    long getFileSize() {
+        synchronized (this) {
+            return fileSize;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+}
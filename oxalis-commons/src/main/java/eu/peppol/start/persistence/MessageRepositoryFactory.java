@@ -1,5 +1,6 @@
 package eu.peppol.start.persistence;
 
+import eu.peppol.persistence.JournalMessageRepository;
 import eu.peppol.persistence.MessageRepository;
 import eu.peppol.persistence.SimpleMessageRepository;
 import eu.peppol.util.GlobalConfiguration;
@@ -68,7 +69,8 @@ public class MessageRepositoryFactory {
 
     /**
      * Creates a ServiceLoader and attempts to load a custom implementation of MessageRepository.
-     * If custom implementations are not available, the simple default file based repository is used.
+     * If custom implementations are not available, the simple default file based repository is used, or the journal
+     * based repository if <code>oxalis.inbound.journal</code> is true.
      *
      * @return an implementation MessageRepository
      */
@@ -83,8 +85,13 @@ public class MessageRepositoryFactory {
         }
 
         if (messageRepositoryImplementations.isEmpty()) {
+            GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+            if (globalConfiguration.isInboundJournalEnabled()) {
+                log.warn("No custom implementation of MessageFactory found, reverting to JournalMessageRepository.");
+                return new JournalMessageRepository(globalConfiguration);
+            }
             log.warn("No custom implementation of MessageFactory found, reverting to SimpleMessageRepository.");
-            return new SimpleMessageRepository(GlobalConfiguration.getInstance());
+            return new SimpleMessageRepository(globalConfiguration);
         }
 
         if (messageRepositoryImplementations.size() > 1) {
@@ -1,8 +1,8 @@
 package eu.peppol.statistics;
 
 import com.sun.xml.txw2.output.IndentingXMLStreamWriter;
+import eu.peppol.util.XmlInfrastructure;
 
-import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import java.io.OutputStream;
@@ -29,10 +29,8 @@ public class StatisticsToXmlTransformer implements StatisticsTransformer {
 
     @Override
     public void startStatistics(Date start, Date end) {
-        XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-
         try {
-            xmlStreamWriter = new IndentingXMLStreamWriter(xmlOutputFactory.createXMLStreamWriter(outputStream));
+            xmlStreamWriter = new IndentingXMLStreamWriter(XmlInfrastructure.xmlOutputFactory().createXMLStreamWriter(outputStream));
             xmlStreamWriter.writeStartDocument("UTF-8", "1.0");
             // TODO: consider the use of a name space?
             xmlStreamWriter.writeStartElement(STATISTICS_DOCUMENT_START_ELEMENT_NAME);
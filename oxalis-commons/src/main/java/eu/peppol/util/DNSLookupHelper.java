@@ -9,7 +9,7 @@ import java.net.UnknownHostException;
  * Date: 6/3/13
  * Time: 2:35 PM
  */
-public class DNSLookupHelper {
+public class DNSLookupHelper implements HostResolver {
 
     /**
      * Checks if given domain exists
@@ -26,4 +26,9 @@ public class DNSLookupHelper {
             return false;
         }
     }
+
+    @Override
+    public InetAddress[] resolve(String hostname) throws UnknownHostException {
+        return InetAddress.getAllByName(hostname);
+    }
 }
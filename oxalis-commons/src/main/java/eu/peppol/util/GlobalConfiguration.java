@@ -80,6 +80,10 @@ public enum GlobalConfiguration {
     private void createPropertiesWithReasonableDefaults() {
         properties = new Properties(PropertyDef.getDefaultPropertyValues());
         properties.setProperty(KEYSTORE_PATH.getPropertyName(), oxalisHomeDirectory + "/oxalis-keystore.jks");
+        properties.setProperty(OUTBOUND_SPOOL_DIRECTORY.getPropertyName(), oxalisHomeDirectory + "/outbound-spool");
+        properties.setProperty(INBOUND_DUPLICATE_INDEX_DIRECTORY.getPropertyName(), oxalisHomeDirectory + "/inbound-duplicates");
+        properties.setProperty(INBOUND_JOURNAL_DIRECTORY.getPropertyName(), oxalisHomeDirectory + "/inbound-journal");
+        properties.setProperty(SMP_STORE_FILE.getPropertyName(), oxalisHomeDirectory + "/smp-metadata.dat");
     }
 
     synchronized void verifyProperties() {
@@ -210,6 +214,166 @@ public enum GlobalConfiguration {
         return Integer.parseInt(READ_TIMEOUT.getValue(properties));
     }
 
+    public Integer getHttpPoolMaxTotal() {
+        return Integer.parseInt(HTTP_POOL_MAX_TOTAL.getValue(properties));
+    }
+
+    public Integer getHttpPoolMaxPerRoute() {
+        return Integer.parseInt(HTTP_POOL_MAX_PER_ROUTE.getValue(properties));
+    }
+
+    public Long getHttpPoolIdleTimeout() {
+        return Long.parseLong(HTTP_POOL_IDLE_TIMEOUT.getValue(properties));
+    }
+
+    public Integer getOutboundAsyncThreads() {
+        return Integer.parseInt(OUTBOUND_ASYNC_THREADS.getValue(properties));
+    }
+
+    public Integer getOutboundAsyncQueueSize() {
+        return Integer.parseInt(OUTBOUND_ASYNC_QUEUE_SIZE.getValue(properties));
+    }
+
+    public Integer getOutboundBatchThreads() {
+        return Integer.parseInt(OUTBOUND_BATCH_THREADS.getValue(properties));
+    }
+
+    public Integer getOutboundBatchMaxPerDestination() {
+        return Integer.parseInt(OUTBOUND_BATCH_MAX_PER_DESTINATION.getValue(properties));
+    }
+
+    public String getOutboundSpoolDirectory() {
+        return OUTBOUND_SPOOL_DIRECTORY.getValue(properties);
+    }
+
+    public Integer getOutboundSpoolThreads() {
+        return Integer.parseInt(OUTBOUND_SPOOL_THREADS.getValue(properties));
+    }
+
+    public Integer getOutboundSpoolMaxPerDestination() {
+        return Integer.parseInt(OUTBOUND_SPOOL_MAX_PER_DESTINATION.getValue(properties));
+    }
+
+    public Long getOutboundSpoolRetryDelay() {
+        return Long.parseLong(OUTBOUND_SPOOL_RETRY_DELAY.getValue(properties));
+    }
+
+    public Long getOutboundSpoolRetryMaxDelay() {
+        return Long.parseLong(OUTBOUND_SPOOL_RETRY_MAX_DELAY.getValue(properties));
+    }
+
+    public Integer getOutboundSpoolMaxAttempts() {
+        return Integer.parseInt(OUTBOUND_SPOOL_MAX_ATTEMPTS.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerWindowSize() {
+        return Integer.parseInt(CIRCUIT_BREAKER_WINDOW_SIZE.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerMinimumCalls() {
+        return Integer.parseInt(CIRCUIT_BREAKER_MINIMUM_CALLS.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerFailureRate() {
+        return Integer.parseInt(CIRCUIT_BREAKER_FAILURE_RATE.getValue(properties));
+    }
+
+    public Long getCircuitBreakerSlowCallDuration() {
+        return Long.parseLong(CIRCUIT_BREAKER_SLOW_CALL_DURATION.getValue(properties));
+    }
+
+    public Integer getCircuitBreakerSlowCallRate() {
+        return Integer.parseInt(CIRCUIT_BREAKER_SLOW_CALL_RATE.getValue(properties));
+    }
+
+    public Long getCircuitBreakerOpenDuration() {
+        return Long.parseLong(CIRCUIT_BREAKER_OPEN_DURATION.getValue(properties));
+    }
+
+    public Integer getInboundAs2Threads() {
+        return Integer.parseInt(INBOUND_AS2_THREADS.getValue(properties));
+    }
+
+    public Integer getInboundAs2QueueSize() {
+        return Integer.parseInt(INBOUND_AS2_QUEUE_SIZE.getValue(properties));
+    }
+
+    public Integer getInboundAs2RetryAfter() {
+        return Integer.parseInt(INBOUND_AS2_RETRY_AFTER.getValue(properties));
+    }
+
+    public Long getInboundAs2Timeout() {
+        return Long.parseLong(INBOUND_AS2_TIMEOUT.getValue(properties));
+    }
+
+    public String getInboundDuplicateIndexDirectory() {
+        return INBOUND_DUPLICATE_INDEX_DIRECTORY.getValue(properties);
+    }
+
+    public Long getInboundDuplicateRetention() {
+        return Long.parseLong(INBOUND_DUPLICATE_RETENTION.getValue(properties));
+    }
+
+    public Integer getInboundDuplicateExpectedMessages() {
+        return Integer.parseInt(INBOUND_DUPLICATE_EXPECTED_MESSAGES.getValue(properties));
+    }
+
+    public boolean isInboundJournalEnabled() {
+        return Boolean.valueOf(INBOUND_JOURNAL.getValue(properties));
+    }
+
+    public String getInboundJournalDirectory() {
+        return INBOUND_JOURNAL_DIRECTORY.getValue(properties);
+    }
+
+    public Long getInboundJournalSegmentSize() {
+        return Long.parseLong(INBOUND_JOURNAL_SEGMENT_SIZE.getValue(properties));
+    }
+
+    public Long getInboundJournalCommitInterval() {
+        return Long.parseLong(INBOUND_JOURNAL_COMMIT_INTERVAL.getValue(properties));
+    }
+
+    public Integer getSmpCacheSize() {
+        return Integer.parseInt(SMP_CACHE_SIZE.getValue(properties));
+    }
+
+    public Long getSmpCacheTimeToLive() {
+        return Long.parseLong(SMP_CACHE_TTL.getValue(properties));
+    }
+
+    public Long getSmpCacheStalePeriod() {
+        return Long.parseLong(SMP_CACHE_STALE_PERIOD.getValue(properties));
+    }
+
+    public Long getSmlDnsPositiveTimeToLive() {
+        return Long.parseLong(SML_DNS_POSITIVE_TTL.getValue(properties));
+    }
+
+    public Long getSmlDnsNegativeTimeToLive() {
+        return Long.parseLong(SML_DNS_NEGATIVE_TTL.getValue(properties));
+    }
+
+    public Long getSmlDnsTimeout() {
+        return Long.parseLong(SML_DNS_TIMEOUT.getValue(properties));
+    }
+
+    public boolean isSmpStoreEnabled() {
+        return Boolean.valueOf(SMP_STORE.getValue(properties));
+    }
+
+    public String getSmpStoreFile() {
+        return SMP_STORE_FILE.getValue(properties);
+    }
+
+    public void setSmpStoreFile(String fileName) {
+        properties.setProperty(SMP_STORE_FILE.getPropertyName(), fileName);
+    }
+
+    public Long getSmpStoreTimeToLive() {
+        return Long.parseLong(SMP_STORE_TTL.getValue(properties));
+    }
+
     public File getOxalisHomeDir() {
         return oxalisHomeDirectory;
     }
@@ -327,6 +491,214 @@ public enum GlobalConfiguration {
          */
         READ_TIMEOUT("oxalis.read.timeout", false, "5000"),
 
+        /**
+         * Maximum number of pooled outbound http connections in total, i.e. for all receiving access points.
+         */
+        HTTP_POOL_MAX_TOTAL("oxalis.http.pool.max.total", false, "100"),
+
+        /**
+         * Maximum number of pooled outbound http connections to a single receiving access point.
+         */
+        HTTP_POOL_MAX_PER_ROUTE("oxalis.http.pool.max.per.route", false, "10"),
+
+        /**
+         * Number of milliseconds a pooled outbound http connection may be idle before it is closed.
+         * This is also the longest time a connection is kept alive, regardless of what the server says.
+         */
+        HTTP_POOL_IDLE_TIMEOUT("oxalis.http.pool.idle.timeout", false, "30000"),
+
+        /**
+         * Number of threads performing asynchronous outbound transmissions.
+         */
+        OUTBOUND_ASYNC_THREADS("oxalis.outbound.async.threads", false, "10"),
+
+        /**
+         * Number of asynchronous outbound transmissions allowed to wait for a thread. Transmissions are rejected
+         * when the queue is full.
+         */
+        OUTBOUND_ASYNC_QUEUE_SIZE("oxalis.outbound.async.queue.size", false, "1000"),
+
+        /**
+         * Number of threads transmitting a batch of messages, see Transmitter#transmitAll
+         */
+        OUTBOUND_BATCH_THREADS("oxalis.outbound.batch.threads", false, "20"),
+
+        /**
+         * Maximum number of concurrent transmissions of a batch to a single receiving access point.
+         */
+        OUTBOUND_BATCH_MAX_PER_DESTINATION("oxalis.outbound.batch.max.per.destination", false, "2"),
+
+        /**
+         * Directory holding the durable spool of outbound transmissions. Default is the directory "outbound-spool"
+         * in the Oxalis home directory.
+         */
+        OUTBOUND_SPOOL_DIRECTORY("oxalis.outbound.spool.dir", false),
+
+        /**
+         * Number of threads transmitting messages from the outbound spool.
+         */
+        OUTBOUND_SPOOL_THREADS("oxalis.outbound.spool.threads", false, "10"),
+
+        /**
+         * Maximum number of concurrent transmissions from the outbound spool to a single receiving access point.
+         */
+        OUTBOUND_SPOOL_MAX_PER_DESTINATION("oxalis.outbound.spool.max.per.destination", false, "2"),
+
+        /**
+         * Number of milliseconds to wait before retrying a failed transmission from the outbound spool. The delay
+         * is doubled for every consecutive failure to deliver to the same access point.
+         */
+        OUTBOUND_SPOOL_RETRY_DELAY("oxalis.outbound.spool.retry.delay", false, "30000"),
+
+        /**
+         * Upper limit in milliseconds of the delay between retries of transmissions from the outbound spool.
+         */
+        OUTBOUND_SPOOL_RETRY_MAX_DELAY("oxalis.outbound.spool.retry.max.delay", false, "3600000"),
+
+        /**
+         * Number of attempts to deliver a message from the outbound spool, before giving up.
+         */
+        OUTBOUND_SPOOL_MAX_ATTEMPTS("oxalis.outbound.spool.max.attempts", false, "20"),
+
+        /**
+         * Number of recent transmissions to each receiving access point, from which the failure rate is computed.
+         */
+        CIRCUIT_BREAKER_WINDOW_SIZE("oxalis.circuit.breaker.window.size", false, "20"),
+
+        /**
+         * Minimum number of recent transmissions to an access point, before the failure rate is considered.
+         */
+        CIRCUIT_BREAKER_MINIMUM_CALLS("oxalis.circuit.breaker.minimum.calls", false, "5"),
+
+        /**
+         * Percentage of failed transmissions, which makes us stop sending to the access point for a while.
+         */
+        CIRCUIT_BREAKER_FAILURE_RATE("oxalis.circuit.breaker.failure.rate", false, "50"),
+
+        /**
+         * Number of milliseconds after which a transmission is considered slow.
+         */
+        CIRCUIT_BREAKER_SLOW_CALL_DURATION("oxalis.circuit.breaker.slow.call.duration", false, "10000"),
+
+        /**
+         * Percentage of slow transmissions, which makes us stop sending to the access point for a while.
+         */
+        CIRCUIT_BREAKER_SLOW_CALL_RATE("oxalis.circuit.breaker.slow.call.rate", false, "80"),
+
+        /**
+         * Number of milliseconds to stop sending to an access point, before a single probe transmission is let through.
+         */
+        CIRCUIT_BREAKER_OPEN_DURATION("oxalis.circuit.breaker.open.duration", false, "60000"),
+
+        /**
+         * Number of threads processing inbound AS2 messages, i.e. parsing, verifying, persisting and signing the MDN.
+         */
+        INBOUND_AS2_THREADS("oxalis.inbound.as2.threads", false, "20"),
+
+        /**
+         * Number of inbound AS2 messages allowed to wait for a thread. Messages are rejected with http status 503
+         * when the queue is full.
+         */
+        INBOUND_AS2_QUEUE_SIZE("oxalis.inbound.as2.queue.size", false, "100"),
+
+        /**
+         * Number of seconds given in the Retry-After header, when an inbound AS2 message is rejected.
+         */
+        INBOUND_AS2_RETRY_AFTER("oxalis.inbound.as2.retry.after", false, "30"),
+
+        /**
+         * Number of milliseconds allowed for processing an inbound AS2 message, queueing included.
+         */
+        INBOUND_AS2_TIMEOUT("oxalis.inbound.as2.timeout", false, "300000"),
+
+        /**
+         * Directory holding the MDNs returned for inbound AS2 messages, which are replayed when a message is
+         * retransmitted. Default is the directory "inbound-duplicates" in the Oxalis home directory.
+         */
+        INBOUND_DUPLICATE_INDEX_DIRECTORY("oxalis.inbound.duplicate.index.dir", false),
+
+        /**
+         * Number of milliseconds a received AS2 message is remembered, in order to recognise retransmissions.
+         */
+        INBOUND_DUPLICATE_RETENTION("oxalis.inbound.duplicate.retention", false, "604800000"),
+
+        /**
+         * Number of AS2 messages expected to be received within the retention period, which sizes the Bloom filter
+         * of the duplicate message index.
+         */
+        INBOUND_DUPLICATE_EXPECTED_MESSAGES("oxalis.inbound.duplicate.expected.messages", false, "1000000"),
+
+        /**
+         * Persist inbound messages through a write-ahead journal with group commit, from which they are moved into
+         * the inbound message store, rather than writing them directly into the store.
+         */
+        INBOUND_JOURNAL("oxalis.inbound.journal", false, "false"),
+
+        /**
+         * Directory holding the segments of the inbound message journal. Default is the directory "inbound-journal"
+         * in the Oxalis home directory.
+         */
+        INBOUND_JOURNAL_DIRECTORY("oxalis.inbound.journal.dir", false),
+
+        /**
+         * Number of bytes after which a new segment of the inbound message journal is started.
+         */
+        INBOUND_JOURNAL_SEGMENT_SIZE("oxalis.inbound.journal.segment.size", false, "67108864"),
+
+        /**
+         * Number of milliseconds the inbound message journal waits for more messages, before forcing them to disk
+         * in a single commit.
+         */
+        INBOUND_JOURNAL_COMMIT_INTERVAL("oxalis.inbound.journal.commit.interval", false, "2"),
+
+        /**
+         * Maximum number of SMP lookups cached, after which the least recently used lookups are evicted.
+         */
+        SMP_CACHE_SIZE("oxalis.smp.cache.size", false, "10000"),
+
+        /**
+         * Number of milliseconds a cached SMP lookup is used, before it is refreshed.
+         */
+        SMP_CACHE_TTL("oxalis.smp.cache.ttl", false, "900000"),
+
+        /**
+         * Number of milliseconds an expired SMP lookup is still used, while it is being refreshed in the background.
+         */
+        SMP_CACHE_STALE_PERIOD("oxalis.smp.cache.stale.period", false, "3600000"),
+
+        /**
+         * Number of milliseconds a participant found in the SML is remembered.
+         */
+        SML_DNS_POSITIVE_TTL("oxalis.sml.dns.positive.ttl", false, "600000"),
+
+        /**
+         * Number of milliseconds a participant not found in the SML is remembered.
+         */
+        SML_DNS_NEGATIVE_TTL("oxalis.sml.dns.negative.ttl", false, "60000"),
+
+        /**
+         * Number of milliseconds to wait for the DNS, when looking up a participant in the SML.
+         */
+        SML_DNS_TIMEOUT("oxalis.sml.dns.timeout", false, "5000"),
+
+        /**
+         * Keep the end points looked up from the SMPs in a file, which is loaded upon start up, hence the known
+         * receivers are resolved without going to the network after a restart.
+         */
+        SMP_STORE("oxalis.smp.store", false, "true"),
+
+        /**
+         * File holding the end points looked up from the SMPs. Default is the file "smp-metadata.dat" in the Oxalis
+         * home directory.
+         */
+        SMP_STORE_FILE("oxalis.smp.store.file", false),
+
+        /**
+         * Number of milliseconds an end point kept in the SMP store may be used after a restart, before it is looked
+         * up again. Never longer than oxalis.smp.cache.ttl.
+         */
+        SMP_STORE_TTL("oxalis.smp.store.ttl", false, "900000"),
+
         /**
          * Will override SML hostname if defined in properties file. Makes it possible to route trafic to other SMLs
          * than the official SMLs.
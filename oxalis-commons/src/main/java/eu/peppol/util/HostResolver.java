@@ -0,0 +1,15 @@
+package eu.peppol.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names into addresses, which allows the tests to replace the DNS with a local stub.
+ */
+public interface HostResolver {
+
+    /**
+     * @throws UnknownHostException if the host name does not exist
+     */
+    InetAddress[] resolve(String hostname) throws UnknownHostException;
+}
@@ -0,0 +1,79 @@
+package eu.peppol.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent invocations of the same operation, i.e. with the same key. The first caller performs the
+ * operation, while every caller arriving before it has completed waits for, and receives, the same result. Should the
+ * operation fail, every caller receives the same exception.
+ * <p/>
+ * Results are not remembered once the operation has completed, callers arriving later perform the operation again.
+ * <pre>
+ *     SignedServiceMetadataType metadata = singleFlight.execute(smpUrl.toExternalForm(), new Callable&lt;...&gt;() {
+ *         ... fetch from the SMP
+ *     });
+ * </pre>
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Performs the operation, unless the operation of the same key is already being performed by another thread, in
+     * which case its result is awaited.
+     *
+     * @throws Exception the exception thrown by the operation
+     */
+    public V execute(K key, Callable<V> operation) throws Exception {
+        FutureTask<V> call = inFlight.get(key);
+        boolean leader = false;
+        if (call == null) {
+            FutureTask<V> newCall = new FutureTask<V>(operation);
+            call = inFlight.putIfAbsent(key, newCall);
+            if (call == null) {
+                call = newCall;
+                leader = true;
+            }
+        }
+
+        if (leader) {
+            try {
+                call.run();
+            } finally {
+                inFlight.remove(key, call);
+            }
+        } else {
+            sharedCount.incrementAndGet();
+        }
+
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Operation for " + key + " failed: " + cause, cause);
+        }
+    }
+
+    /** Number of callers which received the result of an operation performed by another thread */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    /** Number of operations currently being performed */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -1,14 +1,16 @@
 package eu.peppol.util;
 
+import eu.peppol.security.CryptoBootstrap;
 import org.xml.sax.InputSource;
 
 import java.io.*;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
 
@@ -27,20 +29,21 @@ public class Util {
 
     public static String calculateMD5(String value) throws MessageDigestException {
 
-        MessageDigest messageDigest = null;
+        MessageDigest messageDigest;
         try {
-            messageDigest = MessageDigest.getInstance(ALGORITHM_MD5);
-        } catch (NoSuchAlgorithmException e) {
+            messageDigest = CryptoBootstrap.acquireMessageDigest(ALGORITHM_MD5);
+        } catch (IllegalStateException e) {
             throw new MessageDigestException(value, e);
         }
-        messageDigest.reset();
+        byte[] digest;
         try {
             messageDigest.update(value.getBytes("iso-8859-1"), 0, value.length());
+            digest = messageDigest.digest();
         } catch (UnsupportedEncodingException e) {
             throw new MessageDigestException(value, e);
-
+        } finally {
+            CryptoBootstrap.release(messageDigest);
         }
-        byte[] digest = messageDigest.digest();
         StringBuilder sb = new StringBuilder();
 
         for (byte b : digest) {
@@ -56,17 +59,27 @@ public class Util {
         return sb.toString();
     }
 
-    public static byte[] calculateSHA256(byte[] data) throws NoSuchAlgorithmException {
-        MessageDigest messageDigest = null;
-        messageDigest = MessageDigest.getInstance(ALGORITHM_SHA256);
-        messageDigest.update(data, 0, data.length);
-        return messageDigest.digest();
+    public static byte[] calculateSHA256(byte[] data) {
+        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest(ALGORITHM_SHA256);
+        try {
+            messageDigest.update(data, 0, data.length);
+            return messageDigest.digest();
+        } finally {
+            CryptoBootstrap.release(messageDigest);
+        }
     }
 
     /**
      * Gets the content of a given url.
      */
     public static InputSource getUrlContent(URL url) {
+        return new InputSource(new StringReader(getUrlContentAsString(url)));
+    }
+
+    /**
+     * Gets the content of a given url, decoded as UTF-8.
+     */
+    public static String getUrlContentAsString(URL url) {
 
         HttpURLConnection httpURLConnection = null;
         try {
@@ -99,9 +112,7 @@ public class Util {
                 result = in;
             }
 
-            String xml = readInputStreamIntoString(result);
-
-            return new InputSource(new StringReader(xml));
+            return readInputStreamIntoString(result);
 
         } catch (Exception e) {
             throw new RuntimeException("Problem reading URL data at " + url.toExternalForm(), e);
@@ -150,4 +161,31 @@ public class Util {
         return byteArrayOutputStream.toByteArray();
     }
 
+    /**
+     * Forces the entries of the directory to disk, i.e. files which have been created, renamed or removed, which
+     * a sync of the files themselves does not. Directories may only be opened with the NIO.2 API of Java 7, which
+     * is invoked reflectively; on Java 6, and on platforms which do not permit directories to be opened, nothing is
+     * done.
+     */
+    public static void syncDirectory(File directory) throws IOException {
+        FileChannel fileChannel;
+        try {
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> openOptionClass = Class.forName("java.nio.file.OpenOption");
+            Object options = Array.newInstance(openOptionClass, 1);
+            Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+
+            Object path = File.class.getMethod("toPath").invoke(directory);
+            fileChannel = (FileChannel) FileChannel.class.getMethod("open", pathClass, options.getClass()).invoke(null, path, options);
+        } catch (Exception e) {
+            // Java 6, or a platform on which directories may not be opened
+            return;
+        }
+        try {
+            fileChannel.force(true);
+        } finally {
+            fileChannel.close();
+        }
+    }
+
 }
@@ -0,0 +1,213 @@
+package eu.peppol.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import javax.xml.xpath.XPathFactoryConfigurationException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Provides the XML factories and the parsers, transformers etc. used when processing every message.
+ * <p/>
+ * The factories are located by the service loader and configured once, rather than for every message. They are
+ * hardened, i.e. secure processing is enabled and external entities and DTDs are not loaded, hence an incoming
+ * document cannot make us read local files or go to the network.
+ * <p/>
+ * The {@link DocumentBuilder}, {@link XPath}, {@link Transformer} and {@link Unmarshaller} are not thread safe, hence
+ * every thread has its own instance. The instance is reset each time it is handed out, i.e. the caller receives it in
+ * the state in which it was created, and must not hold on to it beyond the current operation:
+ * <pre>
+ *     Document document = XmlInfrastructure.documentBuilder().parse(inputStream);
+ * </pre>
+ */
+public class XmlInfrastructure {
+
+    public static final Logger log = LoggerFactory.getLogger(XmlInfrastructure.class);
+
+    private static final DocumentBuilderFactory namespaceAwareDocumentBuilderFactory = createDocumentBuilderFactory(true);
+    private static final DocumentBuilderFactory documentBuilderFactory = createDocumentBuilderFactory(false);
+    private static final XPathFactory xPathFactory = createXPathFactory();
+    private static final TransformerFactory transformerFactory = createTransformerFactory();
+    private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    private static final ThreadLocal<DocumentBuilder> namespaceAwareDocumentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            return createDocumentBuilder(namespaceAwareDocumentBuilderFactory);
+        }
+    };
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            return createDocumentBuilder(documentBuilderFactory);
+        }
+    };
+
+    private static final ThreadLocal<XPath> xPaths = new ThreadLocal<XPath>() {
+        @Override
+        protected XPath initialValue() {
+            return xPathFactory.newXPath();
+        }
+    };
+
+    private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            return createTransformer();
+        }
+    };
+
+    /** Output properties of a newly created identity transformer */
+    private static final Properties identityOutputProperties = createTransformer().getOutputProperties();
+
+    /** The unmarshallers of the current thread, keyed by the JAXB context from which they were created */
+    private static final ThreadLocal<Map<JAXBContext, Unmarshaller>> unmarshallers = new ThreadLocal<Map<JAXBContext, Unmarshaller>>() {
+        @Override
+        protected Map<JAXBContext, Unmarshaller> initialValue() {
+            return new IdentityHashMap<JAXBContext, Unmarshaller>();
+        }
+    };
+
+    private XmlInfrastructure() {
+    }
+
+    /** @return the namespace aware document builder of the current thread */
+    public static DocumentBuilder documentBuilder() {
+        return documentBuilder(true);
+    }
+
+    /** @return the document builder of the current thread, which is namespace aware if so requested */
+    public static DocumentBuilder documentBuilder(boolean namespaceAware) {
+        DocumentBuilder documentBuilder = namespaceAware ? namespaceAwareDocumentBuilders.get() : documentBuilders.get();
+        documentBuilder.reset();
+        return documentBuilder;
+    }
+
+    /** @return the XPath of the current thread, without any namespace context */
+    public static XPath xPath() {
+        XPath xPath = xPaths.get();
+        xPath.reset();
+        return xPath;
+    }
+
+    /** @return the identity transformer of the current thread, without any output properties or parameters */
+    public static Transformer transformer() {
+        Transformer transformer = transformers.get();
+        transformer.reset();
+
+        // The transformer of the JDK restores the output properties to the ones set after the previous reset
+        if (!identityOutputProperties.equals(transformer.getOutputProperties())) {
+            transformer = createTransformer();
+            transformers.set(transformer);
+        }
+        return transformer;
+    }
+
+    /** @return the unmarshaller of the current thread for the supplied JAXB context, without schema or event handler */
+    public static Unmarshaller unmarshaller(JAXBContext jaxbContext) {
+        Map<JAXBContext, Unmarshaller> unmarshallersOfThread = unmarshallers.get();
+        Unmarshaller unmarshaller = unmarshallersOfThread.get(jaxbContext);
+        try {
+            if (unmarshaller == null) {
+                unmarshaller = jaxbContext.createUnmarshaller();
+                unmarshallersOfThread.put(jaxbContext, unmarshaller);
+            } else {
+                unmarshaller.setSchema(null);
+                unmarshaller.setEventHandler(null);
+                unmarshaller.setListener(null);
+            }
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Unable to create JAXB unmarshaller: " + e.getMessage(), e);
+        }
+        return unmarshaller;
+    }
+
+    /** The factory is thread safe once configured, hence shared by every thread */
+    public static XMLInputFactory xmlInputFactory() {
+        return xmlInputFactory;
+    }
+
+    public static XMLOutputFactory xmlOutputFactory() {
+        return xmlOutputFactory;
+    }
+
+    static DocumentBuilderFactory createDocumentBuilderFactory(boolean namespaceAware) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        factory.setXIncludeAware(false);
+        setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        return factory;
+    }
+
+    private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value) {
+        try {
+            factory.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+            log.warn("XML parser " + factory.getClass().getName() + " does not support " + feature + ": " + e.getMessage());
+        }
+    }
+
+    private static DocumentBuilder createDocumentBuilder(DocumentBuilderFactory factory) {
+        try {
+            return factory.newDocumentBuilder();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("Unable to create XML document builder: " + e.getMessage(), e);
+        }
+    }
+
+    private static XPathFactory createXPathFactory() {
+        XPathFactory factory = XPathFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (XPathFactoryConfigurationException e) {
+            log.warn("XPath " + factory.getClass().getName() + " does not support secure processing: " + e.getMessage());
+        }
+        return factory;
+    }
+
+    private static Transformer createTransformer() {
+        try {
+            return transformerFactory.newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("Unable to create XML transformer: " + e.getMessage(), e);
+        }
+    }
+
+    private static TransformerFactory createTransformerFactory() {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (TransformerConfigurationException e) {
+            log.warn("XML transformer " + factory.getClass().getName() + " does not support secure processing: " + e.getMessage());
+        }
+        return factory;
+    }
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+}
@@ -2,11 +2,13 @@ package eu.peppol.document;
 
 import org.testng.annotations.Test;
 
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
-import static org.testng.Assert.assertFalse;
-import static org.testng.Assert.assertNotNull;
-import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.*;
 
 /**
  * @author steinar
@@ -40,4 +42,106 @@ public class DocumentSnifferTest {
         assertTrue(sbdhStream.markSupported());
 
     }
+
+    @Test
+    public void rootElementIsClassified() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+        DocumentSniffer documentSniffer = new DocumentSniffer(new ByteArrayInputStream(document));
+
+        assertEquals(documentSniffer.getRootElementName(), new QName("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2", "Invoice"));
+        assertEquals(documentSniffer.getUblDocumentType(), "Invoice");
+        assertEquals(documentSniffer.getEncoding(), "UTF-8");
+        assertEquals(documentSniffer.getByteOrderMark().length, 0);
+        assertEquals(documentSniffer.getRootElementOffset(), new String(document, "UTF-8").indexOf("<Invoice "));
+
+        documentSniffer = new DocumentSniffer(new ByteArrayInputStream(readResource("peppol-bis-invoice-sbdh.xml")));
+        assertEquals(documentSniffer.getRootElementName(), new QName(SbdhWrapper.SBDH_URI, "StandardBusinessDocument"));
+        assertNull(documentSniffer.getUblDocumentType());
+    }
+
+    /** The SBDH need not be within the first lines, nor the document span several lines */
+    @Test
+    public void sbdhIsDetectedRegardlessOfLines() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<!-- line ").append(i).append(" -->\n");
+        }
+        sb.append("<sbdh:StandardBusinessDocument xmlns:sbdh=\"").append(SbdhWrapper.SBDH_URI).append("\"><sbdh:StandardBusinessDocumentHeader/></sbdh:StandardBusinessDocument>");
+        assertTrue(new DocumentSniffer(new ByteArrayInputStream(sb.toString().getBytes("UTF-8"))).isSbdhDetected());
+
+        String singleLine = new String(readResource("peppol-bis-invoice-sbdh.xml"), "UTF-8").replaceAll("[\r\n]+", " ");
+        assertTrue(new DocumentSniffer(new ByteArrayInputStream(singleLine.getBytes("UTF-8"))).isSbdhDetected());
+    }
+
+    @Test
+    public void prologPrecedingRootElementIsSkipped() throws Exception {
+        String document = "\uFEFF<?xml version=\"1.0\" encoding='ISO-8859-1'?>\n" +
+                "<?xml-stylesheet type=\"text/xsl\" href=\"faktura.xslt\"?>\n" +
+                "<!-- <Comment> -- > -->\n" +
+                "<!DOCTYPE Invoice [<!ENTITY gt2 \">\">]>\n" +
+                "<inv:Invoice xmlns='urn:other' attribute=\"a > b\" xmlns:inv='urn:oasis:names:specification:ubl:schema:xsd:Invoice-2'>&gt2;</inv:Invoice>";
+        byte[] bytes = document.getBytes("UTF-8");
+
+        DocumentSniffer documentSniffer = new DocumentSniffer(new ByteArrayInputStream(bytes));
+
+        assertEquals(documentSniffer.getRootElementOffset(), new String(bytes, "ISO-8859-1").indexOf("<inv:Invoice"));
+        assertEquals(documentSniffer.getByteOrderMark().length, 3);
+        assertEquals(documentSniffer.getXmlDeclaration(), "<?xml version=\"1.0\" encoding='ISO-8859-1'?>");
+        assertEquals(documentSniffer.getEncoding(), "UTF-8");
+        assertEquals(documentSniffer.getUblDocumentType(), "Invoice");
+    }
+
+    @Test
+    public void utf16IsDetected() throws Exception {
+        String document = "<?xml version=\"1.0\" encoding=\"UTF-16\"?>\n<CreditNote xmlns=\"urn:oasis:names:specification:ubl:schema:xsd:CreditNote-2\"/>";
+        DocumentSniffer documentSniffer = new DocumentSniffer(new ByteArrayInputStream(document.getBytes("UTF-16")));
+
+        assertTrue(documentSniffer.isUtf16());
+        assertEquals(documentSniffer.getEncoding(), "UTF-16BE");
+        assertEquals(documentSniffer.getUblDocumentType(), "CreditNote");
+        assertEquals(documentSniffer.getRootElementOffset(), document.indexOf("<CreditNote") * 2 + 2);
+    }
+
+    /** Only the prefix is read, which is pushed back if the stream does not support mark and reset */
+    @Test
+    public void onlyThePrefixIsRead() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!--");
+        while (sb.length() < 64 * 1024) {
+            sb.append(" Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor\n");
+        }
+        sb.append("-->\n<StandardBusinessDocument/>");
+        byte[] document = sb.toString().getBytes("UTF-8");
+
+        SbdhParserTest.CountingInputStream countingInputStream = new SbdhParserTest.CountingInputStream(new ByteArrayInputStream(document)) {
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+        DocumentSniffer documentSniffer = new DocumentSniffer(countingInputStream);
+
+        assertFalse(documentSniffer.isRootElementFound());
+        assertFalse(documentSniffer.isSbdhDetected());
+        assertEquals(countingInputStream.count, DocumentSniffer.DEFAULT_PREFIX_SIZE);
+        assertEquals(readFully(documentSniffer.getInputStream()), document);
+
+        assertTrue(new DocumentSniffer(new ByteArrayInputStream(document), document.length).isSbdhDetected());
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream inputStream = DocumentSnifferTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        return readFully(inputStream);
+    }
+
+    private byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
 }
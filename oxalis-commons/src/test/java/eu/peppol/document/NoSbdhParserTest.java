@@ -1,16 +1,19 @@
 package eu.peppol.document;
 
 import eu.peppol.PeppolStandardBusinessHeader;
-import eu.peppol.identifier.CustomizationIdentifier;
 import eu.peppol.identifier.ParticipantId;
-import eu.peppol.identifier.PeppolDocumentTypeId;
 import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.testng.Assert.assertEquals;
-import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.*;
 
 /**
  * @author steinar
@@ -19,6 +22,14 @@ import static org.testng.Assert.assertNotNull;
  */
 public class NoSbdhParserTest {
 
+    /** UBL documents, in addition to which variations of them are generated */
+    static final String[] CORPUS = {
+            "ehf-invoice-no-sbdh.xml",
+            "ubl-corpus/ehf-t10-alle-elementer.xml",
+            "ubl-corpus/ehf-t10-gyldig-faktura.xml",
+            "ubl-corpus/ehf-test-SendRegning-HelseVest2.xml"
+    };
+
     @Test
     public void sniffDocumentWithoutSBDH() throws Exception {
 
@@ -41,4 +52,130 @@ public class NoSbdhParserTest {
         assertEquals(sbdh.getDocumentTypeIdentifier(), PeppolDocumentTypeIdAcronym.EHF_INVOICE.getDocumentTypeIdentifier());
 
     }
+
+    @DataProvider(name = "corpus")
+    public Object[][] corpus() throws IOException {
+        List<Object[]> documents = new ArrayList<Object[]>();
+        for (String name : CORPUS) {
+            String document = new String(readResource(name), "UTF-8");
+            documents.add(new Object[]{name, document});
+
+            // The prefixes are irrelevant, only the name spaces matter
+            documents.add(new Object[]{name + " with other prefixes", document
+                    .replace("xmlns:cbc=", "xmlns:b=").replace("cbc:", "b:")
+                    .replace("xmlns:cac=", "xmlns:a=").replace("cac:", "a:")});
+
+            documents.add(new Object[]{name + " with customer before supplier", document.replaceFirst(
+                    "(?s)(<cac:AccountingSupplierParty>.*</cac:AccountingSupplierParty>)(\\s*)(<cac:AccountingCustomerParty>.*</cac:AccountingCustomerParty>)",
+                    "$3$2$1")});
+
+            documents.add(new Object[]{name + " with company ids in CDATA", document.replaceAll(
+                    "(<cbc:CompanyID[^>]*>)([^<]*)(</cbc:CompanyID>)", "$1<![CDATA[$2]]>$3")});
+
+            documents.add(new Object[]{name + " without profile", document.replaceFirst("(?s)<cbc:ProfileID>.*?</cbc:ProfileID>", "")});
+
+            documents.add(new Object[]{name + " without recipient", document.replaceFirst("(?s)<cac:AccountingCustomerParty>.*</cac:AccountingCustomerParty>", "")});
+
+            documents.add(new Object[]{name + " with unknown scheme of sender", document.replaceFirst(
+                    "(?s)(<cac:AccountingSupplierParty>.*?<cac:PartyLegalEntity>.*?<cbc:CompanyID[^>]*?)schemeID=\"[^\"]*\"", "$1schemeID=\"XX:UNKNOWN\"")});
+        }
+        return documents.toArray(new Object[documents.size()][]);
+    }
+
+    /** The single pass extraction must yield the same result as the DOM and XPath based parsing it replaced */
+    @Test(dataProvider = "corpus")
+    public void sameResultAsXPathParser(String name, String document) throws Exception {
+        assertEquals(describeStreamingResult(document), describeXPathResult(document), name);
+    }
+
+    @Test
+    public void documentIsReadNoFurtherThanTheHeader() throws Exception {
+        byte[] document = invoiceOfSize(1024 * 1024);
+        SbdhParserTest.CountingInputStream countingInputStream = new SbdhParserTest.CountingInputStream(new ByteArrayInputStream(document));
+
+        PeppolStandardBusinessHeader sbdh = new NoSbdhParser().parse(countingInputStream);
+
+        assertEquals(sbdh.getRecipientId(), new ParticipantId("9908:889640782"));
+        assertTrue(countingInputStream.count < 64 * 1024, "Read " + countingInputStream.count + " of " + document.length + " bytes");
+    }
+
+    @Test(groups = {"manual"})
+    public void streamingVersusXPath() throws Exception {
+        for (int size : new int[]{0, 1024 * 1024}) {
+            byte[] document = invoiceOfSize(size);
+            int iterations = 5000;
+
+            for (int i = 0; i < 500; i++) {
+                new XPathUblHeaderParser(new ByteArrayInputStream(document)).fetchDocumentTypeId();
+                UblHeaderExtractor.extract(new ByteArrayInputStream(document));
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                XPathUblHeaderParser xPathUblHeaderParser = new XPathUblHeaderParser(new ByteArrayInputStream(document));
+                xPathUblHeaderParser.fetchDocumentTypeId();
+                xPathUblHeaderParser.fetchProcessTypeId();
+                xPathUblHeaderParser.fetchSender();
+                xPathUblHeaderParser.fetchRecipient();
+            }
+            long xPath = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                UblHeaderExtractor.extract(new ByteArrayInputStream(document));
+            }
+            long streaming = System.nanoTime() - start;
+
+            System.out.printf("Invoice of %d bytes: %.1f us with DOM and XPath, %.1f us streaming%n",
+                    document.length, xPath / 1000.0 / iterations, streaming / 1000.0 / iterations);
+        }
+    }
+
+    /** Pads the sample invoice with comments, as if it had many lines, to make the document the requested size */
+    private byte[] invoiceOfSize(int size) throws IOException {
+        String document = new String(readResource("ehf-invoice-no-sbdh.xml"), "UTF-8");
+        int endOfInvoice = document.lastIndexOf("</Invoice>");
+        StringBuilder sb = new StringBuilder(size + document.length());
+        sb.append(document, 0, endOfInvoice);
+        while (sb.length() < size) {
+            sb.append("<!-- Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor -->\n");
+        }
+        sb.append(document.substring(endOfInvoice));
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private String describeStreamingResult(String document) {
+        try {
+            PeppolStandardBusinessHeader sbdh = new NoSbdhParser().parse(new ByteArrayInputStream(document.getBytes("UTF-8")));
+            return describe(sbdh.getSenderId(), sbdh.getRecipientId(), sbdh.getDocumentTypeIdentifier(), sbdh.getProfileTypeIdentifier());
+        } catch (Exception e) {
+            return "failed";
+        }
+    }
+
+    private String describeXPathResult(String document) {
+        try {
+            XPathUblHeaderParser xPathUblHeaderParser = new XPathUblHeaderParser(new ByteArrayInputStream(document.getBytes("UTF-8")));
+            return describe(xPathUblHeaderParser.fetchSender(), xPathUblHeaderParser.fetchRecipient(), xPathUblHeaderParser.fetchDocumentTypeId(), xPathUblHeaderParser.fetchProcessTypeId());
+        } catch (Exception e) {
+            return "failed";
+        }
+    }
+
+    private String describe(Object sender, Object recipient, Object documentTypeId, Object processTypeId) {
+        return "sender=" + sender + ", recipient=" + recipient + ", documentType=" + documentTypeId + ", process=" + processTypeId;
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream inputStream = NoSbdhParserTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
 }
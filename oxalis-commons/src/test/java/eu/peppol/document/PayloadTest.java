@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2011,2012,2013 UNIT4 Agresso AS.
+ *
+ * This file is part of Oxalis.
+ *
+ * Oxalis is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Oxalis is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with Oxalis.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.peppol.document;
+
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.identifier.ParticipantId;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.channels.Channels;
+
+import static org.testng.Assert.*;
+
+public class PayloadTest {
+
+    @Test
+    public void smallDocumentIsHeldInMemory() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+
+        Payload payload = Payload.spool(new ByteArrayInputStream(document));
+        assertTrue(payload.isInMemory());
+        assertEquals(payload.size(), document.length);
+
+        // May be read any number of times
+        assertEquals(read(payload.openStream()), document);
+        assertEquals(read(payload.openStream()), document);
+    }
+
+    @Test
+    public void largeDocumentIsSpooledToTemporaryFile() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+
+        Payload payload = Payload.spool(new ByteArrayInputStream(document), 4096);
+        assertFalse(payload.isInMemory());
+        assertEquals(payload.size(), document.length);
+
+        File file = ((Payload.FilePayload) payload).getFile();
+        assertTrue(file.isFile());
+
+        assertEquals(read(payload.openStream()), document);
+        assertEquals(read(payload.openStream()), document);
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        payload.transferTo(Channels.newChannel(byteArrayOutputStream));
+        assertEquals(byteArrayOutputStream.toByteArray(), document);
+
+        payload.close();
+        assertFalse(file.exists(), "Temporary file " + file + " was not removed");
+    }
+
+    @Test
+    public void suppliedFileIsNotRemoved() throws Exception {
+        File file = File.createTempFile("oxalis-payload-test", ".xml");
+        try {
+            byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+            FileOutputStream fileOutputStream = new FileOutputStream(file);
+            fileOutputStream.write(document);
+            fileOutputStream.close();
+
+            Payload payload = Payload.of(file);
+            assertFalse(payload.isInMemory());
+
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            payload.transferTo(byteArrayOutputStream);
+            assertEquals(byteArrayOutputStream.toByteArray(), document);
+
+            payload.close();
+            assertTrue(file.exists());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void largeDocumentIsWrappedIntoFile() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+        Payload payload = Payload.of(file(document, 1024 * 1024));
+
+        Payload wrapped = new SbdhWrapper().wrap(payload, new PeppolStandardBusinessHeader());
+        try {
+            assertFalse(wrapped.isInMemory());
+            assertTrue(wrapped.size() > payload.size());
+
+            PeppolStandardBusinessHeader sbdh = new SbdhParser().parse(wrapped);
+            assertEquals(sbdh.getSenderId(), new ParticipantId("9908:991974466"));
+            assertEquals(sbdh.getRecipientId(), new ParticipantId("9908:889640782"));
+        } finally {
+            wrapped.close();
+            ((Payload.FilePayload) payload).getFile().delete();
+        }
+    }
+
+    /** Writes the document to a file, padded by a comment following the root element */
+    private File file(byte[] document, int padding) throws IOException {
+        File file = File.createTempFile("oxalis-payload-test", ".xml");
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file));
+        outputStream.write(document);
+        outputStream.write("\n<!--".getBytes("UTF-8"));
+        for (int i = 0; i < padding; i++) {
+            outputStream.write('x');
+        }
+        outputStream.write("-->\n".getBytes("UTF-8"));
+        outputStream.close();
+        return file;
+    }
+
+    private byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream inputStream = PayloadTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        return read(inputStream);
+    }
+}
@@ -8,15 +8,20 @@ import eu.peppol.identifier.PeppolProcessTypeId;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.net.URL;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 /**
  * @author steinar
@@ -27,7 +32,7 @@ public class SbdhParserTest {
 
     private SbdhParser sbdhParser;
 
-    @BeforeMethod
+    @BeforeMethod(alwaysRun = true)
     public void setUp() {
         sbdhParser = new SbdhParser();
 
@@ -48,6 +53,121 @@ public class SbdhParserTest {
     }
 
 
+    /** The payload following the header is never read, hence a truncated payload does not matter */
+    @Test
+    public void onlyTheHeaderIsParsed() throws Exception {
+        String document = new String(readResource("peppol-bis-invoice-sbdh.xml"), "UTF-8");
+        int endOfHeader = document.indexOf("</StandardBusinessDocumentHeader>") + "</StandardBusinessDocumentHeader>".length();
+        String truncated = document.substring(0, endOfHeader) + "\n<Invoice><unterminated";
+
+        PeppolStandardBusinessHeader info = sbdhParser.parse(new ByteArrayInputStream(truncated.getBytes("UTF-8")));
+        assertEquals(info.getRecipientId(), new ParticipantId("0007:4455454480"));
+        assertEquals(info.getMessageId().toString(), "1070e7f0-3bae-11e3-aa6e-0800200c9a66");
+    }
+
+    @Test
+    public void documentWithoutSbdhIsRejected() throws Exception {
+        try {
+            sbdhParser.parse(new ByteArrayInputStream(readResource("ehf-invoice-no-sbdh.xml")));
+            fail("Document without SBDH should be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("Standard Business Document Header"), e.getMessage());
+        }
+    }
+
+    /** The stream is read no further than the header, i.e. only as far as the buffer of the XML parser */
+    @Test
+    public void payloadIsNotRead() throws Exception {
+        byte[] document = sbdhWithPayloadOfSize(5 * 1024 * 1024);
+        CountingInputStream countingInputStream = new CountingInputStream(new ByteArrayInputStream(document));
+
+        PeppolStandardBusinessHeader info = sbdhParser.parse(countingInputStream);
+        assertEquals(info.getSenderId(), new ParticipantId("0007:5567125082"));
+        assertTrue(countingInputStream.count < 64 * 1024, "Read " + countingInputStream.count + " bytes of " + document.length);
+    }
+
+    @Test
+    public void headerWithoutReceiverIsRejected() throws Exception {
+        String document = new String(readResource("peppol-bis-invoice-sbdh.xml"), "UTF-8");
+        String withoutReceiver = document.replaceAll("(?s)<Receiver>.*</Receiver>", "");
+        try {
+            sbdhParser.parse(new ByteArrayInputStream(withoutReceiver.getBytes("UTF-8")));
+            fail("Header without receiver should be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("Receiver"), e.getMessage());
+        }
+    }
+
+    /** The time taken to parse the header should not depend on the size of the payload */
+    @Test(groups = {"manual"})
+    public void parseTimeIsIndependentOfPayloadSize() throws Exception {
+        for (int size : new int[]{1024, 1024 * 1024, 20 * 1024 * 1024}) {
+            byte[] document = sbdhWithPayloadOfSize(size);
+            for (int i = 0; i < 2000; i++) {
+                sbdhParser.parse(new ByteArrayInputStream(document));
+            }
+            int iterations = 20000;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sbdhParser.parse(new ByteArrayInputStream(document));
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Payload of %d bytes: %.1f us per header%n", size, elapsed / 1000.0 / iterations);
+        }
+    }
+
+    /** Pads the invoice of the sample document with comments to make the document the requested size */
+    private byte[] sbdhWithPayloadOfSize(int size) throws IOException {
+        String document = new String(readResource("peppol-bis-invoice-sbdh.xml"), "UTF-8");
+        int endOfInvoice = document.lastIndexOf("</Invoice:Invoice>");
+        StringBuilder sb = new StringBuilder(size + document.length());
+        sb.append(document, 0, endOfInvoice);
+        while (sb.length() < size) {
+            sb.append("<!-- Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor -->\n");
+        }
+        sb.append(document.substring(endOfInvoice));
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream inputStream) {
+            super(inputStream);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                count++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream inputStream = SbdhParserTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
     private void parseData() throws URISyntaxException, IOException {
         URL resource = ParseSbdhTest.class.getClassLoader().getResource("peppol-bis-invoice-sbdh.xml");
         assertNotNull(resource);
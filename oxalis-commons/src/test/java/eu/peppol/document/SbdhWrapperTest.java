@@ -20,11 +20,22 @@
 package eu.peppol.document;
 
 import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.identifier.MessageId;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
 
-import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.*;
 
 /**
  * @author steinar
@@ -45,4 +56,85 @@ public class SbdhWrapperTest {
         String s = new String(wrap, "UTF-8");
         System.out.println(s);
     }
+
+    @Test
+    public void payloadIsCopiedUnchanged() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+
+        byte[] wrapped = new SbdhWrapper().wrap(new ByteArrayInputStream(document), new PeppolStandardBusinessHeader());
+
+        int rootInDocument = indexOf(document, "<Invoice ");
+        int rootInWrapped = indexOf(wrapped, "<Invoice ");
+        int endOfPayload = wrapped.length - "\n</StandardBusinessDocument>\n".length();
+        assertEquals(Arrays.copyOfRange(wrapped, rootInWrapped, endOfPayload), Arrays.copyOfRange(document, rootInDocument, document.length));
+
+        // The header values are extracted from the document, as the supplied header is empty
+        PeppolStandardBusinessHeader sbdh = new SbdhParser().parse(new ByteArrayInputStream(wrapped));
+        assertEquals(sbdh.getSenderId(), new ParticipantId("9908:991974466"));
+        assertEquals(sbdh.getRecipientId(), new ParticipantId("9908:889640782"));
+        assertEquals(sbdh.getDocumentTypeIdentifier(), PeppolDocumentTypeIdAcronym.EHF_INVOICE.getDocumentTypeIdentifier());
+    }
+
+    @Test
+    public void suppliedHeaderIsUsed() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+        PeppolStandardBusinessHeader header = new NoSbdhParser().parse(new ByteArrayInputStream(document));
+        header.setMessageId(new MessageId(UUID.randomUUID().toString()));
+        header.setSenderId(new ParticipantId("9908:976098897"));
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        SbdhWrapper sbdhWrapper = new SbdhWrapper();
+        sbdhWrapper.wrap(new ByteArrayInputStream(document), header, Channels.newChannel(byteArrayOutputStream));
+        assertEquals(sbdhWrapper.getSender(), new ParticipantId("9908:976098897"));
+
+        PeppolStandardBusinessHeader sbdh = new SbdhParser().parse(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        assertEquals(sbdh.getSenderId(), new ParticipantId("9908:976098897"));
+        assertEquals(sbdh.getRecipientId(), header.getRecipientId());
+        assertEquals(sbdh.getMessageId().stringValue(), header.getMessageId().stringValue());
+        assertEquals(sbdh.getProfileTypeIdentifier(), header.getProfileTypeIdentifier());
+    }
+
+    @Test
+    public void creationDateAndTimeIsWrittenInUtc() throws Exception {
+        byte[] document = readResource("ehf-invoice-no-sbdh.xml");
+        PeppolStandardBusinessHeader header = new NoSbdhParser().parse(new ByteArrayInputStream(document));
+        header.setCreationDateAndTime(new Date(1387190400000L));     // 2013-12-16T10:40:00Z
+
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Oslo"));
+        try {
+            String wrapped = new String(new SbdhWrapper().wrap(new ByteArrayInputStream(document), header), "UTF-8");
+            assertTrue(wrapped.contains("<CreationDateAndTime>2013-12-16T10:40:00Z</CreationDateAndTime>"), wrapped);
+
+            PeppolStandardBusinessHeader sbdh = new SbdhParser().parse(new ByteArrayInputStream(wrapped.getBytes("UTF-8")));
+            assertEquals(sbdh.getCreationDateAndTime(), header.getCreationDateAndTime());
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void utf16IsRejected() throws Exception {
+        byte[] document = new String(readResource("ehf-invoice-no-sbdh.xml"), "UTF-8").replace("encoding=\"UTF-8\"", "encoding=\"UTF-16\"").getBytes("UTF-16");
+        new SbdhWrapper().wrap(new ByteArrayInputStream(document), new PeppolStandardBusinessHeader());
+    }
+
+    private int indexOf(byte[] bytes, String s) throws IOException {
+        int index = new String(bytes, "ISO-8859-1").indexOf(s);
+        assertTrue(index >= 0, s + " not found");
+        return index;
+    }
+
+    private byte[] readResource(String name) throws IOException {
+        InputStream inputStream = SbdhWrapperTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(inputStream, name + " not found");
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        inputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
 }
@@ -0,0 +1,87 @@
+package eu.peppol.document;
+
+import eu.peppol.identifier.*;
+import eu.peppol.util.XmlInfrastructure;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.InputStream;
+
+/**
+ * The DOM and XPath based parsing of UBL headers, formerly used by the NoSbdhParser, which is kept as the reference
+ * against which the {@link UblHeaderExtractor} is verified.
+ */
+class XPathUblHeaderParser {
+
+    private final Document document;
+    private final XPath xPath;
+
+    XPathUblHeaderParser(InputStream inputStream) throws Exception {
+        document = XmlInfrastructure.documentBuilder().parse(inputStream);
+        xPath = XmlInfrastructure.xPath();
+        xPath.setNamespaceContext(new HardCodedNamespaceResolver());
+    }
+
+    String localName() {
+        return document.getDocumentElement().getLocalName();
+    }
+
+    String rootNameSpace() {
+        return document.getDocumentElement().getNamespaceURI();
+    }
+
+    String ublVersion() {
+        return retriveValueForXpath("//cbc:UBLVersionID");
+    }
+
+    public CustomizationIdentifier fetchCustomizationId() {
+        String value = retriveValueForXpath("//cbc:CustomizationID");
+        return CustomizationIdentifier.valueOf(value);
+    }
+
+    public PeppolProcessTypeId fetchProcessTypeId() {
+        String value = retriveValueForXpath("//cbc:ProfileID");
+        return PeppolProcessTypeId.valueOf(value);
+    }
+
+    public ParticipantId fetchSender() {
+        return participantId("//cac:AccountingSupplierParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID");
+    }
+
+    public ParticipantId fetchRecipient() {
+        return participantId("//cac:AccountingCustomerParty/cac:Party/cac:PartyLegalEntity/cbc:CompanyID");
+    }
+
+    public PeppolDocumentTypeId fetchDocumentTypeId() {
+        CustomizationIdentifier customizationIdentifier = fetchCustomizationId();
+        return new PeppolDocumentTypeId(rootNameSpace(), localName(), customizationIdentifier, ublVersion());
+    }
+
+    String retriveValueForXpath(String s) {
+        try {
+            String value = xPath.evaluate(s, document);
+            if (value == null) {
+                throw new IllegalStateException("Unable to find value for Xpath expr " + s);
+            }
+            return value.trim();
+        } catch (XPathExpressionException e) {
+            throw new IllegalStateException("Unable to evaluate " + s + "; " + e.getMessage(), e);
+        }
+    }
+
+    ParticipantId participantId(String xPathExpr) {
+        try {
+            Element element = (Element) xPath.evaluate(xPathExpr, document, XPathConstants.NODE);
+            String schemeIdTextValue = element.getAttribute("schemeID");
+            String companyId = element.getFirstChild().getNodeValue().trim();
+
+            SchemeId schemeId = SchemeId.parse(schemeIdTextValue);
+            return new ParticipantId(schemeId.getIso6523Icd() + ":" + companyId);
+        } catch (XPathExpressionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package eu.peppol.persistence;
+
+import eu.peppol.PeppolMessageMetaData;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.util.GlobalConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class JournalMessageRepositoryTest {
+
+    private File inboundMessageStore;
+    private File journalDirectory;
+
+    @BeforeMethod
+    public void createDirectories() throws Exception {
+        inboundMessageStore = File.createTempFile("inbound", "");
+        inboundMessageStore.delete();
+        journalDirectory = File.createTempFile("inbound-journal", "");
+        journalDirectory.delete();
+    }
+
+    @AfterMethod
+    public void removeDirectories() {
+        delete(inboundMessageStore);
+        delete(journalDirectory);
+    }
+
+    @Test
+    public void messageIsCompactedIntoInboundMessageStore() throws Exception {
+        JournalMessageRepository repository = createRepository(64 * 1024, 0);
+        try {
+            PeppolMessageMetaData metaData = createMetaData();
+            repository.saveInboundMessage(metaData, new ByteArrayInputStream("<Invoice>42</Invoice>".getBytes("UTF-8")));
+
+            assertEquals(repository.compact(), 1);
+
+            File messageDirectory = new File(inboundMessageStore, "9908_976098897/9908_123456789");
+            assertEquals(read(new File(messageDirectory, metaData.getTransmissionId() + ".xml")), "<Invoice>42</Invoice>");
+            assertTrue(read(new File(messageDirectory, metaData.getTransmissionId() + ".txt")).startsWith("PeppolMessageMetaData{"));
+            assertEquals(repository.compact(), 0);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void backgroundCompactorMovesMessages() throws Exception {
+        JournalMessageRepository repository = new JournalMessageRepository(GlobalConfiguration.getInstance(), inboundMessageStore.getPath(), journalDirectory, 64 * 1024, 0, 0, 10);
+        try {
+            PeppolMessageMetaData metaData = createMetaData();
+            repository.saveInboundMessage(metaData, new ByteArrayInputStream("<Invoice>42</Invoice>".getBytes("UTF-8")));
+
+            File messageFile = new File(new File(inboundMessageStore, "9908_976098897/9908_123456789"), metaData.getTransmissionId() + ".xml");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!messageFile.exists()) {
+                assertTrue(System.currentTimeMillis() < deadline, "Message was not compacted in time");
+                Thread.sleep(10);
+            }
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void concurrentMessagesShareCommits() throws Exception {
+        final JournalMessageRepository repository = createRepository(64 * 1024, 5);
+        ExecutorService executorService = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 200; i++) {
+                final String payload = "<Invoice>" + i + "</Invoice>";
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        repository.saveInboundMessage(createMetaData(), new ByteArrayInputStream(payload.getBytes("UTF-8")));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+
+            assertTrue(repository.getCommitCount() < 200, "Expected the messages to share commits, commits: " + repository.getCommitCount());
+        } finally {
+            executorService.shutdownNow();
+            repository.close();
+        }
+
+        File messageDirectory = new File(inboundMessageStore, "9908_976098897/9908_123456789");
+        assertEquals(messageDirectory.list().length, 400);
+    }
+
+    /** Every segment but the active one is deleted once compacted, and the messages are not moved once more upon restart */
+    @Test
+    public void compactedMessagesAreNotMovedAgain() throws Exception {
+        JournalMessageRepository repository = createRepository(1024, 0);
+        for (int i = 0; i < 20; i++) {
+            repository.saveInboundMessage(createMetaData(), new ByteArrayInputStream(("<Invoice>" + i + "</Invoice>").getBytes("UTF-8")));
+        }
+        repository.close();
+
+        MessageJournal messageJournal = new MessageJournal(journalDirectory, 1024, 0);
+        try {
+            assertEquals(messageJournal.listSegments().size(), 1);
+            assertEquals(messageJournal.getCompactedPosition(), messageJournal.getCommittedPosition());
+        } finally {
+            messageJournal.close();
+        }
+
+        repository = createRepository(1024, 0);
+        try {
+            assertEquals(repository.compact(), 0);
+        } finally {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void tornRecordIsTruncatedUponRecovery() throws Exception {
+        MessageJournal messageJournal = new MessageJournal(journalDirectory, 64 * 1024, 0);
+        long end = append(messageJournal, "first");
+        messageJournal.close();
+
+        // Simulates a crash while the second record was being appended
+        FileOutputStream fileOutputStream = new FileOutputStream(messageJournal.segmentFile(0), true);
+        fileOutputStream.write(new byte[]{0x4f, 0x58, 0x4a, 0x31, 0, 0, 0});
+        fileOutputStream.close();
+
+        messageJournal = new MessageJournal(journalDirectory, 64 * 1024, 0);
+        try {
+            assertEquals(messageJournal.getCommittedPosition(), end);
+            assertEquals(messageJournal.segmentFile(0).length(), end);
+
+            append(messageJournal, "second");
+
+            MessageJournal.Reader reader = messageJournal.openReader(0);
+            assertEquals(readPayload(reader), "first");
+            assertEquals(readPayload(reader), "second");
+            assertNull(reader.next(Long.MAX_VALUE));
+            reader.close();
+        } finally {
+            messageJournal.close();
+        }
+    }
+
+    @Test
+    public void unreadablePayloadLeavesJournalUsable() throws Exception {
+        MessageJournal messageJournal = new MessageJournal(journalDirectory, 64 * 1024, 0);
+        try {
+            long end = append(messageJournal, "first");
+            try {
+                messageJournal.append(createRecord(), new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("Connection reset");
+                    }
+                });
+                fail("The payload could not be read");
+            } catch (MessageJournal.UnreadablePayloadException e) {
+                // Expected
+            }
+            assertEquals(messageJournal.segmentFile(0).length(), end);
+
+            append(messageJournal, "second");
+            MessageJournal.Reader reader = messageJournal.openReader(0);
+            assertEquals(readPayload(reader), "first");
+            assertEquals(readPayload(reader), "second");
+            reader.close();
+        } finally {
+            messageJournal.close();
+        }
+    }
+
+    /** A committed record which fails its checksum is moved aside, rather than holding up the messages following it */
+    @Test
+    public void corruptRecordIsQuarantined() throws Exception {
+        MessageJournal messageJournal = new MessageJournal(journalDirectory, 64 * 1024, 0);
+        long end = append(messageJournal, "<Invoice>1</Invoice>");
+        append(messageJournal, "<Invoice>2</Invoice>");
+        messageJournal.close();
+
+        // Flips the last byte of the payload of the first record
+        RandomAccessFile segment = new RandomAccessFile(messageJournal.segmentFile(0), "rw");
+        segment.seek(end - 1);
+        int last = segment.read();
+        segment.seek(end - 1);
+        segment.write(last ^ 0xff);
+        segment.close();
+
+        JournalMessageRepository repository = createRepository(64 * 1024, 0);
+        try {
+            assertEquals(repository.compact(), 1);
+            assertEquals(repository.getQuarantinedCount(), 1);
+
+            File quarantined = new File(new File(journalDirectory, "quarantine"), String.format("%020d", 0) + ".record");
+            assertEquals(quarantined.length(), end);
+
+            File messageDirectory = new File(inboundMessageStore, "9908_976098897/9908_123456789");
+            assertEquals(messageDirectory.list().length, 2);
+        } finally {
+            repository.close();
+        }
+    }
+
+    /** The background compactor is not started, the messages are moved by invoking compact() and close() only */
+    private JournalMessageRepository createRepository(long segmentSize, long commitIntervalMillis) {
+        return new JournalMessageRepository(GlobalConfiguration.getInstance(), inboundMessageStore.getPath(), journalDirectory, segmentSize, commitIntervalMillis, 0, 0);
+    }
+
+    private long append(MessageJournal messageJournal, String payload) throws IOException {
+        return messageJournal.append(createRecord(), new ByteArrayInputStream(payload.getBytes("UTF-8")));
+    }
+
+    private JournalRecord createRecord() {
+        return new JournalRecord(inboundMessageStore.getPath(), "9908:976098897", "9908:123456789", new TransmissionId().toString(), "header");
+    }
+
+    private static String readPayload(MessageJournal.Reader reader) throws IOException {
+        assertFalse(reader.next(Long.MAX_VALUE).isCorrupt());
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        reader.transferPayload(Channels.newChannel(byteArrayOutputStream));
+        return byteArrayOutputStream.toString("UTF-8");
+    }
+
+    private static PeppolMessageMetaData createMetaData() {
+        PeppolMessageMetaData metaData = new PeppolMessageMetaData();
+        metaData.setRecipientId(new ParticipantId("9908:976098897"));
+        metaData.setSenderId(new ParticipantId("9908:123456789"));
+        metaData.setTransmissionId(new TransmissionId());
+        return metaData;
+    }
+
+    private static String read(File file) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += fileInputStream.read(bytes, offset, bytes.length - offset);
+            }
+            return new String(bytes, "UTF-8");
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,141 @@
+package eu.peppol.security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.testng.annotations.Test;
+
+import java.security.MessageDigest;
+import java.security.Security;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class CryptoBootstrapTest {
+
+    @Test
+    public void providerIsRegistered() {
+        CryptoBootstrap.registerProvider();
+        assertNotNull(Security.getProvider(CryptoBootstrap.PROVIDER_NAME));
+    }
+
+    @Test
+    public void releasedDigestIsReused() {
+        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest("SHA-1", CryptoBootstrap.PROVIDER_NAME);
+        messageDigest.update((byte) 42);
+        CryptoBootstrap.release(messageDigest);
+
+        MessageDigest reused = CryptoBootstrap.acquireMessageDigest("SHA-1", CryptoBootstrap.PROVIDER_NAME);
+        assertSame(reused, messageDigest);
+        // Must have been reset upon release
+        assertEquals(reused.digest(), CryptoBootstrap.acquireMessageDigest("SHA-1").digest());
+        CryptoBootstrap.release(reused);
+    }
+
+    @Test
+    public void nestedAcquiresProvideDistinctInstances() throws Exception {
+        MessageDigest outer = CryptoBootstrap.acquireMessageDigest("SHA-256");
+        MessageDigest inner = CryptoBootstrap.acquireMessageDigest("SHA-256");
+        assertNotSame(inner, outer);
+
+        outer.update("outer".getBytes("UTF-8"));
+        inner.update("inner".getBytes("UTF-8"));
+        assertEquals(outer.digest(), MessageDigest.getInstance("SHA-256").digest("outer".getBytes("UTF-8")));
+        assertEquals(inner.digest(), MessageDigest.getInstance("SHA-256").digest("inner".getBytes("UTF-8")));
+
+        CryptoBootstrap.release(inner);
+        CryptoBootstrap.release(outer);
+    }
+
+    @Test
+    public void certificateFactoryIsPerThread() throws Exception {
+        final CertificateFactory certificateFactory = CryptoBootstrap.getCertificateFactory();
+        assertSame(CryptoBootstrap.getCertificateFactory(), certificateFactory);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            CertificateFactory other = executorService.submit(new Callable<CertificateFactory>() {
+                @Override
+                public CertificateFactory call() throws Exception {
+                    return CryptoBootstrap.getCertificateFactory();
+                }
+            }).get();
+            assertNotSame(other, certificateFactory);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * Compares the per message provider registration and digest lookup previously done on every message, with the
+     * pooled digests, using 64 threads.
+     */
+    @Test(groups = {"manual"})
+    public void contentionBenchmark() throws Exception {
+        final int threads = 64;
+        final int iterations = 200;
+        final byte[] data = new byte[1024];
+
+        for (int round = 0; round < 2; round++) {
+            long lookup = runConcurrently(threads, new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        try {
+                            Security.addProvider(new BouncyCastleProvider());
+                            MessageDigest.getInstance("SHA-1", BouncyCastleProvider.PROVIDER_NAME).digest(data);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+            long pooled = runConcurrently(threads, new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < iterations; i++) {
+                        CryptoBootstrap.registerProvider();
+                        MessageDigest messageDigest = CryptoBootstrap.acquireMessageDigest("SHA-1", CryptoBootstrap.PROVIDER_NAME);
+                        try {
+                            messageDigest.digest(data);
+                        } finally {
+                            CryptoBootstrap.release(messageDigest);
+                        }
+                    }
+                }
+            });
+            System.out.println("Round " + round + ", " + threads * iterations + " digests on " + threads + " threads; lookup: " + lookup + "ms, pooled: " + pooled + "ms");
+        }
+    }
+
+    private static long runConcurrently(int threads, final Runnable runnable) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        runnable.run();
+                        return null;
+                    }
+                }));
+            }
+            long started = System.currentTimeMillis();
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            return System.currentTimeMillis() - started;
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package eu.peppol.security;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import static org.testng.Assert.*;
+
+public class SmpSignatureCacheTest {
+
+    private SmpSignatureCache cache = SmpSignatureCache.getInstance();
+
+    private byte[] smpResponse;
+    private long verifications;
+    private long avoidedVerifications;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        cache.invalidateAll();
+        verifications = cache.getVerificationCount();
+        avoidedVerifications = cache.getAvoidedVerificationCount();
+
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("sr-smp-result.xml");
+        assertNotNull(inputStream);
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, length);
+        }
+        inputStream.close();
+        smpResponse = byteArrayOutputStream.toByteArray();
+    }
+
+    @Test
+    public void identicalResponseIsVerifiedOnce() throws Exception {
+        CountingValidator first = new CountingValidator(smpResponse, true);
+        assertTrue(cache.isSmpSignatureValid(smpResponse, first));
+        assertEquals(first.verifications, 1);
+
+        CountingValidator second = new CountingValidator(smpResponse.clone(), true);
+        assertTrue(cache.isSmpSignatureValid(smpResponse.clone(), second));
+        assertEquals(second.verifications, 0);
+
+        assertEquals(cache.getVerificationCount() - verifications, 1);
+        assertEquals(cache.getAvoidedVerificationCount() - avoidedVerifications, 1);
+    }
+
+    @Test
+    public void invalidSignatureIsRemembered() throws Exception {
+        assertFalse(cache.isSmpSignatureValid(smpResponse, new CountingValidator(smpResponse, false)));
+
+        CountingValidator validator = new CountingValidator(smpResponse, true);
+        assertFalse(cache.isSmpSignatureValid(smpResponse, validator));
+        assertEquals(validator.verifications, 0);
+    }
+
+    @Test
+    public void changedResponseIsVerifiedAgain() throws Exception {
+        assertTrue(cache.isSmpSignatureValid(smpResponse, new CountingValidator(smpResponse, true)));
+
+        byte[] changed = (new String(smpResponse, "UTF-8") + "\n").getBytes("UTF-8");
+        CountingValidator validator = new CountingValidator(changed, false);
+        assertFalse(cache.isSmpSignatureValid(changed, validator));
+        assertEquals(validator.verifications, 1);
+        assertEquals(cache.getVerificationCount() - verifications, 2);
+        assertEquals(cache.size(), 2);
+    }
+
+    /** Pretends to verify the signature, counting the number of verifications */
+    static class CountingValidator extends SmpResponseValidator {
+
+        private final boolean valid;
+        int verifications;
+
+        CountingValidator(byte[] smpResponse, boolean valid) throws Exception {
+            super(parse(smpResponse));
+            this.valid = valid;
+        }
+
+        @Override
+        public boolean isSmpSignatureValid() {
+            verifications++;
+            return valid;
+        }
+
+        private static Document parse(byte[] smpResponse) throws Exception {
+            DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+            documentBuilderFactory.setNamespaceAware(true);
+            return documentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(smpResponse));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package eu.peppol.smp;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class CachingSmpLookupManagerTest {
+
+    private static final PeppolDocumentTypeId INVOICE = PeppolDocumentTypeIdAcronym.INVOICE.getDocumentTypeIdentifier();
+    private static final ParticipantId RECIPIENT = new ParticipantId("9908:976098897");
+
+    private CountingSmpLookupManager delegate;
+    private List<Runnable> refreshes;
+    private long now;
+    private CachingSmpLookupManager cache;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() {
+        delegate = new CountingSmpLookupManager();
+        refreshes = new ArrayList<Runnable>();
+        now = 1000000;
+        cache = createCache(100);
+    }
+
+    @Test
+    public void lookupIsCachedWithinTimeToLive() throws Exception {
+        SmpLookupManager.PeppolEndpointData first = cache.getEndpointData(RECIPIENT, INVOICE);
+        now += 999;
+        SmpLookupManager.PeppolEndpointData second = cache.getEndpointData(RECIPIENT, INVOICE);
+
+        assertSame(second, first);
+        assertEquals(delegate.lookups.get(), 1);
+        assertEquals(cache.getMissCount(), 1);
+        assertEquals(cache.getHitCount(), 1);
+
+        // Other document types and other lookups are cached separately
+        cache.getEndpointData(RECIPIENT, PeppolDocumentTypeIdAcronym.ORDER.getDocumentTypeIdentifier());
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        assertEquals(delegate.lookups.get(), 3);
+        assertEquals(cache.getSize(), 3);
+    }
+
+    @Test
+    public void staleEntryIsProvidedWhileRefreshed() throws Exception {
+        URL first = cache.getEndpointAddress(RECIPIENT, INVOICE);
+        delegate.address = "https://new.example.com/as2";
+        now += 1500;
+
+        assertSame(cache.getEndpointAddress(RECIPIENT, INVOICE), first);
+        assertSame(cache.getEndpointAddress(RECIPIENT, INVOICE), first);
+        assertEquals(cache.getStaleHitCount(), 2);
+        assertEquals(refreshes.size(), 1, "Expected a single refresh");
+
+        refreshes.get(0).run();
+        assertEquals(cache.getEndpointAddress(RECIPIENT, INVOICE).toExternalForm(), "https://new.example.com/as2");
+        assertEquals(delegate.lookups.get(), 2);
+    }
+
+    @Test
+    public void expiredEntryIsLookedUpWhileWaiting() throws Exception {
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        delegate.address = "https://new.example.com/as2";
+        now += 3000;
+
+        assertEquals(cache.getEndpointAddress(RECIPIENT, INVOICE).toExternalForm(), "https://new.example.com/as2");
+        assertTrue(refreshes.isEmpty());
+        assertEquals(cache.getMissCount(), 2);
+    }
+
+    @Test
+    public void failedLookupsAreNotCached() throws Exception {
+        delegate.failure = new IllegalStateException("SMP is down");
+        try {
+            cache.getEndpointData(RECIPIENT, INVOICE);
+            fail("Expected the failure of the SMP");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "SMP is down");
+        }
+        assertEquals(cache.getLoadFailureCount(), 1);
+        assertEquals(cache.getSize(), 0);
+
+        delegate.failure = null;
+        assertNotNull(cache.getEndpointData(RECIPIENT, INVOICE));
+    }
+
+    @Test
+    public void failedRefreshKeepsStaleEntry() throws Exception {
+        URL first = cache.getEndpointAddress(RECIPIENT, INVOICE);
+        now += 1500;
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+
+        delegate.failure = new IllegalStateException("SMP is down");
+        refreshes.get(0).run();
+
+        assertSame(cache.getEndpointAddress(RECIPIENT, INVOICE), first);
+        assertEquals(refreshes.size(), 2, "Expected another attempt to refresh");
+    }
+
+    @Test(expectedExceptions = ParticipantNotRegisteredException.class)
+    public void participantNotRegisteredIsPropagated() throws Exception {
+        cache.getServiceGroups(new ParticipantId("9908:000000000"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws Exception {
+        cache = createCache(2);
+        ParticipantId other = new ParticipantId("9908:123456789");
+        ParticipantId third = new ParticipantId("9908:810017902");
+
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        cache.getEndpointAddress(other, INVOICE);
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        cache.getEndpointAddress(third, INVOICE);
+        assertEquals(cache.getSize(), 2);
+
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        assertEquals(delegate.lookups.get(), 3);
+        cache.getEndpointAddress(other, INVOICE);
+        assertEquals(delegate.lookups.get(), 4);
+    }
+
+    @Test
+    public void invalidateDiscardsEntriesOfParticipant() throws Exception {
+        cache.getEndpointAddress(RECIPIENT, INVOICE);
+        cache.getEndpointData(RECIPIENT, INVOICE);
+        cache.getEndpointAddress(new ParticipantId("9908:123456789"), INVOICE);
+
+        cache.invalidate(RECIPIENT.stringValue());
+        assertEquals(cache.getSize(), 1);
+    }
+
+    /** Measures the time taken to look up an entry of the cache */
+    @Test(groups = {"manual"})
+    public void cachedLookupBenchmark() throws Exception {
+        cache = new CachingSmpLookupManager(delegate, 10000, 60000, 60000, null);
+        for (int i = 0; i < 1000; i++) {
+            cache.getEndpointData(new ParticipantId("9908:" + (100000000 + i)), INVOICE);
+        }
+        int iterations = 5000000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                cache.getEndpointData(new ParticipantId("9908:" + (100000000 + i % 1000)), INVOICE);
+            }
+            System.out.println("Round " + round + ": " + (System.nanoTime() - start) / iterations + "ns per cached lookup");
+        }
+    }
+
+    private CachingSmpLookupManager createCache(int maxEntries) {
+        return new CachingSmpLookupManager(delegate, maxEntries, 1000, 1000, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                refreshes.add(runnable);
+            }
+        }) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+    }
+
+    static class CountingSmpLookupManager implements SmpLookupManager {
+
+        final AtomicInteger lookups = new AtomicInteger();
+        volatile String address = "https://ap.example.com/as2";
+        volatile RuntimeException failure;
+
+        @Override
+        public URL getEndpointAddress(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+            lookups.incrementAndGet();
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                return new URL(address);
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public X509Certificate getEndpointCertificate(ParticipantId participant, PeppolDocumentTypeId documentTypeIdentifier) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PeppolDocumentTypeId> getServiceGroups(ParticipantId participantId) throws SmpLookupException, ParticipantNotRegisteredException {
+            lookups.incrementAndGet();
+            if (participantId.stringValue().equals("9908:000000000")) {
+                throw new ParticipantNotRegisteredException(participantId);
+            }
+            return Collections.singletonList(INVOICE);
+        }
+
+        @Override
+        public PeppolEndpointData getEndpointData(ParticipantId participantId, PeppolDocumentTypeId documentTypeIdentifier) {
+            return new PeppolEndpointData(getEndpointAddress(participantId, documentTypeIdentifier), BusDoxProtocol.AS2);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package eu.peppol.smp;
+
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.util.HostResolver;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SmlResolverTest {
+
+    private static final ParticipantId REGISTERED = new ParticipantId("9908:810017902");
+    private static final ParticipantId UNREGISTERED = new ParticipantId("9908:000000000");
+
+    private StubHostResolver hostResolver;
+    private ExecutorService executorService;
+    private long now;
+    private SmlResolver smlResolver;
+
+    @BeforeMethod
+    public void setUp() {
+        hostResolver = new StubHostResolver();
+        executorService = Executors.newCachedThreadPool();
+        now = 1000000;
+        smlResolver = new SmlResolver(SmlHost.PRODUCTION_SML, hostResolver, 10000, 1000, 500, executorService) {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+        hostResolver.hostnames.add(smlResolver.getSmpHostname(REGISTERED));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        hostResolver.release.countDown();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void computesSmpHostname() {
+        String hostname = smlResolver.getSmpHostname(REGISTERED);
+        assertEquals(hostname, "B-ddc207601e442e1b751e5655d39371cd.iso6523-actorid-upis.sml.peppolcentral.org");
+        assertSame(smlResolver.getSmpHostname(new ParticipantId("9908:810017902")), hostname);
+    }
+
+    @Test
+    public void answersAreCachedWithSeparateTimeToLive() {
+        assertTrue(smlResolver.isRegistered(REGISTERED));
+        assertFalse(smlResolver.isRegistered(UNREGISTERED));
+        assertTrue(smlResolver.isRegistered(REGISTERED));
+        assertFalse(smlResolver.isRegistered(UNREGISTERED));
+        assertEquals(hostResolver.queries.get(), 2);
+
+        // The negative answer expires first
+        now += 1000;
+        assertTrue(smlResolver.isRegistered(REGISTERED));
+        assertFalse(smlResolver.isRegistered(UNREGISTERED));
+        assertEquals(hostResolver.queries.get(), 3);
+
+        now += 9000;
+        assertTrue(smlResolver.isRegistered(REGISTERED));
+        assertEquals(hostResolver.queries.get(), 4);
+    }
+
+    @Test
+    public void concurrentLookupsShareQuery() throws Exception {
+        hostResolver.release = new CountDownLatch(1);
+        Future<Boolean> first = isRegisteredInBackground();
+        Future<Boolean> second = isRegisteredInBackground();
+
+        assertTrue(hostResolver.started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        hostResolver.release.countDown();
+
+        assertTrue(first.get());
+        assertTrue(second.get());
+        assertEquals(hostResolver.queries.get(), 1);
+    }
+
+    @Test
+    public void slowDnsTimesOut() throws Exception {
+        hostResolver.release = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        try {
+            smlResolver.isRegistered(REGISTERED);
+            fail("Expected the lookup to time out");
+        } catch (SmpLookupException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+
+        // The answer arriving later is remembered
+        hostResolver.release.countDown();
+        executorService.shutdown();
+        executorService.awaitTermination(5, TimeUnit.SECONDS);
+        assertTrue(smlResolver.isRegistered(REGISTERED));
+        assertEquals(hostResolver.queries.get(), 1);
+    }
+
+    private Future<Boolean> isRegisteredInBackground() {
+        return executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return smlResolver.isRegistered(REGISTERED);
+            }
+        });
+    }
+
+    /** Knows the host names added, and waits for the release before answering */
+    static class StubHostResolver implements HostResolver {
+
+        final Set<String> hostnames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public InetAddress[] resolve(String hostname) throws UnknownHostException {
+            queries.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(hostname);
+            }
+            if (!hostnames.contains(hostname)) {
+                throw new UnknownHostException(hostname);
+            }
+            return new InetAddress[]{InetAddress.getByAddress(hostname, new byte[]{127, 0, 0, 1})};
+        }
+    }
+}
@@ -4,8 +4,11 @@ import eu.peppol.identifier.*;
 import eu.peppol.smp.*;
 import eu.peppol.util.GlobalConfiguration;
 import eu.peppol.util.OperationalMode;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import java.io.File;
 import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.util.List;
@@ -24,6 +27,23 @@ public class SmpLookupManagerImplTest {
     private static ParticipantId alfa1lab = new ParticipantId("9902:DK28158815");
     private static ParticipantId helseVest = new ParticipantId("9908:983974724");
 
+    private File smpStoreFile;
+    private String originalSmpStoreFile;
+
+    /** Keeps the lookups out of the SMP store in the Oxalis home directory */
+    @BeforeClass(alwaysRun = true)
+    public void useTemporarySmpStore() throws Exception {
+        smpStoreFile = File.createTempFile("smp-metadata", ".dat");
+        originalSmpStoreFile = GlobalConfiguration.getInstance().getSmpStoreFile();
+        GlobalConfiguration.getInstance().setSmpStoreFile(smpStoreFile.getPath());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void restoreSmpStore() {
+        GlobalConfiguration.getInstance().setSmpStoreFile(originalSmpStoreFile);
+        smpStoreFile.delete();
+    }
+
     @Test
     public void test01() throws Throwable {
 
@@ -0,0 +1,190 @@
+package eu.peppol.smp;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import eu.peppol.util.HostResolver;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.*;
+
+public class SmpMetadataStoreTest {
+
+    private static final long HOUR = 3600 * 1000;
+
+    private File file;
+
+    @BeforeMethod(alwaysRun = true)
+    public void createFile() throws Exception {
+        file = File.createTempFile("smp-metadata", ".dat");
+        file.delete();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void deleteFile() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void recordsAreLoadedUponRestart() throws Exception {
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        store.put(createRecord("http://smp/a", "https://ap.example.com/as2", System.currentTimeMillis() + HOUR));
+        store.put(createRecord("http://smp/b", "https://other.example.com/as2", System.currentTimeMillis() + HOUR));
+        store.put(createRecord("http://smp/a", "https://new.example.com/as2", System.currentTimeMillis() + HOUR));
+        store.close();
+
+        store = new SmpMetadataStore(file);
+        try {
+            assertEquals(store.size(), 2);
+            SmpEndpointRecord record = store.get("http://smp/a");
+            assertEquals(record.getEndpointAddress(), "https://new.example.com/as2");
+            assertEquals(record.getTransportProfile(), "busdox-transport-as2");
+            assertEquals(record.getProcessIds(), Arrays.asList("urn:www.cenbii.eu:profile:bii04:ver1.0"));
+            assertEquals(record.getX509Certificate().getSerialNumber(), createRecord("x", "y", 0).getX509Certificate().getSerialNumber());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void recordLoadedUponRestartIsHandedOutOnce() throws Exception {
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        store.put(createRecord("http://smp/a", "https://ap.example.com/as2", System.currentTimeMillis() + HOUR));
+        store.put(createRecord("http://smp/b", "https://other.example.com/as2", System.currentTimeMillis() + HOUR));
+
+        // Records written since start up are not handed out, the SMP is to be consulted
+        assertNull(store.takeWarmStartRecord("http://smp/a"));
+        store.close();
+
+        store = new SmpMetadataStore(file);
+        try {
+            assertEquals(store.takeWarmStartRecord("http://smp/a").getEndpointAddress(), "https://ap.example.com/as2");
+            assertNull(store.takeWarmStartRecord("http://smp/a"));
+
+            // A record superseded by a fresh lookup is no longer handed out
+            store.put(createRecord("http://smp/b", "https://new.example.com/as2", System.currentTimeMillis() + HOUR));
+            assertNull(store.takeWarmStartRecord("http://smp/b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void expiredRecordsAreNotUsed() throws Exception {
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        store.put(createRecord("http://smp/a", "https://ap.example.com/as2", System.currentTimeMillis() - 1));
+        assertNull(store.get("http://smp/a"));
+        store.close();
+
+        store = new SmpMetadataStore(file);
+        try {
+            assertEquals(store.size(), 0);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        store.put(createRecord("http://smp/a", "https://ap.example.com/as2", System.currentTimeMillis() + HOUR));
+        long length = store.getFileSize();
+        store.close();
+
+        // Simulates a crash while the next record was being written
+        FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+        fileOutputStream.write(new byte[]{0x4f, 0x58, 0x53, 0x4d, 0, 0, 0x10, 0, 1, 2});
+        fileOutputStream.close();
+
+        store = new SmpMetadataStore(file);
+        try {
+            assertEquals(store.size(), 1);
+            assertEquals(file.length(), length);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void supersededRecordsAreCompacted() throws Exception {
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                store.put(createRecord("http://smp/" + (i % 10), "https://ap.example.com/as2/" + i, System.currentTimeMillis() + HOUR));
+            }
+            assertTrue(store.getFileSize() < 1024 * 1024, "Expected the file to be compacted, was " + store.getFileSize());
+            assertEquals(store.size(), 10);
+            assertEquals(store.get("http://smp/9").getEndpointAddress(), "https://ap.example.com/as2/1999");
+        } finally {
+            store.close();
+        }
+
+        store = new SmpMetadataStore(file);
+        try {
+            assertEquals(store.size(), 10);
+            assertEquals(store.get("http://smp/0").getEndpointAddress(), "https://ap.example.com/as2/1990");
+        } finally {
+            store.close();
+        }
+    }
+
+    /** A restarted access point resolves known receivers without the SML or the SMP */
+    @Test(groups = {"integration"})
+    public void knownReceiverIsResolvedWithoutNetwork() throws Exception {
+        SmlResolver smlResolver = new SmlResolver(SmlHost.PRODUCTION_SML, new HostResolver() {
+            @Override
+            public InetAddress[] resolve(String hostname) throws UnknownHostException {
+                throw new UnknownHostException("No network: " + hostname);
+            }
+        }, HOUR, HOUR, 1000, Executors.newSingleThreadExecutor());
+
+        ParticipantId participantId = new ParticipantId("9908:810017902");
+        PeppolDocumentTypeId invoice = PeppolDocumentTypeIdAcronym.INVOICE.getDocumentTypeIdentifier();
+
+        SmpLookupManagerImpl smpLookupManager = new SmpLookupManagerImpl(smlResolver, null, HOUR);
+        String smpUrl = smpLookupManager.getSmpUrl(participantId, invoice).toExternalForm();
+
+        SmpMetadataStore store = new SmpMetadataStore(file);
+        store.put(createRecord(smpUrl, "https://ap.example.com/as2", System.currentTimeMillis() + HOUR));
+        store.close();
+
+        smpLookupManager = new SmpLookupManagerImpl(smlResolver, new SmpMetadataStore(file), HOUR);
+        SmpLookupManager.PeppolEndpointData endpointData = smpLookupManager.getEndpointData(participantId, invoice);
+        assertEquals(endpointData.getUrl().toExternalForm(), "https://ap.example.com/as2");
+        assertEquals(endpointData.getBusDoxProtocol(), BusDoxProtocol.AS2);
+        assertNotNull(endpointData.getCommonName());
+
+        // Later lookups go to the SMP, which is unreachable
+        try {
+            smpLookupManager.getEndpointData(participantId, invoice);
+            fail("The end point should only be taken from the store upon the first lookup");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    static SmpEndpointRecord createRecord(String smpUrl, String endpointAddress, long expires) {
+        return new SmpEndpointRecord(smpUrl, endpointAddress, "busdox-transport-as2", readCertificateBody(),
+                Arrays.asList("urn:www.cenbii.eu:profile:bii04:ver1.0"), expires);
+    }
+
+    /** The base64 body of the certificate, as given by the SMP */
+    private static String readCertificateBody() {
+        InputStream inputStream = SmpMetadataStoreTest.class.getClassLoader().getResourceAsStream("sendregning.cer");
+        String pem = new Scanner(inputStream, "US-ASCII").useDelimiter("\\A").next();
+        return pem.replace("-----BEGIN CERTIFICATE-----", "").replace("-----END CERTIFICATE-----", "").trim();
+    }
+}
@@ -0,0 +1,123 @@
+package eu.peppol.util;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SingleFlightTest {
+
+    private static final int CALLERS = 20;
+
+    private SingleFlight<String, String> singleFlight;
+    private ExecutorService executorService;
+    private AtomicInteger executions;
+    private CountDownLatch release;
+
+    @BeforeMethod
+    public void setUp() {
+        singleFlight = new SingleFlight<String, String>();
+        executorService = Executors.newFixedThreadPool(CALLERS);
+        executions = new AtomicInteger();
+        release = new CountDownLatch(1);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void concurrentCallersShareExecution() throws Exception {
+        List<Future<String>> futures = executeConcurrently("9908:976098897", null);
+        awaitAllWaiting();
+        release.countDown();
+
+        for (Future<String> future : futures) {
+            assertEquals(future.get(), "endpoint of 9908:976098897");
+        }
+        assertEquals(executions.get(), 1);
+        assertEquals(singleFlight.getSharedCount(), CALLERS - 1);
+        assertEquals(singleFlight.getInFlightCount(), 0);
+
+        // Completed operations are not remembered
+        release = new CountDownLatch(0);
+        singleFlight.execute("9908:976098897", operation("9908:976098897", null));
+        assertEquals(executions.get(), 2);
+    }
+
+    @Test
+    public void failureIsPropagatedToEveryCaller() throws Exception {
+        IllegalStateException failure = new IllegalStateException("SMP is down");
+        List<Future<String>> futures = executeConcurrently("9908:976098897", failure);
+        awaitAllWaiting();
+        release.countDown();
+
+        for (Future<String> future : futures) {
+            try {
+                future.get();
+                fail("Expected the failure to be propagated");
+            } catch (ExecutionException e) {
+                assertSame(e.getCause(), failure);
+            }
+        }
+        assertEquals(executions.get(), 1);
+    }
+
+    @Test
+    public void differentKeysAreNotCoalesced() throws Exception {
+        release = new CountDownLatch(0);
+        assertEquals(singleFlight.execute("a", operation("a", null)), "endpoint of a");
+        assertEquals(singleFlight.execute("b", operation("b", null)), "endpoint of b");
+        assertEquals(executions.get(), 2);
+        assertEquals(singleFlight.getSharedCount(), 0);
+    }
+
+    private List<Future<String>> executeConcurrently(final String key, final RuntimeException failure) {
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(executorService.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return singleFlight.execute(key, operation(key, failure));
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /** Waits until every caller but the one performing the operation is waiting for it */
+    private void awaitAllWaiting() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getSharedCount() < CALLERS - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private Callable<String> operation(final String key, final RuntimeException failure) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                executions.incrementAndGet();
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+                if (failure != null) {
+                    throw failure;
+                }
+                return "endpoint of " + key;
+            }
+        };
+    }
+}
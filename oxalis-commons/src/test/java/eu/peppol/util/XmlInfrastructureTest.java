@@ -0,0 +1,191 @@
+package eu.peppol.util;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class XmlInfrastructureTest {
+
+    private byte[] invoice;
+
+    @BeforeClass(alwaysRun = true)
+    public void loadInvoice() throws Exception {
+        InputStream inputStream = XmlInfrastructureTest.class.getClassLoader().getResourceAsStream("ehf-invoice-no-sbdh.xml");
+        assertNotNull(inputStream);
+        invoice = Util.intoBuffer(inputStream, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void documentBuilderIsReusedWithinThread() throws Exception {
+        DocumentBuilder documentBuilder = XmlInfrastructure.documentBuilder();
+        assertTrue(documentBuilder.isNamespaceAware());
+        assertSame(XmlInfrastructure.documentBuilder(), documentBuilder);
+        assertFalse(XmlInfrastructure.documentBuilder(false).isNamespaceAware());
+
+        Document document = documentBuilder.parse(new ByteArrayInputStream(invoice));
+        assertEquals(document.getDocumentElement().getLocalName(), "Invoice");
+
+        DocumentBuilder otherThreads = Executors.newSingleThreadExecutor().submit(new Callable<DocumentBuilder>() {
+            @Override
+            public DocumentBuilder call() throws Exception {
+                return XmlInfrastructure.documentBuilder();
+            }
+        }).get();
+        assertNotSame(otherThreads, documentBuilder);
+    }
+
+    @Test
+    public void externalEntitiesAreNotResolved() throws Exception {
+        File secret = File.createTempFile("secret", ".txt");
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(secret);
+            fileOutputStream.write("top secret".getBytes("UTF-8"));
+            fileOutputStream.close();
+
+            String xml = "<?xml version=\"1.0\"?>\n<!DOCTYPE Invoice [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]>\n<Invoice>&secret;</Invoice>";
+            String content;
+            try {
+                content = XmlInfrastructure.documentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement().getTextContent();
+            } catch (Exception e) {
+                // Rejecting the document is fine too
+                content = "";
+            }
+            assertFalse(content.contains("top secret"), "External entity was resolved");
+        } finally {
+            secret.delete();
+        }
+    }
+
+    @Test
+    public void xPathIsReset() throws Exception {
+        XPath xPath = XmlInfrastructure.xPath();
+        xPath.setNamespaceContext(new SingleNamespaceContext("cbc", "urn:oasis:names:specification:ubl:schema:xsd:CommonBasicComponents-2"));
+        Document document = XmlInfrastructure.documentBuilder().parse(new ByteArrayInputStream(invoice));
+        assertEquals(xPath.evaluate("//cbc:UBLVersionID", document), "2.0");
+
+        assertSame(XmlInfrastructure.xPath(), xPath);
+        assertNull(xPath.getNamespaceContext());
+    }
+
+    @Test
+    public void transformerIsReset() throws Exception {
+        Transformer transformer = XmlInfrastructure.transformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+        Document document = XmlInfrastructure.documentBuilder().parse(new ByteArrayInputStream("<a>b</a>".getBytes("UTF-8")));
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        XmlInfrastructure.transformer().transform(new DOMSource(document), new StreamResult(byteArrayOutputStream));
+
+        assertTrue(byteArrayOutputStream.toString("UTF-8").startsWith("<?xml"), "Output property was not reset");
+    }
+
+    /** Parses an invoice and evaluates an XPath, with factories created per message versus the ones of the thread */
+    @Test(groups = {"manual"})
+    public void perMessageParsingOverhead() throws Exception {
+        final int threads = 8;
+        final int iterations = 2000;
+
+        long perMessage = measure(threads, iterations, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+                documentBuilderFactory.setNamespaceAware(true);
+                Document document = documentBuilderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(invoice));
+                return XPathFactory.newInstance().newXPath().evaluate("//*[local-name()='UBLVersionID']", document);
+            }
+        });
+
+        long pooled = measure(threads, iterations, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Document document = XmlInfrastructure.documentBuilder().parse(new ByteArrayInputStream(invoice));
+                return XmlInfrastructure.xPath().evaluate("//*[local-name()='UBLVersionID']", document);
+            }
+        });
+
+        System.out.printf("%d threads x %d messages of %d bytes: %.1f us per message with factories per message, %.1f us with pooled%n",
+                threads, iterations, invoice.length, perMessage / 1000.0 / iterations, pooled / 1000.0 / iterations);
+    }
+
+    private long measure(int threads, final int iterations, final Callable<String> operation) throws Exception {
+        // Warms up
+        for (int i = 0; i < 200; i++) {
+            assertEquals(operation.call(), "2.0");
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = 0; i < iterations; i++) {
+                            operation.call();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    static class SingleNamespaceContext implements NamespaceContext {
+
+        private final String prefix;
+        private final String namespaceUri;
+
+        SingleNamespaceContext(String prefix, String namespaceUri) {
+            this.prefix = prefix;
+            this.namespaceUri = namespaceUri;
+        }
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return this.prefix.equals(prefix) ? namespaceUri : XMLConstants.NULL_NS_URI;
+        }
+
+        @Override
+        public String getPrefix(String namespaceUri) {
+            return this.namespaceUri.equals(namespaceUri) ? prefix : null;
+        }
+
+        @Override
+        public Iterator getPrefixes(String namespaceUri) {
+            return Collections.singletonList(getPrefix(namespaceUri)).iterator();
+        }
+    }
+}
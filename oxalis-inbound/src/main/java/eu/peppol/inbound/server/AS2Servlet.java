@@ -21,31 +21,38 @@ package eu.peppol.inbound.server;
 
 import com.google.inject.Singleton;
 import eu.peppol.as2.*;
-import eu.peppol.security.KeystoreManager;
 import eu.peppol.persistence.MessageRepository;
+import eu.peppol.security.CryptoBootstrap;
 import eu.peppol.start.persistence.MessageRepositoryFactory;
 import eu.peppol.statistics.RawStatisticsRepository;
 import eu.peppol.statistics.RawStatisticsRepositoryFactoryProvider;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import eu.peppol.util.GlobalConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.mail.MessagingException;
+import javax.mail.Header;
 import javax.mail.internet.InternetHeaders;
-import javax.mail.internet.MimeMessage;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.PrivateKey;
-import java.security.Security;
-import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  *
@@ -60,52 +67,210 @@ public class AS2Servlet extends HttpServlet {
 
     public static final Logger log = LoggerFactory.getLogger(AS2Servlet.class);
 
-    private MdnMimeMessageFactory mdnMimeMessageFactory;
+    private StreamingMdnWriter streamingMdnWriter;
     private InboundMessageReceiver inboundMessageReceiver;
     private RawStatisticsRepository rawStatisticsRepository;
     private MessageRepository messageRepository;
+    private As2RequestExecutor as2RequestExecutor;
+    private DuplicateMessageIndex duplicateMessageIndex;
+    private long as2Timeout;
+    private int retryAfterSeconds;
+
+    public AS2Servlet() {
+    }
+
+    /** Creates a servlet processing requests using the supplied executor, without invoking {@link #init(ServletConfig)} */
+    AS2Servlet(As2RequestExecutor as2RequestExecutor, long as2Timeout, int retryAfterSeconds) {
+        this.as2RequestExecutor = as2RequestExecutor;
+        this.as2Timeout = as2Timeout;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
 
 
     /**
-     * Loads our X509 PEPPOL certificate togheter with our private key and initializes
-     * a MdnMimeMessageFactory instance.
+     * Initializes a StreamingMdnWriter instance, which signs the MDNs with our private key using the shared
+     * signing service.
      *
      * @param servletConfig
      */
     @Override
     public void init(ServletConfig servletConfig) {
-        KeystoreManager keystoreManager = KeystoreManager.getInstance();
-        X509Certificate ourCertificate = keystoreManager.getOurCertificate();
-        PrivateKey ourPrivateKey = keystoreManager.getOurPrivateKey();
-
-        mdnMimeMessageFactory = new MdnMimeMessageFactory(ourCertificate, ourPrivateKey);
+        streamingMdnWriter = new StreamingMdnWriter(SMimeSigningService.getInstance());
 
         // Gives us access to BouncyCastle
-        Security.addProvider(new BouncyCastleProvider());
+        CryptoBootstrap.registerProvider();
 
         // Gives us access to the Message repository holding the received messages
         messageRepository = MessageRepositoryFactory.getInstance();
 
+        // Recognises messages retransmitted by the sender
+        duplicateMessageIndex = DuplicateMessageIndex.getInstance();
+
         // Creates the receiver for inbound messages
-        inboundMessageReceiver = new InboundMessageReceiver();
+        inboundMessageReceiver = new InboundMessageReceiver(duplicateMessageIndex);
 
         // Locates an instance of the repository used for storage of raw statistics
         rawStatisticsRepository = RawStatisticsRepositoryFactoryProvider.getInstance().getInstanceForRawStatistics();
+
+        // The bounded pool of threads processing the messages
+        as2RequestExecutor = As2RequestExecutor.getInstance();
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        as2Timeout = globalConfiguration.getInboundAs2Timeout();
+        retryAfterSeconds = globalConfiguration.getInboundAs2RetryAfter();
     }
 
 
     /**
-     * Receives the POST'ed AS2 message
+     * Receives the POST'ed AS2 message, which is processed by a thread of the {@link As2RequestExecutor}, thus
+     * releasing the thread of the container. If the queue of the executor is full, the request is rejected at once
+     * with http status 503 and a Retry-After header.
+     * <p/>
+     * Requests still waiting for a thread when the time out expires are answered with http status 503 as well, and are
+     * never processed. A request being processed when the time out expires is allowed to complete, as the worker has
+     * started reading the message and may already have persisted it. Thus exactly one of the worker and the time out
+     * answers the request, as decided by the {@link RequestOwnership}.
+     * <p/>
+     * If asynchronous processing is not supported, i.e. some filter has not been declared as async-supported in
+     * web.xml, the thread of the container waits for the request to be processed.
      *
      * @param request
      * @param response
      * @throws ServletException
      * @throws IOException
      */
-    protected void doPost(final HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+
+        if (!request.isAsyncSupported()) {
+            processSynchronously(request, response);
+            return;
+        }
+
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        final RequestOwnership requestOwnership = new RequestOwnership();
+        asyncContext.setTimeout(as2Timeout);
+        asyncContext.addListener(new As2AsyncListener(requestOwnership, retryAfterSeconds));
+        try {
+            as2RequestExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!requestOwnership.claim()) {
+                        // Already answered upon time out, the request and response belong to the container
+                        log.warn("AS2 request timed out while waiting to be processed, ignored");
+                        return;
+                    }
+                    try {
+                        processRequest(request, response);
+                    } catch (Exception e) {
+                        log.error("Unable to process AS2 request: " + e.getMessage(), e);
+                        if (!response.isCommitted()) {
+                            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                        }
+                    } finally {
+                        complete(asyncContext);
+                        requestOwnership.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (requestOwnership.claim()) {
+                rejectRequest(response, e);
+                complete(asyncContext);
+                requestOwnership.release();
+            }
+        }
+    }
+
+    /**
+     * Processes the request using the executor, while the thread of the container waits for it to complete. The time
+     * out is handled like in asynchronous mode, i.e. a request being processed is always waited for, as the response
+     * must not be handed back to the container while the worker uses it.
+     */
+    void processSynchronously(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final Exception[] failure = new Exception[1];
+        final RequestOwnership requestOwnership = new RequestOwnership();
+        Future<?> future;
+        try {
+            future = as2RequestExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!requestOwnership.claim()) {
+                        return;
+                    }
+                    try {
+                        processRequest(request, response);
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    } finally {
+                        requestOwnership.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectRequest(response, e);
+            return;
+        }
+
+        try {
+            future.get(as2Timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (requestOwnership.claim()) {
+                future.cancel(false);
+                throw new ServletException("Interrupted while waiting for AS2 request to be processed", e);
+            }
+            requestOwnership.awaitRelease();
+        } catch (ExecutionException e) {
+            throw new ServletException("Unable to process AS2 request: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            if (requestOwnership.claim()) {
+                future.cancel(false);
+                log.error("AS2 request timed out after " + as2Timeout + "ms while waiting to be processed");
+                serviceUnavailable(response, "AS2 message not processed within " + as2Timeout + "ms, retry after " + retryAfterSeconds + " seconds");
+                return;
+            }
+            log.warn("AS2 request exceeded " + as2Timeout + "ms, waiting for it to be completed");
+            requestOwnership.awaitRelease();
+        }
+
+        if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        } else if (failure[0] instanceof ServletException) {
+            throw (ServletException) failure[0];
+        } else if (failure[0] != null) {
+            throw new ServletException("Unable to process AS2 request: " + failure[0].getMessage(), failure[0]);
+        }
+    }
+
+    /** Tells the sender to come back later, as we are busy */
+    void rejectRequest(HttpServletResponse response, RejectedExecutionException e) throws IOException {
+        log.warn("Rejecting AS2 request: " + e.getMessage() + ", in flight: " + as2RequestExecutor.getInFlight());
+        serviceUnavailable(response, "Too many AS2 messages being processed, retry after " + retryAfterSeconds + " seconds");
+    }
+
+    private void serviceUnavailable(HttpServletResponse response, String message) throws IOException {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        response.setContentType("text/plain");
+        response.getWriter().write(message);
+    }
+
+    private void complete(AsyncContext asyncContext) {
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            // Already completed by the container, i.e. upon time out
+            log.warn("Unable to complete asynchronous AS2 request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Performs the actual processing of the POST'ed AS2 message
+     */
+    void processRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
 
         InternetHeaders headers = copyHttpHeadersIntoMap(request);
+        String transmissionId = HeaderUtil.getFirstValue(headers, As2Header.MESSAGE_ID.getHttpHeaderName());
 
         // Receives the data, validates the headers, signature etc., invokes the persistence handler
         // and finally returns the MdnData to be sent back to the caller
@@ -114,30 +279,33 @@ public class AS2Servlet extends HttpServlet {
             // Performs the actual reception of the message by parsing the HTTP POST request
             MdnData mdnData = inboundMessageReceiver.receive(headers, request.getInputStream(), messageRepository);
 
-            // Creates the S/MIME message to be returned to the sender
-            MimeMessage mimeMessage = mdnMimeMessageFactory.createMdn(mdnData, headers);
-
+            // Creates the signed MDN to be returned to the sender
+            String boundary = StreamingMdnWriter.createBoundary();
+            InternetHeaders mdnHeaders = streamingMdnWriter.createHttpHeaders(mdnData, boundary);
+            ByteArrayOutputStream mdn = new ByteArrayOutputStream(4096);
+            streamingMdnWriter.writeMdn(mdnData, headers, boundary, mdn);
 
-            setHeadersForMDN(response, mdnData, mimeMessage);
+            // Stored before it is returned, as the MDN might get lost on its way back to the sender
+            storeMdn(headers, new StoredMdn(mdnHeaders, mdn.toByteArray()));
 
+            setHeadersForMDN(response, mdnHeaders);
             response.setStatus(HttpServletResponse.SC_OK);
-            try {
-                mimeMessage.writeTo(response.getOutputStream());
-                response.getOutputStream().flush();
-
-                log.info("Served request, status=OK:\n" + MimeMessageHelper.toString(mimeMessage));
-                log.info("------------- INFO ON PROCESSED REQUEST ENDS HERE -----------");
+            mdn.writeTo(response.getOutputStream());
+            response.getOutputStream().flush();
 
-            } catch (MessagingException e1) {
-                response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-                response.getWriter().write("Severe error during write of MDN " + e1.getMessage());
+            log.info("Served request, status=OK, returned MDN " + HeaderUtil.getFirstValue(mdnHeaders, "Message-ID") + " for message " + transmissionId);
+            if (log.isDebugEnabled()) {
+                log.debug("MDN returned:\n" + mdn.toString("US-ASCII"));
             }
+            log.info("------------- INFO ON PROCESSED REQUEST ENDS HERE -----------");
 
+        } catch (DuplicateMessageException e) {
+            // An authenticated retransmission of a message already received is answered with the MDN we returned the first time
+            replayMdn(response, transmissionId, e.getStoredMdn());
         } catch (ErrorWithMdnException e) {
             // Reception of AS2 message failed, send back a MDN indicating failure.
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            MimeMessage mimeMessage = mdnMimeMessageFactory.createMdn(e.getMdnData(), headers);
-            writeMimeMessageWithMdn(response, e, mimeMessage);
+            writeMdnWithFailure(response, e, e.getMdnData(), headers);
         } catch (Exception e) {
             // Unexpected internal error, return MDN indicating the problem
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -145,38 +313,62 @@ public class AS2Servlet extends HttpServlet {
             log.error("Internal error occured: " + e.getMessage(), e);
             log.error("Attempting to return MDN with explanatory message");
             MdnData mdnData = MdnData.Builder.buildProcessingErrorFromHeaders(headers, e.getMessage());
-            MimeMessage mimeMessage = mdnMimeMessageFactory.createMdn(mdnData, headers);
-            writeMimeMessageWithMdn(response, e, mimeMessage);
+            writeMdnWithFailure(response, e, mdnData, headers);
         }
     }
 
-    void setHeadersForMDN(HttpServletResponse response, MdnData mdnData, MimeMessage mimeMessage) throws MessagingException {
-        response.setHeader("Message-ID", mimeMessage.getHeader("Message-ID")[0]);
-        response.setHeader("MIME-Version", "1.0");
-        response.setHeader("Content-Type", mimeMessage.getContentType());
-        response.setHeader("AS2-To", mdnData.getAs2To());
-        response.setHeader("AS2-From", mdnData.getAs2From());
-        response.setHeader(As2Header.AS2_VERSION.getHttpHeaderName(), As2Header.VERSION);
-        response.setHeader(As2Header.SERVER.getHttpHeaderName(), "Oxalis");
-        response.setHeader("Subject", mdnData.getSubject());
-
-        mimeMessage.removeHeader("Message-ID");
-        mimeMessage.removeHeader("MIME-Version");
+    /** Sets the http headers of the MDN, adding the Date */
+    void setHeadersForMDN(HttpServletResponse response, InternetHeaders mdnHeaders) {
+        Enumeration headers = mdnHeaders.getAllHeaders();
+        while (headers.hasMoreElements()) {
+            Header header = (Header) headers.nextElement();
+            response.setHeader(header.getName(), header.getValue());
+        }
 
         String date = As2DateUtil.format(new Date());
         response.setHeader("Date", date);
     }
 
-    private void writeMimeMessageWithMdn(HttpServletResponse response, Exception e, MimeMessage mimeMessage) throws IOException {
+    /** Returns the MDN previously returned for a message, which has been retransmitted by the sender */
+    void replayMdn(HttpServletResponse response, String transmissionId, StoredMdn storedMdn) throws IOException {
+        log.info("Message " + transmissionId + " has already been received, returning MDN " + storedMdn.getMessageId() + " once more");
+
+        setHeadersForMDN(response, storedMdn.getHttpHeaders());
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getOutputStream().write(storedMdn.getBody());
+        response.getOutputStream().flush();
+    }
+
+    /** The message has been persisted, hence failing to store the MDN must not fail the reception */
+    private void storeMdn(InternetHeaders headers, StoredMdn storedMdn) {
+        String as2From = HeaderUtil.getFirstValue(headers, As2Header.AS2_FROM.getHttpHeaderName());
+        String as2To = HeaderUtil.getFirstValue(headers, As2Header.AS2_TO.getHttpHeaderName());
+        String transmissionId = HeaderUtil.getFirstValue(headers, As2Header.MESSAGE_ID.getHttpHeaderName());
+        if (as2From == null || as2To == null || transmissionId == null) {
+            return;
+        }
         try {
-            mimeMessage.writeTo(response.getOutputStream());
+            duplicateMessageIndex.storeMdn(as2From, as2To, transmissionId, storedMdn);
+        } catch (RuntimeException e) {
+            log.error("Unable to store the MDN of message " + transmissionId + " in the duplicate message index: " + e.getMessage(), e);
+        }
+    }
 
-            log.error("Returned MDN with failure: " + MimeMessageHelper.toString(mimeMessage), e);
+    /** The MDN reporting the failure is written directly to the response, as it is never replayed */
+    private void writeMdnWithFailure(HttpServletResponse response, Exception e, MdnData mdnData, InternetHeaders headers) throws IOException {
+        String boundary = StreamingMdnWriter.createBoundary();
+        InternetHeaders mdnHeaders = streamingMdnWriter.createHttpHeaders(mdnData, boundary);
+        setHeadersForMDN(response, mdnHeaders);
+        try {
+            streamingMdnWriter.writeMdn(mdnData, headers, boundary, response.getOutputStream());
+            response.getOutputStream().flush();
+
+            log.error("Returned MDN " + HeaderUtil.getFirstValue(mdnHeaders, "Message-ID") + " with failure: " + mdnData, e);
             log.error("---------- REQUEST ERROR INFORMATION ENDS HERE --------------"); // Being helpful to those who must read the error logs
-        } catch (MessagingException e1) {
+        } catch (RuntimeException e1) {
             String msg = "Unable to return MDN with failure to sender; " + e1.getMessage();
-            log.error(msg);
-            response.getWriter().write(msg);
+            log.error(msg, e1);
+            response.getOutputStream().write(msg.getBytes("US-ASCII"));
         }
     }
 
@@ -194,6 +386,89 @@ public class AS2Servlet extends HttpServlet {
         return internetHeaders;
     }
 
+    /**
+     * Decides whether the worker or the time out answers a request. Only the party having claimed the request may read
+     * the request or touch the response, and it releases the request once it has completed the response.
+     */
+    static class RequestOwnership {
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        /** @return true if the caller now owns the request, false if it has already been claimed by the other party */
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        /** Waits for the owner to complete the response, retaining the interrupted status of the current thread */
+        void awaitRelease() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    released.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Answers requests still waiting for a thread when they time out. A request being processed is waited for, as
+     * completing it here would have the container recycle the request and response while the worker uses them.
+     */
+    static class As2AsyncListener implements AsyncListener {
+
+        private final RequestOwnership requestOwnership;
+        private final int retryAfterSeconds;
+
+        As2AsyncListener(RequestOwnership requestOwnership, int retryAfterSeconds) {
+            this.requestOwnership = requestOwnership;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (!requestOwnership.claim()) {
+                log.warn("AS2 request timed out while being processed, waiting for it to be completed");
+                requestOwnership.awaitRelease();
+                return;
+            }
+            try {
+                log.error("AS2 request timed out while waiting to be processed");
+                HttpServletResponse response = (HttpServletResponse) event.getSuppliedResponse();
+                if (!response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+                }
+                event.getAsyncContext().complete();
+            } finally {
+                requestOwnership.release();
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            log.error("AS2 request failed: " + event.getThrowable(), event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+
     protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         log.info("HTTP GET not supported");
         response.setStatus(200);
@@ -0,0 +1,128 @@
+package eu.peppol.inbound.server;
+
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads processing inbound AS2 messages, which keeps the CPU intensive work, like verifying
+ * signatures and signing MDNs, off the threads of the servlet container.
+ * <p/>
+ * The number of threads and the capacity of the queue holding requests waiting for a thread are configured in the
+ * Oxalis global configuration. When the queue is full, requests are rejected immediately with a
+ * {@link RejectedExecutionException}, which {@link AS2Servlet} turns into http status 503 with a Retry-After header.
+ * <p/>
+ * The number of requests queued and in flight are reported by {@link StatusServlet}.
+ */
+public class As2RequestExecutor {
+
+    public static final Logger log = LoggerFactory.getLogger(As2RequestExecutor.class);
+
+    private static volatile As2RequestExecutor instance;
+
+    private final ThreadPoolExecutor threadPoolExecutor;
+    private final int queueCapacity;
+
+    /** Number of requests being processed */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Provides the executor configured in the Oxalis global configuration */
+    public static As2RequestExecutor getInstance() {
+        if (instance == null) {
+            synchronized (As2RequestExecutor.class) {
+                if (instance == null) {
+                    GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+                    instance = new As2RequestExecutor(globalConfiguration.getInboundAs2Threads(), globalConfiguration.getInboundAs2QueueSize());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /** The executor, if it has been created, null otherwise */
+    static As2RequestExecutor getInstanceIfCreated() {
+        return instance;
+    }
+
+    As2RequestExecutor(int threads, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "oxalis-as2-inbound-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        log.info("AS2 request executor created with " + threads + " threads and a queue capacity of " + queueCapacity);
+    }
+
+    /**
+     * Queues the processing of a request.
+     *
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public Future<?> submit(final Runnable request) {
+        try {
+            return threadPoolExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    inFlight.incrementAndGet();
+                    try {
+                        request.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("AS2 request queue is full, " + queueCapacity + " requests are waiting", e);
+        }
+    }
+
+    /** Number of requests waiting for a thread */
+    public int getQueueDepth() {
+        return threadPoolExecutor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** Number of requests being processed */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /** Number of requests rejected since start up, due to the queue being full */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        return threadPoolExecutor.getCompletedTaskCount();
+    }
+
+    /** Stops accepting requests, while those already queued are completed */
+    public void shutdown() {
+        threadPoolExecutor.shutdown();
+    }
+}
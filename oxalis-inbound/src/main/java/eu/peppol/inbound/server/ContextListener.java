@@ -7,7 +7,9 @@ import com.sun.xml.ws.transport.http.HttpAdapter;
 
 import eu.peppol.inbound.util.Log;
 import eu.peppol.inbound.util.LoggingConfigurator;
+import eu.peppol.persistence.MessageRepository;
 import eu.peppol.security.KeystoreManager;
+import eu.peppol.start.persistence.MessageRepositoryFactory;
 import eu.peppol.util.GlobalConfiguration;
 
 import org.slf4j.LoggerFactory;
@@ -16,6 +18,7 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import java.io.Closeable;
 import java.io.File;
 
 /**
@@ -81,6 +84,16 @@ public class ContextListener implements ServletContextListener {
 
     public void contextDestroyed(ServletContextEvent event) {
         Log.info("Stopping Oxalis Access Point");
+
+        // The journal based repository moves the messages committed into the inbound message store upon being closed
+        MessageRepository messageRepository = MessageRepositoryFactory.getInstance();
+        if (messageRepository instanceof Closeable) {
+            try {
+                ((Closeable) messageRepository).close();
+            } catch (Exception e) {
+                Log.error("Unable to close " + messageRepository + ": " + e.getMessage(), e);
+            }
+        }
     }
 
     static interface SimpleLogger {
@@ -39,5 +39,15 @@ public class StatusServlet extends HttpServlet {
         writer.println("certificate.issuer: " + ourCertificate.getIssuerX500Principal().getName());
         writer.println("certificate.expired: " + ourCertificate.getNotAfter().before(new Date()));
 
+        // Gauges of the pool processing inbound AS2 messages, once the first message has been received
+        As2RequestExecutor as2RequestExecutor = As2RequestExecutor.getInstanceIfCreated();
+        if (as2RequestExecutor != null) {
+            writer.println("as2.inbound.queue.depth: " + as2RequestExecutor.getQueueDepth());
+            writer.println("as2.inbound.queue.capacity: " + as2RequestExecutor.getQueueCapacity());
+            writer.println("as2.inbound.inflight: " + as2RequestExecutor.getInFlight());
+            writer.println("as2.inbound.rejected: " + as2RequestExecutor.getRejectedCount());
+            writer.println("as2.inbound.completed: " + as2RequestExecutor.getCompletedCount());
+        }
+
     }
 }
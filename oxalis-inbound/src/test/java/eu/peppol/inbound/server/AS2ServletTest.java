@@ -0,0 +1,183 @@
+package eu.peppol.inbound.server;
+
+import org.easymock.Capture;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.easymock.EasyMock.*;
+import static org.testng.Assert.*;
+
+/**
+ * Verifies that exactly one of the worker and the time out answers a request.
+ */
+public class AS2ServletTest {
+
+    private As2RequestExecutor as2RequestExecutor;
+    private CountDownLatch started;
+    private CountDownLatch release;
+    private AtomicInteger processed;
+    private AS2Servlet as2Servlet;
+
+    @BeforeMethod
+    public void setUp() {
+        as2RequestExecutor = new As2RequestExecutor(1, 2);
+        started = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        processed = new AtomicInteger();
+
+        // Processing blocks until released, after which the MDN is returned
+        as2Servlet = new AS2Servlet(as2RequestExecutor, 100, 10) {
+            @Override
+            void processRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+                processed.incrementAndGet();
+                started.countDown();
+                awaitRelease();
+                response.setStatus(HttpServletResponse.SC_OK);
+            }
+        };
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        release.countDown();
+        as2RequestExecutor.shutdown();
+    }
+
+    @Test
+    public void timeoutWhileWorkerIsRunningWaitsForTheWorker() throws Exception {
+        HttpServletResponse response = createMock(HttpServletResponse.class);
+        response.setStatus(HttpServletResponse.SC_OK);
+        AsyncContext asyncContext = createMock(AsyncContext.class);
+        Capture<AsyncListener> listener = new Capture<AsyncListener>();
+        asyncContext.setTimeout(100);
+        asyncContext.addListener(capture(listener));
+        asyncContext.complete();
+        HttpServletRequest request = asyncRequest(response, asyncContext);
+        replay(request, response, asyncContext);
+
+        as2Servlet.doPost(request, response);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        FutureTask<Void> timeout = onTimeout(listener.getValue(), new AsyncEvent(asyncContext, request, response));
+        try {
+            timeout.get(200, TimeUnit.MILLISECONDS);
+            fail("The time out should wait for the worker to complete the response");
+        } catch (TimeoutException e) {
+            // Expected
+        }
+
+        release.countDown();
+        timeout.get(5, TimeUnit.SECONDS);
+
+        // The response was written and the request completed by the worker only
+        verify(request, response, asyncContext);
+        assertEquals(processed.get(), 1);
+    }
+
+    @Test
+    public void queuedRequestTimingOutIsNeverProcessed() throws Exception {
+        // Occupies the only thread
+        as2RequestExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                awaitRelease();
+            }
+        });
+
+        HttpServletResponse response = createMock(HttpServletResponse.class);
+        expect(response.isCommitted()).andReturn(false);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "10");
+        AsyncContext asyncContext = createMock(AsyncContext.class);
+        Capture<AsyncListener> listener = new Capture<AsyncListener>();
+        asyncContext.setTimeout(100);
+        asyncContext.addListener(capture(listener));
+        asyncContext.complete();
+        HttpServletRequest request = asyncRequest(response, asyncContext);
+        replay(request, response, asyncContext);
+
+        as2Servlet.doPost(request, response);
+        onTimeout(listener.getValue(), new AsyncEvent(asyncContext, request, response)).get(5, TimeUnit.SECONDS);
+
+        // Lets the queued request have the thread, and waits for it to finish
+        release.countDown();
+        as2RequestExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        verify(request, response, asyncContext);
+        assertEquals(processed.get(), 0);
+    }
+
+    @Test
+    public void synchronousTimeoutWhileWorkerIsRunningWaitsForTheWorker() throws Exception {
+        HttpServletResponse response = createMock(HttpServletResponse.class);
+        response.setStatus(HttpServletResponse.SC_OK);
+        HttpServletRequest request = createMock(HttpServletRequest.class);
+        expect(request.isAsyncSupported()).andReturn(false);
+        replay(request, response);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Exceeds the time out of 100ms
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }).start();
+
+        as2Servlet.doPost(request, response);
+
+        verify(request, response);
+        assertEquals(processed.get(), 1);
+    }
+
+    private HttpServletRequest asyncRequest(HttpServletResponse response, AsyncContext asyncContext) {
+        HttpServletRequest request = createMock(HttpServletRequest.class);
+        expect(request.isAsyncSupported()).andReturn(true);
+        expect(request.startAsync(request, response)).andReturn(asyncContext);
+        return request;
+    }
+
+    /** Delivers the time out on a thread of its own, like the container does */
+    private FutureTask<Void> onTimeout(final AsyncListener asyncListener, final AsyncEvent asyncEvent) {
+        FutureTask<Void> futureTask = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                asyncListener.onTimeout(asyncEvent);
+                return null;
+            }
+        });
+        new Thread(futureTask).start();
+        return futureTask;
+    }
+
+    private void awaitRelease() {
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
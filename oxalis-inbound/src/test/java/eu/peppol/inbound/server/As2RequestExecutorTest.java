@@ -0,0 +1,56 @@
+package eu.peppol.inbound.server;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class As2RequestExecutorTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        As2RequestExecutor as2RequestExecutor = new As2RequestExecutor(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocking = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        try {
+            Future<?> first = as2RequestExecutor.submit(blocking);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Future<?> second = as2RequestExecutor.submit(blocking);
+
+            assertEquals(as2RequestExecutor.getInFlight(), 1);
+            assertEquals(as2RequestExecutor.getQueueDepth(), 1);
+
+            try {
+                as2RequestExecutor.submit(blocking);
+                fail("Request should have been rejected, as the queue is full");
+            } catch (RejectedExecutionException e) {
+                assertEquals(as2RequestExecutor.getRejectedCount(), 1L);
+            }
+
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+            assertEquals(as2RequestExecutor.getInFlight(), 0);
+            assertEquals(as2RequestExecutor.getQueueDepth(), 0);
+        } finally {
+            release.countDown();
+            as2RequestExecutor.shutdown();
+        }
+    }
+}
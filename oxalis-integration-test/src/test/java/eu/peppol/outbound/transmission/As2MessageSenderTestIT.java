@@ -9,6 +9,7 @@ import eu.peppol.as2.PeppolAs2SystemIdentifier;
 import eu.peppol.identifier.ParticipantId;
 import eu.peppol.identifier.PeppolDocumentTypeId;
 import eu.peppol.identifier.PeppolDocumentTypeIdAcronym;
+import eu.peppol.outbound.health.DestinationHealthRegistry;
 import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
 import eu.peppol.smp.SmpLookupManager;
@@ -34,6 +35,10 @@ public class As2MessageSenderTestIT {
 
     @Inject SmpLookupManager smpLookupManager;
 
+    @Inject OutboundHttpConnectionPool connectionPool;
+
+    @Inject DestinationHealthRegistry healthRegistry;
+
     /** Verifies that the Google Guice injection of @Named injections works as expected */
     @Test
     public void testInjection() throws Exception {
@@ -48,7 +53,7 @@ public class As2MessageSenderTestIT {
     @Test(groups = {"integration"})
     public void sendSampleMessageAndVerify() throws Exception {
 
-        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager);
+        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager, connectionPool, healthRegistry);
         String receiver = "9908:810017902";
         String sender = "9908:810017902";
 
@@ -68,7 +73,7 @@ public class As2MessageSenderTestIT {
      */
     @Test(groups = {"manual"})
     public void sendToItsligo() throws MalformedURLException, InvalidAs2SystemIdentifierException {
-        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager);
+        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager, connectionPool, healthRegistry);
         String receiver = "0088:itsligotest2";
         String sender = "9908:810017902";
 
@@ -86,7 +91,7 @@ public class As2MessageSenderTestIT {
      */
     @Test(groups = {"manual"})
     public void sendToOpenAS2() throws MalformedURLException, InvalidAs2SystemIdentifierException {
-        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager);
+        As2MessageSender as2MessageSender = new As2MessageSender(smpLookupManager, connectionPool, healthRegistry);
         String receiver = "9908:810017902";
         String sender = "9908:810017902";
 
@@ -33,6 +33,8 @@ import eu.peppol.smp.SmpLookupManager;
 import eu.peppol.smp.SmpLookupManagerImpl;
 import eu.peppol.util.GlobalConfiguration;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -54,6 +56,18 @@ public class TransmissionTestITModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(MessageSenderFactory.class);
+        useTemporarySmpStore();
+    }
+
+    /** Keeps the SMP lookups performed by the tests out of the SMP store in the Oxalis home directory */
+    static void useTemporarySmpStore() {
+        try {
+            File file = File.createTempFile("smp-metadata", ".dat");
+            file.deleteOnExit();
+            GlobalConfiguration.getInstance().setSmpStoreFile(file.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create temporary SMP store: " + e.getMessage(), e);
+        }
     }
 
     @Provides
@@ -2,6 +2,7 @@ package eu.peppol.outbound;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import eu.peppol.outbound.spool.OutboundSpool;
 import eu.peppol.outbound.transmission.TransmissionModule;
 import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
 import eu.peppol.outbound.transmission.Transmitter;
@@ -39,4 +40,15 @@ public class OxalisOutboundModule {
     public Transmitter getTransmitter() {
         return injector.getInstance(Transmitter.class);
     }
-}
\ No newline at end of file
+
+    /**
+     * Retrieves the durable outbound spool, which is started, i.e. pending transmissions are recovered and transmitted.
+     *
+     * @return the singleton instance of the OutboundSpool
+     */
+    public OutboundSpool getOutboundSpool() {
+        OutboundSpool outboundSpool = injector.getInstance(OutboundSpool.class);
+        outboundSpool.start();
+        return outboundSpool;
+    }
+}
@@ -7,13 +7,12 @@ import eu.peppol.smp.SmpLookupManagerImpl;
 import eu.peppol.start.identifier.*;
 import eu.peppol.statistics.RawStatistics;
 import eu.peppol.statistics.RawStatisticsRepository;
+import eu.peppol.util.XmlInfrastructure;
 import org.w3._2009._02.ws_tra.Create;
 import org.w3._2009._02.ws_tra.FaultMessage;
 import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
@@ -131,8 +130,8 @@ public class DocumentSender {
         return send(document, sender, recipient, destination, new ChannelId(channelId));
     }
 
-    private DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
-        return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    private DocumentBuilder getDocumentBuilder() {
+        return XmlInfrastructure.documentBuilder(false);
     }
 
     private URL getEndpointAddress(String recipient) {
@@ -0,0 +1,28 @@
+package eu.peppol.outbound.health;
+
+import java.util.Date;
+
+/**
+ * Thrown when a transmission is attempted to a receiving access point, which has recently been failing. The
+ * transmission is rejected immediately rather than waiting for the connect and read timeouts.
+ */
+public class CircuitOpenException extends IllegalStateException {
+
+    private final String destination;
+    private final long retryAfter;
+
+    public CircuitOpenException(String destination, long retryAfter) {
+        super("Recipient AP " + destination + " is not available at the moment, will be retried after " + new Date(retryAfter));
+        this.destination = destination;
+        this.retryAfter = retryAfter;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    /** Point in time (milliseconds since epoch) at which a probe transmission will be let through */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,218 @@
+package eu.peppol.outbound.health;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker guarding the transmissions to a single receiving access point.
+ * <p/>
+ * While <em>closed</em>, the outcome of the most recent transmissions is recorded in a sliding window. The circuit is
+ * <em>opened</em> once the rate of failed or slow transmissions in the window exceeds the configured thresholds,
+ * after which transmissions are rejected with a {@link CircuitOpenException}. Once the open duration has elapsed,
+ * the circuit is <em>half open</em> and a single probe transmission is let through; its outcome either closes the
+ * circuit or opens it again. A probe which completes slowly closes the circuit, as the access point did respond;
+ * should it keep being slow, the slow call rate opens the circuit again.
+ * <p/>
+ * The implementation is lock free. The state is an immutable {@link Status} replaced by compare and set, while the
+ * window is a ring buffer of atomic integers. Concurrent transmissions may hence observe a slightly stale failure
+ * rate, which is of no consequence.
+ */
+public class DestinationCircuitBreaker {
+
+    public static final Logger log = LoggerFactory.getLogger(DestinationCircuitBreaker.class);
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    static final int EMPTY = 0;
+    static final int SUCCESS = 1;
+    static final int SLOW = 2;
+    static final int FAILURE = 3;
+
+    private final String destination;
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRate;
+    private final long slowCallDurationInNanos;
+    private final int slowCallRate;
+    private final long openDuration;
+
+    private final AtomicReference<Status> status;
+
+    DestinationCircuitBreaker(String destination, int windowSize, int minimumCalls, int failureRate, long slowCallDuration, int slowCallRate, long openDuration) {
+        this.destination = destination;
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRate = failureRate;
+        this.slowCallDurationInNanos = slowCallDuration * 1000000L;
+        this.slowCallRate = slowCallRate;
+        this.openDuration = openDuration;
+        this.status = new AtomicReference<Status>(closed());
+    }
+
+    /**
+     * Grants permission to transmit to the destination, every permission granted must be followed by invocation of
+     * either {@link #recordSuccess(long)} or {@link #recordFailure(long)}.
+     *
+     * @throws CircuitOpenException if the destination is unavailable
+     */
+    public void acquirePermission() {
+        while (true) {
+            Status current = status.get();
+            long now = System.currentTimeMillis();
+
+            switch (current.state) {
+                case CLOSED:
+                    return;
+
+                case OPEN:
+                case HALF_OPEN:
+                    // While half open, a probe which never completed is replaced after the open duration
+                    if (now < current.since + openDuration) {
+                        throw new CircuitOpenException(destination, current.since + openDuration);
+                    }
+                    if (status.compareAndSet(current, new Status(State.HALF_OPEN, now, null))) {
+                        log.info("Sending probe transmission to " + destination);
+                        return;
+                    }
+                    break;  // Lost the race, start over
+            }
+        }
+    }
+
+    /** Records a transmission which completed, i.e. the access point responded */
+    public void recordSuccess(long durationInNanos) {
+        record(durationInNanos >= slowCallDurationInNanos ? SLOW : SUCCESS);
+    }
+
+    /** Records a transmission which failed, due to network problems or server errors at the access point */
+    public void recordFailure(long durationInNanos) {
+        record(FAILURE);
+    }
+
+    /** Forces the circuit closed, forgetting about previous failures */
+    public void reset() {
+        status.set(closed());
+        log.info("Circuit to " + destination + " has been reset");
+    }
+
+    /** Forces the circuit open, as if the access point had been failing */
+    public void trip() {
+        status.set(new Status(State.OPEN, System.currentTimeMillis(), null));
+        log.warn("Circuit to " + destination + " has been opened manually");
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public State getState() {
+        return status.get().state;
+    }
+
+    /** Point in time (milliseconds since epoch) of the last change of state */
+    public long getSince() {
+        return status.get().since;
+    }
+
+    /** Percentage of failed transmissions in the current window, or 0 if not closed */
+    public int getFailureRate() {
+        Window window = status.get().window;
+        return window == null ? 0 : window.rateOf(FAILURE);
+    }
+
+    /** Percentage of slow transmissions in the current window, or 0 if not closed */
+    public int getSlowCallRate() {
+        Window window = status.get().window;
+        return window == null ? 0 : window.rateOf(SLOW);
+    }
+
+    private void record(int outcome) {
+        while (true) {
+            Status current = status.get();
+
+            switch (current.state) {
+                case CLOSED:
+                    current.window.add(outcome);
+                    if (current.window.size() >= minimumCalls && isFailing(current.window)) {
+                        if (status.compareAndSet(current, new Status(State.OPEN, System.currentTimeMillis(), null))) {
+                            log.warn("Circuit to " + destination + " opened, failure rate " + current.window.rateOf(FAILURE)
+                                    + "%, slow call rate " + current.window.rateOf(SLOW) + "%");
+                        }
+                    }
+                    return;
+
+                case HALF_OPEN:
+                    Status next = outcome != FAILURE ? closed() : new Status(State.OPEN, System.currentTimeMillis(), null);
+                    if (status.compareAndSet(current, next)) {
+                        log.info("Probe transmission to " + destination + (next.state == State.CLOSED ? " succeeded, circuit closed" : " failed, circuit opened again"));
+                        return;
+                    }
+                    break;  // Lost the race, start over
+
+                case OPEN:
+                    // Transmission started before the circuit was opened
+                    return;
+            }
+        }
+    }
+
+    private boolean isFailing(Window window) {
+        return window.rateOf(FAILURE) >= failureRate || window.rateOf(SLOW) >= slowCallRate;
+    }
+
+    private Status closed() {
+        return new Status(State.CLOSED, System.currentTimeMillis(), new Window(windowSize));
+    }
+
+    /** Immutable state of the circuit, the window is only present while closed */
+    static class Status {
+        final State state;
+        final long since;
+        final Window window;
+
+        Status(State state, long since, Window window) {
+            this.state = state;
+            this.since = since;
+            this.window = window;
+        }
+    }
+
+    /** Ring buffer holding the outcome of the most recent transmissions */
+    static class Window {
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong count = new AtomicLong();
+
+        Window(int size) {
+            outcomes = new AtomicIntegerArray(size);
+        }
+
+        void add(int outcome) {
+            int index = (int) (count.getAndIncrement() % outcomes.length());
+            outcomes.set(index, outcome);
+        }
+
+        int size() {
+            return (int) Math.min(count.get(), outcomes.length());
+        }
+
+        /** Percentage of the recorded outcomes equal to the supplied one */
+        int rateOf(int outcome) {
+            int recorded = 0;
+            int matching = 0;
+            for (int i = 0; i < outcomes.length(); i++) {
+                int value = outcomes.get(i);
+                if (value != EMPTY) {
+                    recorded++;
+                    if (value == outcome) {
+                        matching++;
+                    }
+                }
+            }
+            return recorded == 0 ? 0 : matching * 100 / recorded;
+        }
+    }
+}
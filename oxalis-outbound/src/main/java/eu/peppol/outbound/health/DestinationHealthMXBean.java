@@ -0,0 +1,24 @@
+package eu.peppol.outbound.health;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link DestinationHealthRegistry}, which allows the operators to inspect and override
+ * the state of the circuits to the receiving access points.
+ */
+public interface DestinationHealthMXBean {
+
+    /** State of the circuit to every destination we have transmitted to, keyed by destination */
+    Map<String, String> getDestinationStates();
+
+    /** Destinations to which transmissions are currently rejected */
+    String[] getOpenDestinations();
+
+    int getOpenCount();
+
+    /** Closes the circuit to the destination, i.e. transmissions are attempted again */
+    void reset(String destination);
+
+    /** Opens the circuit to the destination, i.e. transmissions are rejected for a while */
+    void trip(String destination);
+}
@@ -0,0 +1,183 @@
+package eu.peppol.outbound.health;
+
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps track of the health of the receiving access points, shared by all the message senders.
+ * <p/>
+ * Every destination, i.e. the protocol, host and port of an access point, has a {@link DestinationCircuitBreaker}.
+ * Transmissions to an access point which has been failing are rejected immediately with a
+ * {@link CircuitOpenException}, rather than tying up our threads for the full connect and read timeouts.
+ * <p/>
+ * The usage pattern is:
+ * <pre>
+ *     long start = healthRegistry.acquirePermission(url);
+ *     try {
+ *         ... transmit
+ *         healthRegistry.recordSuccess(url, start);
+ *     } catch (IOException e) {
+ *         healthRegistry.recordFailure(url, start);
+ *     }
+ * </pre>
+ * A single registry, obtained from {@link #getInstance()}, is shared by all the senders in the JVM, and is available
+ * through JMX as <code>eu.peppol.outbound:type=DestinationHealth</code>
+ */
+public class DestinationHealthRegistry implements DestinationHealthMXBean {
+
+    public static final Logger log = LoggerFactory.getLogger(DestinationHealthRegistry.class);
+
+    public static final String OBJECT_NAME = "eu.peppol.outbound:type=DestinationHealth";
+
+    private static volatile DestinationHealthRegistry instance;
+
+    private final ConcurrentMap<String, DestinationCircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, DestinationCircuitBreaker>();
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRate;
+    private final long slowCallDuration;
+    private final int slowCallRate;
+    private final long openDuration;
+
+    /** Provides the registry configured in the Oxalis global configuration, which is registered with JMX */
+    public static DestinationHealthRegistry getInstance() {
+        if (instance == null) {
+            synchronized (DestinationHealthRegistry.class) {
+                if (instance == null) {
+                    instance = new DestinationHealthRegistry(GlobalConfiguration.getInstance());
+                }
+            }
+        }
+        return instance;
+    }
+
+    public DestinationHealthRegistry(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.getCircuitBreakerWindowSize(),
+                globalConfiguration.getCircuitBreakerMinimumCalls(),
+                globalConfiguration.getCircuitBreakerFailureRate(),
+                globalConfiguration.getCircuitBreakerSlowCallDuration(),
+                globalConfiguration.getCircuitBreakerSlowCallRate(),
+                globalConfiguration.getCircuitBreakerOpenDuration());
+        registerMBean();
+    }
+
+    DestinationHealthRegistry(int windowSize, int minimumCalls, int failureRate, long slowCallDuration, int slowCallRate, long openDuration) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Circuit breaker window size must be positive, was " + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRate = failureRate;
+        this.slowCallDuration = slowCallDuration;
+        this.slowCallRate = slowCallRate;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Grants permission to transmit to the supplied endpoint.
+     *
+     * @return the value of {@link System#nanoTime()}, to be supplied when recording the outcome.
+     * @throws CircuitOpenException if the access point is unavailable
+     */
+    public long acquirePermission(URL endpoint) {
+        getCircuitBreaker(endpoint).acquirePermission();
+        return System.nanoTime();
+    }
+
+    /** Records that the access point responded to the transmission started at the supplied point in time */
+    public void recordSuccess(URL endpoint, long startNanos) {
+        getCircuitBreaker(endpoint).recordSuccess(System.nanoTime() - startNanos);
+    }
+
+    /** Records that the transmission started at the supplied point in time failed due to the access point */
+    public void recordFailure(URL endpoint, long startNanos) {
+        getCircuitBreaker(endpoint).recordFailure(System.nanoTime() - startNanos);
+    }
+
+    public DestinationCircuitBreaker getCircuitBreaker(URL endpoint) {
+        return getCircuitBreaker(destinationOf(endpoint));
+    }
+
+    DestinationCircuitBreaker getCircuitBreaker(String destination) {
+        DestinationCircuitBreaker circuitBreaker = circuitBreakers.get(destination);
+        if (circuitBreaker == null) {
+            circuitBreakers.putIfAbsent(destination, new DestinationCircuitBreaker(destination, windowSize, minimumCalls, failureRate, slowCallDuration, slowCallRate, openDuration));
+            circuitBreaker = circuitBreakers.get(destination);
+        }
+        return circuitBreaker;
+    }
+
+    /** The destination of an endpoint URL, i.e. the access point regardless of the path */
+    public static String destinationOf(URL endpoint) {
+        int port = endpoint.getPort() == -1 ? endpoint.getDefaultPort() : endpoint.getPort();
+        return endpoint.getProtocol().toLowerCase() + "://" + endpoint.getHost().toLowerCase() + ":" + port;
+    }
+
+    @Override
+    public Map<String, String> getDestinationStates() {
+        Map<String, String> states = new TreeMap<String, String>();
+        for (DestinationCircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            states.put(circuitBreaker.getDestination(), circuitBreaker.getState() + " (failure rate " + circuitBreaker.getFailureRate() + "%, slow call rate " + circuitBreaker.getSlowCallRate() + "%)");
+        }
+        return states;
+    }
+
+    @Override
+    public String[] getOpenDestinations() {
+        ArrayList<String> open = new ArrayList<String>();
+        for (DestinationCircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            if (circuitBreaker.getState() != DestinationCircuitBreaker.State.CLOSED) {
+                open.add(circuitBreaker.getDestination());
+            }
+        }
+        return open.toArray(new String[open.size()]);
+    }
+
+    @Override
+    public int getOpenCount() {
+        return getOpenDestinations().length;
+    }
+
+    @Override
+    public void reset(String destination) {
+        getCircuitBreaker(destination).reset();
+    }
+
+    @Override
+    public void trip(String destination) {
+        getCircuitBreaker(destination).trip();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server, unless another instance has been registered already,
+     * which is then left in place.
+     *
+     * @return true if this instance was registered
+     */
+    boolean registerMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+            return true;
+        } catch (InstanceAlreadyExistsException e) {
+            log.warn(OBJECT_NAME + " has already been registered with the MBean server, this registry is not available through JMX");
+            return false;
+        } catch (Exception e) {
+            log.warn("Unable to register " + OBJECT_NAME + " with the MBean server: " + e.getMessage(), e);
+            return false;
+        }
+    }
+}
@@ -39,9 +39,11 @@
  */
 package eu.peppol.outbound.soap;
 
+import com.google.inject.Inject;
 import com.sun.xml.ws.developer.JAXWSProperties;
 import com.sun.xml.ws.rx.rm.api.ReliableMessagingFeatureBuilder;
 import com.sun.xml.ws.rx.rm.api.RmProtocolVersion;
+import eu.peppol.outbound.health.DestinationHealthRegistry;
 import eu.peppol.outbound.ssl.AccessPointX509TrustManager;
 import eu.peppol.outbound.util.Log;
 import eu.peppol.start.identifier.StartMessageHeader;
@@ -51,7 +53,6 @@ import org.w3._2009._02.ws_tra.*;
 
 import javax.net.ssl.*;
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLStreamException;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.Handler;
 import javax.xml.ws.handler.HandlerResolver;
@@ -60,7 +61,6 @@ import java.net.URL;
 import java.security.Principal;
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * The accesspointClient class aims to hold all the processes required for
@@ -81,105 +81,27 @@ public class SoapDispatcher {
     private static Integer connectTimeout = GlobalConfiguration.getInstance().getConnectTimeout();
     private static Integer readTimeout = GlobalConfiguration.getInstance().getReadTimeout();
 
-    private static boolean add2ApBlackListOnTimeout = true;
-    private static Integer apBlackListEntryKeepTime = 1000 * 60 * 120;
+    private final DestinationHealthRegistry healthRegistry;
 
-    private static Map<URL, Long> apBlackList = Collections.synchronizedMap(new LinkedHashMap<URL, Long>());
-
-    public final void enableSoapLogging(boolean value) {
-        System.setProperty("com.sun.xml.ws.transport.http.client.HttpTransportPipe.dump", String.valueOf(value));
-    }
-
-    // BlackList operations
-    public static void setApBlackList(Map<URL, Long> apBlackList) {
-        SoapDispatcher.apBlackList = apBlackList;
-    }
-
-    public static Map<URL, Long> getApBlackList() {
-        return apBlackList;
-    }
-
-    public static Map<String, Date> getApBlackListAsString() {
-        Map<String, Date> map = new LinkedHashMap<String, Date>();
-        synchronized (SoapDispatcher.apBlackList) {
-            for (Iterator<Entry<URL, Long>> iter = apBlackList.entrySet().iterator(); iter.hasNext(); ) {
-                Entry<URL, Long> entry = iter.next();
-                Date value = null;
-                if (entry.getValue() != null && entry.getValue() > 0) {
-                    value = new Date(entry.getValue());
-                }
-                map.put(entry.getKey().toExternalForm(), value);
-            }
-        }
-
-        return map;
-    }
-
-    public static void setApBlackListFromString(Set<String> apBlackList)
-            throws Exception {
-        synchronized (SoapDispatcher.apBlackList) {
-            Log.debug("Populating apBlackList from string");
-            clearApBlackList();
-            for (Iterator<String> iter = apBlackList.iterator(); iter.hasNext(); ) {
-                String destination = iter.next();
-                if (destination != null && destination.trim().length() > 0) {
-                    add2ApBlackList(new URL(destination), 0);
-                }
-            }
-        }
-    }
-
-    public static boolean isAdd2ApBlackListOnTimeout() {
-        return add2ApBlackListOnTimeout;
-    }
-
-    public static void setAdd2ApBlackListOnTimeout(boolean add2ApBlackListOnTimeout) {
-        Log.debug("setAdd2ApBlackListOnTimeout " + add2ApBlackListOnTimeout);
-        SoapDispatcher.add2ApBlackListOnTimeout = add2ApBlackListOnTimeout;
-    }
-
-    public static Integer getApBlackListEntryKeepTime() {
-        return apBlackListEntryKeepTime;
-    }
-
-    public static void setApBlackListEntryKeepTime(Integer apBlackListEntryKeepTime) {
-        Log.debug("setApBlackListEntryKeepTime " + add2ApBlackListOnTimeout);
-        SoapDispatcher.apBlackListEntryKeepTime = apBlackListEntryKeepTime;
-    }
-
-    public static void add2ApBlackList(URL destination, Integer apBlackListEntryKeepTime) {
-        Log.debug("add2ApBlackList " + destination + " apBlackListEntryKeepTime " + apBlackListEntryKeepTime);
-        if (apBlackListEntryKeepTime == null || apBlackListEntryKeepTime == 0) {
-            getApBlackList().put(destination, new Long(0));
-        } else {
-            getApBlackList().put(destination, System.currentTimeMillis() + apBlackListEntryKeepTime);
-        }
-    }
-
-    public static void removeFromApBlackList(URL destination) {
-        Log.debug("removeFromApBlackList " + destination);
-        getApBlackList().remove(destination);
+    /**
+     * Creates a dispatcher sharing the registry of the health of the receiving access points held by
+     * {@link DestinationHealthRegistry#getInstance()}.
+     */
+    public SoapDispatcher() {
+        this(DestinationHealthRegistry.getInstance());
     }
 
-    public static boolean existInApBlackList(URL destination) {
-        if (!getApBlackList().containsKey(destination)) {
-            return false;
-        }
-        Long keepTime = getApBlackList().get(destination);
-        if (keepTime == null || keepTime == 0) {
-            return true;
-        } else if (System.currentTimeMillis() < keepTime) {
-            return true;
-        }
-
-        Log.debug("removeFromApBlackList due to getApBlackListEntryKeepTime");
-        getApBlackList().remove(destination);
-        return false;
+    /**
+     * Creates a dispatcher sharing the registry of the health of the receiving access points with the other
+     * message senders.
+     */
+    @Inject
+    public SoapDispatcher(DestinationHealthRegistry healthRegistry) {
+        this.healthRegistry = healthRegistry;
     }
 
-    public static void clearApBlackList() {
-        Log.debug("clearApBlackList");
-        getApBlackList().clear();
+    public final void enableSoapLogging(boolean value) {
+        System.setProperty("com.sun.xml.ws.transport.http.client.HttpTransportPipe.dump", String.valueOf(value));
     }
 
     // Connection timeout operations
@@ -260,11 +182,8 @@ public class SoapDispatcher {
             throw new IllegalArgumentException("Recipient AP is null.");
         }
 
-        if (existInApBlackList(endpointAddress)) {
-            throw new RuntimeException("Recipient AP is not avalaible at the moment: "
-                    + endpointAddress.toExternalForm()
-                    + " . Please contact system administrator.");
-        }
+        // Fails fast, with a CircuitOpenException, if the recipient AP has been failing recently
+        long healthStart = healthRegistry.acquirePermission(endpointAddress);
 
         Log.debug("Constructing service proxy");
 
@@ -299,18 +218,20 @@ public class SoapDispatcher {
 
             Log.info("Performing SOAP request to: " + endpointAddress.toExternalForm());
             port.create(soapBody);
+            healthRegistry.recordSuccess(endpointAddress, healthStart);
 
             Log.info("Sender:\t" + messageHeader.getSenderId().stringValue());
             Log.info("Recipient:\t" + messageHeader.getRecipientId().stringValue());
             Log.info("Destination:\t" + endpointAddress);
             Log.info("Message " + messageHeader.getMessageId() + " has been successfully delivered");
 
+        } catch (FaultMessage faultMessage) {
+            // The recipient AP is alive, although it did not accept the message
+            healthRegistry.recordSuccess(endpointAddress, healthStart);
+            throw faultMessage;
         } catch (RuntimeException rte) {
-
-            if (isAdd2ApBlackListOnTimeout() && getRootCause(rte) instanceof XMLStreamException) {
-                Log.debug("Timeout exception occured. Will add to ApBlackList: " + endpointAddress);
-                add2ApBlackList(endpointAddress, getApBlackListEntryKeepTime());
-            }
+            Log.debug("Transmission to " + endpointAddress + " failed: " + rte.getMessage());
+            healthRegistry.recordFailure(endpointAddress, healthStart);
             throw rte;
         } finally {
             // Creates memory leak if not performed
@@ -0,0 +1,366 @@
+package eu.peppol.outbound.spool;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.outbound.health.CircuitOpenException;
+import eu.peppol.outbound.transmission.TransmissionRequest;
+import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
+import eu.peppol.outbound.transmission.Transmitter;
+import eu.peppol.outbound.util.DaemonThreadFactory;
+import eu.peppol.smp.SmpLookupManager;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable spool of outbound transmissions, which are retried until they have been delivered.
+ * <p/>
+ * {@link #enqueue(TransmissionRequest)} writes the transmission to the {@link SpoolJournal} on disk and returns
+ * as soon as it is safely stored, after which the spool takes care of the transmission. Failed transmissions are
+ * retried with exponential back off and jitter, per destination, i.e. a failure to deliver to an access point
+ * holds back all the transmissions to that access point. Transmissions which fail too many times are moved aside
+ * for manual inspection.
+ * <p/>
+ * Every transmission is keyed by its {@link TransmissionId}, which is also used as the AS2 Message-ID. Enqueuing a
+ * transmission id which is already known has no effect, and an entry is never sent again once it has been
+ * recorded as sent. Should we crash between the transmission and the recording of it, the transmission is
+ * repeated upon restart with the same transmission id, allowing the receiver to detect the duplicate.
+ * <p/>
+ * Pending transmissions are recovered when the spool is started.
+ */
+@Singleton
+public class OutboundSpool {
+
+    public static final Logger log = LoggerFactory.getLogger(OutboundSpool.class);
+
+    /** Markers of sent transmissions are kept this long, in order to detect transmissions enqueued again */
+    static final long SENT_MARKER_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    private static final long DISPATCH_INTERVAL = 1000L;
+
+    private final SpoolJournal journal;
+    private final Transmitter transmitter;
+    private final Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+    private final RetryPolicy retryPolicy;
+    private final int threads;
+    private final int maxPerDestination;
+    private final int maxAttempts;
+
+    /** Entries waiting to be transmitted, or being transmitted */
+    private final ConcurrentMap<String, SpoolEntry> pending = new ConcurrentHashMap<String, SpoolEntry>();
+    private final ConcurrentMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+    /** Released once the transmission being enqueued has been written to the spool, or failed to be written */
+    final ConcurrentMap<String, CountDownLatch> beingEnqueued = new ConcurrentHashMap<String, CountDownLatch>();
+    private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+    private ScheduledExecutorService dispatcher;
+    private ExecutorService workers;
+    private volatile boolean started = false;
+
+    @Inject
+    public OutboundSpool(GlobalConfiguration globalConfiguration, Transmitter transmitter, Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider) {
+        this(new File(globalConfiguration.getOutboundSpoolDirectory()),
+                globalConfiguration.getOutboundSpoolThreads(),
+                globalConfiguration.getOutboundSpoolMaxPerDestination(),
+                new RetryPolicy(globalConfiguration.getOutboundSpoolRetryDelay(), globalConfiguration.getOutboundSpoolRetryMaxDelay()),
+                globalConfiguration.getOutboundSpoolMaxAttempts(),
+                transmitter, transmissionRequestBuilderProvider);
+    }
+
+    OutboundSpool(File spoolDirectory, int threads, int maxPerDestination, RetryPolicy retryPolicy, int maxAttempts, Transmitter transmitter, Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider) {
+        this.journal = new SpoolJournal(spoolDirectory);
+        this.threads = threads;
+        this.maxPerDestination = maxPerDestination;
+        this.retryPolicy = retryPolicy;
+        this.maxAttempts = maxAttempts;
+        this.transmitter = transmitter;
+        this.transmissionRequestBuilderProvider = transmissionRequestBuilderProvider;
+    }
+
+    /**
+     * Recovers the transmissions left behind by the previous run and starts transmitting. Does nothing if
+     * already started.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+
+        journal.purgeSentMarkers(System.currentTimeMillis() - SENT_MARKER_RETENTION);
+        List<SpoolEntry> recovered = journal.recover();
+        for (SpoolEntry spoolEntry : recovered) {
+            pending.put(spoolEntry.getTransmissionId(), spoolEntry);
+        }
+        log.info("Outbound spool started, " + recovered.size() + " transmissions recovered");
+
+        workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("oxalis-spool-worker"));
+        dispatcher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oxalis-spool-dispatcher"));
+        dispatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, 0, DISPATCH_INTERVAL, TimeUnit.MILLISECONDS);
+        started = true;
+    }
+
+    /**
+     * Stops transmitting. Transmissions in progress are completed, transmissions not yet started remain in the
+     * spool until it is started again.
+     */
+    public synchronized void shutdown() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        dispatcher.shutdownNow();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pending.clear();
+        inFlight.clear();
+    }
+
+    /**
+     * Stores the transmission in the spool, from which it will be transmitted as soon as possible. Returns once the
+     * transmission has been written to disk, after which the request is closed. Should the same transmission be
+     * enqueued concurrently, the second caller waits until the first has written it, and writes it itself if the
+     * first failed to do so.
+     *
+     * @return the transmission id identifying the transmission, either the one supplied in the request or a new one.
+     */
+    public TransmissionId enqueue(TransmissionRequest transmissionRequest) {
+        TransmissionId transmissionId = transmissionRequest.getTransmissionId() != null ? transmissionRequest.getTransmissionId() : new TransmissionId();
+        String key = transmissionId.toString();
+
+        try {
+            CountDownLatch enqueued = new CountDownLatch(1);
+            CountDownLatch concurrent;
+            while ((concurrent = beingEnqueued.putIfAbsent(key, enqueued)) != null) {
+                awaitConcurrentEnqueue(transmissionId, concurrent);
+            }
+            try {
+                if (pending.containsKey(key) || journal.isKnown(key)) {
+                    log.debug("Transmission " + transmissionId + " is already known to the spool");
+                    return transmissionId;
+                }
+
+                SpoolEntry spoolEntry = new SpoolEntry(key, transmissionRequest.getEndpointAddress(), transmissionRequest.getPeppolStandardBusinessHeader(), System.currentTimeMillis());
+                journal.write(spoolEntry, transmissionRequest.getPayload());
+                pending.put(key, spoolEntry);
+            } finally {
+                beingEnqueued.remove(key);
+                enqueued.countDown();
+            }
+        } finally {
+            transmissionRequest.close();
+        }
+
+        triggerDispatch();
+        return transmissionId;
+    }
+
+    private void awaitConcurrentEnqueue(TransmissionId transmissionId, CountDownLatch concurrent) {
+        try {
+            concurrent.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while transmission " + transmissionId + " was being enqueued by another thread", e);
+        }
+    }
+
+    /** Number of transmissions waiting to be delivered, including those in progress */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /** Number of transmissions in progress */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    File getFailedDirectory() {
+        return journal.getFailedDirectory();
+    }
+
+    private void triggerDispatch() {
+        if (started) {
+            try {
+                dispatcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch();
+                    }
+                });
+            } catch (Exception e) {
+                // Shutting down, the entry remains in the spool
+                log.debug("Unable to trigger dispatch: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands the entries which are due over to the worker threads, while respecting the back off and
+     * the concurrency limit of each destination. Executed by the dispatcher thread only.
+     */
+    void dispatch() {
+        if (!started) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        List<SpoolEntry> due = new ArrayList<SpoolEntry>();
+        for (SpoolEntry spoolEntry : pending.values()) {
+            if (spoolEntry.getNextAttempt() <= now && !inFlight.containsKey(spoolEntry.getTransmissionId())) {
+                due.add(spoolEntry);
+            }
+        }
+        // Oldest first
+        Collections.sort(due, new Comparator<SpoolEntry>() {
+            @Override
+            public int compare(SpoolEntry o1, SpoolEntry o2) {
+                return o1.getCreated() < o2.getCreated() ? -1 : (o1.getCreated() == o2.getCreated() ? 0 : 1);
+            }
+        });
+
+        for (final SpoolEntry spoolEntry : due) {
+            final Destination destination = destinationFor(spoolEntry);
+            if (destination.notBefore > now || !destination.permits.tryAcquire()) {
+                continue;
+            }
+            inFlight.put(spoolEntry.getTransmissionId(), Boolean.TRUE);
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            transmit(spoolEntry, destination);
+                        } finally {
+                            inFlight.remove(spoolEntry.getTransmissionId());
+                            destination.permits.release();
+                            triggerDispatch();
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                inFlight.remove(spoolEntry.getTransmissionId());
+                destination.permits.release();
+                return;
+            }
+        }
+    }
+
+    void transmit(SpoolEntry spoolEntry, Destination destination) {
+        String transmissionId = spoolEntry.getTransmissionId();
+        if (journal.isSent(transmissionId)) {
+            pending.remove(transmissionId);
+            return;
+        }
+
+        TransmissionRequest transmissionRequest = null;
+        try {
+            transmissionRequest = loadTransmissionRequest(spoolEntry);
+            transmitter.transmit(transmissionRequest);
+        } catch (CircuitOpenException e) {
+            // The access point is known to be failing, hence nothing was attempted
+            destination.notBefore = e.getRetryAfter();
+            spoolEntry.postpone(e.getRetryAfter());
+            log.debug("Transmission " + transmissionId + " postponed: " + e.getMessage());
+            return;
+        } catch (Exception e) {
+            handleFailure(spoolEntry, destination, e);
+            return;
+        } finally {
+            // Removes the temporary file holding the payload wrapped in an SBDH, if any
+            if (transmissionRequest != null) {
+                transmissionRequest.close();
+            }
+        }
+
+        destination.consecutiveFailures.set(0);
+        destination.notBefore = 0;
+        journal.markSent(transmissionId);
+        pending.remove(transmissionId);
+        log.info("Spooled transmission " + transmissionId + " delivered to " + spoolEntry.getEndpoint().getUrl() + " after " + (spoolEntry.getAttempts() + 1) + " attempt(s)");
+    }
+
+    private void handleFailure(SpoolEntry spoolEntry, Destination destination, Exception e) {
+        String transmissionId = spoolEntry.getTransmissionId();
+        int failures = destination.consecutiveFailures.incrementAndGet();
+        long nextAttempt = System.currentTimeMillis() + retryPolicy.delayFor(failures);
+        destination.notBefore = nextAttempt;
+        spoolEntry.recordFailure(e.getMessage(), nextAttempt);
+
+        if (spoolEntry.getAttempts() >= maxAttempts) {
+            log.error("Giving up transmission " + transmissionId + " to " + spoolEntry.getEndpoint().getUrl() + " after " + spoolEntry.getAttempts() + " attempts, moved to " + journal.getFailedDirectory() + ": " + e.getMessage(), e);
+            journal.update(spoolEntry);
+            journal.markFailed(transmissionId);
+            pending.remove(transmissionId);
+        } else {
+            log.warn("Transmission " + transmissionId + " to " + spoolEntry.getEndpoint().getUrl() + " failed (attempt " + spoolEntry.getAttempts() + "), retrying in " + (nextAttempt - System.currentTimeMillis()) + "ms: " + e.getMessage());
+            journal.update(spoolEntry);
+        }
+    }
+
+    TransmissionRequest loadTransmissionRequest(SpoolEntry spoolEntry) {
+        SmpLookupManager.PeppolEndpointData endpoint = spoolEntry.getEndpoint();
+        TransmissionRequestBuilder builder = transmissionRequestBuilderProvider.get();
+
+        if (endpoint.getBusDoxProtocol() == BusDoxProtocol.AS2) {
+            builder.overrideAs2Endpoint(endpoint.getUrl(), endpoint.getCommonName() == null ? null : endpoint.getCommonName().toString());
+        } else {
+            builder.overrideStartEndpoint(endpoint.getUrl());
+        }
+        if (spoolEntry.getHeader() != null) {
+            // Parsed when the transmission was enqueued, hence not parsed again
+            builder.peppolStandardBusinessHeader(spoolEntry.getHeader());
+        }
+
+        // The payload is read from the spool when required, rather than loaded into memory
+        return builder.payLoad(journal.payload(spoolEntry.getTransmissionId()))
+                .transmissionId(new TransmissionId(spoolEntry.getTransmissionId()))
+                .build();
+    }
+
+    private Destination destinationFor(SpoolEntry spoolEntry) {
+        String key = spoolEntry.getDestination();
+        Destination destination = destinations.get(key);
+        if (destination == null) {
+            destinations.putIfAbsent(key, new Destination(maxPerDestination));
+            destination = destinations.get(key);
+        }
+        return destination;
+    }
+
+    /** Concurrency limit and back off state of a receiving access point */
+    static class Destination {
+        final Semaphore permits;
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile long notBefore = 0;
+
+        Destination(int maxConcurrent) {
+            permits = new Semaphore(maxConcurrent);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package eu.peppol.outbound.spool;
+
+import java.util.Random;
+
+/**
+ * Exponential back off with jitter. The delay doubles for every consecutive failure, until the maximum delay has
+ * been reached. A random value between half and all of the delay is used, in order to prevent all the transmissions
+ * to a destination which has been down from being retried at the very same moment.
+ */
+public class RetryPolicy {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    /**
+     * @param initialDelay delay in milliseconds after the first failure
+     * @param maxDelay     upper limit of the delay in milliseconds
+     */
+    public RetryPolicy(long initialDelay, long maxDelay) {
+        if (initialDelay <= 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid retry delays, initial=" + initialDelay + ", max=" + maxDelay);
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Number of milliseconds to wait before the next attempt.
+     *
+     * @param consecutiveFailures number of consecutive failures, 1 or more.
+     */
+    public long delayFor(int consecutiveFailures) {
+        long delay = initialDelay;
+        for (int i = 1; i < consecutiveFailures && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,209 @@
+package eu.peppol.outbound.spool;
+
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.identifier.MessageId;
+import eu.peppol.identifier.ParticipantId;
+import eu.peppol.identifier.PeppolDocumentTypeId;
+import eu.peppol.identifier.PeppolProcessTypeId;
+import eu.peppol.security.CommonName;
+import eu.peppol.smp.SmpLookupManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * Describes a transmission held in the outbound spool, i.e. where to send it and how many times we have tried.
+ * The payload itself is held in a separate file. The SBDH of the payload is kept as well, so that the payload
+ * need not be parsed again when it is reloaded.
+ */
+class SpoolEntry {
+
+    private static final String TRANSMISSION_ID = "transmission.id";
+    private static final String ENDPOINT_URL = "endpoint.url";
+    private static final String ENDPOINT_PROTOCOL = "endpoint.protocol";
+    private static final String ENDPOINT_COMMON_NAME = "endpoint.common.name";
+    private static final String CREATED = "created";
+    private static final String ATTEMPTS = "attempts";
+    private static final String NEXT_ATTEMPT = "next.attempt";
+    private static final String LAST_ERROR = "last.error";
+    private static final String HEADER_SENDER = "header.sender";
+    private static final String HEADER_RECIPIENT = "header.recipient";
+    private static final String HEADER_DOCUMENT_TYPE = "header.document.type";
+    private static final String HEADER_PROFILE = "header.profile";
+    private static final String HEADER_MESSAGE_ID = "header.message.id";
+    private static final String HEADER_CREATION_TIME = "header.creation.time";
+
+    private final String transmissionId;
+    private final SmpLookupManager.PeppolEndpointData endpoint;
+    private final PeppolStandardBusinessHeader header;
+    private final long created;
+
+    private volatile int attempts;
+    private volatile long nextAttempt;
+    private volatile String lastError;
+
+    SpoolEntry(String transmissionId, SmpLookupManager.PeppolEndpointData endpoint, PeppolStandardBusinessHeader header, long created) {
+        this.transmissionId = transmissionId;
+        this.endpoint = endpoint;
+        this.header = header;
+        this.created = created;
+        this.nextAttempt = created;
+    }
+
+    String getTransmissionId() {
+        return transmissionId;
+    }
+
+    SmpLookupManager.PeppolEndpointData getEndpoint() {
+        return endpoint;
+    }
+
+    /** The SBDH of the payload, or null if not recorded */
+    PeppolStandardBusinessHeader getHeader() {
+        return header;
+    }
+
+    /** Identifies the destination, i.e. the receiving access point, for which concurrency and back off are managed */
+    String getDestination() {
+        URL url = endpoint.getUrl();
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    String getLastError() {
+        return lastError;
+    }
+
+    void recordFailure(String error, long nextAttempt) {
+        this.attempts++;
+        this.lastError = error;
+        this.nextAttempt = nextAttempt;
+    }
+
+    /** Postpones the next attempt, without counting it as a failed attempt */
+    void postpone(long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(TRANSMISSION_ID, transmissionId);
+        properties.setProperty(ENDPOINT_URL, endpoint.getUrl().toExternalForm());
+        properties.setProperty(ENDPOINT_PROTOCOL, endpoint.getBusDoxProtocol().name());
+        if (endpoint.getCommonName() != null) {
+            properties.setProperty(ENDPOINT_COMMON_NAME, endpoint.getCommonName().toString());
+        }
+        properties.setProperty(CREATED, Long.toString(created));
+        properties.setProperty(ATTEMPTS, Integer.toString(attempts));
+        properties.setProperty(NEXT_ATTEMPT, Long.toString(nextAttempt));
+        if (lastError != null) {
+            properties.setProperty(LAST_ERROR, lastError);
+        }
+        if (header != null) {
+            writeHeader(properties);
+        }
+        properties.store(outputStream, "Oxalis outbound spool entry");
+    }
+
+    static SpoolEntry readFrom(InputStream inputStream) throws IOException {
+        Properties properties = new Properties();
+        properties.load(inputStream);
+
+        String transmissionId = required(properties, TRANSMISSION_ID);
+        URL url;
+        try {
+            url = new URL(required(properties, ENDPOINT_URL));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("Invalid endpoint URL in spool entry " + transmissionId + ": " + e.getMessage(), e);
+        }
+        BusDoxProtocol protocol = BusDoxProtocol.valueOf(required(properties, ENDPOINT_PROTOCOL));
+        String commonName = properties.getProperty(ENDPOINT_COMMON_NAME);
+        SmpLookupManager.PeppolEndpointData endpoint = commonName == null
+                ? new SmpLookupManager.PeppolEndpointData(url, protocol)
+                : new SmpLookupManager.PeppolEndpointData(url, protocol, new CommonName(commonName));
+
+        SpoolEntry spoolEntry = new SpoolEntry(transmissionId, endpoint, readHeader(properties), Long.parseLong(required(properties, CREATED)));
+        spoolEntry.attempts = Integer.parseInt(required(properties, ATTEMPTS));
+        spoolEntry.nextAttempt = Long.parseLong(required(properties, NEXT_ATTEMPT));
+        spoolEntry.lastError = properties.getProperty(LAST_ERROR);
+        return spoolEntry;
+    }
+
+    private void writeHeader(Properties properties) {
+        setIfPresent(properties, HEADER_SENDER, header.getSenderId());
+        setIfPresent(properties, HEADER_RECIPIENT, header.getRecipientId());
+        setIfPresent(properties, HEADER_DOCUMENT_TYPE, header.getDocumentTypeIdentifier());
+        setIfPresent(properties, HEADER_PROFILE, header.getProfileTypeIdentifier());
+        setIfPresent(properties, HEADER_MESSAGE_ID, header.getMessageId());
+        if (header.getCreationDateAndTime() != null) {
+            properties.setProperty(HEADER_CREATION_TIME, Long.toString(header.getCreationDateAndTime().getTime()));
+        }
+    }
+
+    /** Provides the recorded header, or null if it is incomplete, in which case the payload must be parsed again */
+    private static PeppolStandardBusinessHeader readHeader(Properties properties) {
+        String senderId = properties.getProperty(HEADER_SENDER);
+        String recipientId = properties.getProperty(HEADER_RECIPIENT);
+        String documentTypeId = properties.getProperty(HEADER_DOCUMENT_TYPE);
+        String profileTypeId = properties.getProperty(HEADER_PROFILE);
+        if (senderId == null || recipientId == null || documentTypeId == null || profileTypeId == null) {
+            return null;
+        }
+
+        PeppolStandardBusinessHeader header = new PeppolStandardBusinessHeader();
+        header.setSenderId(new ParticipantId(senderId));
+        header.setRecipientId(new ParticipantId(recipientId));
+        header.setDocumentTypeIdentifier(PeppolDocumentTypeId.valueOf(documentTypeId));
+        header.setProfileTypeIdentifier(PeppolProcessTypeId.valueOf(profileTypeId));
+        String messageId = properties.getProperty(HEADER_MESSAGE_ID);
+        if (messageId != null) {
+            header.setMessageId(new MessageId(messageId));
+        }
+        String creationTime = properties.getProperty(HEADER_CREATION_TIME);
+        if (creationTime != null) {
+            header.setCreationDateAndTime(new Date(Long.parseLong(creationTime)));
+        }
+        return header;
+    }
+
+    private static void setIfPresent(Properties properties, String name, Object value) {
+        if (value != null) {
+            properties.setProperty(name, value.toString());
+        }
+    }
+
+    private static String required(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            throw new IllegalStateException("Spool entry has no value for " + name);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "SpoolEntry{" +
+                "transmissionId='" + transmissionId + '\'' +
+                ", endpoint=" + endpoint +
+                ", attempts=" + attempts +
+                ", lastError='" + lastError + '\'' +
+                '}';
+    }
+}
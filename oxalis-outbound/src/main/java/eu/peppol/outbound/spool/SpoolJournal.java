@@ -0,0 +1,264 @@
+package eu.peppol.outbound.spool;
+
+import eu.peppol.document.Payload;
+import eu.peppol.util.Util;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File based journal of the outbound spool, which survives crashes.
+ * <p/>
+ * Every entry consists of two files in the <code>pending</code> directory: the payload and the descriptor
+ * ({@link SpoolEntry}). Files are written to a temporary file, synced to disk and then renamed, after which the
+ * directory is synced, hence a file is either complete or non-existent, and survives a crash once written. The descriptor is written after the payload, i.e. an entry exists once the
+ * descriptor exists.
+ * <p/>
+ * Once transmitted, an empty marker file is created in the <code>sent</code> directory before the pending files are
+ * removed. Entries which have been sent are never sent again, even if we crash before the pending files are removed.
+ * Entries which may not be delivered are moved to the <code>failed</code> directory.
+ */
+class SpoolJournal {
+
+    public static final Logger log = LoggerFactory.getLogger(SpoolJournal.class);
+
+    static final String PAYLOAD_SUFFIX = ".xml";
+    static final String DESCRIPTOR_SUFFIX = ".properties";
+    static final String TMP_SUFFIX = ".tmp";
+
+    private final File pendingDirectory;
+    private final File sentDirectory;
+    private final File failedDirectory;
+
+    SpoolJournal(File spoolDirectory) {
+        pendingDirectory = createDirectory(new File(spoolDirectory, "pending"));
+        sentDirectory = createDirectory(new File(spoolDirectory, "sent"));
+        failedDirectory = createDirectory(new File(spoolDirectory, "failed"));
+    }
+
+    /** Whether the transmission has already been spooled, delivered or given up */
+    boolean isKnown(String transmissionId) {
+        return descriptorFile(transmissionId).exists()
+                || sentMarker(transmissionId).exists()
+                || new File(failedDirectory, fileName(transmissionId) + DESCRIPTOR_SUFFIX).exists();
+    }
+
+    boolean isSent(String transmissionId) {
+        return sentMarker(transmissionId).exists();
+    }
+
+    /** Durably writes a new entry, the payload first and the descriptor last */
+    void write(SpoolEntry spoolEntry, Payload payload) {
+        String transmissionId = spoolEntry.getTransmissionId();
+        try {
+            writeAtomically(payloadFile(transmissionId), payload);
+            writeDescriptor(spoolEntry);
+        } catch (IOException e) {
+            payloadFile(transmissionId).delete();
+            throw new IllegalStateException("Unable to write transmission " + transmissionId + " to the spool: " + e.getMessage(), e);
+        }
+    }
+
+    /** Durably replaces the descriptor of an existing entry */
+    void update(SpoolEntry spoolEntry) {
+        try {
+            writeDescriptor(spoolEntry);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to update spool entry " + spoolEntry.getTransmissionId() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** The payload of the entry, which is read from the spool when required */
+    Payload payload(String transmissionId) {
+        return Payload.of(payloadFile(transmissionId));
+    }
+
+    /** Records the fact that the transmission has been delivered and removes the pending files */
+    void markSent(String transmissionId) {
+        try {
+            writeAtomically(sentMarker(transmissionId), new byte[0]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to mark transmission " + transmissionId + " as sent: " + e.getMessage(), e);
+        }
+        removePending(transmissionId);
+    }
+
+    /** Moves the entry to the directory of transmissions which could not be delivered */
+    void markFailed(String transmissionId) {
+        String fileName = fileName(transmissionId);
+        File failedPayload = new File(failedDirectory, fileName + PAYLOAD_SUFFIX);
+        File failedDescriptor = new File(failedDirectory, fileName + DESCRIPTOR_SUFFIX);
+        if (!payloadFile(transmissionId).renameTo(failedPayload) || !descriptorFile(transmissionId).renameTo(failedDescriptor)) {
+            throw new IllegalStateException("Unable to move transmission " + transmissionId + " into " + failedDirectory);
+        }
+        try {
+            Util.syncDirectory(failedDirectory);
+            Util.syncDirectory(pendingDirectory);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to sync " + failedDirectory + " after moving transmission " + transmissionId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Cleans up after a crash and provides the entries waiting to be transmitted. Entries which were delivered,
+     * but not removed, are removed. So are temporary files and payloads without a descriptor, which are
+     * entries we never completed writing.
+     */
+    List<SpoolEntry> recover() {
+        for (File file : listFiles(pendingDirectory, TMP_SUFFIX)) {
+            file.delete();
+        }
+        for (File file : listFiles(sentDirectory, TMP_SUFFIX)) {
+            file.delete();
+        }
+
+        List<SpoolEntry> entries = new ArrayList<SpoolEntry>();
+        for (File descriptor : listFiles(pendingDirectory, DESCRIPTOR_SUFFIX)) {
+            SpoolEntry spoolEntry;
+            try {
+                spoolEntry = readDescriptor(descriptor);
+            } catch (Exception e) {
+                log.error("Unable to read spool entry " + descriptor + ", ignored: " + e.getMessage(), e);
+                continue;
+            }
+
+            String transmissionId = spoolEntry.getTransmissionId();
+            if (isSent(transmissionId)) {
+                log.info("Transmission " + transmissionId + " was sent before the spool was shut down, removing it");
+                removePending(transmissionId);
+            } else if (!payloadFile(transmissionId).exists()) {
+                log.error("Payload of spooled transmission " + transmissionId + " is missing");
+            } else {
+                entries.add(spoolEntry);
+            }
+        }
+
+        for (File payload : listFiles(pendingDirectory, PAYLOAD_SUFFIX)) {
+            String name = payload.getName();
+            File descriptor = new File(pendingDirectory, name.substring(0, name.length() - PAYLOAD_SUFFIX.length()) + DESCRIPTOR_SUFFIX);
+            if (!descriptor.exists()) {
+                log.warn("Removing incomplete spool entry " + payload);
+                payload.delete();
+            }
+        }
+        return entries;
+    }
+
+    /** Removes the markers of transmissions sent before the supplied point in time */
+    void purgeSentMarkers(long olderThan) {
+        for (File marker : sentDirectory.listFiles()) {
+            if (marker.lastModified() < olderThan) {
+                marker.delete();
+            }
+        }
+    }
+
+    File getFailedDirectory() {
+        return failedDirectory;
+    }
+
+    private void writeDescriptor(SpoolEntry spoolEntry) throws IOException {
+        File tmpFile = new File(pendingDirectory, fileName(spoolEntry.getTransmissionId()) + DESCRIPTOR_SUFFIX + TMP_SUFFIX);
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        try {
+            spoolEntry.writeTo(fileOutputStream);
+            fileOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        rename(tmpFile, descriptorFile(spoolEntry.getTransmissionId()));
+    }
+
+    private SpoolEntry readDescriptor(File descriptor) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(descriptor);
+        try {
+            return SpoolEntry.readFrom(fileInputStream);
+        } finally {
+            fileInputStream.close();
+        }
+    }
+
+    private void writeAtomically(File file, Payload payload) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        try {
+            payload.transferTo(fileOutputStream.getChannel());
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        rename(tmpFile, file);
+    }
+
+    private void writeAtomically(File file, byte[] contents) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+        FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        try {
+            fileOutputStream.write(contents);
+            fileOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+        rename(tmpFile, file);
+    }
+
+    private void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Some platforms will not rename onto an existing file
+            to.delete();
+            if (!from.renameTo(to)) {
+                throw new IOException("Unable to rename " + from + " to " + to);
+            }
+        }
+        // Makes the new name durable, which the sync of the file itself does not
+        Util.syncDirectory(to.getParentFile());
+    }
+
+    private void removePending(String transmissionId) {
+        descriptorFile(transmissionId).delete();
+        payloadFile(transmissionId).delete();
+    }
+
+    private File payloadFile(String transmissionId) {
+        return new File(pendingDirectory, fileName(transmissionId) + PAYLOAD_SUFFIX);
+    }
+
+    private File descriptorFile(String transmissionId) {
+        return new File(pendingDirectory, fileName(transmissionId) + DESCRIPTOR_SUFFIX);
+    }
+
+    private File sentMarker(String transmissionId) {
+        return new File(sentDirectory, fileName(transmissionId));
+    }
+
+    /** Transmission ids are UUIDs, anything else is made safe for use as a file name */
+    static String fileName(String transmissionId) {
+        return transmissionId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static File[] listFiles(File directory, final String suffix) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static File createDirectory(File directory) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create spool directory " + directory);
+        }
+        return directory;
+    }
+}
@@ -12,11 +12,17 @@ public class AbstractTransmissionResponse {
 
     TransmissionId transmissionId;
     private final PeppolStandardBusinessHeader sbdh;
+    private final TransmissionTimings timings;
 
     public AbstractTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh) {
+        this(transmissionId, sbdh, new TransmissionTimings());
+    }
+
+    public AbstractTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, TransmissionTimings timings) {
 
         this.transmissionId = transmissionId;
         this.sbdh = sbdh;
+        this.timings = timings;
     }
 
     public TransmissionId getTransmissionId() {
@@ -26,4 +32,8 @@ public class AbstractTransmissionResponse {
     public PeppolStandardBusinessHeader getSbdh() {
         return sbdh;
     }
+
+    public TransmissionTimings getTimings() {
+        return timings;
+    }
 }
@@ -4,8 +4,8 @@ import com.google.inject.Inject;
 import eu.peppol.as2.*;
 import eu.peppol.identifier.ParticipantId;
 import eu.peppol.identifier.TransmissionId;
+import eu.peppol.outbound.health.DestinationHealthRegistry;
 import eu.peppol.security.CommonName;
-import eu.peppol.security.KeystoreManager;
 import eu.peppol.smp.SmpLookupManager;
 import eu.peppol.identifier.PeppolDocumentTypeId;
 import org.apache.http.Header;
@@ -13,35 +13,18 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
+import org.apache.http.concurrent.Cancellable;
 import org.apache.http.conn.HttpHostConnectException;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
-import org.apache.http.conn.socket.PlainConnectionSocketFactory;
-import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
-import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
-import org.apache.http.conn.ssl.SSLContexts;
-import org.apache.http.conn.ssl.X509HostnameVerifier;
-import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.entity.ContentType;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
-import javax.mail.internet.MimeMessage;
-import javax.net.ssl.SSLContext;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.security.cert.X509Certificate;
 import java.util.Date;
-import java.util.UUID;
 
 /**
  * Thread safe implementation of a {@link MessageSender}, which sends messages using the
@@ -57,9 +40,20 @@ class As2MessageSender implements MessageSender {
 
     private final SmpLookupManager smpLookupManager;
 
+    private final OutboundHttpConnectionPool connectionPool;
+
+    private final DestinationHealthRegistry healthRegistry;
+
+    /** Holds our certificate, AS2 System Identifier and per thread signers, built once and shared */
+    private volatile SMimeSigningService signingService;
+
+    private final ReceivedMdnParser receivedMdnParser = new ReceivedMdnParser();
+
     @Inject
-    public As2MessageSender(final SmpLookupManager smpLookupManager) {
+    public As2MessageSender(final SmpLookupManager smpLookupManager, final OutboundHttpConnectionPool connectionPool, final DestinationHealthRegistry healthRegistry) {
         this.smpLookupManager = smpLookupManager;
+        this.connectionPool = connectionPool;
+        this.healthRegistry = healthRegistry;
     }
 
     @Override
@@ -68,48 +62,59 @@ class As2MessageSender implements MessageSender {
             throw new IllegalStateException("Must supply the X.509 common name (AS2 System Identifier) for AS2 protocol");
         }
 
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(transmissionRequest.getPayload());
+        PeppolAs2SystemIdentifier as2SystemIdentifierOfSender = getSigningService().getOurAs2SystemIdentifier();
 
-        X509Certificate ourCertificate = KeystoreManager.INSTANCE.getOurCertificate();
-        PeppolAs2SystemIdentifier as2SystemIdentifierOfSender = getAs2SystemIdentifierForSender(ourCertificate);
+        TransmissionTimings timings = new TransmissionTimings();
+        TransmissionId transmissionId = transmissionRequest.getTransmissionId() != null ? transmissionRequest.getTransmissionId() : new TransmissionId();
 
-        TransmissionId transmissionId = send(inputStream,
-                transmissionRequest.getPeppolStandardBusinessHeader().getRecipientId(),
-                transmissionRequest.getPeppolStandardBusinessHeader().getSenderId(),
-                transmissionRequest.getPeppolStandardBusinessHeader().getDocumentTypeIdentifier(),
-                transmissionRequest.getEndpointAddress(),
-                as2SystemIdentifierOfSender);
+        // The payload is streamed from wherever it is held, be it memory or a file
+        InputStream inputStream = transmissionRequest.getPayload().openStream();
+        ReceivedMdn receivedMdn;
+        try {
+            receivedMdn = send(inputStream,
+                    transmissionRequest.getPeppolStandardBusinessHeader().getRecipientId(),
+                    transmissionRequest.getPeppolStandardBusinessHeader().getSenderId(),
+                    transmissionRequest.getPeppolStandardBusinessHeader().getDocumentTypeIdentifier(),
+                    transmissionRequest.getEndpointAddress(),
+                    as2SystemIdentifierOfSender,
+                    transmissionId,
+                    timings);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
+            }
+        }
 
-        return new As2TransmissionResponse(transmissionId, transmissionRequest.getPeppolStandardBusinessHeader());
+        return new As2TransmissionResponse(transmissionId, transmissionRequest.getPeppolStandardBusinessHeader(), timings, receivedMdn);
     }
 
 
     TransmissionId send(InputStream inputStream, ParticipantId recipient, ParticipantId sender, PeppolDocumentTypeId peppolDocumentTypeId, SmpLookupManager.PeppolEndpointData peppolEndpointData, PeppolAs2SystemIdentifier as2SystemIdentifierOfSender) {
+        TransmissionId transmissionId = new TransmissionId();
+        send(inputStream, recipient, sender, peppolDocumentTypeId, peppolEndpointData, as2SystemIdentifierOfSender, transmissionId, new TransmissionTimings());
+        return transmissionId;
+    }
 
+    /**
+     * Sends the message using the supplied transmission id as the AS2 Message-ID
+     *
+     * @return the MDN returned by the receiver, which has been processed with either a warning or no problems at all
+     */
+    ReceivedMdn send(InputStream inputStream, ParticipantId recipient, ParticipantId sender, PeppolDocumentTypeId peppolDocumentTypeId, SmpLookupManager.PeppolEndpointData peppolEndpointData, PeppolAs2SystemIdentifier as2SystemIdentifierOfSender, TransmissionId transmissionId, TransmissionTimings timings) {
 
-        X509Certificate ourCertificate = KeystoreManager.INSTANCE.getOurCertificate();
-
-        SMimeMessageFactory SMimeMessageFactory = new SMimeMessageFactory(KeystoreManager.INSTANCE.getOurPrivateKey(), ourCertificate);
-        MimeMessage signedMimeMessage = null;
+        SMimeSignedEntity sMimeSignedEntity = null;
         try {
-            signedMimeMessage = SMimeMessageFactory.createSignedMimeMessage(inputStream, new MimeType("application/xml"));
+            // The payload is signed while it is written to the socket
+            sMimeSignedEntity = new SMimeSignedEntity(getSigningService().getStreamingSMimeSigner(), inputStream, new MimeType("application/xml"));
         } catch (MimeTypeParseException e) {
             throw new IllegalStateException("Problems with MIME types: " + e.getMessage(), e);
         }
 
-
-        CloseableHttpClient httpClient = createCloseableHttpClient();
-
         String endpointAddress = peppolEndpointData.getUrl().toExternalForm();
         HttpPost httpPost = new HttpPost(endpointAddress);
 
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        try {
-            signedMimeMessage.writeTo(byteArrayOutputStream);
-        } catch (Exception e) {
-            throw new IllegalStateException("Unable to stream S/MIME message into byte array output steram");
-        }
-
         httpPost.addHeader(As2Header.AS2_FROM.getHttpHeaderName(), as2SystemIdentifierOfSender.toString());
         try {
             httpPost.setHeader(As2Header.AS2_TO.getHttpHeaderName(), PeppolAs2SystemIdentifier.valueOf(peppolEndpointData.getCommonName()).toString() );
@@ -121,50 +126,77 @@ class As2MessageSender implements MessageSender {
         httpPost.addHeader(As2Header.AS2_VERSION.getHttpHeaderName(), As2Header.VERSION);
         httpPost.addHeader(As2Header.SUBJECT.getHttpHeaderName(), "AS2 message from OXALIS");
 
-        TransmissionId transmissionId = new TransmissionId();
         httpPost.addHeader(As2Header.MESSAGE_ID.getHttpHeaderName(), transmissionId.toString());
         httpPost.addHeader(As2Header.DATE.getHttpHeaderName(), As2DateUtil.format(new Date()));
 
 
         // Inserts the S/MIME message to be posted
-        httpPost.setEntity(new ByteArrayEntity(byteArrayOutputStream.toByteArray(), ContentType.APPLICATION_XML));
+        httpPost.setEntity(sMimeSignedEntity);
 
         CloseableHttpResponse postResponse = null;      // EXECUTE !!!!
+        URL url = peppolEndpointData.getUrl();
+        // Fails fast if the receiving access point has been failing recently
+        long healthStart = healthRegistry.acquirePermission(url);
+        long start = System.nanoTime();
+        // Allows the request to be aborted if the transmission is cancelled or times out
+        TransmissionFuture.registerBlockingOperation(new AbortHttpRequest(httpPost));
         try {
-            log.info("Sending message to " + endpointAddress);
-            postResponse = httpClient.execute(httpPost);
-        } catch (HttpHostConnectException e) {
-            throw new IllegalStateException("The Oxalis server does not seem to be running at " + endpointAddress);
-        } catch (Exception e) {
-            throw new IllegalStateException("Unexpected error during execution of http POST to " + endpointAddress + ": " + e.getMessage(), e);
-        }
-
-        if (postResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-            return handleFailedRequest(postResponse);
-        }
+            try {
+                log.info("Sending message to " + endpointAddress);
+                postResponse = connectionPool.execute(httpPost);
+            } catch (HttpHostConnectException e) {
+                healthRegistry.recordFailure(url, healthStart);
+                throw new IllegalStateException("The Oxalis server does not seem to be running at " + endpointAddress);
+            } catch (Exception e) {
+                healthRegistry.recordFailure(url, healthStart);
+                throw new IllegalStateException("Unexpected error during execution of http POST to " + endpointAddress + ": " + e.getMessage(), e);
+            } finally {
+                timings.recordSince(TransmissionTimings.Stage.TRANSPORT, start);
+            }
 
-        return handleTheHttpResponse(transmissionId, postResponse);
+            // Server errors indicate a problem at the access point, anything else means it is alive and well
+            int statusCode = postResponse.getStatusLine().getStatusCode();
+            if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                healthRegistry.recordFailure(url, healthStart);
+            } else {
+                healthRegistry.recordSuccess(url, healthStart);
+            }
 
+            start = System.nanoTime();
+            try {
+                if (statusCode != HttpStatus.SC_OK) {
+                    return handleFailedRequest(postResponse);
+                }
 
+                // The MIC was computed while the message was written to the socket
+                return handleTheHttpResponse(transmissionId, postResponse, sMimeSignedEntity.getMic(), peppolEndpointData.getCommonName());
+            } finally {
+                timings.recordSince(TransmissionTimings.Stage.RECEIPT, start);
+            }
+        } finally {
+            TransmissionFuture.clearBlockingOperation();
+        }
     }
 
-    TransmissionId handleTheHttpResponse(TransmissionId transmissionId, CloseableHttpResponse postResponse) {
+    /**
+     * Parses and verifies the MDN directly from the response stream. The MDN must be signed by the receiver, i.e. by
+     * the certificate having the common name published in the SMP.
+     *
+     * @throws IllegalStateException if the receiver reports that the message was not processed
+     */
+    ReceivedMdn handleTheHttpResponse(TransmissionId transmissionId, CloseableHttpResponse postResponse, Mic expectedMic, CommonName expectedSigner) {
         try {
             HttpEntity entity = postResponse.getEntity();   // Any textual results?
             if (entity == null) {
                 throw new IllegalStateException("No contents in HTTP response with rc=" + postResponse.getStatusLine().getStatusCode());
             }
 
-            String contents = EntityUtils.toString(entity);
-
             if (log.isDebugEnabled()) {
                 log.debug("Received:");
                 Header[] allHeaders = postResponse.getAllHeaders();
                 for (Header header : allHeaders) {
                     log.debug("" + header.getName() + ": " + header.getValue());
                 }
-
-                log.debug("Contents:\n" + contents);
                 log.debug("---------------------------");
             }
 
@@ -172,38 +204,41 @@ class As2MessageSender implements MessageSender {
             if (contentTypeHeader == null) {
                 throw new IllegalStateException("No Content-Type header in response, probably a server error");
             }
-            String contentType = contentTypeHeader.getValue();
 
-            MimeMessage mimeMessage = null;
+            MimeType contentType = null;
             try {
-                mimeMessage = MimeMessageHelper.parseMultipart(contents, new MimeType(contentType));
+                contentType = new MimeType(contentTypeHeader.getValue());
             } catch (MimeTypeParseException e) {
                 throw new IllegalStateException("Invalid Content-Type header");
             }
 
-            MdnMimeMessageInspector mdnMimeMessageInspector = new MdnMimeMessageInspector(mimeMessage);
-            String msg = mdnMimeMessageInspector.getPlainText();
-            if (postResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                return transmissionId;
-
-            } else {
-                log.error("AS2 transmission failed, rc=" + postResponse.getStatusLine().getStatusCode() + ", msg:" + msg);
-                log.error(contents);
-                throw new IllegalStateException("Transmission failed " + msg);
+            ReceivedMdn receivedMdn = receivedMdnParser.parse(entity.getContent(), contentType, expectedMic, expectedSigner);
+
+            switch (receivedMdn.getOutcome()) {
+                case FAILED:
+                    log.error("AS2 transmission " + transmissionId + " failed: " + receivedMdn.getDisposition() + ", msg:" + receivedMdn.getPlainText());
+                    throw new IllegalStateException("Transmission failed " + receivedMdn.getDisposition() + " " + receivedMdn.getPlainText());
+                case WARNING:
+                    log.warn("AS2 transmission " + transmissionId + " processed with warnings " + receivedMdn.getDisposition() + ", problems: " + receivedMdn.getProblems());
+                    break;
+                default:
+                    log.debug("AS2 transmission " + transmissionId + " processed, " + receivedMdn);
             }
+            return receivedMdn;
 
         } catch (IOException e) {
             throw new IllegalStateException("Unable to obtain the contents of the response: " + e.getMessage(), e);
         } finally {
             try {
+                // Returns the connection to the pool, the MDN has been received hence the outcome is not affected
                 postResponse.close();
             } catch (IOException e) {
-                throw new IllegalStateException("Unable to close http connection: " + e.getMessage(), e);
+                log.warn("Unable to close http connection: " + e.getMessage(), e);
             }
         }
     }
 
-    TransmissionId handleFailedRequest(CloseableHttpResponse postResponse) {
+    ReceivedMdn handleFailedRequest(CloseableHttpResponse postResponse) {
         HttpEntity entity = postResponse.getEntity();   // Any results?
 
         try {
@@ -217,34 +252,35 @@ class As2MessageSender implements MessageSender {
         } catch (IOException e) {
             throw new IllegalStateException("Request failed with rc=" + postResponse.getStatusLine().getStatusCode()
                     + ", ERROR while retrieving the contents of the response:" + e.getMessage(),e);
+        } finally {
+            try {
+                // Returns the connection to the pool
+                postResponse.close();
+            } catch (IOException e) {
+                log.warn("Unable to close http connection: " + e.getMessage(), e);
+            }
         }
     }
 
-    private PeppolAs2SystemIdentifier getAs2SystemIdentifierForSender(X509Certificate ourCertificate) {
-        PeppolAs2SystemIdentifier peppolAs2SystemIdentifier = null;
-        try {
-            peppolAs2SystemIdentifier = PeppolAs2SystemIdentifier.valueOf(CommonName.valueOf(ourCertificate.getSubjectX500Principal()));
-        } catch (InvalidAs2SystemIdentifierException e) {
-            throw new IllegalStateException("AS2 System Identifier could not be obtained from " + ourCertificate.getSubjectX500Principal(), e);
+    SMimeSigningService getSigningService() {
+        if (signingService == null) {
+            signingService = SMimeSigningService.getInstance();
         }
-        return peppolAs2SystemIdentifier;
+        return signingService;
     }
 
-    private CloseableHttpClient createCloseableHttpClient() {
-        SSLContext sslcontext = SSLContexts.createSystemDefault();
-        // Use custom hostname verifier to customize SSL hostname verification.
-        X509HostnameVerifier hostnameVerifier = new AllowAllHostnameVerifier();
-
-        SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslcontext, SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+    /** Aborts the http request, which makes the thread blocked in I/O return immediately */
+    static class AbortHttpRequest implements Cancellable {
+        private final HttpPost httpPost;
 
-        CloseableHttpClient httpclient = HttpClients.custom()
-                .setSSLSocketFactory(sslsf)
-                .build();
+        AbortHttpRequest(HttpPost httpPost) {
+            this.httpPost = httpPost;
+        }
 
-        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("http", PlainConnectionSocketFactory.INSTANCE)
-                .register("https", new SSLConnectionSocketFactory(sslcontext, hostnameVerifier))
-                .build();
-        return httpclient;
+        @Override
+        public boolean cancel() {
+            httpPost.abort();
+            return true;
+        }
     }
 }
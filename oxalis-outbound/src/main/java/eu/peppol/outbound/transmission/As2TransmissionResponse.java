@@ -1,6 +1,7 @@
 package eu.peppol.outbound.transmission;
 
 import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.as2.ReceivedMdn;
 import eu.peppol.identifier.TransmissionId;
 
 /**
@@ -10,7 +11,23 @@ import eu.peppol.identifier.TransmissionId;
  */
 public class As2TransmissionResponse extends AbstractTransmissionResponse implements TransmissionResponse {
 
+    private final ReceivedMdn receivedMdn;
+
     public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
-        super(transmissionId, peppolStandardBusinessHeader);
+        this(transmissionId, peppolStandardBusinessHeader, new TransmissionTimings(), null);
+    }
+
+    public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader, TransmissionTimings timings) {
+        this(transmissionId, peppolStandardBusinessHeader, timings, null);
+    }
+
+    public As2TransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader peppolStandardBusinessHeader, TransmissionTimings timings, ReceivedMdn receivedMdn) {
+        super(transmissionId, peppolStandardBusinessHeader, timings);
+        this.receivedMdn = receivedMdn;
+    }
+
+    /** The MDN returned by the receiving access point, holding the outcome of the transmission */
+    public ReceivedMdn getReceivedMdn() {
+        return receivedMdn;
     }
 }
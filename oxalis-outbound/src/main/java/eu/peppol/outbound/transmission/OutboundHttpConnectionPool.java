@@ -0,0 +1,212 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import eu.peppol.util.GlobalConfiguration;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long lived, thread safe pool of outbound HTTP connections shared by all AS2 transmissions.
+ * <p/>
+ * Creating a new http client for every message means a new TCP connection and a new TLS handshake for
+ * every message sent, and nothing ever gets closed. This pool keeps connections to the receiving
+ * access points alive between transmissions, limits the number of connections in total and per
+ * access point, and evicts expired and idle connections in a background thread.
+ * <p/>
+ * The limits are configured in the Oxalis global configuration, see {@link GlobalConfiguration#getHttpPoolMaxTotal()},
+ * {@link GlobalConfiguration#getHttpPoolMaxPerRoute()} and {@link GlobalConfiguration#getHttpPoolIdleTimeout()}.
+ */
+@Singleton
+public class OutboundHttpConnectionPool {
+
+    public static final Logger log = LoggerFactory.getLogger(OutboundHttpConnectionPool.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient httpClient;
+
+    private final ScheduledExecutorService evictor;
+
+    private final long idleTimeoutInMillis;
+
+    /** The routes we have seen so far, indexed by their external form, i.e. https://host:port */
+    private final ConcurrentMap<String, HttpRoute> routes = new ConcurrentHashMap<String, HttpRoute>();
+
+    @Inject
+    public OutboundHttpConnectionPool(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.getHttpPoolMaxTotal(),
+                globalConfiguration.getHttpPoolMaxPerRoute(),
+                globalConfiguration.getHttpPoolIdleTimeout(),
+                globalConfiguration.getConnectTimeout(),
+                globalConfiguration.getReadTimeout());
+    }
+
+    OutboundHttpConnectionPool(int maxTotal, int maxPerRoute, long idleTimeoutInMillis, int connectTimeout, int readTimeout) {
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+
+        // Our AS2 partners are identified by the certificate of their signature rather than the name of the host
+        Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(SSLContexts.createSystemDefault(), SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER))
+                .build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setStaleConnectionCheckEnabled(true)
+                .build();
+
+        httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new IdleTimeoutKeepAliveStrategy(idleTimeoutInMillis))
+                .build();
+
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "oxalis-http-connection-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long evictionInterval = Math.max(1000L, idleTimeoutInMillis / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictExpiredAndIdleConnections();
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+
+        log.info("Outbound http connection pool created; max total=" + maxTotal + ", max per route=" + maxPerRoute + ", idle timeout=" + idleTimeoutInMillis + "ms");
+    }
+
+    /**
+     * Executes the supplied request using a pooled connection. The caller must close the response in order to
+     * return the connection to the pool.
+     */
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException, ClientProtocolException {
+        registerRoute(URIUtils.extractHost(request.getURI()));
+        return httpClient.execute(request);
+    }
+
+    void evictExpiredAndIdleConnections() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Statistics for the entire pool, i.e. the number of leased, available and pending connections
+     */
+    public PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Statistics for every receiving access point we have been talking to, indexed by scheme, host and port.
+     */
+    public Map<String, PoolStats> getRouteStats() {
+        Map<String, PoolStats> result = new TreeMap<String, PoolStats>();
+        for (Map.Entry<String, HttpRoute> entry : routes.entrySet()) {
+            result.put(entry.getKey(), connectionManager.getStats(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Closes all connections and stops the eviction thread. The pool can not be used after this.
+     */
+    public void shutdown() {
+        evictor.shutdownNow();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            log.warn("Unable to close the http client: " + e.getMessage(), e);
+        }
+        connectionManager.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundHttpConnectionPool{" +
+                "total=" + getTotalStats() +
+                ", routes=" + getRouteStats() +
+                '}';
+    }
+
+    private void registerRoute(HttpHost httpHost) {
+        if (httpHost == null) {
+            return;
+        }
+        boolean secure = "https".equalsIgnoreCase(httpHost.getSchemeName());
+        int port = httpHost.getPort();
+        if (port < 0) {
+            port = secure ? 443 : 80;
+        }
+        HttpHost target = new HttpHost(httpHost.getHostName(), port, httpHost.getSchemeName());
+        String key = target.toURI();
+        if (!routes.containsKey(key)) {
+            routes.putIfAbsent(key, new HttpRoute(target, null, secure));
+        }
+    }
+
+    /**
+     * Honours the keep alive timeout supplied by the server, but never keeps a connection alive longer than
+     * our own idle timeout, which is also used when the server does not tell us anything.
+     */
+    static class IdleTimeoutKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final ConnectionKeepAliveStrategy serverStrategy = DefaultConnectionKeepAliveStrategy.INSTANCE;
+        private final long idleTimeoutInMillis;
+
+        IdleTimeoutKeepAliveStrategy(long idleTimeoutInMillis) {
+            this.idleTimeoutInMillis = idleTimeoutInMillis;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = serverStrategy.getKeepAliveDuration(response, context);
+            if (duration <= 0 || duration > idleTimeoutInMillis) {
+                return idleTimeoutInMillis;
+            }
+            return duration;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.as2.Mic;
+import eu.peppol.as2.StreamingSMimeSigner;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import javax.activation.MimeType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Http entity holding an S/MIME signed payload, which is signed while it is being written to the socket.
+ * <p/>
+ * The length of the entity is unknown until it has been written, hence chunked transfer encoding is used.
+ * Memory usage is constant, regardless of the size of the payload.
+ * <p/>
+ * The entity may only be consumed once, either by writing it or by reading its content, as the payload is supplied
+ * as an input stream.
+ */
+class SMimeSignedEntity extends AbstractHttpEntity {
+
+    private final StreamingSMimeSigner signer;
+    private final InputStream payload;
+    private final MimeType mimeType;
+    private final String boundary;
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    private volatile boolean consumed = false;
+    private volatile Mic mic;
+
+    SMimeSignedEntity(StreamingSMimeSigner signer, InputStream payload, MimeType mimeType) {
+        this.signer = signer;
+        this.payload = payload;
+        this.mimeType = mimeType;
+        this.boundary = StreamingSMimeSigner.createBoundary();
+
+        setContentType(StreamingSMimeSigner.getContentType(boundary));
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    /**
+     * Provides the signed contents, which are signed by a thread of its own while they are being read, through a
+     * pipe of constant size. A failure to sign is reported by the stream, once the contents signed have been read.
+     * The http client only consumes the entity through {@link #writeTo(OutputStream)}, which does not require the
+     * additional thread.
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        markConsumed();
+
+        final PipedOutputStream pipedOutputStream = new PipedOutputStream();
+        final SignedContentInputStream signedContentInputStream = new SignedContentInputStream(pipedOutputStream);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sign(pipedOutputStream);
+                } catch (Exception e) {
+                    signedContentInputStream.failure = e;
+                } finally {
+                    try {
+                        pipedOutputStream.close();
+                    } catch (IOException e) {
+                        // The reader has gone away
+                    }
+                }
+            }
+        }, "oxalis-smime-signer");
+        thread.setDaemon(true);
+        thread.start();
+
+        return signedContentInputStream;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        if (outputStream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        markConsumed();
+        sign(outputStream);
+    }
+
+    private void markConsumed() {
+        if (consumed) {
+            throw new IllegalStateException("The S/MIME entity has already been written");
+        }
+        consumed = true;
+    }
+
+    private void sign(OutputStream outputStream) throws IOException {
+        try {
+            mic = signer.writeSignedMimeMessage(payload, mimeType, boundary, outputStream);
+        } finally {
+            payload.close();
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return !consumed;
+    }
+
+    /**
+     * The message integrity check of the signed contents, which is available once the entity has been written.
+     */
+    Mic getMic() {
+        return mic;
+    }
+
+    /** Reports the failure of the signing thread, rather than ending the contents prematurely */
+    static class SignedContentInputStream extends PipedInputStream {
+
+        volatile Exception failure;
+
+        SignedContentInputStream(PipedOutputStream pipedOutputStream) throws IOException {
+            super(pipedOutputStream, PIPE_SIZE);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                verifySigned();
+            }
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int bytesRead = super.read(b, off, len);
+            if (bytesRead == -1) {
+                verifySigned();
+            }
+            return bytesRead;
+        }
+
+        private void verifySigned() throws IOException {
+            if (failure != null) {
+                throw new IOException("Unable to sign the S/MIME entity: " + failure.getMessage(), failure);
+            }
+        }
+    }
+}
@@ -7,14 +7,15 @@ import eu.peppol.outbound.soap.SoapDispatcher;
 import eu.peppol.outbound.util.Log;
 import eu.peppol.start.identifier.StartMessageHeader;
 import eu.peppol.util.GlobalConfiguration;
+import eu.peppol.util.XmlInfrastructure;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3._2009._02.ws_tra.Create;
 import org.w3._2009._02.ws_tra.FaultMessage;
 import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.UUID;
 
@@ -38,10 +39,15 @@ class StartMessageSender implements MessageSender {
     @Override
     public TransmissionResponse send(TransmissionRequest transmissionRequest) {
 
+        TransmissionTimings timings = new TransmissionTimings();
+
+        long start = System.nanoTime();
         Document document = parsePayload(transmissionRequest);
         PeppolStandardBusinessHeader sbdh = transmissionRequest.getPeppolStandardBusinessHeader();
+        timings.recordSince(TransmissionTimings.Stage.PREPARE, start);
 
         try {
+            start = System.nanoTime();
             MessageId messageId = send(document,
                     sbdh.getDocumentTypeIdentifier(),
                     sbdh.getProfileTypeIdentifier(),
@@ -49,7 +55,9 @@ class StartMessageSender implements MessageSender {
                     sbdh.getRecipientId(),
                     transmissionRequest.getEndpointAddress().getUrl());
 
-            StartTransmissionResponse startTransmissionResponse = new StartTransmissionResponse(new TransmissionId(), sbdh);
+            timings.recordSince(TransmissionTimings.Stage.TRANSPORT, start);
+
+            StartTransmissionResponse startTransmissionResponse = new StartTransmissionResponse(transmissionRequest.getTransmissionId() != null ? transmissionRequest.getTransmissionId() : new TransmissionId(), sbdh, timings);
             return startTransmissionResponse;
 
         } catch (FaultMessage faultMessage) {
@@ -59,14 +67,20 @@ class StartMessageSender implements MessageSender {
 
     Document parsePayload(TransmissionRequest transmissionRequest) {
 
-        ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(transmissionRequest.getPayload());
+        InputStream inputStream = transmissionRequest.getPayload().openStream();
 
         try {
             log.debug("Constructing document body....");
-            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(byteArrayInputStream);
+            Document document = XmlInfrastructure.documentBuilder(false).parse(inputStream);
             return document;
         } catch (Exception e) {
             throw new IllegalStateException("Unable to parseMultipart byte stream into a valid XML Document; " + e.getMessage(), e);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
+            }
         }
     }
 
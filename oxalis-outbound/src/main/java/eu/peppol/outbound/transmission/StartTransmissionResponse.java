@@ -13,4 +13,8 @@ public class StartTransmissionResponse  extends AbstractTransmissionResponse imp
     public StartTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh) {
         super(transmissionId, sbdh);
     }
+
+    public StartTransmissionResponse(TransmissionId transmissionId, PeppolStandardBusinessHeader sbdh, TransmissionTimings timings) {
+        super(transmissionId, sbdh, timings);
+    }
 }
@@ -0,0 +1,19 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * Receives the outcome of an asynchronous transmission, see {@link Transmitter#transmitAsync(TransmissionRequest, long, java.util.concurrent.TimeUnit, TransmissionCallback)}.
+ * <p/>
+ * The methods are invoked by the thread which completed the transmission, or by the thread cancelling it,
+ * and should return quickly.
+ */
+public interface TransmissionCallback {
+
+    /** Invoked when the transmission completed successfully */
+    void onSuccess(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse);
+
+    /**
+     * Invoked when the transmission failed. The cause is a {@link java.util.concurrent.TimeoutException} if the
+     * transmission timed out and a {@link java.util.concurrent.CancellationException} if it was cancelled.
+     */
+    void onFailure(TransmissionRequest transmissionRequest, Throwable cause);
+}
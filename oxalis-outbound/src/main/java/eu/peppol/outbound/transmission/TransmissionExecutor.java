@@ -0,0 +1,99 @@
+package eu.peppol.outbound.transmission;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import eu.peppol.outbound.util.DaemonThreadFactory;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of threads performing asynchronous transmissions.
+ * <p/>
+ * The number of threads and the capacity of the queue holding transmissions waiting for a thread are
+ * configured in the Oxalis global configuration. When the queue is full, new transmissions are rejected
+ * immediately with a {@link RejectedExecutionException}, leaving it to the caller to retry later or to
+ * slow down. We never block the caller and we never execute the transmission in the thread of the caller.
+ */
+@Singleton
+public class TransmissionExecutor {
+
+    public static final Logger log = LoggerFactory.getLogger(TransmissionExecutor.class);
+
+    private final ThreadPoolExecutor threadPoolExecutor;
+
+    /** Cancels transmissions which have not completed within their timeout */
+    private final ScheduledExecutorService watchdogExecutor;
+
+    private final int queueCapacity;
+
+    @Inject
+    public TransmissionExecutor(GlobalConfiguration globalConfiguration) {
+        this(globalConfiguration.getOutboundAsyncThreads(), globalConfiguration.getOutboundAsyncQueueSize());
+    }
+
+    TransmissionExecutor(int threads, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new DaemonThreadFactory("oxalis-transmission"),
+                new ThreadPoolExecutor.AbortPolicy());
+        watchdogExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("oxalis-transmission-watchdog"));
+
+        log.info("Transmission executor created with " + threads + " threads and a queue capacity of " + queueCapacity);
+    }
+
+    /**
+     * Queues the transmission for execution, which is cancelled if not completed within the supplied timeout.
+     *
+     * @param timeout the timeout, 0 or less means no timeout.
+     * @throws RejectedExecutionException if the queue is full
+     */
+    void execute(final TransmissionFuture transmissionFuture, long timeout, TimeUnit unit) {
+        try {
+            threadPoolExecutor.execute(transmissionFuture);
+        } catch (RejectedExecutionException e) {
+            throw new RejectedExecutionException("Transmission queue is full, " + queueCapacity + " transmissions are waiting. Retry later.", e);
+        }
+
+        if (timeout > 0) {
+            transmissionFuture.setWatchdog(watchdogExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    transmissionFuture.timeout();
+                }
+            }, timeout, unit));
+        }
+    }
+
+    /** Number of transmissions waiting for a thread */
+    public int getQueueSize() {
+        return threadPoolExecutor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** Number of transmissions in progress */
+    public int getActiveCount() {
+        return threadPoolExecutor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return threadPoolExecutor.getCompletedTaskCount();
+    }
+
+    /** Stops accepting new transmissions, while transmissions already queued are completed */
+    public void shutdown() {
+        threadPoolExecutor.shutdown();
+        watchdogExecutor.shutdown();
+    }
+}
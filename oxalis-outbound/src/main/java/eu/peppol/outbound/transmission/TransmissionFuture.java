@@ -0,0 +1,144 @@
+package eu.peppol.outbound.transmission;
+
+import org.apache.http.concurrent.Cancellable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle to a transmission performed asynchronously, as returned by {@link Transmitter#transmitAsync(TransmissionRequest)}.
+ * <p/>
+ * Cancelling the transmission interrupts the thread performing it and aborts any http request in progress.
+ * A transmission which times out is cancelled, which may be inspected with {@link #isTimedOut()}.
+ */
+public class TransmissionFuture extends FutureTask<TransmissionResponse> {
+
+    public static final Logger log = LoggerFactory.getLogger(TransmissionFuture.class);
+
+    /** The transmission being executed by the current thread, if any */
+    private static final ThreadLocal<TransmissionFuture> current = new ThreadLocal<TransmissionFuture>();
+
+    private final TransmissionRequest transmissionRequest;
+    private final TransmissionCallback callback;
+
+    private volatile boolean timedOut = false;
+    private volatile Cancellable blockingOperation;
+    private volatile Future<?> watchdog;
+
+    TransmissionFuture(Callable<TransmissionResponse> callable, TransmissionRequest transmissionRequest, TransmissionCallback callback) {
+        super(callable);
+        this.transmissionRequest = transmissionRequest;
+        this.callback = callback;
+    }
+
+    public TransmissionRequest getTransmissionRequest() {
+        return transmissionRequest;
+    }
+
+    /** Whether the transmission was cancelled due to the timeout having expired */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public void run() {
+        current.set(this);
+        try {
+            super.run();
+        } finally {
+            current.remove();
+            blockingOperation = null;
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && mayInterruptIfRunning) {
+            Cancellable operation = blockingOperation;
+            if (operation != null) {
+                operation.cancel();
+            }
+        }
+        return cancelled;
+    }
+
+    void timeout() {
+        if (!isDone()) {
+            timedOut = true;
+            if (!cancel(true)) {
+                // Completed in the mean time
+                timedOut = false;
+            }
+        }
+    }
+
+    void setWatchdog(Future<?> watchdog) {
+        this.watchdog = watchdog;
+        if (isDone()) {
+            watchdog.cancel(false);
+        }
+    }
+
+    @Override
+    protected void done() {
+        Future<?> w = watchdog;
+        if (w != null) {
+            w.cancel(false);
+        }
+
+        // A transmission cancelled before it started will never close the request
+        if (isCancelled()) {
+            transmissionRequest.close();
+        }
+
+        if (callback == null) {
+            return;
+        }
+
+        try {
+            if (isCancelled()) {
+                callback.onFailure(transmissionRequest, timedOut ? new TimeoutException("Transmission timed out") : new CancellationException("Transmission cancelled"));
+            } else {
+                try {
+                    callback.onSuccess(transmissionRequest, get());
+                } catch (ExecutionException e) {
+                    callback.onFailure(transmissionRequest, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            log.error("Transmission callback failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Registers the blocking operation, like an http request, currently performed on behalf of the transmission
+     * executed by the current thread, in order for it to be aborted upon cancellation. Does nothing if the
+     * current thread is not executing an asynchronous transmission.
+     */
+    static void registerBlockingOperation(Cancellable operation) {
+        TransmissionFuture transmissionFuture = current.get();
+        if (transmissionFuture != null) {
+            transmissionFuture.blockingOperation = operation;
+            if (transmissionFuture.isCancelled()) {
+                operation.cancel();
+            }
+        }
+    }
+
+    /** Removes the blocking operation registered by the current thread */
+    static void clearBlockingOperation() {
+        TransmissionFuture transmissionFuture = current.get();
+        if (transmissionFuture != null) {
+            transmissionFuture.blockingOperation = null;
+        }
+    }
+}
@@ -2,11 +2,13 @@ package eu.peppol.outbound.transmission;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import eu.peppol.outbound.health.DestinationHealthRegistry;
 import eu.peppol.security.CommonName;
 import eu.peppol.security.KeystoreManager;
+import eu.peppol.smp.CachingSmpLookupManager;
 import eu.peppol.smp.SmpLookupManager;
-import eu.peppol.smp.SmpLookupManagerImpl;
 import eu.peppol.statistics.RawStatisticsRepository;
 import eu.peppol.statistics.RawStatisticsRepositoryFactoryProvider;
 import eu.peppol.util.GlobalConfiguration;
@@ -21,7 +23,14 @@ public class TransmissionModule extends AbstractModule {
     @Override
     protected void configure() {
 
-        bind(SmpLookupManager.class).to(SmpLookupManagerImpl.class);
+        // The SMP lookups are cached, shared by all transmissions
+        bind(SmpLookupManager.class).to(CachingSmpLookupManager.class).in(Singleton.class);
+
+        // One pool of http connections shared by all transmissions
+        bind(OutboundHttpConnectionPool.class).in(Singleton.class);
+
+        // Bounded pool of threads for asynchronous transmissions
+        bind(TransmissionExecutor.class).in(Singleton.class);
 
     }
 
@@ -32,6 +41,12 @@ public class TransmissionModule extends AbstractModule {
     }
 
 
+    /** Health of the receiving access points, shared by all the AS2 and START message senders in the JVM */
+    @Provides
+    DestinationHealthRegistry obtainDestinationHealthRegistry() {
+        return DestinationHealthRegistry.getInstance();
+    }
+
     @Provides
     GlobalConfiguration obtainConfiguration() {
         return GlobalConfiguration.getInstance();
@@ -1,25 +1,32 @@
 package eu.peppol.outbound.transmission;
 
 import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.document.Payload;
+import eu.peppol.identifier.TransmissionId;
 import eu.peppol.smp.SmpLookupManager;
 
-import java.io.InputStream;
+import java.io.Closeable;
 
 /**
  * Describes a request to transmit a payload (PEPPOL Document) to a designated end-point.
  *
  * Instances of this class are to be deemed as value objects, as they are immutable.
+ * <p/>
+ * The request owns its payload, which may be held in a temporary file. The request is closed by the
+ * {@link Transmitter} or the outbound spool once it has been transmitted or spooled, hence a request is only handed
+ * over once. A request which is never handed over must be closed by the caller.
  *
  * @author steinar
  *         Date: 04.11.13
  *         Time: 10:02
  */
-public class TransmissionRequest {
+public class TransmissionRequest implements Closeable {
 
 
     private final PeppolStandardBusinessHeader peppolStandardBusinessHeader;
-    private final byte[] payload;
+    private final Payload payload;
     private final SmpLookupManager.PeppolEndpointData endpointAddress;
+    private final TransmissionId transmissionId;
 
     /**
      * Module private constructor grabbing the constructor data from the supplied builder.
@@ -30,17 +37,32 @@ public class TransmissionRequest {
         peppolStandardBusinessHeader = transmissionRequestBuilder.getPeppolStandardBusinessHeader();
         payload = transmissionRequestBuilder.getPayload();
         endpointAddress = transmissionRequestBuilder.getEndpointAddress();
+        transmissionId = transmissionRequestBuilder.getTransmissionId();
     }
 
     public PeppolStandardBusinessHeader getPeppolStandardBusinessHeader() {
         return peppolStandardBusinessHeader;
     }
 
-    public byte[] getPayload() {
+    /** The payload, which may be read any number of times */
+    public Payload getPayload() {
         return payload;
     }
 
     public SmpLookupManager.PeppolEndpointData getEndpointAddress() {
         return endpointAddress;
     }
+
+    /**
+     * The transmission id to be used when sending the message, null if a new one should be assigned during transmission.
+     */
+    public TransmissionId getTransmissionId() {
+        return transmissionId;
+    }
+
+    /** Releases the payload, removing its temporary file if any. Closing the request more than once has no effect. */
+    @Override
+    public void close() {
+        payload.close();
+    }
 }
@@ -5,15 +5,16 @@ import eu.peppol.BusDoxProtocol;
 import eu.peppol.PeppolStandardBusinessHeader;
 import eu.peppol.document.DocumentSniffer;
 import eu.peppol.document.NoSbdhParser;
+import eu.peppol.document.Payload;
 import eu.peppol.document.SbdhParser;
 import eu.peppol.document.SbdhWrapper;
+import eu.peppol.identifier.TransmissionId;
 import eu.peppol.security.CommonName;
 import eu.peppol.smp.SmpLookupManager;
-import eu.peppol.util.Util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -34,9 +35,10 @@ public class TransmissionRequestBuilder {
     SmpLookupManager smpLookupManager;
 
 
-    byte[] payload;
+    Payload payload;
     private PeppolStandardBusinessHeader peppolStandardBusinessHeader;
     private SmpLookupManager.PeppolEndpointData endpointAddress;
+    private TransmissionId transmissionId;
 
     private boolean sbdhDetected;
 
@@ -47,6 +49,9 @@ public class TransmissionRequestBuilder {
         this.smpLookupManager = smpLookupManager;
     }
 
+    /**
+     * Supplies the payload, which is read to the end but not closed. Large documents are spooled to a temporary file.
+     */
     public TransmissionRequestBuilder payLoad(InputStream inputStream) {
 
         savePayLoad(inputStream);
@@ -55,19 +60,45 @@ public class TransmissionRequestBuilder {
         return this;
     }
 
+    /** Supplies the payload held in the file, which is read when required, rather than loaded into memory */
+    public TransmissionRequestBuilder payLoad(File file) {
+        return payLoad(Payload.of(file));
+    }
+
+    public TransmissionRequestBuilder payLoad(Payload payload) {
+        this.payload = payload;
+        return this;
+    }
+
     PeppolStandardBusinessHeader parsePayLoadAndDeduceSbdh() {
-        sbdhDetected = checkForSbdh();
-
-        PeppolStandardBusinessHeader peppolSbdh;
-        if (sbdhDetected) {
-            // Parses the SBDH to determine the receivers endpoint URL etc.
-            peppolSbdh = sbdhParser.parse(new ByteArrayInputStream(payload));
-        } else {
-            // Parses the PEPPOL document in order to determine the header fields
-            peppolSbdh = noSbdhParser.parse(new ByteArrayInputStream(payload));
+        // The sniffer examines the first bytes only, leaving the stream at the start of the payload for the parser
+        InputStream inputStream = payload.openStream();
+        try {
+            DocumentSniffer documentSniffer = new DocumentSniffer(inputStream);
+            sbdhDetected = documentSniffer.isSbdhDetected();
+
+            if (peppolStandardBusinessHeader != null) {
+                // Supplied by the caller, hence the payload need not be parsed
+                return peppolStandardBusinessHeader;
+            }
+
+            PeppolStandardBusinessHeader peppolSbdh;
+            if (sbdhDetected) {
+                // Parses the SBDH to determine the receivers endpoint URL etc.
+                peppolSbdh = sbdhParser.parse(documentSniffer.getInputStream());
+            } else {
+                // Parses the PEPPOL document in order to determine the header fields
+                peppolSbdh = noSbdhParser.parse(documentSniffer.getInputStream());
+            }
+
+            return peppolSbdh;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                log.warn("Unable to close payload: " + e.getMessage());
+            }
         }
-
-        return peppolSbdh;
     }
 
     /**
@@ -87,25 +118,33 @@ public class TransmissionRequestBuilder {
         return this;
     }
 
-    boolean checkForSbdh() {
-        // Sniff, sniff; does it contain a SBDH?
-        DocumentSniffer documentSniffer = new DocumentSniffer(new ByteArrayInputStream(payload));
-        return documentSniffer.isSbdhDetected();
+    /**
+     * Supplies the transmission id to be used when sending the message, rather than having a new one assigned during
+     * transmission. Sending the same message again with the same transmission id allows the receiver to detect duplicates.
+     */
+    public TransmissionRequestBuilder transmissionId(TransmissionId transmissionId) {
+        this.transmissionId = transmissionId;
+        return this;
+    }
+
+    /**
+     * Supplies the header of a payload which has been parsed before, e.g. when the transmission was spooled, thus
+     * saving the parsing of the payload. The header must describe the payload.
+     */
+    public TransmissionRequestBuilder peppolStandardBusinessHeader(PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
+        this.peppolStandardBusinessHeader = peppolStandardBusinessHeader;
+        return this;
     }
 
     void savePayLoad(InputStream inputStream) {
-        try {
-            payload = Util.intoBuffer(inputStream, 6L * 1024 * 1024);     // Copies the contents into a buffer
-        } catch (IOException e) {
-            throw new IllegalStateException("Unable to save the payload: " + e.getMessage(), e);
-        }
+        payload = Payload.spool(inputStream);     // Copies the contents into a buffer, or a temporary file if large
     }
 
     PeppolStandardBusinessHeader getPeppolStandardBusinessHeader() {
         return peppolStandardBusinessHeader;
     }
 
-    byte[] getPayload() {
+    Payload getPayload() {
         return payload;
     }
 
@@ -113,8 +152,24 @@ public class TransmissionRequestBuilder {
         return endpointAddress;
     }
 
+    TransmissionId getTransmissionId() {
+        return transmissionId;
+    }
+
 
+    /**
+     * Creates the request, which takes over the payload. If the request can not be created, the payload is closed.
+     */
     public TransmissionRequest build() {
+        try {
+            return createTransmissionRequest();
+        } catch (RuntimeException e) {
+            payload.close();
+            throw e;
+        }
+    }
+
+    private TransmissionRequest createTransmissionRequest() {
 
         peppolStandardBusinessHeader = parsePayLoadAndDeduceSbdh();
 
@@ -125,7 +180,7 @@ public class TransmissionRequestBuilder {
         }
 
         if (endpointAddress.getBusDoxProtocol() == BusDoxProtocol.AS2 && !sbdhDetected) {
-            payload = wrapPayLoadWithSBDH(new ByteArrayInputStream(payload), peppolStandardBusinessHeader);
+            payload = wrapPayLoadWithSBDH(payload, peppolStandardBusinessHeader);
         }
 
         // Transfers all the properties of this object into the newly created TransmissionRequest
@@ -133,10 +188,14 @@ public class TransmissionRequestBuilder {
 
     }
 
-    private byte[] wrapPayLoadWithSBDH(ByteArrayInputStream byteArrayInputStream, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
+    private Payload wrapPayLoadWithSBDH(Payload original, PeppolStandardBusinessHeader peppolStandardBusinessHeader) {
         SbdhWrapper sbdhWrapper = new SbdhWrapper();
-        byte[] result = sbdhWrapper.wrap(byteArrayInputStream, peppolStandardBusinessHeader);
 
+        // The original payload is copied as is, following the header
+        Payload result = sbdhWrapper.wrap(original, peppolStandardBusinessHeader);
+
+        // Removes the temporary file of the original payload, if any
+        original.close();
         return result;
     }
 
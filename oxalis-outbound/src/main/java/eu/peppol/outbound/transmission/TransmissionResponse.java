@@ -12,4 +12,7 @@ public interface TransmissionResponse {
 
     /** Transmission id assigned during transmission */
     TransmissionId getTransmissionId();
+
+    /** Time spent in each stage of the transmission */
+    TransmissionTimings getTimings();
 }
@@ -0,0 +1,52 @@
+package eu.peppol.outbound.transmission;
+
+/**
+ * Outcome of a single transmission within a batch, see {@link Transmitter#transmitAll(java.util.Collection)}.
+ * Holds either the response or the cause of the failure.
+ */
+public class TransmissionResult {
+
+    private final TransmissionRequest transmissionRequest;
+    private final TransmissionResponse transmissionResponse;
+    private final Throwable failure;
+
+    TransmissionResult(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse) {
+        this(transmissionRequest, transmissionResponse, null);
+    }
+
+    TransmissionResult(TransmissionRequest transmissionRequest, Throwable failure) {
+        this(transmissionRequest, null, failure);
+    }
+
+    private TransmissionResult(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse, Throwable failure) {
+        this.transmissionRequest = transmissionRequest;
+        this.transmissionResponse = transmissionResponse;
+        this.failure = failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    public TransmissionRequest getTransmissionRequest() {
+        return transmissionRequest;
+    }
+
+    /** The response of a successful transmission, null if the transmission failed */
+    public TransmissionResponse getTransmissionResponse() {
+        return transmissionResponse;
+    }
+
+    /** The reason why the transmission failed, null if successful */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "TransmissionResult{" +
+                "endpoint=" + transmissionRequest.getEndpointAddress().getUrl() +
+                (isSuccess() ? ", transmissionId=" + transmissionResponse.getTransmissionId() : ", failure=" + failure) +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package eu.peppol.outbound.transmission;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the time spent in each stage of a transmission, in milliseconds.
+ * <p/>
+ * The stages are recorded by the thread performing the transmission and may be inspected
+ * once the transmission has completed.
+ */
+public class TransmissionTimings {
+
+    public enum Stage {
+        /** Waiting in the queue of the asynchronous transmission executor */
+        QUEUED,
+        /** Preparation of the payload prior to transmission, like parsing into DOM for START */
+        PREPARE,
+        /** Signing and sending the message, until the response has been received */
+        TRANSPORT,
+        /** Inspection of the receipt, i.e. the MDN for AS2 */
+        RECEIPT,
+        /** Persisting of the raw statistics */
+        STATISTICS
+    }
+
+    private final Map<Stage, Long> durations = new EnumMap<Stage, Long>(Stage.class);
+
+    /** Adds the number of milliseconds spent in the supplied stage */
+    public synchronized void record(Stage stage, long millis) {
+        Long previous = durations.get(stage);
+        durations.put(stage, previous == null ? millis : previous + millis);
+    }
+
+    /** Adds the time elapsed since the supplied value of {@link System#nanoTime()} */
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /** Number of milliseconds spent in the supplied stage, 0 if the stage was never recorded */
+    public synchronized long get(Stage stage) {
+        Long millis = durations.get(stage);
+        return millis == null ? 0L : millis;
+    }
+
+    /** Total number of milliseconds recorded */
+    public synchronized long getTotal() {
+        long total = 0;
+        for (Long millis : durations.values()) {
+            total += millis;
+        }
+        return total;
+    }
+
+    public synchronized Map<Stage, Long> asMap() {
+        return Collections.unmodifiableMap(new EnumMap<Stage, Long>(durations));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransmissionTimings{" + durations + ", total=" + getTotal() + "ms}";
+    }
+}
@@ -5,11 +5,31 @@ import com.google.inject.name.Named;
 import eu.peppol.BusDoxProtocol;
 import eu.peppol.security.CommonName;
 import eu.peppol.identifier.AccessPointIdentifier;
+import eu.peppol.outbound.health.DestinationHealthRegistry;
+import eu.peppol.outbound.util.DaemonThreadFactory;
 import eu.peppol.start.identifier.ChannelId;
 import eu.peppol.statistics.RawStatistics;
 import eu.peppol.statistics.RawStatisticsRepository;
+import eu.peppol.util.GlobalConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Executes transmission requests by sending the payload to the requested destination.
@@ -25,17 +45,32 @@ import java.util.Date;
  */
 public class Transmitter {
 
+    public static final Logger log = LoggerFactory.getLogger(Transmitter.class);
+
     private final MessageSenderFactory messageSenderFactory;
     private final RawStatisticsRepository rawStatisticsRepository;
     private final CommonName ourCommonName;
+    private final TransmissionExecutor transmissionExecutor;
+
+    /** Shared by all the batches, the number of threads used by a batch is limited by the batch itself */
+    private static final ExecutorService batchExecutorService = Executors.newCachedThreadPool(new DaemonThreadFactory("oxalis-batch"));
     private AccessPointIdentifier ourAccessPointIdentifier;
 
 
+    /**
+     * Creates a transmitter, which is only capable of synchronous transmissions, as no executor is available
+     * for {@link #transmitAsync(TransmissionRequest)}
+     */
+    public Transmitter(MessageSenderFactory messageSenderFactory, RawStatisticsRepository rawStatisticsRepository, CommonName ourCommonName) {
+        this(messageSenderFactory, rawStatisticsRepository, ourCommonName, null);
+    }
+
     @Inject
-    public Transmitter(MessageSenderFactory messageSenderFactory, RawStatisticsRepository rawStatisticsRepository, @Named("OurCommonName")CommonName ourCommonName) {
+    public Transmitter(MessageSenderFactory messageSenderFactory, RawStatisticsRepository rawStatisticsRepository, @Named("OurCommonName")CommonName ourCommonName, TransmissionExecutor transmissionExecutor) {
         this.messageSenderFactory = messageSenderFactory;
         this.rawStatisticsRepository = rawStatisticsRepository;
         this.ourCommonName = ourCommonName;
+        this.transmissionExecutor = transmissionExecutor;
         if (ourCommonName == null) {
             throw new IllegalArgumentException("Must supply the Common Name (CN) for our access point");
         }
@@ -43,18 +78,203 @@ public class Transmitter {
     }
 
 
+    /**
+     * Transmits the request, which is closed once the transmission has completed or failed, thus removing the temporary
+     * file holding the payload, if any.
+     */
     public TransmissionResponse transmit(TransmissionRequest transmissionRequest) {
 
         BusDoxProtocol busDoxProtocol = transmissionRequest.getEndpointAddress().getBusDoxProtocol();
         MessageSender messageSender = messageSenderFactory.createMessageSender(busDoxProtocol);
 
-        TransmissionResponse transmissionResponse = messageSender.send(transmissionRequest);
+        TransmissionResponse transmissionResponse;
+        try {
+            transmissionResponse = messageSender.send(transmissionRequest);
+        } finally {
+            transmissionRequest.close();
+        }
 
+        long start = System.nanoTime();
         persistStatistics(transmissionRequest, transmissionResponse);
+        if (transmissionResponse.getTimings() != null) {
+            transmissionResponse.getTimings().recordSince(TransmissionTimings.Stage.STATISTICS, start);
+        }
 
         return transmissionResponse;
     }
 
+    /**
+     * Performs the transmission in a separate thread, without any timeout.
+     *
+     * @see #transmitAsync(TransmissionRequest, long, java.util.concurrent.TimeUnit, TransmissionCallback)
+     */
+    public TransmissionFuture transmitAsync(TransmissionRequest transmissionRequest) {
+        return transmitAsync(transmissionRequest, 0, TimeUnit.MILLISECONDS, null);
+    }
+
+    /**
+     * Performs the transmission in a separate thread, which is cancelled if not completed within the supplied timeout.
+     *
+     * @see #transmitAsync(TransmissionRequest, long, java.util.concurrent.TimeUnit, TransmissionCallback)
+     */
+    public TransmissionFuture transmitAsync(TransmissionRequest transmissionRequest, long timeout, TimeUnit unit) {
+        return transmitAsync(transmissionRequest, timeout, unit, null);
+    }
+
+    /**
+     * Queues the transmission for execution by the bounded pool of transmission threads and returns immediately.
+     * <p/>
+     * The timeout covers the entire transmission, including the time spent waiting in the queue. Transmissions
+     * which time out are cancelled, i.e. the thread is interrupted and any http request in progress is aborted.
+     * <p/>
+     * The request is closed once transmitted or cancelled. If the transmission is rejected, the request remains with
+     * the caller.
+     *
+     * @param timeout  maximum duration of the transmission, 0 means no timeout.
+     * @param callback optional callback notified upon completion, failure, cancellation or time out.
+     * @return handle to the transmission, which may be used to wait for the response or to cancel the transmission.
+     * @throws java.util.concurrent.RejectedExecutionException if the queue of transmissions is full.
+     */
+    public TransmissionFuture transmitAsync(final TransmissionRequest transmissionRequest, long timeout, TimeUnit unit, TransmissionCallback callback) {
+        if (transmissionExecutor == null) {
+            throw new IllegalStateException("No TransmissionExecutor available for asynchronous transmissions");
+        }
+
+        final long queuedAt = System.nanoTime();
+        TransmissionFuture transmissionFuture = new TransmissionFuture(new Callable<TransmissionResponse>() {
+            @Override
+            public TransmissionResponse call() throws Exception {
+                long queuedFor = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+
+                TransmissionResponse transmissionResponse = transmit(transmissionRequest);
+                if (transmissionResponse.getTimings() != null) {
+                    transmissionResponse.getTimings().record(TransmissionTimings.Stage.QUEUED, queuedFor);
+                }
+                return transmissionResponse;
+            }
+        }, transmissionRequest, callback);
+
+        transmissionExecutor.execute(transmissionFuture, timeout, unit);
+
+        return transmissionFuture;
+    }
+
+    /**
+     * Transmits a batch of messages, using the number of threads and the limit of concurrent transmissions to each
+     * access point given in the global configuration.
+     *
+     * @see #transmitAll(java.util.Collection, int, int)
+     */
+    public List<TransmissionResult> transmitAll(Collection<TransmissionRequest> transmissionRequests) {
+        GlobalConfiguration globalConfiguration = GlobalConfiguration.getInstance();
+        return transmitAll(transmissionRequests, globalConfiguration.getOutboundBatchThreads(), globalConfiguration.getOutboundBatchMaxPerDestination());
+    }
+
+    /**
+     * Transmits a batch of messages, grouped by the receiving access point. The groups are transmitted in parallel,
+     * while the number of concurrent transmissions to each access point is limited. The connections and
+     * signing state of the message senders are reused for all the messages.
+     * <p/>
+     * A failed transmission does not abort the batch. Returns once every message has been attempted, at which point
+     * every request has been closed.
+     *
+     * @param threads           maximum number of concurrent transmissions in total
+     * @param maxPerDestination maximum number of concurrent transmissions to a single access point
+     * @return the outcome of every transmission, in the same order as the requests, empty if there are no requests
+     * @throws IllegalArgumentException if either of the limits is less than one
+     */
+    public List<TransmissionResult> transmitAll(Collection<TransmissionRequest> transmissionRequests, int threads, int maxPerDestination) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of threads for a batch must be at least 1, was " + threads);
+        }
+        if (maxPerDestination < 1) {
+            throw new IllegalArgumentException("Maximum number of concurrent transmissions per access point must be at least 1, was " + maxPerDestination);
+        }
+        if (transmissionRequests.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<TransmissionRequest> requests = new ArrayList<TransmissionRequest>(transmissionRequests);
+        final TransmissionResult[] results = new TransmissionResult[requests.size()];
+
+        // Index of the requests, grouped by receiving access point
+        Map<String, Queue<Integer>> groups = new LinkedHashMap<String, Queue<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            String destination = DestinationHealthRegistry.destinationOf(requests.get(i).getEndpointAddress().getUrl());
+            Queue<Integer> group = groups.get(destination);
+            if (group == null) {
+                group = new ConcurrentLinkedQueue<Integer>();
+                groups.put(destination, group);
+            }
+            group.add(i);
+        }
+
+        // Every worker transmits messages from a single group, the number of workers per group is limited
+        final Queue<Runnable> workers = new ConcurrentLinkedQueue<Runnable>();
+        for (int round = 0; round < maxPerDestination; round++) {
+            for (final Queue<Integer> group : groups.values()) {
+                if (round < group.size()) {
+                    workers.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            Integer index;
+                            while ((index = group.poll()) != null) {
+                                TransmissionRequest transmissionRequest = requests.get(index);
+                                try {
+                                    results[index] = new TransmissionResult(transmissionRequest, transmit(transmissionRequest));
+                                } catch (Exception e) {
+                                    log.warn("Transmission to " + transmissionRequest.getEndpointAddress().getUrl() + " failed: " + e.getMessage());
+                                    results[index] = new TransmissionResult(transmissionRequest, e);
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        // The shared threads take on the workers one at a time, thus never running more than the given number at once
+        int numberOfThreads = Math.min(threads, workers.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (int i = 0; i < numberOfThreads; i++) {
+                futures.add(batchExecutorService.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        Runnable worker;
+                        while (!Thread.currentThread().isInterrupted() && (worker = workers.poll()) != null) {
+                            worker.run();
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while transmitting batch of " + requests.size() + " messages", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to transmit batch of " + requests.size() + " messages: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            // Nothing more is started once the batch has been aborted
+            workers.clear();
+            for (Queue<Integer> group : groups.values()) {
+                group.clear();
+            }
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            // Requests not attempted, due to the batch having been interrupted, are released as well
+            for (TransmissionRequest transmissionRequest : requests) {
+                transmissionRequest.close();
+            }
+        }
+
+        log.info("Batch of " + requests.size() + " messages to " + groups.size() + " access points transmitted");
+        return Arrays.asList(results);
+    }
+
     void persistStatistics(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse) {
 
 
@@ -0,0 +1,27 @@
+package eu.peppol.outbound.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, which will not prevent the JVM from exiting once the application has completed.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String prefix;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * @param prefix prefix of the thread names, which are suffixed with a sequence number
+     */
+    public DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,210 @@
+package eu.peppol.outbound.health;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.*;
+
+public class DestinationHealthRegistryTest {
+
+    private DestinationHealthRegistry healthRegistry;
+    private URL endpoint;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        // Window of 10, at least 4 calls, 50% failures or 50% slow calls of 100ms trips, open for 200ms
+        healthRegistry = new DestinationHealthRegistry(10, 4, 50, 100, 50, 200);
+        endpoint = new URL("https://ap.example.com/oxalis/as2");
+    }
+
+    @Test
+    public void destinationIgnoresPathAndCase() throws Exception {
+        assertEquals(DestinationHealthRegistry.destinationOf(new URL("https://AP.example.com/oxalis/as2")), "https://ap.example.com:443");
+        assertEquals(DestinationHealthRegistry.destinationOf(new URL("http://ap.example.com:8080/oxalis/accessPointService")), "http://ap.example.com:8080");
+        assertSame(healthRegistry.getCircuitBreaker(new URL("https://ap.example.com:443/other")), healthRegistry.getCircuitBreaker(endpoint));
+    }
+
+    @Test
+    public void circuitOpensWhenFailureRateIsExceeded() throws Exception {
+        recordSuccesses(3);
+        recordFailures(2);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.CLOSED);
+        recordFailures(1);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.OPEN);
+
+        try {
+            healthRegistry.acquirePermission(endpoint);
+            fail("Circuit should be open");
+        } catch (CircuitOpenException e) {
+            assertEquals(e.getDestination(), "https://ap.example.com:443");
+            assertTrue(e.getRetryAfter() > System.currentTimeMillis());
+        }
+        assertEquals(healthRegistry.getOpenDestinations(), new String[]{"https://ap.example.com:443"});
+
+        // Other access points are not affected
+        healthRegistry.acquirePermission(new URL("https://other.example.com/oxalis/as2"));
+    }
+
+    @Test
+    public void circuitDoesNotOpenBeforeMinimumNumberOfCalls() throws Exception {
+        recordFailures(3);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void circuitOpensWhenTooManyCallsAreSlow() throws Exception {
+        DestinationCircuitBreaker circuitBreaker = healthRegistry.getCircuitBreaker(endpoint);
+        for (int i = 0; i < 4; i++) {
+            circuitBreaker.acquirePermission();
+            circuitBreaker.recordSuccess(i % 2 == 0 ? 150000000L : 1000000L);
+        }
+        assertEquals(circuitBreaker.getState(), DestinationCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void successfulProbeClosesCircuit() throws Exception {
+        recordFailures(4);
+        Thread.sleep(250);
+
+        // Only a single probe is let through
+        long start = healthRegistry.acquirePermission(endpoint);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.HALF_OPEN);
+        try {
+            healthRegistry.acquirePermission(endpoint);
+            fail("Only a single probe should be allowed");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        healthRegistry.recordSuccess(endpoint, start);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.CLOSED);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getFailureRate(), 0);
+        assertEquals(healthRegistry.getOpenCount(), 0);
+    }
+
+    @Test
+    public void failedProbeOpensCircuitAgain() throws Exception {
+        recordFailures(4);
+        Thread.sleep(250);
+
+        long start = healthRegistry.acquirePermission(endpoint);
+        healthRegistry.recordFailure(endpoint, start);
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.OPEN);
+        try {
+            healthRegistry.acquirePermission(endpoint);
+            fail("Circuit should be open again");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void concurrentCallersGetSingleProbe() throws Exception {
+        recordFailures(4);
+        Thread.sleep(250);
+
+        int threads = 16;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executorService.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        startSignal.await();
+                        try {
+                            healthRegistry.acquirePermission(endpoint);
+                            return true;
+                        } catch (CircuitOpenException e) {
+                            return false;
+                        }
+                    }
+                }));
+            }
+            startSignal.countDown();
+
+            int granted = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    granted++;
+                }
+            }
+            assertEquals(granted, 1);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void circuitMayBeTrippedAndResetManually() throws Exception {
+        healthRegistry.trip("https://ap.example.com:443");
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.OPEN);
+        assertTrue(healthRegistry.getDestinationStates().get("https://ap.example.com:443").startsWith("OPEN"));
+
+        healthRegistry.reset("https://ap.example.com:443");
+        healthRegistry.acquirePermission(endpoint);
+    }
+
+    @Test
+    public void slowProbeClosesCircuit() throws Exception {
+        recordFailures(4);
+        Thread.sleep(250);
+
+        DestinationCircuitBreaker circuitBreaker = healthRegistry.getCircuitBreaker(endpoint);
+        circuitBreaker.acquirePermission();
+        circuitBreaker.recordSuccess(150000000L);
+        assertEquals(circuitBreaker.getState(), DestinationCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void registryIsAvailableThroughJmx() throws Exception {
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(DestinationHealthRegistry.OBJECT_NAME);
+        if (mBeanServer.isRegistered(objectName)) {
+            mBeanServer.unregisterMBean(objectName);
+        }
+
+        assertTrue(healthRegistry.registerMBean());
+        healthRegistry.trip("https://ap.example.com:443");
+        assertEquals(mBeanServer.getAttribute(objectName, "OpenCount"), 1);
+
+        mBeanServer.invoke(objectName, "reset", new Object[]{"https://ap.example.com:443"}, new String[]{String.class.getName()});
+        assertEquals(healthRegistry.getCircuitBreaker(endpoint).getState(), DestinationCircuitBreaker.State.CLOSED);
+
+        // Another registry does not replace the one registered
+        DestinationHealthRegistry other = new DestinationHealthRegistry(10, 4, 50, 100, 50, 200);
+        assertFalse(other.registerMBean());
+        healthRegistry.trip("https://ap.example.com:443");
+        assertEquals(mBeanServer.getAttribute(objectName, "OpenCount"), 1);
+    }
+
+    @Test
+    public void instanceIsShared() throws Exception {
+        assertSame(DestinationHealthRegistry.getInstance(), DestinationHealthRegistry.getInstance());
+    }
+
+    private void recordSuccesses(int count) {
+        for (int i = 0; i < count; i++) {
+            healthRegistry.recordSuccess(endpoint, healthRegistry.acquirePermission(endpoint));
+        }
+    }
+
+    private void recordFailures(int count) {
+        for (int i = 0; i < count; i++) {
+            healthRegistry.recordFailure(endpoint, healthRegistry.acquirePermission(endpoint));
+        }
+    }
+}
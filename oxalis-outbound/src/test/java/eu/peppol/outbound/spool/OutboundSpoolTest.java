@@ -0,0 +1,278 @@
+package eu.peppol.outbound.spool;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
+import eu.peppol.PeppolStandardBusinessHeader;
+import eu.peppol.document.Payload;
+import eu.peppol.identifier.TransmissionId;
+import eu.peppol.outbound.guice.TestResourceModule;
+import eu.peppol.outbound.transmission.As2TransmissionResponse;
+import eu.peppol.outbound.transmission.TransmissionRequest;
+import eu.peppol.outbound.transmission.TransmissionRequestBuilder;
+import eu.peppol.outbound.transmission.TransmissionResponse;
+import eu.peppol.outbound.transmission.TransmissionTestModule;
+import eu.peppol.outbound.transmission.Transmitter;
+import eu.peppol.security.CommonName;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Guice;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+@Guice(modules = {TransmissionTestModule.class, TestResourceModule.class})
+public class OutboundSpoolTest {
+
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    @Inject
+    @Named("sampleXml")
+    Provider<InputStream> sampleXmlProvider;
+
+    private File spoolDirectory;
+    private OutboundSpool outboundSpool;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        spoolDirectory = File.createTempFile("oxalis-spool", "");
+        spoolDirectory.delete();
+        spoolDirectory.mkdirs();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        if (outboundSpool != null) {
+            outboundSpool.shutdown();
+        }
+        deleteRecursively(spoolDirectory);
+    }
+
+    @Test
+    public void transmissionIsSentOnceOnly() throws Exception {
+        RecordingTransmitter transmitter = new RecordingTransmitter(0);
+        outboundSpool = createSpool(transmitter, 20);
+        outboundSpool.start();
+
+        TransmissionId transmissionId = new TransmissionId();
+        TransmissionRequest transmissionRequest = transmissionRequestBuilderProvider.get()
+                .payLoad(sampleXmlProvider.get())
+                .transmissionId(transmissionId)
+                .build();
+        assertEquals(outboundSpool.enqueue(transmissionRequest), transmissionId);
+        waitUntilEmpty(outboundSpool);
+
+        // Enqueuing the same transmission again has no effect
+        assertEquals(outboundSpool.enqueue(transmissionRequest), transmissionId);
+        waitUntilEmpty(outboundSpool);
+        Thread.sleep(100);
+
+        assertEquals(transmitter.transmissionIds.size(), 1);
+        assertEquals(transmitter.transmissionIds.get(0), transmissionId);
+    }
+
+    @Test
+    public void failedTransmissionIsRetried() throws Exception {
+        RecordingTransmitter transmitter = new RecordingTransmitter(3);
+        outboundSpool = createSpool(transmitter, 20);
+        outboundSpool.start();
+
+        TransmissionId transmissionId = outboundSpool.enqueue(createTransmissionRequest());
+        waitUntilEmpty(outboundSpool);
+
+        assertEquals(transmitter.attempts.get(), 4);
+        assertEquals(transmitter.transmissionIds.size(), 1);
+        assertEquals(transmitter.transmissionIds.get(0), transmissionId);
+    }
+
+    @Test
+    public void pendingTransmissionsAreRecoveredUponStart() throws Exception {
+        RecordingTransmitter transmitter = new RecordingTransmitter(0);
+
+        // Never started, simulates a crash after the transmission has been spooled
+        OutboundSpool crashedSpool = createSpool(transmitter, 20);
+        TransmissionId transmissionId = crashedSpool.enqueue(createTransmissionRequest());
+        assertEquals(transmitter.attempts.get(), 0);
+
+        outboundSpool = createSpool(transmitter, 20);
+        outboundSpool.start();
+        waitUntilEmpty(outboundSpool);
+
+        assertEquals(transmitter.transmissionIds.size(), 1);
+        assertEquals(transmitter.transmissionIds.get(0), transmissionId);
+    }
+
+    /** The second caller waits for the first, and writes the transmission itself since the first did not */
+    @Test
+    public void concurrentEnqueueWaitsForTheFirstToComplete() throws Exception {
+        outboundSpool = createSpool(new RecordingTransmitter(0), 20);
+        final TransmissionId transmissionId = new TransmissionId();
+        final TransmissionRequest transmissionRequest = transmissionRequestBuilderProvider.get()
+                .payLoad(Payload.spool(sampleXmlProvider.get(), 1024))
+                .overrideStartEndpoint(new URL("https://ap.example.com/oxalis/accessPointService"))
+                .transmissionId(transmissionId)
+                .build();
+        Payload payload = transmissionRequest.getPayload();
+        assertFalse(payload.isInMemory());
+
+        // Simulates another thread enqueuing the same transmission
+        CountDownLatch first = new CountDownLatch(1);
+        outboundSpool.beingEnqueued.put(transmissionId.toString(), first);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            Future<TransmissionId> second = executorService.submit(new Callable<TransmissionId>() {
+                @Override
+                public TransmissionId call() throws Exception {
+                    return outboundSpool.enqueue(transmissionRequest);
+                }
+            });
+            try {
+                second.get(200, TimeUnit.MILLISECONDS);
+                fail("Enqueue should wait for the concurrent enqueue to complete");
+            } catch (TimeoutException e) {
+                // Expected
+            }
+            assertEquals(outboundSpool.getPendingCount(), 0);
+
+            // The first fails to write the transmission
+            outboundSpool.beingEnqueued.remove(transmissionId.toString());
+            first.countDown();
+
+            assertEquals(second.get(5, TimeUnit.SECONDS), transmissionId);
+            assertEquals(outboundSpool.getPendingCount(), 1);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // The request was closed, thus removing the temporary file of the payload
+        try {
+            payload.openStream().close();
+            fail("The temporary file of the payload should have been removed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void recoveredTransmissionUsesTheSpooledHeader() throws Exception {
+        TransmissionRequest transmissionRequest = createTransmissionRequest();
+        PeppolStandardBusinessHeader header = transmissionRequest.getPeppolStandardBusinessHeader();
+        OutboundSpool crashedSpool = createSpool(new RecordingTransmitter(0), 20);
+        crashedSpool.enqueue(transmissionRequest);
+
+        List<SpoolEntry> recovered = new SpoolJournal(spoolDirectory).recover();
+        assertEquals(recovered.size(), 1);
+        PeppolStandardBusinessHeader spooledHeader = recovered.get(0).getHeader();
+        assertEquals(spooledHeader.getSenderId(), header.getSenderId());
+        assertEquals(spooledHeader.getRecipientId(), header.getRecipientId());
+        assertEquals(spooledHeader.getDocumentTypeIdentifier().toString(), header.getDocumentTypeIdentifier().toString());
+        assertEquals(spooledHeader.getProfileTypeIdentifier().toString(), header.getProfileTypeIdentifier().toString());
+        assertEquals(spooledHeader.getMessageId().stringValue(), header.getMessageId().stringValue());
+        assertEquals(spooledHeader.getCreationDateAndTime(), header.getCreationDateAndTime());
+
+        // The payload is not parsed again
+        TransmissionRequest reloaded = createSpool(new RecordingTransmitter(0), 20).loadTransmissionRequest(recovered.get(0));
+        try {
+            assertSame(reloaded.getPeppolStandardBusinessHeader(), spooledHeader);
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void transmissionIsMovedAsideAfterMaxAttempts() throws Exception {
+        RecordingTransmitter transmitter = new RecordingTransmitter(Integer.MAX_VALUE);
+        outboundSpool = createSpool(transmitter, 3);
+        outboundSpool.start();
+
+        TransmissionId transmissionId = outboundSpool.enqueue(createTransmissionRequest());
+        waitUntilEmpty(outboundSpool);
+
+        assertEquals(transmitter.attempts.get(), 3);
+        String fileName = SpoolJournal.fileName(transmissionId.toString());
+        assertTrue(new File(outboundSpool.getFailedDirectory(), fileName + SpoolJournal.PAYLOAD_SUFFIX).exists());
+        assertTrue(new File(outboundSpool.getFailedDirectory(), fileName + SpoolJournal.DESCRIPTOR_SUFFIX).exists());
+    }
+
+    @Test
+    public void retryDelayIsBoundedAndGrows() {
+        RetryPolicy retryPolicy = new RetryPolicy(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long first = retryPolicy.delayFor(1);
+            assertTrue(first >= 50 && first <= 100, "Delay " + first);
+            long third = retryPolicy.delayFor(3);
+            assertTrue(third >= 200 && third <= 400, "Delay " + third);
+            long tenth = retryPolicy.delayFor(10);
+            assertTrue(tenth >= 500 && tenth <= 1000, "Delay " + tenth);
+        }
+    }
+
+    OutboundSpool createSpool(Transmitter transmitter, int maxAttempts) {
+        return new OutboundSpool(spoolDirectory, 2, 2, new RetryPolicy(10, 50), maxAttempts, transmitter, transmissionRequestBuilderProvider);
+    }
+
+    TransmissionRequest createTransmissionRequest() {
+        return transmissionRequestBuilderProvider.get().payLoad(sampleXmlProvider.get()).build();
+    }
+
+    static void waitUntilEmpty(OutboundSpool outboundSpool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (outboundSpool.getPendingCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "Spool was not emptied in time");
+            Thread.sleep(10);
+        }
+    }
+
+    static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Fails the first number of transmissions, records the transmission ids of those succeeding */
+    static class RecordingTransmitter extends Transmitter {
+
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<TransmissionId> transmissionIds = new CopyOnWriteArrayList<TransmissionId>();
+        private final int failures;
+
+        RecordingTransmitter(int failures) {
+            super(null, null, new CommonName("AP_TEST"));
+            this.failures = failures;
+        }
+
+        @Override
+        public TransmissionResponse transmit(TransmissionRequest transmissionRequest) {
+            if (attempts.incrementAndGet() <= failures) {
+                throw new IllegalStateException("Simulated failure");
+            }
+            transmissionIds.add(transmissionRequest.getTransmissionId());
+            return new As2TransmissionResponse(transmissionRequest.getTransmissionId(), transmissionRequest.getPeppolStandardBusinessHeader());
+        }
+    }
+}
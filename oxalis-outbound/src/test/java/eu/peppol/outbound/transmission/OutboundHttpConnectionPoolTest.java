@@ -0,0 +1,105 @@
+package eu.peppol.outbound.transmission;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class OutboundHttpConnectionPoolTest {
+
+    private HttpServer httpServer;
+    private OutboundHttpConnectionPool connectionPool;
+    private String url;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        httpServer.createContext("/as2", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream requestBody = exchange.getRequestBody();
+                while (requestBody.read() != -1) {
+                    // Consumes the request
+                }
+                byte[] response = "OK".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream responseBody = exchange.getResponseBody();
+                responseBody.write(response);
+                responseBody.close();
+            }
+        });
+        httpServer.start();
+
+        url = "http://localhost:" + httpServer.getAddress().getPort() + "/as2";
+        connectionPool = new OutboundHttpConnectionPool(4, 2, 30000L, 5000, 5000);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        connectionPool.shutdown();
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void connectionIsReusedBetweenRequests() throws Exception {
+
+        for (int i = 0; i < 5; i++) {
+            HttpPost httpPost = new HttpPost(url);
+            httpPost.setEntity(new ByteArrayEntity(("message " + i).getBytes("UTF-8")));
+
+            CloseableHttpResponse response = connectionPool.execute(httpPost);
+            try {
+                assertEquals(response.getStatusLine().getStatusCode(), 200);
+                assertEquals(EntityUtils.toString(response.getEntity()), "OK");
+            } finally {
+                response.close();
+            }
+        }
+
+        // Nothing leased, a single connection kept alive for the next request
+        PoolStats totalStats = connectionPool.getTotalStats();
+        assertEquals(totalStats.getLeased(), 0);
+        assertEquals(totalStats.getAvailable(), 1);
+        assertEquals(totalStats.getMax(), 4);
+
+        Map<String, PoolStats> routeStats = connectionPool.getRouteStats();
+        assertEquals(routeStats.size(), 1);
+        String routeKey = "http://localhost:" + httpServer.getAddress().getPort();
+        assertTrue(routeStats.containsKey(routeKey), "No statistics for " + routeKey + " in " + routeStats);
+        assertEquals(routeStats.get(routeKey).getAvailable(), 1);
+        assertEquals(routeStats.get(routeKey).getMax(), 2);
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        OutboundHttpConnectionPool shortLivedPool = new OutboundHttpConnectionPool(4, 2, 1L, 5000, 5000);
+        try {
+            CloseableHttpResponse response = shortLivedPool.execute(new HttpPost(url));
+            EntityUtils.consume(response.getEntity());
+            response.close();
+            assertEquals(shortLivedPool.getTotalStats().getAvailable(), 1);
+
+            Thread.sleep(10);
+            shortLivedPool.evictExpiredAndIdleConnections();
+            assertEquals(shortLivedPool.getTotalStats().getAvailable(), 0);
+        } finally {
+            shortLivedPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package eu.peppol.outbound.transmission;
+
+import eu.peppol.as2.StreamingSMimeSigner;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.activation.MimeType;
+import javax.security.auth.x500.X500Principal;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static org.testng.Assert.*;
+
+public class SMimeSignedEntityTest {
+
+    private static final long ONE_MEGABYTE = 1024L * 1024L;
+
+    private StreamingSMimeSigner signer;
+
+    @BeforeClass
+    public void createSelfSignedCertificate() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Principal subject = new X500Principal("CN=APP_TEST");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000L), new Date(System.currentTimeMillis() + 3600000L), subject, keyPair.getPublic());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").build(keyPair.getPrivate())));
+
+        signer = new StreamingSMimeSigner(keyPair.getPrivate(), certificate);
+    }
+
+    @Test
+    public void entityIsStreamedWithChunkedEncoding() throws Exception {
+        SMimeSignedEntity entity = new SMimeSignedEntity(signer, new GeneratedInputStream(1024), new MimeType("application/xml"));
+
+        assertTrue(entity.isChunked());
+        assertTrue(entity.isStreaming());
+        assertFalse(entity.isRepeatable());
+        assertEquals(entity.getContentLength(), -1L);
+        assertTrue(entity.getContentType().getValue().startsWith("multipart/signed"));
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        entity.writeTo(byteArrayOutputStream);
+        assertNotNull(entity.getMic());
+        assertFalse(entity.isStreaming());
+
+        String written = byteArrayOutputStream.toString("US-ASCII");
+        assertTrue(written.contains("Content-Type: application/xml"));
+        assertTrue(written.contains("Content-Type: application/pkcs7-signature"));
+    }
+
+    @Test
+    public void contentIsSignedWhileBeingRead() throws Exception {
+        SMimeSignedEntity entity = new SMimeSignedEntity(signer, new GeneratedInputStream(1024 * 1024), new MimeType("application/xml"));
+
+        InputStream content = entity.getContent();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = content.read(buffer)) != -1) {
+            byteArrayOutputStream.write(buffer, 0, bytesRead);
+        }
+        content.close();
+
+        assertNotNull(entity.getMic());
+        assertFalse(entity.isStreaming());
+        assertTrue(byteArrayOutputStream.size() > 1024 * 1024);
+        String read = byteArrayOutputStream.toString("US-ASCII");
+        assertTrue(read.contains("Content-Type: application/xml"));
+        assertTrue(read.contains("Content-Type: application/pkcs7-signature"));
+
+        try {
+            entity.writeTo(new ByteArrayOutputStream());
+            fail("The entity may only be consumed once");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void failureToSignIsReportedByTheContent() throws Exception {
+        InputStream failingPayload = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Payload removed");
+            }
+        };
+        SMimeSignedEntity entity = new SMimeSignedEntity(signer, failingPayload, new MimeType("application/xml"));
+
+        InputStream content = entity.getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            while (content.read(buffer) != -1) {
+                // Discarded
+            }
+            fail("The failure to sign should have been reported");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Payload removed"), e.getMessage());
+        }
+    }
+
+    /**
+     * Writes 256MB through the entity, while sampling the heap. Holding the message in memory would
+     * require several times the size of the payload.
+     */
+    @Test
+    public void heapUsageIsConstantForLargePayloads() throws Exception {
+        long payloadSize = 256 * ONE_MEGABYTE;
+
+        SMimeSignedEntity entity = new SMimeSignedEntity(signer, new GeneratedInputStream(payloadSize), new MimeType("application/xml"));
+
+        System.gc();
+        HeapSamplingOutputStream outputStream = new HeapSamplingOutputStream();
+        entity.writeTo(outputStream);
+
+        assertTrue(outputStream.bytesWritten > payloadSize, "Only " + outputStream.bytesWritten + " bytes written");
+        long heapGrowth = outputStream.maxHeapUsed - outputStream.initialHeapUsed;
+        assertTrue(heapGrowth < 32 * ONE_MEGABYTE, "Heap grew by " + heapGrowth / ONE_MEGABYTE + "MB while streaming " + payloadSize / ONE_MEGABYTE + "MB");
+    }
+
+    /** Produces the requested number of bytes without allocating any memory */
+    static class GeneratedInputStream extends InputStream {
+        private long remaining;
+
+        GeneratedInputStream(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 'A' + (int) (remaining % 26);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            for (int i = 0; i < count; i++) {
+                b[off + i] = (byte) ('A' + (int) ((remaining - i) % 26));
+            }
+            remaining -= count;
+            return count;
+        }
+    }
+
+    /** Discards everything written, while recording the heap usage for every megabyte written */
+    static class HeapSamplingOutputStream extends OutputStream {
+        final Runtime runtime = Runtime.getRuntime();
+        final long initialHeapUsed = heapUsed();
+        long maxHeapUsed = initialHeapUsed;
+        long bytesWritten = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count(len);
+        }
+
+        private void count(int len) {
+            long before = bytesWritten;
+            bytesWritten += len;
+            if (before / ONE_MEGABYTE != bytesWritten / ONE_MEGABYTE) {
+                maxHeapUsed = Math.max(maxHeapUsed, heapUsed());
+            }
+        }
+
+        private long heapUsed() {
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
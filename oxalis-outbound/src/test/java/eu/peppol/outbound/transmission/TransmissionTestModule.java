@@ -19,6 +19,8 @@ import eu.peppol.statistics.StatisticsTransformer;
 import eu.peppol.util.GlobalConfiguration;
 import org.easymock.EasyMock;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.cert.X509Certificate;
@@ -41,6 +43,18 @@ public class TransmissionTestModule extends AbstractModule {
 
     @Override
     protected void configure() {
+        useTemporarySmpStore();
+    }
+
+    /** Keeps the SMP lookups performed by the tests out of the SMP store in the Oxalis home directory */
+    static void useTemporarySmpStore() {
+        try {
+            File file = File.createTempFile("smp-metadata", ".dat");
+            file.deleteOnExit();
+            GlobalConfiguration.getInstance().setSmpStoreFile(file.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create temporary SMP store: " + e.getMessage(), e);
+        }
     }
 
     @Provides
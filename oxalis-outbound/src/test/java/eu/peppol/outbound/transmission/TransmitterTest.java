@@ -1,7 +1,10 @@
 package eu.peppol.outbound.transmission;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.name.Named;
+import eu.peppol.BusDoxProtocol;
+import eu.peppol.document.Payload;
 import eu.peppol.identifier.TransmissionId;
 import eu.peppol.outbound.guice.TestResourceModule;
 import eu.peppol.security.CommonName;
@@ -12,8 +15,21 @@ import org.testng.annotations.Guice;
 import org.testng.annotations.Test;
 
 import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.testng.Assert.*;
 
@@ -32,6 +48,13 @@ public class TransmitterTest {
     @Named("sampleXml")
     InputStream inputStream;
 
+    @Inject
+    Provider<TransmissionRequestBuilder> transmissionRequestBuilderProvider;
+
+    @Inject
+    @Named("sampleXml")
+    Provider<InputStream> sampleXmlProvider;
+
     @Test
     public void testPersistStatistics() throws Exception {
 
@@ -43,6 +66,11 @@ public class TransmitterTest {
             public TransmissionId getTransmissionId() {
                 return new TransmissionId();
             }
+
+            @Override
+            public TransmissionTimings getTimings() {
+                return new TransmissionTimings();
+            }
         };
 
         MessageSenderFactory mockMessageSenderFactory = EasyMock.createMock(MessageSenderFactory.class);
@@ -77,4 +105,304 @@ public class TransmitterTest {
 
         assertNotNull(transmitter);
     }
+
+    @Test
+    public void transmitAsyncReportsTimingsAndNotifiesCallback() throws Exception {
+        TransmissionRequest transmissionRequest = createTransmissionRequest();
+
+        Transmitter transmitter = createTransmitter(new DelayingMessageSender(new CountDownLatch(0)), new TransmissionExecutor(2, 10));
+
+        final CountDownLatch callbackInvoked = new CountDownLatch(1);
+        final AtomicReference<TransmissionResponse> callbackResponse = new AtomicReference<TransmissionResponse>();
+        TransmissionFuture future = transmitter.transmitAsync(transmissionRequest, 10, TimeUnit.SECONDS, new TransmissionCallback() {
+            @Override
+            public void onSuccess(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse) {
+                callbackResponse.set(transmissionResponse);
+                callbackInvoked.countDown();
+            }
+
+            @Override
+            public void onFailure(TransmissionRequest transmissionRequest, Throwable cause) {
+                callbackInvoked.countDown();
+            }
+        });
+
+        TransmissionResponse transmissionResponse = future.get(10, TimeUnit.SECONDS);
+        assertNotNull(transmissionResponse.getTransmissionId());
+        assertTrue(callbackInvoked.await(10, TimeUnit.SECONDS));
+        assertSame(callbackResponse.get(), transmissionResponse);
+
+        Map<TransmissionTimings.Stage, Long> stages = transmissionResponse.getTimings().asMap();
+        assertTrue(stages.containsKey(TransmissionTimings.Stage.QUEUED));
+        assertTrue(stages.containsKey(TransmissionTimings.Stage.TRANSPORT));
+        assertTrue(stages.containsKey(TransmissionTimings.Stage.STATISTICS));
+        assertFalse(future.isTimedOut());
+    }
+
+    @Test
+    public void transmitAsyncRejectsWhenQueueIsFull() throws Exception {
+        TransmissionRequest transmissionRequest = createTransmissionRequest();
+
+        CountDownLatch release = new CountDownLatch(1);
+        Transmitter transmitter = createTransmitter(new DelayingMessageSender(release), new TransmissionExecutor(1, 1));
+        try {
+            transmitter.transmitAsync(transmissionRequest);     // Occupies the only thread
+            transmitter.transmitAsync(transmissionRequest);     // Fills the queue
+            // Allows for the first one to be picked up by the thread
+            Thread.sleep(100);
+            try {
+                transmitter.transmitAsync(transmissionRequest);
+                transmitter.transmitAsync(transmissionRequest);
+                fail("Transmission should have been rejected");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void transmitAsyncTimesOut() throws Exception {
+        TransmissionRequest transmissionRequest = createTransmissionRequest();
+
+        Transmitter transmitter = createTransmitter(new DelayingMessageSender(new CountDownLatch(1)), new TransmissionExecutor(1, 10));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch callbackInvoked = new CountDownLatch(1);
+        TransmissionFuture future = transmitter.transmitAsync(transmissionRequest, 100, TimeUnit.MILLISECONDS, new TransmissionCallback() {
+            @Override
+            public void onSuccess(TransmissionRequest transmissionRequest, TransmissionResponse transmissionResponse) {
+                callbackInvoked.countDown();
+            }
+
+            @Override
+            public void onFailure(TransmissionRequest transmissionRequest, Throwable cause) {
+                failure.set(cause);
+                callbackInvoked.countDown();
+            }
+        });
+
+        assertTrue(callbackInvoked.await(10, TimeUnit.SECONDS));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isTimedOut());
+        assertTrue(failure.get() instanceof TimeoutException, "Expected timeout, got " + failure.get());
+        try {
+            future.get();
+            fail("A transmission which timed out has no response");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void transmitAllLimitsConcurrencyPerDestinationAndReportsFailures() throws Exception {
+        List<TransmissionRequest> transmissionRequests = new ArrayList<TransmissionRequest>();
+        for (int i = 0; i < 24; i++) {
+            transmissionRequests.add(transmissionRequestBuilderProvider.get()
+                    .payLoad(sampleXmlProvider.get())
+                    .overrideAs2Endpoint(new URL("https://ap" + (i % 3) + ".example.com/oxalis/as2"), "APP_1000000006")
+                    .build());
+        }
+
+        // Every transmission to ap2 fails
+        ConcurrencyTrackingMessageSender messageSender = new ConcurrencyTrackingMessageSender("ap2.example.com");
+        Transmitter transmitter = createTransmitter(messageSender, null);
+
+        List<TransmissionResult> results = transmitter.transmitAll(transmissionRequests, 10, 2);
+
+        assertEquals(results.size(), transmissionRequests.size());
+        for (int i = 0; i < results.size(); i++) {
+            TransmissionResult result = results.get(i);
+            assertSame(result.getTransmissionRequest(), transmissionRequests.get(i));
+            if (i % 3 == 2) {
+                assertFalse(result.isSuccess());
+                assertNull(result.getTransmissionResponse());
+                assertTrue(result.getFailure() instanceof IllegalStateException);
+            } else {
+                assertTrue(result.isSuccess(), "Transmission " + i + " failed: " + result.getFailure());
+                assertNotNull(result.getTransmissionResponse().getTransmissionId());
+            }
+        }
+
+        // The access points were served in parallel, but never more than 2 at a time for each of them
+        assertEquals(messageSender.maxConcurrent.keySet().size(), 3);
+        for (Map.Entry<String, AtomicInteger> entry : messageSender.maxConcurrent.entrySet()) {
+            assertTrue(entry.getValue().get() <= 2, entry.getKey() + " had " + entry.getValue() + " concurrent transmissions");
+        }
+        assertTrue(messageSender.maxConcurrentInTotal.get() > 2, "Access points were not served in parallel");
+    }
+
+    @Test
+    public void transmitAllOfNoRequestsReturnsEmptyList() throws Exception {
+        Transmitter transmitter = createTransmitter(new ConcurrencyTrackingMessageSender(null), null);
+
+        List<TransmissionResult> results = transmitter.transmitAll(new ArrayList<TransmissionRequest>(), 10, 2);
+
+        assertTrue(results.isEmpty());
+    }
+
+    @Test
+    public void transmitAllRejectsInvalidLimits() throws Exception {
+        Transmitter transmitter = createTransmitter(new ConcurrencyTrackingMessageSender(null), null);
+        List<TransmissionRequest> transmissionRequests = new ArrayList<TransmissionRequest>();
+        transmissionRequests.add(createTransmissionRequest());
+
+        try {
+            transmitter.transmitAll(transmissionRequests, 0, 2);
+            fail("Zero threads should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("threads"), e.getMessage());
+        }
+        try {
+            transmitter.transmitAll(transmissionRequests, 10, 0);
+            fail("Zero transmissions per access point should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("per access point"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void successiveBatchesAreTransmitted() throws Exception {
+        Transmitter transmitter = createTransmitter(new ConcurrencyTrackingMessageSender(null), null);
+        for (int batch = 0; batch < 3; batch++) {
+            List<TransmissionRequest> transmissionRequests = new ArrayList<TransmissionRequest>();
+            for (int i = 0; i < 4; i++) {
+                transmissionRequests.add(createTransmissionRequest());
+            }
+
+            List<TransmissionResult> results = transmitter.transmitAll(transmissionRequests, 2, 2);
+
+            assertEquals(results.size(), transmissionRequests.size());
+            for (TransmissionResult result : results) {
+                assertTrue(result.isSuccess(), "Transmission failed: " + result.getFailure());
+            }
+        }
+    }
+
+    @Test
+    public void transmitClosesTheRequest() throws Exception {
+        TransmissionRequest transmissionRequest = createSpooledTransmissionRequest();
+        Payload payload = transmissionRequest.getPayload();
+        assertFalse(payload.isInMemory());
+
+        createTransmitter(new DelayingMessageSender(new CountDownLatch(0)), null).transmit(transmissionRequest);
+
+        assertPayloadRemoved(payload);
+    }
+
+    @Test
+    public void cancelledTransmissionClosesTheRequest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Transmitter transmitter = createTransmitter(new DelayingMessageSender(release), new TransmissionExecutor(1, 1));
+        try {
+            transmitter.transmitAsync(createTransmissionRequest());     // Occupies the only thread
+
+            TransmissionRequest transmissionRequest = createSpooledTransmissionRequest();
+            TransmissionFuture future = transmitter.transmitAsync(transmissionRequest);
+            assertTrue(future.cancel(false));
+
+            assertPayloadRemoved(transmissionRequest.getPayload());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    TransmissionRequest createTransmissionRequest() {
+        return transmissionRequestBuilderProvider.get().payLoad(sampleXmlProvider.get()).build();
+    }
+
+    /** The payload is spooled to a temporary file, which is not wrapped when transmitted by means of START */
+    TransmissionRequest createSpooledTransmissionRequest() throws Exception {
+        return transmissionRequestBuilderProvider.get()
+                .payLoad(Payload.spool(sampleXmlProvider.get(), 1024))
+                .overrideStartEndpoint(new URL("https://ap.example.com/oxalis/accessPointService"))
+                .build();
+    }
+
+    void assertPayloadRemoved(Payload payload) throws Exception {
+        try {
+            payload.openStream().close();
+            fail("The temporary file of the payload should have been removed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    Transmitter createTransmitter(MessageSender messageSender, TransmissionExecutor transmissionExecutor) {
+        MessageSenderFactory mockMessageSenderFactory = EasyMock.createMock(MessageSenderFactory.class);
+        EasyMock.expect(mockMessageSenderFactory.createMessageSender(EasyMock.isA(BusDoxProtocol.class))).andStubReturn(messageSender);
+        RawStatisticsRepository mockRepo = EasyMock.createMock(RawStatisticsRepository.class);
+        EasyMock.expect(mockRepo.persist(EasyMock.isA(RawStatistics.class))).andStubReturn(42);
+        EasyMock.replay(mockMessageSenderFactory, mockRepo);
+
+        return new Transmitter(mockMessageSenderFactory, mockRepo, new CommonName("AP_TEST"), transmissionExecutor);
+    }
+
+    /** Keeps track of the maximum number of concurrent transmissions to each host */
+    static class ConcurrencyTrackingMessageSender implements MessageSender {
+        final ConcurrentMap<String, AtomicInteger> current = new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentMap<String, AtomicInteger> maxConcurrent = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger currentInTotal = new AtomicInteger();
+        final AtomicInteger maxConcurrentInTotal = new AtomicInteger();
+        private final String failingHost;
+
+        ConcurrencyTrackingMessageSender(String failingHost) {
+            this.failingHost = failingHost;
+        }
+
+        @Override
+        public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+            String host = transmissionRequest.getEndpointAddress().getUrl().getHost();
+            current.putIfAbsent(host, new AtomicInteger());
+            maxConcurrent.putIfAbsent(host, new AtomicInteger());
+
+            int concurrent = current.get(host).incrementAndGet();
+            int concurrentInTotal = currentInTotal.incrementAndGet();
+            try {
+                updateMax(maxConcurrent.get(host), concurrent);
+                updateMax(maxConcurrentInTotal, concurrentInTotal);
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted");
+            } finally {
+                current.get(host).decrementAndGet();
+                currentInTotal.decrementAndGet();
+            }
+
+            if (host.equals(failingHost)) {
+                throw new IllegalStateException("Simulated failure of " + host);
+            }
+            return new As2TransmissionResponse(new TransmissionId(), transmissionRequest.getPeppolStandardBusinessHeader(), new TransmissionTimings());
+        }
+
+        private static void updateMax(AtomicInteger max, int value) {
+            int previous;
+            while ((previous = max.get()) < value && !max.compareAndSet(previous, value)) {
+                // retry
+            }
+        }
+    }
+
+    /** Waits for the latch to be released before responding, which may be interrupted */
+    static class DelayingMessageSender implements MessageSender {
+        private final CountDownLatch release;
+
+        DelayingMessageSender(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public TransmissionResponse send(TransmissionRequest transmissionRequest) {
+            long start = System.nanoTime();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted");
+            }
+            TransmissionTimings timings = new TransmissionTimings();
+            timings.recordSince(TransmissionTimings.Stage.TRANSPORT, start);
+            return new As2TransmissionResponse(new TransmissionId(), transmissionRequest.getPeppolStandardBusinessHeader(), timings);
+        }
+    }
 }
@@ -16,7 +16,6 @@ import joptsimple.OptionSpec;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -85,7 +84,7 @@ public class Main {
                 TransmissionRequestBuilder requestBuilder = oxalisOutboundModule.getTransmissionRequestBuilder();
 
                 // Supplies the payload
-                requestBuilder.payLoad(new FileInputStream(xmlInvoice));
+                requestBuilder.payLoad(xmlInvoice);
 
                 // Overrides the destination URL if so requested
                 if (optionSet.has(destinationUrl)) {